@@ -17,6 +17,17 @@ package org.springframework.session.data.redis;
 
 import static org.fest.assertions.Assertions.assertThat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -25,13 +36,17 @@ import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
 import org.springframework.session.SessionRepository;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
 import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
 import org.springframework.session.events.SessionDestroyedEvent;
 import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
@@ -44,12 +59,17 @@ import org.springframework.test.context.web.WebAppConfiguration;
 @ContextConfiguration
 @WebAppConfiguration
 public class RedisOperationsSessionRepositoryITests<S extends Session> {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
 	@Autowired
 	private SessionRepository<S> repository;
 
 	@Autowired
 	private SessionDestroyedEventRegistry registry;
 
+	@Autowired
+	private RedisTemplate<String, ExpiringSession> sessionRedisTemplate;
+
 	private final Object lock = new Object();
 
 	@Before
@@ -102,6 +122,336 @@ public class RedisOperationsSessionRepositoryITests<S extends Session> {
 		assertThat(session.getAttribute("1")).isEqualTo("2");
 	}
 
+	@Test
+	public void lazyAttributeLoading() {
+		RedisOperationsSessionRepository lazyRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		lazyRepository.setLazyAttributeLoading(true);
+		RedisSession toSave = lazyRepository.createSession();
+		toSave.setAttribute("a", "b");
+		toSave.setAttribute("1", "2");
+		lazyRepository.save(toSave);
+
+		RedisSession session = lazyRepository.getSession(toSave.getId());
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		session.removeAttribute("1");
+		session.setAttribute("c", "d");
+		lazyRepository.save(session);
+
+		session = lazyRepository.getSession(toSave.getId());
+		assertThat(session.getAttribute("1")).isNull();
+		assertThat(session.getAttributeNames()).containsOnly("a", "c");
+		assertThat(session.getAttribute("c")).isEqualTo("d");
+
+		lazyRepository.delete(toSave.getId());
+		assertThat(lazyRepository.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void getSessions() {
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		RedisSession first = repository.createSession();
+		first.setAttribute("a", "b");
+		repository.save(first);
+		RedisSession second = repository.createSession();
+		repository.save(second);
+
+		Map<String, RedisSession> sessions = repository.getSessions(Arrays.asList(second.getId(), "missing", first.getId()));
+
+		assertThat(new ArrayList<String>(sessions.keySet())).containsExactly(second.getId(), first.getId());
+		assertThat(sessions.get(first.getId()).getAttribute("a")).isEqualTo("b");
+		assertThat(sessions.get(first.getId()).getCreationTime()).isEqualTo(first.getCreationTime());
+		assertThat(sessions.get(second.getId()).getMaxInactiveIntervalInSeconds()).isEqualTo(second.getMaxInactiveIntervalInSeconds());
+
+		repository.delete(first.getId());
+		repository.delete(second.getId());
+	}
+
+	@Test
+	public void findByPrincipalName() {
+		String principalName = "findByPrincipalName" + System.currentTimeMillis();
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setIndexPrincipalNames(true);
+		RedisSession first = repository.createSession();
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		context.setAuthentication(new UsernamePasswordAuthenticationToken(principalName, "password", AuthorityUtils.createAuthorityList("ROLE_USER")));
+		first.setAttribute("SPRING_SECURITY_CONTEXT", context);
+		repository.save(first);
+		RedisSession second = repository.createSession();
+		second.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+		repository.save(second);
+
+		Map<String, RedisSession> sessions = repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+		assertThat(sessions.keySet()).containsOnly(first.getId(), second.getId());
+
+		RedisSession session = repository.getSession(second.getId());
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "other" + principalName);
+		repository.save(session);
+		repository.delete(first.getId());
+
+		sessions = repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+		assertThat(sessions).isEmpty();
+		assertThat(sessionRedisTemplate.hasKey(keyBuilder.getPrincipalKey(0, principalName))).isFalse();
+		sessions = repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "other" + principalName);
+		assertThat(sessions.keySet()).containsOnly(second.getId());
+
+		repository.delete(second.getId());
+	}
+
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void sortedSetCleanup() throws InterruptedException {
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		repository.setCleanupBatchSize(2);
+		List<String> expiredIds = new ArrayList<String>();
+		for(int i = 0; i < 5; i++) {
+			RedisSession expired = repository.createSession();
+			expired.setMaxInactiveIntervalInSeconds(1);
+			repository.save(expired);
+			expiredIds.add(expired.getId());
+		}
+		RedisSession active = repository.createSession();
+		repository.save(active);
+		String expirationsKey = keyBuilder.getExpirationsKey(0);
+		// as if the session was saved again after a cleanup retrieved its previous expiration
+		((RedisTemplate) sessionRedisTemplate).boundZSetOps(expirationsKey).add(active.getId(), 0);
+
+		Thread.sleep(1100);
+		repository.cleanupExpiredSessions();
+
+		for(String expiredId : expiredIds) {
+			assertThat(sessionRedisTemplate.hasKey(keyBuilder.getSessionKey(expiredId))).isFalse();
+			assertThat(sessionRedisTemplate.boundZSetOps(expirationsKey).score(expiredId)).isNull();
+		}
+		assertThat(sessionRedisTemplate.boundZSetOps(expirationsKey).score(active.getId())).isNotNull();
+		assertThat(repository.getSession(active.getId())).isNotNull();
+
+		repository.delete(active.getId());
+	}
+
+	@Test
+	public void shards() throws InterruptedException {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session:test", 4);
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setKeyBuilder(keyBuilder);
+		repository.setIndexPrincipalNames(true);
+		String principalName = "shards" + System.currentTimeMillis();
+		Set<Integer> shards = new HashSet<Integer>();
+		List<String> expiredIds = new ArrayList<String>();
+		while(shards.size() < 2 || expiredIds.size() < 8) {
+			RedisSession expired = repository.createSession();
+			expired.setMaxInactiveIntervalInSeconds(1);
+			expired.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+			repository.save(expired);
+			expiredIds.add(expired.getId());
+			shards.add(keyBuilder.getShard(expired.getId()));
+		}
+
+		Map<String, RedisSession> sessions = repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+		assertThat(sessions.keySet()).containsOnly(expiredIds.toArray());
+		for(String expiredId : expiredIds) {
+			int shard = keyBuilder.getShard(expiredId);
+			assertThat(sessionRedisTemplate.boundSetOps(keyBuilder.getPrincipalKey(shard, principalName)).isMember(expiredId)).isTrue();
+		}
+
+		Thread.sleep(1100);
+		repository.cleanupExpiredSessions();
+
+		for(String expiredId : expiredIds) {
+			assertThat(sessionRedisTemplate.hasKey(keyBuilder.getSessionKey(expiredId))).isFalse();
+		}
+		assertThat(repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName)).isEmpty();
+		for(int shard = 0; shard < keyBuilder.getShards(); shard++) {
+			assertThat(sessionRedisTemplate.hasKey(keyBuilder.getPrincipalKey(shard, principalName))).isFalse();
+		}
+	}
+
+	@Test
+	public void cleanupLease() throws Exception {
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+		List<RedisOperationsSessionRepository> repositories = new ArrayList<RedisOperationsSessionRepository>();
+		List<Callable<Object>> cleanups = new ArrayList<Callable<Object>>();
+		for(int i = 0; i < 4; i++) {
+			final RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+			repository.setCleanupLeaseInSeconds(90);
+			repositories.add(repository);
+			cleanups.add(new Callable<Object>() {
+				public Object call() {
+					repository.cleanupExpiredSessions();
+					return null;
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(cleanups.size());
+		try {
+			executor.invokeAll(cleanups);
+		} finally {
+			executor.shutdown();
+		}
+
+		// only one of the instances cleaned up
+		RedisOperationsSessionRepository holder = null;
+		for(RedisOperationsSessionRepository repository : repositories) {
+			if(repository.getSkippedCleanupCount() == 0) {
+				assertThat(holder).isNull();
+				holder = repository;
+			}
+		}
+		assertThat(holder).isNotNull();
+
+		// the holder renews the lease
+		holder.cleanupExpiredSessions();
+		assertThat(holder.getSkippedCleanupCount()).isEqualTo(0);
+		RedisOperationsSessionRepository other = repositories.get(repositories.get(0) == holder ? 1 : 0);
+		other.cleanupExpiredSessions();
+		assertThat(other.getSkippedCleanupCount()).isEqualTo(2);
+
+		// another instance takes over once the lease expires
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+		other.cleanupExpiredSessions();
+		assertThat(other.getSkippedCleanupCount()).isEqualTo(2);
+		holder.cleanupExpiredSessions();
+		assertThat(holder.getSkippedCleanupCount()).isEqualTo(1);
+
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+	}
+
+	@Test
+	public void cleanupCatchesUpAfterPause() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session:catchup");
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setKeyBuilder(keyBuilder);
+		repository.setExpirationBucketSizeInSeconds(1);
+		repository.setMaxBucketsPerCleanup(90);
+		long now = System.currentTimeMillis();
+		repository.cleanupExpiredSessionsNow(now);
+		RedisSession expired = repository.createSession();
+		expired.setMaxInactiveIntervalInSeconds(1);
+		repository.save(expired);
+		String expirationKey = keyBuilder.getExpirationKey(0, RedisSessionExpirationPolicy.roundUpToNextBucket(
+				RedisSessionExpirationPolicy.expiresInMillis(expired), TimeUnit.SECONDS.toMillis(1)));
+
+		// longer than a minute, so the bucket is no longer within the minute before the next cleanup
+		long resumed = now + TimeUnit.SECONDS.toMillis(65);
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isTrue();
+		do {
+			repository.cleanupExpiredSessionsNow(resumed);
+		} while(repository.isCleanupBehind());
+
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isFalse();
+
+		sessionRedisTemplate.delete(keyBuilder.getCleanupBucketKey());
+	}
+
+	@Test
+	public void cleanupCatchesUpAfterRestart() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session:restart");
+		RedisOperationsSessionRepository stopped = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		stopped.setKeyBuilder(keyBuilder);
+		stopped.setExpirationBucketSizeInSeconds(1);
+		stopped.setMaxBucketsPerCleanup(90);
+		long now = System.currentTimeMillis();
+		stopped.cleanupExpiredSessionsNow(now);
+		RedisSession expired = stopped.createSession();
+		expired.setMaxInactiveIntervalInSeconds(1);
+		stopped.save(expired);
+		String expirationKey = keyBuilder.getExpirationKey(0, RedisSessionExpirationPolicy.roundUpToNextBucket(
+				RedisSessionExpirationPolicy.expiresInMillis(expired), TimeUnit.SECONDS.toMillis(1)));
+
+		// the restart takes longer than a minute, so the bucket is no longer within the minute before the next cleanup
+		long restartedAt = now + TimeUnit.SECONDS.toMillis(65);
+		RedisOperationsSessionRepository restarted = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		restarted.setKeyBuilder(keyBuilder);
+		restarted.setExpirationBucketSizeInSeconds(1);
+		restarted.setMaxBucketsPerCleanup(90);
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isTrue();
+		do {
+			restarted.cleanupExpiredSessionsNow(restartedAt);
+		} while(restarted.isCleanupBehind());
+
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isFalse();
+
+		sessionRedisTemplate.delete(keyBuilder.getCleanupBucketKey());
+	}
+
+	@Test
+	public void cleanupLeaseTakeover() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session:takeover");
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+		RedisOperationsSessionRepository holder = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		RedisOperationsSessionRepository other = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		for(RedisOperationsSessionRepository repository : Arrays.asList(holder, other)) {
+			repository.setKeyBuilder(keyBuilder);
+			repository.setExpirationBucketSizeInSeconds(1);
+			repository.setCleanupLeaseInSeconds(90);
+		}
+		long now = System.currentTimeMillis();
+		holder.cleanupExpiredSessionsNow(now);
+		RedisSession expired = holder.createSession();
+		expired.setMaxInactiveIntervalInSeconds(1);
+		holder.save(expired);
+		String expirationKey = keyBuilder.getExpirationKey(0, RedisSessionExpirationPolicy.roundUpToNextBucket(
+				RedisSessionExpirationPolicy.expiresInMillis(expired), TimeUnit.SECONDS.toMillis(1)));
+
+		// the holder stopped right after its last cleanup and its lease expired in the meantime
+		long takenOverAt = now + TimeUnit.SECONDS.toMillis(65);
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isTrue();
+		do {
+			other.cleanupExpiredSessionsNow(takenOverAt);
+		} while(other.isCleanupBehind());
+
+		assertThat(other.getSkippedCleanupCount()).isEqualTo(0);
+		assertThat(sessionRedisTemplate.hasKey(expirationKey)).isFalse();
+
+		sessionRedisTemplate.delete(keyBuilder.getCleanupLeaseKey());
+		sessionRedisTemplate.delete(keyBuilder.getCleanupBucketKey());
+	}
+
+	@Test
+	public void touchGranularity() {
+		RedisOperationsSessionRepository touchRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		touchRepository.setTouchGranularityInSeconds(60);
+		RedisSession toSave = touchRepository.createSession();
+		toSave.setAttribute("a", "b");
+		touchRepository.save(toSave);
+
+		RedisSession session = touchRepository.getSession(toSave.getId());
+		assertThat(session.getLastAccessedTime()).isEqualTo(toSave.getLastAccessedTime());
+		touchRepository.save(session);
+		session.setAttribute("c", "d");
+		touchRepository.save(session);
+
+		session = touchRepository.getSession(toSave.getId());
+		assertThat(session.getLastAccessedTime()).isEqualTo(toSave.getLastAccessedTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("c")).isEqualTo("d");
+		assertThat(sessionRedisTemplate.getExpire(keyBuilder.getSessionKey(toSave.getId()))).isGreaterThan(0);
+
+		touchRepository.delete(toSave.getId());
+	}
+
+	@Test
+	public void detectAttributeChanges() {
+		RedisOperationsSessionRepository detectingRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		detectingRepository.setDetectAttributeChanges(true);
+		RedisSession toSave = detectingRepository.createSession();
+		toSave.setAttribute("cart", new ArrayList<String>(Arrays.asList("a")));
+		detectingRepository.save(toSave);
+
+		RedisSession session = detectingRepository.getSession(toSave.getId());
+		@SuppressWarnings("unchecked")
+		List<String> cart = (List<String>) session.getAttribute("cart");
+		cart.add("b");
+		detectingRepository.save(session);
+
+		session = detectingRepository.getSession(toSave.getId());
+		assertThat(session.getAttribute("cart")).isEqualTo(Arrays.asList("a", "b"));
+
+		detectingRepository.delete(toSave.getId());
+	}
+
 	static class SessionDestroyedEventRegistry implements ApplicationListener<SessionDestroyedEvent> {
 		private boolean receivedEvent;
 		private Object lock;
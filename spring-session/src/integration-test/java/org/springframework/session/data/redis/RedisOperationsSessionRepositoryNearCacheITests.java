@@ -0,0 +1,166 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Ensures the {@link SessionNearCache} of one {@link RedisOperationsSessionRepository} is invalidated when another
+ * {@link RedisOperationsSessionRepository} (i.e. another JVM) saves or deletes a session.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisOperationsSessionRepositoryNearCacheITests {
+	private static final RedisSerializer<Object> SERIALIZER = new JdkSerializationRedisSerializer();
+
+	@Autowired
+	private RedisOperationsSessionRepository repository;
+
+	@Autowired
+	private SessionNearCache nearCache;
+
+	@Autowired
+	private RedisTemplate<String, ExpiringSession> sessionRedisTemplate;
+
+	@Autowired
+	private RedisMessageListenerContainer container;
+
+	private RedisOperationsSessionRepository otherRepository;
+
+	private SessionNearCache otherNearCache;
+
+	@Before
+	public void setup() {
+		otherNearCache = new SessionNearCache();
+		container.addMessageListener(otherNearCache, new ChannelTopic(otherNearCache.getChannel()));
+		otherRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		otherRepository.setNearCache(otherNearCache);
+	}
+
+	@Test
+	public void getSessionUsesNearCache() {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(nearCache.getHitCount()).isGreaterThan(0);
+	}
+
+	@Test
+	public void saveInvalidatesOtherNearCache() throws InterruptedException {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		RedisSession other = otherRepository.getSession(toSave.getId());
+		assertThat(other.getAttribute("a")).isEqualTo("b");
+		// the invalidation published by the save above may evict the session after it was cached
+		for(int i = 0; i < 300 && otherNearCache.get(toSave.getId(), SERIALIZER) == null; i++) {
+			Thread.sleep(10);
+			otherRepository.getSession(toSave.getId());
+		}
+		assertThat(otherNearCache.get(toSave.getId(), SERIALIZER)).isNotNull();
+
+		RedisSession session = repository.getSession(toSave.getId());
+		session.setAttribute("a", "c");
+		repository.save(session);
+
+		awaitEvicted(otherNearCache, toSave.getId());
+		assertThat(otherRepository.getSession(toSave.getId()).getAttribute("a")).isEqualTo("c");
+		// the session saved by this repository is still cached
+		assertThat(nearCache.get(toSave.getId(), SERIALIZER)).isNotNull();
+
+		otherRepository.delete(toSave.getId());
+
+		awaitEvicted(nearCache, toSave.getId());
+		assertThat(repository.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void scriptSaveInvalidatesOtherNearCache() throws InterruptedException {
+		RedisOperationsSessionRepository scriptRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		scriptRepository.setSaveMode(RedisSaveMode.SCRIPT);
+		scriptRepository.setNearCache(new SessionNearCache());
+		RedisSession toSave = scriptRepository.createSession();
+		toSave.setAttribute("a", "b");
+		scriptRepository.save(toSave);
+
+		for(int i = 0; i < 300 && otherNearCache.get(toSave.getId(), SERIALIZER) == null; i++) {
+			Thread.sleep(10);
+			otherRepository.getSession(toSave.getId());
+		}
+		assertThat(otherNearCache.get(toSave.getId(), SERIALIZER)).isNotNull();
+
+		RedisSession session = scriptRepository.getSession(toSave.getId());
+		session.setAttribute("a", "c");
+		scriptRepository.save(session);
+
+		awaitEvicted(otherNearCache, toSave.getId());
+		assertThat(otherRepository.getSession(toSave.getId()).getAttribute("a")).isEqualTo("c");
+
+		scriptRepository.delete(toSave.getId());
+	}
+
+	private static void awaitEvicted(SessionNearCache nearCache, String sessionId) throws InterruptedException {
+		for(int i = 0; i < 300 && nearCache.get(sessionId, SERIALIZER) != null; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(nearCache.get(sessionId, SERIALIZER)).isNull();
+	}
+
+	@Configuration
+	@EnableRedisHttpSession
+	@EnableEmbeddedRedis
+	static class Config {
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+
+		@Bean
+		public SessionNearCache sessionNearCache() {
+			return new SessionNearCache();
+		}
+	}
+}
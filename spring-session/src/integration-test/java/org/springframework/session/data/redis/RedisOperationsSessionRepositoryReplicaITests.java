@@ -0,0 +1,209 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import redis.embedded.RedisServer;
+
+/**
+ * Loads sessions from an embedded Redis that replicates the embedded Redis of the context.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisOperationsSessionRepositoryReplicaITests {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	@Autowired
+	private JedisConnectionFactory connectionFactory;
+
+	@Autowired
+	private RedisTemplate<String, ExpiringSession> sessionRedisTemplate;
+
+	private RedisServer replicaServer;
+
+	private JedisConnectionFactory replicaConnectionFactory;
+
+	private RedisTemplate<String, ExpiringSession> replicaRedisTemplate;
+
+	private RedisOperationsSessionRepository repository;
+
+	@Before
+	public void setup() throws Exception {
+		int replicaPort = getAvailablePort();
+		replicaServer = new RedisServer(replicaPort);
+		replicaServer.start();
+		replicaConnectionFactory = new JedisConnectionFactory();
+		replicaConnectionFactory.setPort(replicaPort);
+		replicaConnectionFactory.setUsePool(false);
+		replicaConnectionFactory.afterPropertiesSet();
+		replicaRedisTemplate = new RedisTemplate<String, ExpiringSession>();
+		replicaRedisTemplate.setKeySerializer(new StringRedisSerializer());
+		replicaRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+		replicaRedisTemplate.setConnectionFactory(replicaConnectionFactory);
+		replicaRedisTemplate.afterPropertiesSet();
+		startReplication();
+
+		repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setReplicaRedisOperations(replicaRedisTemplate);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		replicaConnectionFactory.destroy();
+		replicaServer.stop();
+	}
+
+	@Test
+	public void loadsFromReplica() throws InterruptedException {
+		repository.setReplicaReadAfterWriteDelayInMillis(0);
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+		awaitReplicated(toSave.getId());
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(repository.getReplicaFallbackCount()).isEqualTo(0);
+
+		repository.delete(toSave.getId());
+	}
+
+	@Test
+	public void replicaMissFallsBackToMaster() {
+		stopReplication();
+		repository.setReplicaReadAfterWriteDelayInMillis(0);
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(repository.getReplicaFallbackCount()).isEqualTo(1);
+
+		repository.delete(toSave.getId());
+	}
+
+	@Test
+	public void recentlySavedLoadsFromMaster() throws InterruptedException {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+		awaitReplicated(toSave.getId());
+		// the replica keeps the previous value
+		stopReplication();
+		RedisSession toUpdate = repository.getSession(toSave.getId());
+		toUpdate.setAttribute("a", "c");
+		repository.save(toUpdate);
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		assertThat(session.getAttribute("a")).isEqualTo("c");
+		assertThat(repository.getReplicaFallbackCount()).isEqualTo(0);
+
+		repository.delete(toSave.getId());
+	}
+
+	private void startReplication() throws InterruptedException {
+		final int masterPort = connectionFactory.getPort();
+		replicaRedisTemplate.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) {
+				connection.slaveOf("localhost", masterPort);
+				return null;
+			}
+		});
+		for(int i = 0; i < 100 && !isReplicationUp(); i++) {
+			Thread.sleep(100);
+		}
+		assertThat(isReplicationUp()).isTrue();
+	}
+
+	private boolean isReplicationUp() {
+		Properties replication = replicaRedisTemplate.execute(new RedisCallback<Properties>() {
+			public Properties doInRedis(RedisConnection connection) {
+				return connection.info("replication");
+			}
+		});
+		return "up".equals(replication.getProperty("master_link_status"));
+	}
+
+	private void stopReplication() {
+		replicaRedisTemplate.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) {
+				connection.slaveOfNoOne();
+				return null;
+			}
+		});
+	}
+
+	private void awaitReplicated(String sessionId) throws InterruptedException {
+		String key = keyBuilder.getSessionKey(sessionId);
+		for(int i = 0; i < 100 && !replicaRedisTemplate.hasKey(key); i++) {
+			Thread.sleep(10);
+		}
+		assertThat(replicaRedisTemplate.hasKey(key)).isTrue();
+	}
+
+	private static int getAvailablePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Configuration
+	@EnableRedisHttpSession
+	@EnableEmbeddedRedis
+	static class Config {
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+	}
+}
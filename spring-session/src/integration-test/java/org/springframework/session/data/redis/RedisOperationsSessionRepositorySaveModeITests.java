@@ -0,0 +1,367 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Ensures each {@link RedisSaveMode} persists the same state and counts the round trips each of them takes to save a
+ * session.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisOperationsSessionRepositorySaveModeITests {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	@Autowired
+	private RedisTemplate<String, ExpiringSession> sessionRedisTemplate;
+
+	@Autowired
+	private JedisConnectionFactory connectionFactory;
+
+	@Test
+	public void sequential() {
+		assertSaves(RedisSaveMode.SEQUENTIAL);
+	}
+
+	@Test
+	public void pipelined() {
+		assertSaves(RedisSaveMode.PIPELINED);
+	}
+
+	@Test
+	public void transactional() {
+		assertSaves(RedisSaveMode.TRANSACTIONAL);
+	}
+
+	@Test
+	public void script() {
+		assertSaves(RedisSaveMode.SCRIPT);
+	}
+
+	@Test
+	public void pipelinedSortedSet() {
+		assertSaves(RedisSaveMode.PIPELINED, RedisExpirationMode.SORTED_SET);
+	}
+
+	@Test
+	public void scriptSortedSet() {
+		assertSaves(RedisSaveMode.SCRIPT, RedisExpirationMode.SORTED_SET);
+	}
+
+	@Test
+	public void scriptHashTag() {
+		assertSaves(RedisSaveMode.SCRIPT, RedisExpirationMode.BUCKETS, new RedisKeyBuilder("spring:session:test", "app"));
+	}
+
+	@Test
+	public void pipelinedSortedSetNamespace() {
+		assertSaves(RedisSaveMode.PIPELINED, RedisExpirationMode.SORTED_SET, new RedisKeyBuilder("spring:session:test"));
+	}
+
+	@Test
+	public void scriptShards() {
+		assertSaves(RedisSaveMode.SCRIPT, RedisExpirationMode.BUCKETS, new RedisKeyBuilder("spring:session:test", 4));
+	}
+
+	@Test
+	public void transactionalSortedSetShards() {
+		assertSaves(RedisSaveMode.TRANSACTIONAL, RedisExpirationMode.SORTED_SET, new RedisKeyBuilder("spring:session:test", 4));
+	}
+
+	@Test
+	public void scriptReloadedAfterFlush() {
+		sessionRedisTemplate.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) {
+				connection.scriptFlush();
+				return null;
+			}
+		});
+
+		assertSaves(RedisSaveMode.SCRIPT);
+	}
+
+	@Test
+	public void scriptPrincipalName() {
+		assertSavesPrincipalName(RedisExpirationMode.BUCKETS, this.keyBuilder);
+	}
+
+	@Test
+	public void scriptSortedSetPrincipalNameShards() {
+		assertSavesPrincipalName(RedisExpirationMode.SORTED_SET, new RedisKeyBuilder("spring:session:test", 4));
+	}
+
+	@Test
+	public void roundTrips() {
+		RoundTripCounter sequential = countSaveRoundTrips(RedisSaveMode.SEQUENTIAL);
+		RoundTripCounter pipelined = countSaveRoundTrips(RedisSaveMode.PIPELINED);
+		RoundTripCounter script = countSaveRoundTrips(RedisSaveMode.SCRIPT);
+
+		// HMSET, SREM, SADD and EXPIRE of the expiration key and EXPIRE of the session key
+		assertThat(sequential.getCommands()).isEqualTo(5);
+		assertThat(sequential.getRoundTrips()).isEqualTo(5);
+		assertThat(pipelined.getCommands()).isEqualTo(5);
+		assertThat(pipelined.getRoundTrips()).isEqualTo(1);
+		assertThat(script.getCommands()).isEqualTo(1);
+		assertThat(script.getRoundTrips()).isEqualTo(1);
+	}
+
+	/**
+	 * Counts the commands and round trips of saving a session whose attribute and expiration changed.
+	 *
+	 * @param saveMode the {@link RedisSaveMode} to save with
+	 * @return the {@link RoundTripCounter} of the save
+	 */
+	private RoundTripCounter countSaveRoundTrips(RedisSaveMode saveMode) {
+		RoundTripCounter counter = new RoundTripCounter();
+		RedisTemplate<String, ExpiringSession> countingTemplate = new RedisTemplate<String, ExpiringSession>();
+		countingTemplate.setKeySerializer(new StringRedisSerializer());
+		countingTemplate.setHashKeySerializer(new StringRedisSerializer());
+		countingTemplate.setConnectionFactory(counter.wrap(connectionFactory));
+		countingTemplate.afterPropertiesSet();
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(countingTemplate);
+		repository.setSaveMode(saveMode);
+		// the first save also loads the script
+		RedisSession session = repository.createSession();
+		session.setAttribute("a", "b");
+		repository.save(session);
+		session.setAttribute("a", "c");
+		session.setMaxInactiveIntervalInSeconds(60);
+
+		counter.reset();
+		repository.save(session);
+		counter.stop();
+
+		repository.delete(session.getId());
+		return counter;
+	}
+
+	private void assertSavesPrincipalName(RedisExpirationMode expirationMode, RedisKeyBuilder keyBuilder) {
+		RedisOperationsSessionRepository repository = createRepository(RedisSaveMode.SCRIPT);
+		repository.setExpirationMode(expirationMode);
+		repository.setKeyBuilder(keyBuilder);
+		repository.setIndexPrincipalNames(true);
+		String principalName = "scriptPrincipalName" + System.currentTimeMillis();
+
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+		repository.save(toSave);
+
+		int shard = keyBuilder.getShard(toSave.getId());
+		String principalKey = keyBuilder.getPrincipalKey(shard, principalName);
+		assertThat(sessionRedisTemplate.boundSetOps(principalKey).members()).containsOnly(toSave.getId());
+
+		RedisSession loaded = repository.getSession(toSave.getId());
+		loaded.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "other" + principalName);
+		repository.save(loaded);
+
+		assertThat(sessionRedisTemplate.hasKey(principalKey)).isFalse();
+		String otherPrincipalKey = keyBuilder.getPrincipalKey(shard, "other" + principalName);
+		assertThat(sessionRedisTemplate.boundSetOps(otherPrincipalKey).members()).containsOnly(toSave.getId());
+
+		repository.delete(toSave.getId());
+		assertThat(sessionRedisTemplate.hasKey(otherPrincipalKey)).isFalse();
+	}
+
+	private void assertSaves(RedisSaveMode saveMode) {
+		assertSaves(saveMode, RedisExpirationMode.BUCKETS);
+	}
+
+	private void assertSaves(RedisSaveMode saveMode, RedisExpirationMode expirationMode) {
+		assertSaves(saveMode, expirationMode, this.keyBuilder);
+	}
+
+	private void assertSaves(RedisSaveMode saveMode, RedisExpirationMode expirationMode, RedisKeyBuilder keyBuilder) {
+		RedisOperationsSessionRepository repository = createRepository(saveMode);
+		repository.setExpirationMode(expirationMode);
+		repository.setKeyBuilder(keyBuilder);
+
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		RedisSession loaded = repository.getSession(toSave.getId());
+		assertThat(loaded.getAttribute("a")).isEqualTo("b");
+		assertThat(loaded.getCreationTime()).isEqualTo(toSave.getCreationTime());
+
+		loaded.setAttribute("1", "2");
+		loaded.removeAttribute("a");
+		repository.save(loaded);
+
+		RedisSession updated = repository.getSession(toSave.getId());
+		assertThat(updated.getAttributeNames()).containsOnly("1");
+		assertThat(updated.getAttribute("1")).isEqualTo("2");
+
+		String sessionKey = keyBuilder.getSessionKey(toSave.getId());
+		long ttl = sessionRedisTemplate.getExpire(sessionKey);
+		assertThat(ttl).isGreaterThan(0).isLessThanOrEqualTo(updated.getMaxInactiveIntervalInSeconds());
+
+		if(expirationMode == RedisExpirationMode.SORTED_SET) {
+			String expirationsKey = keyBuilder.getExpirationsKey(keyBuilder.getShard(toSave.getId()));
+			Double score = sessionRedisTemplate.boundZSetOps(expirationsKey).score(toSave.getId());
+			assertThat(score.longValue()).isEqualTo(RedisSessionExpirationPolicy.expiresInMillis(loaded));
+
+			repository.delete(toSave.getId());
+
+			assertThat(repository.getSession(toSave.getId())).isNull();
+			assertThat(sessionRedisTemplate.boundZSetOps(expirationsKey).score(toSave.getId())).isNull();
+			return;
+		}
+
+		long expiration = RedisSessionExpirationPolicy.roundUpToNextMinute(RedisSessionExpirationPolicy.expiresInMillis(loaded));
+		String expirationKey = keyBuilder.getExpirationKey(keyBuilder.getShard(toSave.getId()), expiration);
+		assertThat(sessionRedisTemplate.boundSetOps(expirationKey).members()).contains(toSave.getId());
+
+		repository.delete(toSave.getId());
+
+		assertThat(repository.getSession(toSave.getId())).isNull();
+		assertThat(sessionRedisTemplate.boundSetOps(expirationKey).members()).excludes(toSave.getId());
+	}
+
+	private RedisOperationsSessionRepository createRepository(RedisSaveMode saveMode) {
+		RedisOperationsSessionRepository repository = new RedisOperationsSessionRepository(sessionRedisTemplate);
+		repository.setSaveMode(saveMode);
+		return repository;
+	}
+
+	/**
+	 * Counts the commands sent through the connections of a {@link RedisConnectionFactory} and the round trips they
+	 * take. A command sent while the connection is pipelined does not take a round trip of its own, instead closing
+	 * the pipeline takes one.
+	 */
+	static class RoundTripCounter {
+		private static final Set<String> NON_COMMANDS = new HashSet<String>(Arrays.asList("close", "isClosed",
+				"isPipelined", "isQueueing", "isSubscribed", "getSubscription", "getNativeConnection",
+				"getSentinelConnection", "openPipeline", "closePipeline", "equals", "hashCode", "toString"));
+
+		private final AtomicInteger commands = new AtomicInteger();
+
+		private final AtomicInteger roundTrips = new AtomicInteger();
+
+		private volatile boolean counting;
+
+		RedisConnectionFactory wrap(final RedisConnectionFactory connectionFactory) {
+			return (RedisConnectionFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { RedisConnectionFactory.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					Object result = invokeTarget(connectionFactory, method, args);
+					if("getConnection".equals(method.getName())) {
+						return wrap((RedisConnection) result);
+					}
+					return result;
+				}
+			});
+		}
+
+		private RedisConnection wrap(final RedisConnection connection) {
+			return (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { RedisConnection.class }, new InvocationHandler() {
+				private boolean pipelined;
+
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if("openPipeline".equals(name)) {
+						pipelined = true;
+					} else if("closePipeline".equals(name)) {
+						pipelined = false;
+						count(0, 1);
+					} else if(!NON_COMMANDS.contains(name)) {
+						count(1, pipelined ? 0 : 1);
+					}
+					return invokeTarget(connection, method, args);
+				}
+			});
+		}
+
+		private void count(int commandCount, int roundTripCount) {
+			if(counting) {
+				commands.addAndGet(commandCount);
+				roundTrips.addAndGet(roundTripCount);
+			}
+		}
+
+		void reset() {
+			commands.set(0);
+			roundTrips.set(0);
+			counting = true;
+		}
+
+		void stop() {
+			counting = false;
+		}
+
+		int getCommands() {
+			return commands.get();
+		}
+
+		int getRoundTrips() {
+			return roundTrips.get();
+		}
+
+		private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	@Configuration
+	@EnableRedisHttpSession
+	@EnableEmbeddedRedis
+	static class Config {
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Ensures sessions can be saved using a {@link CompactRedisSerializer} and a {@link CompressingRedisSerializer}, that
+ * sessions saved using JDK serialization can still be read and that both serializers store fewer bytes.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisOperationsSessionRepositorySerializerITests {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	@Autowired
+	private RedisOperationsSessionRepository repository;
+
+	@Autowired
+	private RedisConnectionFactory connectionFactory;
+
+	@Test
+	public void saves() {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		toSave.setAttribute("count", 1);
+		repository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		assertThat(session.getMaxInactiveIntervalInSeconds()).isEqualTo(toSave.getMaxInactiveIntervalInSeconds());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("count")).isEqualTo(1);
+
+		repository.delete(toSave.getId());
+		assertThat(repository.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void readsJdkSerialization() {
+		RedisOperationsSessionRepository jdkRepository = new RedisOperationsSessionRepository(connectionFactory);
+		RedisSession toSave = jdkRepository.createSession();
+		toSave.setAttribute("a", "b");
+		jdkRepository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+
+		session.setAttribute("c", "d");
+		repository.save(session);
+
+		session = repository.getSession(toSave.getId());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("c")).isEqualTo("d");
+
+		repository.delete(toSave.getId());
+	}
+
+	@Test
+	public void compressesLargeAttributes() {
+		RedisTemplate<String, ExpiringSession> template = new RedisTemplate<String, ExpiringSession>();
+		template.setKeySerializer(new StringRedisSerializer());
+		template.setHashKeySerializer(new StringRedisSerializer());
+		template.setDefaultSerializer(new CompressingRedisSerializer(new CompactRedisSerializer()));
+		template.setConnectionFactory(connectionFactory);
+		template.afterPropertiesSet();
+		RedisOperationsSessionRepository compressingRepository = new RedisOperationsSessionRepository(template);
+
+		RedisSession uncompressed = createSession(repository);
+		uncompressed.setAttribute("cart", createCart());
+		repository.save(uncompressed);
+
+		RedisSession compressed = createSession(compressingRepository);
+		compressed.setAttribute("cart", createCart());
+		compressingRepository.save(compressed);
+
+		assertThat(sizeOf(compressed)).isLessThan(sizeOf(uncompressed));
+		assertThat(compressingRepository.getSession(compressed.getId()).getAttribute("cart")).isEqualTo(createCart());
+		// values that were not compressed can still be read
+		assertThat(compressingRepository.getSession(uncompressed.getId()).getAttribute("cart")).isEqualTo(createCart());
+
+		repository.delete(uncompressed.getId());
+		compressingRepository.delete(compressed.getId());
+	}
+
+	@Test
+	public void compactSmallerThanJdkSerialization() {
+		RedisOperationsSessionRepository jdkRepository = new RedisOperationsSessionRepository(connectionFactory);
+		RedisSession jdkSession = createSession(jdkRepository);
+		RedisSession compactSession = createSession(repository);
+
+		assertThat(sizeOf(compactSession)).isLessThan(sizeOf(jdkSession));
+
+		jdkRepository.delete(jdkSession.getId());
+		repository.delete(compactSession.getId());
+	}
+
+	private static RedisSession createSession(RedisOperationsSessionRepository repository) {
+		RedisSession session = repository.createSession();
+		session.setAttribute("username", "user");
+		session.setAttribute("locale", "en_US");
+		session.setAttribute("visits", 42);
+		session.setAttribute("admin", false);
+		repository.save(session);
+		return session;
+	}
+
+	private static ArrayList<String> createCart() {
+		ArrayList<String> cart = new ArrayList<String>();
+		for(int i = 0; i < 200; i++) {
+			cart.add("product-" + i);
+		}
+		return cart;
+	}
+
+	/**
+	 * The number of bytes of all the fields and values in the Hash of the session.
+	 */
+	private int sizeOf(RedisSession session) {
+		final byte[] key = new StringRedisSerializer().serialize(keyBuilder.getSessionKey(session.getId()));
+		RedisTemplate<String, ExpiringSession> template = new RedisTemplate<String, ExpiringSession>();
+		template.setConnectionFactory(connectionFactory);
+		template.afterPropertiesSet();
+		return template.execute(new RedisCallback<Integer>() {
+			public Integer doInRedis(RedisConnection connection) throws DataAccessException {
+				int size = 0;
+				for(Map.Entry<byte[], byte[]> entry : connection.hGetAll(key).entrySet()) {
+					size += entry.getKey().length + entry.getValue().length;
+				}
+				return size;
+			}
+		});
+	}
+
+
+	@Configuration
+	@EnableRedisHttpSession
+	@EnableEmbeddedRedis
+	static class Config {
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+
+		@Bean
+		public RedisSerializer<Object> springSessionDefaultRedisSerializer() {
+			return new CompactRedisSerializer();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Ensures the changes saved using a {@link WriteBehindRedisSessionRepository} are written to Redis.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class WriteBehindRedisSessionRepositoryITests {
+	@Autowired
+	private RedisOperationsSessionRepository delegate;
+
+	private WriteBehindRedisSessionRepository repository;
+
+	@Before
+	public void setup() {
+		repository = new WriteBehindRedisSessionRepository(delegate);
+		repository.setFlushIntervalInMillis(10);
+		repository.afterPropertiesSet();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		repository.destroy();
+	}
+
+	@Test
+	public void saves() throws Exception {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+		toSave.setAttribute("c", "d");
+		repository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("c")).isEqualTo("d");
+
+		long timeout = System.currentTimeMillis() + 5000;
+		session = delegate.getSession(toSave.getId());
+		while(session == null && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+			session = delegate.getSession(toSave.getId());
+		}
+
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("c")).isEqualTo("d");
+
+		repository.delete(toSave.getId());
+		assertThat(repository.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void deleteDiscardsPending() {
+		RedisSession toSave = repository.createSession();
+		repository.save(toSave);
+
+		repository.delete(toSave.getId());
+		repository.flush();
+
+		assertThat(delegate.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void destroyFlushes() throws Exception {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		repository.destroy();
+
+		assertThat(delegate.getSession(toSave.getId()).getAttribute("a")).isEqualTo("b");
+		delegate.delete(toSave.getId());
+	}
+
+	@Configuration
+	@EnableRedisHttpSession
+	@EnableEmbeddedRedis
+	static class Config {
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+	}
+}
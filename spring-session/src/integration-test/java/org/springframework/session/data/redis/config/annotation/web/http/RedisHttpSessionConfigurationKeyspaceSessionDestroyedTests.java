@@ -0,0 +1,247 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.redis.config.annotation.web.http;
+
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.SessionRepository;
+import org.springframework.session.data.redis.config.KeyspaceNotificationMode;
+import org.springframework.session.events.SessionDestroyedEvent;
+import org.springframework.session.redis.embedded.EnableEmbeddedRedis;
+import org.springframework.session.redis.embedded.RedisServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisHttpSessionConfigurationKeyspaceSessionDestroyedTests<S extends ExpiringSession> {
+	@Autowired
+	private SessionRepository<S> repository;
+
+	@Autowired
+	private SessionDestroyedEventRegistry registry;
+
+	@Autowired
+	private JedisConnectionFactory connectionFactory;
+
+	private int port;
+
+	private final Object lock = new Object();
+
+	@Before
+	public void setup() {
+		registry.setLock(lock);
+		port = connectionFactory.getPort();
+	}
+
+	@Test
+	public void expireFiresSessionDestroyedEvent() throws InterruptedException {
+		S toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		Authentication toSaveToken = new UsernamePasswordAuthenticationToken("user","password", AuthorityUtils.createAuthorityList("ROLE_USER"));
+		SecurityContext toSaveContext = SecurityContextHolder.createEmptyContext();
+		toSaveContext.setAuthentication(toSaveToken);
+		toSave.setAttribute("SPRING_SECURITY_CONTEXT", toSaveContext);
+
+		repository.save(toSave);
+
+		synchronized (lock) {
+			lock.wait((toSave.getMaxInactiveIntervalInSeconds() * 1000) + 1);
+		}
+		if(!registry.receivedEvent()) {
+			// Redis makes no guarantees on when an expired event will be fired
+			// we can ensure it gets fired by trying to get the session
+			repository.getSession(toSave.getId());
+			synchronized (lock) {
+				if(!registry.receivedEvent()) {
+					// wait at most second to process the event
+					lock.wait(1000);
+				}
+			}
+		}
+		assertThat(registry.receivedEvent()).isTrue();
+	}
+
+	@Test
+	public void deleteFiresSessionDestroyedEvent() throws InterruptedException {
+		S toSave = repository.createSession();
+		repository.save(toSave);
+
+		synchronized (lock) {
+			repository.delete(toSave.getId());
+			if(!registry.receivedEvent()) {
+				lock.wait(1000);
+			}
+		}
+		assertThat(registry.receivedEvent()).isTrue();
+	}
+
+	/**
+	 * Compares the notifications received by each {@link KeyspaceNotificationMode} while saving a few sessions and
+	 * deleting many other keys. Each save delivers an "expire" notification of the session key in the KEYSPACE mode,
+	 * while the KEYEVENT mode delivers the deletion of every other key.
+	 */
+	@Test
+	public void keyspaceReceivesFewerNotificationsWhenOtherKeysChurn() throws Exception {
+		int saves = 5;
+		int otherKeys = 100;
+		Jedis jedis = new Jedis("localhost", port);
+		jedis.configSet("notify-keyspace-events", "KEgx");
+		final CountingPubSub keyspace = new CountingPubSub();
+		final CountingPubSub keyevent = new CountingPubSub();
+		subscribe(keyspace, "__keyspace@0__:spring:session:sessions:*");
+		subscribe(keyevent, "__keyevent@0__:del", "__keyevent@0__:expired");
+		try {
+			for(int i = 0; i < saves; i++) {
+				repository.save(repository.createSession());
+			}
+			for(int i = 0; i < otherKeys; i++) {
+				jedis.set("other:" + i, "value");
+				jedis.del("other:" + i);
+			}
+
+			keyspace.await(saves);
+			keyevent.await(otherKeys);
+			assertThat(keyspace.getCount()).isEqualTo(saves);
+			assertThat(keyevent.getCount()).isEqualTo(otherKeys);
+		}
+		finally {
+			keyspace.punsubscribe();
+			keyevent.punsubscribe();
+			jedis.close();
+		}
+	}
+
+	private void subscribe(final CountingPubSub pubSub, final String... patterns) throws InterruptedException {
+		new Thread(new Runnable() {
+			public void run() {
+				Jedis jedis = new Jedis("localhost", port);
+				try {
+					jedis.psubscribe(pubSub, patterns);
+				}
+				finally {
+					jedis.close();
+				}
+			}
+		}).start();
+		assertThat(pubSub.subscribed.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	static class CountingPubSub extends JedisPubSub {
+		private final CountDownLatch subscribed = new CountDownLatch(1);
+		private final AtomicInteger count = new AtomicInteger();
+
+		int getCount() {
+			return count.get();
+		}
+
+		void await(int expected) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while(count.get() < expected && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			// any unexpected notification would arrive shortly after
+			Thread.sleep(100);
+		}
+
+		public void onPMessage(String pattern, String channel, String message) {
+			count.incrementAndGet();
+		}
+
+		public void onPSubscribe(String pattern, int subscribedChannels) {
+			subscribed.countDown();
+		}
+
+		public void onMessage(String channel, String message) {
+		}
+
+		public void onSubscribe(String channel, int subscribedChannels) {
+		}
+
+		public void onUnsubscribe(String channel, int subscribedChannels) {
+		}
+
+		public void onPUnsubscribe(String pattern, int subscribedChannels) {
+		}
+	}
+
+	static class SessionDestroyedEventRegistry implements ApplicationListener<SessionDestroyedEvent> {
+		private boolean receivedEvent;
+		private Object lock;
+
+		public void onApplicationEvent(SessionDestroyedEvent event) {
+			synchronized (lock) {
+				receivedEvent = true;
+				lock.notifyAll();
+			}
+		}
+
+		public boolean receivedEvent() {
+			return receivedEvent;
+		}
+
+		public void setLock(Object lock) {
+			this.lock = lock;
+			this.receivedEvent = false;
+		}
+	}
+
+	@Configuration
+	@EnableEmbeddedRedis
+	static class Config extends RedisHttpSessionConfiguration {
+		Config() {
+			setMaxInactiveIntervalInSeconds(1);
+			setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		}
+
+		@Bean
+		public JedisConnectionFactory connectionFactory(@RedisServerPort int port) throws Exception {
+			JedisConnectionFactory factory = new JedisConnectionFactory();
+			factory.setPort(port);
+			factory.setUsePool(false);
+			return factory;
+		}
+
+		@Bean
+		public SessionDestroyedEventRegistry sessionDestroyedEventRegistry() {
+			return new SessionDestroyedEventRegistry();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link SessionRepository} that is able to retrieve several {@link Session} instances at once, which is typically
+ * much cheaper than invoking {@link #getSession(String)} for each of them. For example, this is useful when a browser
+ * has multiple sessions (see {@link org.springframework.session.web.http.CookieHttpSessionStrategy}).
+ *
+ * @since 1.1
+ */
+public interface BatchSessionRepository<S extends Session> extends SessionRepository<S> {
+
+	/**
+	 * Gets the {@link Session} instances with the given {@link Session#getId()} values. Just as with
+	 * {@link #getSession(String)}, {@link ExpiringSession#getLastAccessedTime()} may be updated on the returned
+	 * objects and {@link #save(Session)} must be invoked on each of them in order to persist this change.
+	 *
+	 * @param ids the {@link org.springframework.session.Session#getId()} values to lookup. Cannot be null.
+	 * @return the {@link Session} instances that were found by their {@link Session#getId()} in the order of the
+	 *         provided ids. Ids for which no {@link Session} is found are not included.
+	 */
+	Map<String, S> getSessions(Collection<String> ids);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session;
+
+/**
+ * An {@link ExpiringSession} that keeps track of whether it changed since it was retrieved from (or last saved to) its
+ * {@link SessionRepository}. A session that is not dirty does not need to be saved, so
+ * {@link org.springframework.session.web.http.SessionRepositoryFilter} skips saving it.
+ *
+ * @since 1.1
+ */
+public interface DirtyTrackingSession extends ExpiringSession {
+
+	/**
+	 * Returns true if the session has changes that {@link SessionRepository#save(Session)} would persist. This
+	 * includes an updated last accessed time, so an implementation that updates the last accessed time every time the
+	 * session is retrieved is always dirty.
+	 *
+	 * @return true if the session has changes that need to be saved, else false.
+	 */
+	boolean isDirty();
+
+}
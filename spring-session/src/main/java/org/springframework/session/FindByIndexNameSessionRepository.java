@@ -0,0 +1,44 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session;
+
+import java.util.Map;
+
+/**
+ * A {@link SessionRepository} that is able to find the {@link Session} instances that share an index value. For
+ * example, this allows finding all of the sessions of a user in order to log the user out everywhere or to limit the
+ * number of concurrent sessions.
+ *
+ * @since 1.1
+ */
+public interface FindByIndexNameSessionRepository<S extends Session> extends SessionRepository<S> {
+
+	/**
+	 * The name of the index that contains the principal name of each {@link Session}. If a {@link Session} has an
+	 * attribute with this name, its value is used as the principal name.
+	 */
+	String PRINCIPAL_NAME_INDEX_NAME = FindByIndexNameSessionRepository.class.getName().concat(".PRINCIPAL_NAME_INDEX_NAME");
+
+	/**
+	 * Finds the {@link Session} instances that have the given index value.
+	 *
+	 * @param indexName the name of the index (i.e. {@link #PRINCIPAL_NAME_INDEX_NAME})
+	 * @param indexValue the value of the index to search for
+	 * @return the {@link Session} instances that have the given index value by their {@link Session#getId()}. If no
+	 *         {@link Session} is found or the index is not supported, an empty {@link Map} is returned.
+	 */
+	Map<String, S> findByIndexNameAndIndexValue(String indexName, String indexValue);
+}
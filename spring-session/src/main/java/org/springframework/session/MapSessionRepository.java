@@ -17,6 +17,8 @@ package org.springframework.session;
 
 import org.springframework.session.events.SessionDestroyedEvent;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -32,7 +34,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author Rob Winch
  * @since 1.0
  */
-public class MapSessionRepository implements SessionRepository<ExpiringSession> {
+public class MapSessionRepository implements BatchSessionRepository<ExpiringSession> {
 	/**
 	 * If non-null, this value is used to override {@link ExpiringSession#setMaxInactiveIntervalInSeconds(int)}.
 	 */
@@ -72,6 +74,25 @@ public class MapSessionRepository implements SessionRepository<ExpiringSession>
 	}
 
 	public ExpiringSession getSession(String id) {
+		return getSession(id, System.currentTimeMillis());
+	}
+
+	public Map<String, ExpiringSession> getSessions(Collection<String> ids) {
+		if(ids == null) {
+			throw new IllegalArgumentException("ids cannot be null");
+		}
+		long now = System.currentTimeMillis();
+		Map<String, ExpiringSession> result = new LinkedHashMap<String, ExpiringSession>(ids.size());
+		for(String id : ids) {
+			ExpiringSession session = getSession(id, now);
+			if(session != null) {
+				result.put(id, session);
+			}
+		}
+		return result;
+	}
+
+	private ExpiringSession getSession(String id, long now) {
 		ExpiringSession saved = sessions.get(id);
 		if(saved == null) {
 			return null;
@@ -81,7 +102,7 @@ public class MapSessionRepository implements SessionRepository<ExpiringSession>
 			return null;
 		}
 		MapSession result = new MapSession(saved);
-		result.setLastAccessedTime(System.currentTimeMillis());
+		result.setLastAccessedTime(now);
 		return result;
 	}
 
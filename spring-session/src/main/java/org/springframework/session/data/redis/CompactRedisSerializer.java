@@ -0,0 +1,160 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.nio.ByteBuffer;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * A {@link RedisSerializer} that writes the types most commonly found in a session (the {@link Long} and
+ * {@link Integer} values of the creation time, last accessed time and max inactive interval as well as {@link String},
+ * {@link Boolean}, {@link Double} and byte[] attributes) using a single type byte followed by their binary
+ * representation. For example, a {@link Long} takes 9 bytes rather than the 82 bytes that JDK serialization requires.
+ * </p>
+ *
+ * <p>
+ * All other types are written using JDK serialization. Since JDK serialization always starts with the bytes 0xAC 0xED,
+ * which are never used as a type byte, values that were written using {@link JdkSerializationRedisSerializer} (i.e.
+ * before switching to this serializer) can still be read.
+ * </p>
+ *
+ * <p>
+ * A typical example of how to use it with
+ * {@link org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession} can be seen below:
+ * </p>
+ *
+ * <pre>
+ * {@literal @Bean}
+ * public RedisSerializer&lt;Object&gt; springSessionDefaultRedisSerializer() {
+ *     return new CompactRedisSerializer();
+ * }
+ * </pre>
+ *
+ * @since 1.1
+ */
+public class CompactRedisSerializer implements RedisSerializer<Object> {
+	static final byte STRING = 1;
+
+	static final byte INTEGER = 2;
+
+	static final byte LONG = 3;
+
+	static final byte BOOLEAN = 4;
+
+	static final byte DOUBLE = 5;
+
+	static final byte BYTES = 6;
+
+	/**
+	 * The first byte of any value written using JDK serialization.
+	 */
+	static final byte JDK_SERIALIZATION = (byte) 0xAC;
+
+	private static final byte[] EMPTY_ARRAY = new byte[0];
+
+	private static final RedisSerializer<String> STRING_SERIALIZER = new StringRedisSerializer();
+
+	private final RedisSerializer<Object> fallback;
+
+	/**
+	 * Creates a new instance that uses a {@link JdkSerializationRedisSerializer} for the types it does not support.
+	 */
+	public CompactRedisSerializer() {
+		this(new JdkSerializationRedisSerializer());
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param fallback the {@link RedisSerializer} to use for the types that are not supported. It must use JDK
+	 *                 serialization (or at least never write a value that starts with one of the type bytes). Cannot
+	 *                 be null.
+	 */
+	public CompactRedisSerializer(RedisSerializer<Object> fallback) {
+		Assert.notNull(fallback, "fallback cannot be null");
+		this.fallback = fallback;
+	}
+
+	public byte[] serialize(Object value) throws SerializationException {
+		if(value == null) {
+			return EMPTY_ARRAY;
+		}
+		Class<?> type = value.getClass();
+		if(type == String.class) {
+			return tag(STRING, STRING_SERIALIZER.serialize((String) value));
+		}
+		if(type == Long.class) {
+			return ByteBuffer.allocate(9).put(LONG).putLong((Long) value).array();
+		}
+		if(type == Integer.class) {
+			return ByteBuffer.allocate(5).put(INTEGER).putInt((Integer) value).array();
+		}
+		if(type == Boolean.class) {
+			return new byte[] { BOOLEAN, (byte) (((Boolean) value) ? 1 : 0) };
+		}
+		if(type == Double.class) {
+			return ByteBuffer.allocate(9).put(DOUBLE).putDouble((Double) value).array();
+		}
+		if(type == byte[].class) {
+			return tag(BYTES, (byte[]) value);
+		}
+		return fallback.serialize(value);
+	}
+
+	public Object deserialize(byte[] bytes) throws SerializationException {
+		if(bytes == null || bytes.length == 0) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+		switch(bytes[0]) {
+			case STRING:
+				return STRING_SERIALIZER.deserialize(untag(bytes));
+			case LONG:
+				return buffer.getLong();
+			case INTEGER:
+				return buffer.getInt();
+			case BOOLEAN:
+				return bytes[1] != 0;
+			case DOUBLE:
+				return buffer.getDouble();
+			case BYTES:
+				return untag(bytes);
+			case JDK_SERIALIZATION:
+				return fallback.deserialize(bytes);
+			default:
+				throw new SerializationException("Cannot deserialize value with unknown type " + bytes[0]);
+		}
+	}
+
+	private static byte[] tag(byte type, byte[] value) {
+		byte[] result = new byte[value.length + 1];
+		result[0] = type;
+		System.arraycopy(value, 0, result, 1, value.length);
+		return result;
+	}
+
+	private static byte[] untag(byte[] bytes) {
+		byte[] result = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 1, result, 0, result.length);
+		return result;
+	}
+}
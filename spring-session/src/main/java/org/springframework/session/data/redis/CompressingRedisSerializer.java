@@ -0,0 +1,168 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * A {@link RedisSerializer} that compresses the values written by another {@link RedisSerializer} using Deflate when
+ * they exceed a threshold. Large session attributes (e.g. shopping carts) then use less memory in Redis and fewer
+ * bytes need to be sent over the network.
+ * </p>
+ *
+ * <p>
+ * Compressed values start with the byte 0x1F followed by the Deflate (zlib) stream. All other values are passed to the
+ * delegate as is, so values that were written before switching to this serializer can still be read. This requires
+ * that the delegate never writes a value starting with 0x1F, which is the case for both
+ * {@link JdkSerializationRedisSerializer} and {@link CompactRedisSerializer}. To be safe, a value the delegate writes
+ * that does start with 0x1F is always compressed.
+ * </p>
+ *
+ * <p>
+ * A typical example of how to use it with
+ * {@link org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession} can be seen below:
+ * </p>
+ *
+ * <pre>
+ * {@literal @Bean}
+ * public RedisSerializer&lt;Object&gt; springSessionDefaultRedisSerializer() {
+ *     return new CompressingRedisSerializer(new CompactRedisSerializer());
+ * }
+ * </pre>
+ *
+ * @since 1.1
+ */
+public class CompressingRedisSerializer implements RedisSerializer<Object> {
+	/**
+	 * The first byte of a compressed value.
+	 */
+	static final byte COMPRESSED = 0x1F;
+
+	private static final int BUFFER_SIZE = 1024;
+
+	private final RedisSerializer<Object> delegate;
+
+	private int compressionThreshold = 1024;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Creates a new instance that compresses the values written by a {@link JdkSerializationRedisSerializer}.
+	 */
+	public CompressingRedisSerializer() {
+		this(new JdkSerializationRedisSerializer());
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate the {@link RedisSerializer} whose values are compressed. Cannot be null.
+	 */
+	public CompressingRedisSerializer(RedisSerializer<Object> delegate) {
+		Assert.notNull(delegate, "delegate cannot be null");
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Sets the minimum number of bytes a value must have to be compressed. Smaller values are rarely worth the cost of
+	 * compressing them. The default is 1024.
+	 *
+	 * @param compressionThreshold the minimum number of bytes a value must have to be compressed. Cannot be negative.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		Assert.isTrue(compressionThreshold >= 0, "compressionThreshold cannot be negative");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Sets the Deflate compression level. The default is {@link Deflater#DEFAULT_COMPRESSION}.
+	 *
+	 * @param compressionLevel the compression level (0-9) or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		Assert.isTrue(compressionLevel == Deflater.DEFAULT_COMPRESSION || (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION),
+				"compressionLevel must be between 0 and 9 or Deflater.DEFAULT_COMPRESSION");
+		this.compressionLevel = compressionLevel;
+	}
+
+	public byte[] serialize(Object value) throws SerializationException {
+		byte[] bytes = delegate.serialize(value);
+		if(bytes == null || bytes.length == 0) {
+			return bytes;
+		}
+		boolean ambiguous = bytes[0] == COMPRESSED;
+		if(bytes.length < compressionThreshold && !ambiguous) {
+			return bytes;
+		}
+		byte[] compressed = compress(bytes);
+		return compressed.length < bytes.length || ambiguous ? compressed : bytes;
+	}
+
+	public Object deserialize(byte[] bytes) throws SerializationException {
+		if(bytes != null && bytes.length > 0 && bytes[0] == COMPRESSED) {
+			bytes = decompress(bytes);
+		}
+		return delegate.deserialize(bytes);
+	}
+
+	private byte[] compress(byte[] bytes) {
+		Deflater deflater = new Deflater(compressionLevel);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 2 + 1);
+			result.write(COMPRESSED);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				result.write(buffer, 0, length);
+			}
+			return result.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] decompress(byte[] bytes) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, 1, bytes.length - 1);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length * 2);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if(length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new SerializationException("Cannot decompress truncated value");
+				}
+				result.write(buffer, 0, length);
+			}
+			return result.toByteArray();
+		} catch (DataFormatException e) {
+			throw new SerializationException("Cannot decompress value", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+
+/**
+ * Resolves the principal name that {@link RedisOperationsSessionRepository} indexes a {@link Session} by (see
+ * {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME}).
+ *
+ * @since 1.1
+ * @see RedisOperationsSessionRepository#setPrincipalNameResolver(PrincipalNameResolver)
+ */
+public interface PrincipalNameResolver {
+
+	/**
+	 * Resolves the principal name of a {@link Session}. It is invoked every time an attribute of the {@link Session}
+	 * changes, so it should only look at the attributes of the {@link Session}.
+	 *
+	 * @param session the {@link Session} to resolve the principal name of
+	 * @return the principal name or null if the {@link Session} has no principal
+	 */
+	String resolvePrincipalName(Session session);
+}
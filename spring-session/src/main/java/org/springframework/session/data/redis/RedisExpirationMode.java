@@ -0,0 +1,45 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+/**
+ * Specifies how the expirations of the
+ * {@link RedisOperationsSessionRepository.RedisSession} instances are tracked so
+ * that {@link RedisOperationsSessionRepository#cleanupExpiredSessions()} can
+ * access the sessions that expired (see the class level javadoc of
+ * {@link RedisOperationsSessionRepository}).
+ *
+ * @since 1.1
+ * @see RedisOperationsSessionRepository#setExpirationMode(RedisExpirationMode)
+ */
+public enum RedisExpirationMode {
+
+	/**
+	 * Each session id is added to a Set per bucket of expiration times (by default
+	 * a minute). A cleanup retrieves the entire Set of each bucket that ended with
+	 * SMEMBERS and then accesses each session individually. This is the default.
+	 */
+	BUCKETS,
+
+	/**
+	 * Each session id is added to a single Sorted Set scored by its expiration time.
+	 * A cleanup retrieves the sessions that expired in bounded batches using
+	 * ZRANGEBYSCORE with LIMIT and accesses the sessions of each batch using a
+	 * single pipeline. Only the sessions that no longer exist are removed from the
+	 * Sorted Set.
+	 */
+	SORTED_SET
+}
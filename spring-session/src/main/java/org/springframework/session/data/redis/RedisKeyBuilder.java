@@ -0,0 +1,475 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Builds the keys that {@link RedisOperationsSessionRepository} stores the sessions, their expirations and the
+ * principal index in. Every key starts with the namespace, which defaults to "spring:session". For example, the key of
+ * the session with the id 123 is:
+ * </p>
+ *
+ * <pre>
+ * spring:session:sessions:123
+ * </pre>
+ *
+ * <p>
+ * Distinct namespaces allow several applications to share a Redis without sharing their sessions. An optional hash tag
+ * is added after the namespace, which ensures that Redis Cluster stores every key in the same slot. With Redis Cluster
+ * {@link RedisSaveMode#SCRIPT} requires either a hash tag or sharded keys (see below), since a script may only access
+ * keys in the same slot. For example, with the hash tag "app" the key of the session with the id 123 is:
+ * </p>
+ *
+ * <pre>
+ * spring:session:{app}:sessions:123
+ * </pre>
+ *
+ * <p>
+ * A single hash tag stores every session on the same Redis Cluster node. Instead, the keys can be sharded (see
+ * {@link #RedisKeyBuilder(String, int)}). Each session is then assigned to one of the shards by its id and every key
+ * that is written when the session is saved (i.e. the session, its expiration and its principal index) is tagged with
+ * the hash tag of that shard. This keeps the commands, transactions and scripts that save or delete a session within a
+ * single slot while spreading the sessions across the cluster. The expirations and the principal index are split
+ * across the shards, so {@link RedisOperationsSessionRepository#cleanupExpiredSessions()} and
+ * {@link RedisOperationsSessionRepository#findByIndexNameAndIndexValue(String, String)} access every shard. The hash
+ * tag of each shard is chosen so that the shards are spread evenly across the slots.
+ * </p>
+ *
+ * <p>
+ * The prefixes of the keys are computed once, both as a String and as UTF-8 bytes.
+ * {@link RedisOperationsSessionRepository} uses the bytes to save, load and clean up sessions, so the prefix is not
+ * encoded for every command.
+ * </p>
+ *
+ * @since 1.1
+ */
+public final class RedisKeyBuilder {
+	/**
+	 * The default namespace.
+	 */
+	public static final String DEFAULT_NAMESPACE = "spring:session";
+
+	/**
+	 * The number of slots of Redis Cluster.
+	 */
+	static final int SLOTS = 16384;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Encoded differently by UTF-8 than by the other charsets a {@link StringRedisSerializer} may use.
+	 */
+	private static final String UTF_8_PROBE = "\u00e9";
+
+	private static final byte[] UTF_8_PROBE_BYTES = UTF_8_PROBE.getBytes(UTF_8);
+
+	private static final String SESSIONS = "sessions:";
+
+	private final String namespace;
+
+	private final String hashTag;
+
+	private final int shards;
+
+	private final String[] sessionKeyPrefixes;
+
+	private final byte[][] sessionKeyPrefixBytes;
+
+	private final String[] expirationKeyPrefixes;
+
+	private final String[] expirationsKeys;
+
+	private final String[] principalKeyPrefixes;
+
+	private final String cleanupLeaseKey;
+
+	private final String cleanupBucketKey;
+
+	private final String sessionKeyPattern;
+
+	/**
+	 * The bytes that the key of each shard starts with (i.e. the namespace followed by the opening brace of the hash
+	 * tag) or null if the keys are not sharded.
+	 */
+	private final byte[] shardedKeyPrefixBytes;
+
+	private final byte[] sessionsBytes;
+
+	/**
+	 * The last key serializer that was found to encode the keys as UTF-8 (see {@link #isUtf8(RedisSerializer)}).
+	 */
+	private volatile RedisSerializer<String> utf8KeySerializer;
+
+	/**
+	 * Creates a new instance using {@link #DEFAULT_NAMESPACE} and no hash tag.
+	 */
+	public RedisKeyBuilder() {
+		this(DEFAULT_NAMESPACE);
+	}
+
+	/**
+	 * Creates a new instance without a hash tag.
+	 *
+	 * @param namespace the namespace that every key starts with. Cannot be empty.
+	 */
+	public RedisKeyBuilder(String namespace) {
+		this(namespace, null);
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param namespace the namespace that every key starts with. Cannot be empty.
+	 * @param hashTag the hash tag added after the namespace or null for none. Cannot be empty or contain braces.
+	 */
+	public RedisKeyBuilder(String namespace, String hashTag) {
+		Assert.hasText(namespace, "namespace cannot be empty");
+		if(hashTag != null) {
+			Assert.hasText(hashTag, "hashTag cannot be empty");
+			Assert.isTrue(hashTag.indexOf('{') < 0 && hashTag.indexOf('}') < 0, "hashTag cannot contain braces");
+		}
+		this.namespace = namespace;
+		this.hashTag = hashTag;
+		this.shards = 1;
+		String prefix = hashTag == null ? namespace + ":" : namespace + ":{" + hashTag + "}:";
+		this.sessionKeyPrefixes = new String[] { prefix + SESSIONS };
+		this.sessionKeyPrefixBytes = new byte[][] { sessionKeyPrefixes[0].getBytes(UTF_8) };
+		this.expirationKeyPrefixes = new String[] { prefix + "expirations:" };
+		this.expirationsKeys = new String[] { prefix + "expirations" };
+		this.principalKeyPrefixes = new String[] { getPrincipalKeyPrefix(prefix) };
+		this.cleanupLeaseKey = prefix + "cleanup:lease";
+		this.cleanupBucketKey = prefix + "cleanup:bucket";
+		this.sessionKeyPattern = escapePattern(prefix) + SESSIONS + "*";
+		this.shardedKeyPrefixBytes = null;
+		this.sessionsBytes = SESSIONS.getBytes(UTF_8);
+	}
+
+	/**
+	 * Creates a new instance that shards the keys. For example, the key of a session is:
+	 *
+	 * <pre>
+	 * spring:session:{&lt;shard-hash-tag&gt;}:sessions:&lt;session-id&gt;
+	 * </pre>
+	 *
+	 * @param namespace the namespace that every key starts with. Cannot be empty.
+	 * @param shards the number of shards. Must be at least 2 and at most {@link #SLOTS}.
+	 */
+	public RedisKeyBuilder(String namespace, int shards) {
+		Assert.hasText(namespace, "namespace cannot be empty");
+		Assert.isTrue(shards > 1 && shards <= SLOTS, "shards must be between 2 and " + SLOTS);
+		this.namespace = namespace;
+		this.hashTag = null;
+		this.shards = shards;
+		this.sessionKeyPrefixes = new String[shards];
+		this.sessionKeyPrefixBytes = new byte[shards][];
+		this.expirationKeyPrefixes = new String[shards];
+		this.expirationsKeys = new String[shards];
+		this.principalKeyPrefixes = new String[shards];
+		for(int shard = 0; shard < shards; shard++) {
+			String prefix = namespace + ":{" + getShardHashTag(shard, shards) + "}:";
+			this.sessionKeyPrefixes[shard] = prefix + SESSIONS;
+			this.sessionKeyPrefixBytes[shard] = sessionKeyPrefixes[shard].getBytes(UTF_8);
+			this.expirationKeyPrefixes[shard] = prefix + "expirations:";
+			this.expirationsKeys[shard] = prefix + "expirations";
+			this.principalKeyPrefixes[shard] = getPrincipalKeyPrefix(prefix);
+		}
+		this.cleanupLeaseKey = namespace + ":cleanup:lease";
+		this.cleanupBucketKey = namespace + ":cleanup:bucket";
+		this.sessionKeyPattern = escapePattern(namespace) + ":{*}:" + SESSIONS + "*";
+		this.shardedKeyPrefixBytes = (namespace + ":{").getBytes(UTF_8);
+		this.sessionsBytes = ("}:" + SESSIONS).getBytes(UTF_8);
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * Gets the hash tag.
+	 *
+	 * @return the hash tag or null if none is used or the keys are sharded
+	 */
+	public String getHashTag() {
+		return hashTag;
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the number of shards or 1 if the keys are not sharded
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * Gets the shard that a session is assigned to. It only depends on the session id, so it is the same in every JVM.
+	 *
+	 * @param sessionId the session id
+	 * @return the shard of the session from 0 (inclusive) to {@link #getShards()} (exclusive)
+	 */
+	public int getShard(String sessionId) {
+		return shards == 1 ? 0 : (sessionId.hashCode() & Integer.MAX_VALUE) % shards;
+	}
+
+	/**
+	 * Gets the key of the Hash that contains a session.
+	 *
+	 * @param sessionId the session id
+	 * @return the key of the Hash that contains the session
+	 */
+	public String getSessionKey(String sessionId) {
+		return sessionKeyPrefixes[getShard(sessionId)].concat(sessionId);
+	}
+
+	/**
+	 * Gets the key of the Hash that contains a session as UTF-8 bytes. The prefix is not encoded again and, for a
+	 * session id that only contains ASCII characters (e.g. the default UUIDs), neither the session id nor the key is
+	 * copied through an intermediate String.
+	 *
+	 * @param sessionId the session id
+	 * @return the key of the Hash that contains the session as UTF-8 bytes
+	 */
+	public byte[] getSessionKeyBytes(String sessionId) {
+		byte[] prefix = sessionKeyPrefixBytes[getShard(sessionId)];
+		int length = sessionId.length();
+		byte[] key = new byte[prefix.length + length];
+		System.arraycopy(prefix, 0, key, 0, prefix.length);
+		for(int i = 0; i < length; i++) {
+			char c = sessionId.charAt(i);
+			if(c >= 0x80) {
+				return getSessionKey(sessionId).getBytes(UTF_8);
+			}
+			key[prefix.length + i] = (byte) c;
+		}
+		return key;
+	}
+
+	/**
+	 * Serializes the key of the Hash that contains a session. When the serializer is a {@link StringRedisSerializer}
+	 * that encodes UTF-8 (the default), the key is encoded using {@link #getSessionKeyBytes(String)} instead.
+	 *
+	 * @param keySerializer the serializer of the keys. Cannot be null.
+	 * @param sessionId the session id
+	 * @return the key of the Hash that contains the session as serialized by the serializer
+	 */
+	byte[] serializeSessionKey(RedisSerializer<String> keySerializer, String sessionId) {
+		if(isUtf8(keySerializer)) {
+			return getSessionKeyBytes(sessionId);
+		}
+		return keySerializer.serialize(getSessionKey(sessionId));
+	}
+
+	private boolean isUtf8(RedisSerializer<String> keySerializer) {
+		if(keySerializer == utf8KeySerializer) {
+			return true;
+		}
+		if(!(keySerializer instanceof StringRedisSerializer) || !Arrays.equals(keySerializer.serialize(UTF_8_PROBE), UTF_8_PROBE_BYTES)) {
+			return false;
+		}
+		utf8KeySerializer = keySerializer;
+		return true;
+	}
+
+	/**
+	 * Gets a pattern that matches the keys of every session (e.g. to subscribe to their keyspace notifications). The
+	 * characters of the namespace and hash tag that have a special meaning in a Redis pattern are escaped, so the
+	 * pattern does not match the keys of other namespaces.
+	 *
+	 * @return the pattern that matches the keys of the sessions
+	 */
+	public String getSessionKeyPattern() {
+		return sessionKeyPattern;
+	}
+
+	/**
+	 * Escapes the characters that have a special meaning in a Redis glob-style pattern (i.e. '*', '?', '[', ']' and
+	 * '\'), so that the pattern matches the text literally.
+	 *
+	 * @param text the text to escape
+	 * @return the escaped text
+	 */
+	static String escapePattern(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+				escaped.append('\\');
+			}
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Determines where the session id starts in a key, without decoding the key.
+	 *
+	 * @param bytes the bytes that contain the key
+	 * @param offset the index of the first byte of the key
+	 * @return the index of the first byte of the session id or -1 if the key is not the key of a session
+	 */
+	int getSessionIdIndex(byte[] bytes, int offset) {
+		if(shardedKeyPrefixBytes == null) {
+			byte[] prefix = sessionKeyPrefixBytes[0];
+			return startsWith(bytes, offset, prefix) ? offset + prefix.length : -1;
+		}
+		if(!startsWith(bytes, offset, shardedKeyPrefixBytes)) {
+			return -1;
+		}
+		for(int i = offset + shardedKeyPrefixBytes.length; i < bytes.length; i++) {
+			if(bytes[i] == '}') {
+				return startsWith(bytes, i, sessionsBytes) ? i + sessionsBytes.length : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the key of the Set that contains the ids of the sessions of a shard that expire in a bucket (see
+	 * {@link RedisExpirationMode#BUCKETS}).
+	 *
+	 * @param shard the shard (see {@link #getShard(String)})
+	 * @param bucket the end of the bucket in milliseconds
+	 * @return the key of the Set that contains the ids of the sessions that expire in the bucket
+	 */
+	public String getExpirationKey(int shard, long bucket) {
+		return expirationKeyPrefixes[shard].concat(String.valueOf(bucket));
+	}
+
+	/**
+	 * Gets the key of the Sorted Set that contains the ids of the sessions of a shard scored by their expiration (see
+	 * {@link RedisExpirationMode#SORTED_SET}).
+	 *
+	 * @param shard the shard (see {@link #getShard(String)})
+	 * @return the key of the Sorted Set that contains the ids of the sessions
+	 */
+	public String getExpirationsKey(int shard) {
+		return expirationsKeys[shard];
+	}
+
+	/**
+	 * Gets the key of the lease that an instance holds while cleaning up expired sessions (see
+	 * {@link RedisOperationsSessionRepository#setCleanupLeaseInSeconds(int)}).
+	 *
+	 * @return the key of the cleanup lease
+	 */
+	public String getCleanupLeaseKey() {
+		return cleanupLeaseKey;
+	}
+
+	/**
+	 * Gets the key of the last expiration bucket that was cleaned up (see {@link RedisExpirationMode#BUCKETS}), which
+	 * allows the cleanup to catch up on the buckets that were missed while no instance was running.
+	 *
+	 * @return the key of the last bucket that was cleaned up
+	 */
+	public String getCleanupBucketKey() {
+		return cleanupBucketKey;
+	}
+
+	/**
+	 * Gets the key of the Set that contains the ids of the sessions of a principal within a shard.
+	 *
+	 * @param shard the shard (see {@link #getShard(String)})
+	 * @param principalName the principal name
+	 * @return the key of the Set that contains the ids of the sessions of the principal
+	 */
+	public String getPrincipalKey(int shard, String principalName) {
+		return principalKeyPrefixes[shard].concat(principalName);
+	}
+
+	private static String getPrincipalKeyPrefix(String prefix) {
+		return prefix + "index:" + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME + ":";
+	}
+
+	/**
+	 * Gets the hash tag of the first slot in the range of slots of a shard, so that the shards are spread evenly
+	 * across the slots and thus across the nodes of Redis Cluster.
+	 *
+	 * @param shard the shard
+	 * @param shards the number of shards
+	 * @return the hash tag of the shard
+	 */
+	private static String getShardHashTag(int shard, int shards) {
+		return SlotHashTags.HASH_TAGS[(int) ((long) shard * SLOTS / shards)];
+	}
+
+	/**
+	 * The shortest decimal hash tag of every slot, computed once when the first sharded {@link RedisKeyBuilder} is
+	 * created.
+	 */
+	private static final class SlotHashTags {
+		static final String[] HASH_TAGS = new String[SLOTS];
+
+		static {
+			int remaining = SLOTS;
+			for(int i = 0; remaining > 0; i++) {
+				String hashTag = Integer.toString(i);
+				int slot = getSlot(hashTag);
+				if(HASH_TAGS[slot] == null) {
+					HASH_TAGS[slot] = hashTag;
+					remaining--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the Redis Cluster slot of a key (or of a hash tag, which is the same), i.e. CRC16 (XMODEM) modulo
+	 * {@link #SLOTS}. The hash tag of the key is not extracted.
+	 *
+	 * @param key the key
+	 * @return the slot of the key
+	 */
+	static int getSlot(String key) {
+		int crc = 0;
+		for(byte b : key.getBytes(UTF_8)) {
+			crc ^= (b & 0xff) << 8;
+			for(int i = 0; i < 8; i++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+		}
+		return (crc & 0xffff) % SLOTS;
+	}
+
+	/**
+	 * Determines if the bytes contain the prefix at the offset, without decoding them.
+	 *
+	 * @param bytes the bytes to inspect
+	 * @param offset the index at which the prefix is expected
+	 * @param prefix the expected bytes
+	 * @return true if the bytes contain the prefix at the offset
+	 */
+	static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+		if(offset < 0 || bytes.length - offset < prefix.length) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length; i++) {
+			if(bytes[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
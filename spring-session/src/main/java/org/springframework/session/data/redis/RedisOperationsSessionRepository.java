@@ -15,24 +15,48 @@
  */
 package org.springframework.session.data.redis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
-import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.core.BoundSetOperations;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.session.BatchSessionRepository;
+import org.springframework.session.DirtyTrackingSession;
 import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.MapSession;
 import org.springframework.session.Session;
 import org.springframework.session.SessionRepository;
 import org.springframework.session.events.SessionDestroyedEvent;
 import org.springframework.session.web.http.SessionRepositoryFilter;
 import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.ObjectUtils;
 
 /**
  * <p>
@@ -134,16 +158,58 @@ import org.springframework.util.Assert;
  * By simply accessing the key, we ensure that the key is only removed if the TTL on that key is expired.
  * </p>
  *
+ * <p>
+ * By default the entire hash is retrieved (HGETALL) when a session is loaded. Using
+ * {@link #setLazyAttributeLoading(boolean)} only the creation time, max inactive interval and last accessed time are
+ * retrieved (HMGET) and each attribute is retrieved (HGET) the first time it is accessed.
+ * </p>
+ *
+ * <p>
+ * A {@link SessionNearCache} can be set using {@link #setNearCache(SessionNearCache)} to avoid retrieving recently
+ * used sessions from Redis at all. Each save and delete then also publishes the session id to a channel so that the
+ * {@link SessionNearCache} of other JVMs evict the session:
+ * </p>
+ *
+ * <pre>PUBLISH spring:session:invalidations "&lt;origin&gt; &lt;session-id&gt;"</pre>
+ *
+ * <p>
+ * To find the sessions of a principal (see {@link #findByIndexNameAndIndexValue(String, String)}), the id of each
+ * session can also be kept in a Set per principal name that is updated whenever the principal of the session changes
+ * (see {@link #setIndexPrincipalNames(boolean)}):
+ * </p>
+ *
+ * <pre>SADD spring:session:index:org.springframework.session.FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME:&lt;principal-name&gt; &lt;session-id&gt;</pre>
+ *
+ * <p>
+ * Using {@link #setReplicaRedisOperations(RedisOperations)} the sessions are loaded from a replica rather than from
+ * the master. Since a replica lags behind the master, a session is loaded from the master instead if the replica does
+ * not have it or has it expired (the id of a session that is loaded is expected to exist), or if this instance saved
+ * or deleted it recently (see {@link #setReplicaReadAfterWriteDelayInMillis(long)}). Everything else, including the
+ * principal index and the cleanup, uses the master.
+ * </p>
+ *
+ * <h2>Round Trips</h2>
+ *
+ * <p>
+ * By default each of the commands above is sent to Redis individually, so saving a session costs a round trip per
+ * command. Using {@link #setSaveMode(RedisSaveMode)} the commands can instead be pipelined
+ * ({@link RedisSaveMode#PIPELINED}) or wrapped in MULTI/EXEC ({@link RedisSaveMode#TRANSACTIONAL}) on a single
+ * connection. Alternatively, {@link RedisSaveMode#SCRIPT} performs the entire save in a single Lua script:
+ * </p>
+ *
+ * <pre>EVALSHA &lt;sha1&gt; 5 spring:session:sessions:&lt;session-id&gt; spring:session:expirations:&lt;expire-rounded-up-to-nearest-minute&gt; spring:session:expirations:&lt;original-expire-rounded-up-to-nearest-minute&gt; spring:session:sessions:&lt;session-id&gt; spring:session:sessions:&lt;session-id&gt; &lt;session-id&gt; 1800 1860 "" "" sessionAttr2:&lt;attrName&gt; newValue</pre>
+ *
+ * <p>
+ * The script also updates the principal index and publishes the invalidation of a {@link SessionNearCache}, so a
+ * save is a single round trip that is applied atomically.
+ * </p>
+ *
  * @since 1.0
  *
  * @author Rob Winch
  */
-public class RedisOperationsSessionRepository implements SessionRepository<RedisOperationsSessionRepository.RedisSession> {
-	/**
-	 * The prefix for each key of the Redis Hash representing a single session. The suffix is the unique session id.
-	 */
-	static final String BOUNDED_HASH_KEY_PREFIX = "spring:session:sessions:";
-
+public class RedisOperationsSessionRepository implements BatchSessionRepository<RedisOperationsSessionRepository.RedisSession>,
+		FindByIndexNameSessionRepository<RedisOperationsSessionRepository.RedisSession> {
 	/**
 	 * The key in the Hash representing {@link org.springframework.session.ExpiringSession#getCreationTime()}
 	 */
@@ -166,6 +232,106 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	 */
 	static final String SESSION_ATTR_PREFIX = "sessionAttr:";
 
+	/**
+	 * The script used to save a session when using {@link RedisSaveMode#SCRIPT}. KEYS[1] is the session key and
+	 * KEYS[2] the expiration key. They are followed by the original expiration key when ARGV[4] is
+	 * {@link #SCRIPT_EXPIRATION_MOVE}, then by the principal index key of the original principal when ARGV[5] is
+	 * {@link #SCRIPT_FLAG_SET} and then by the principal index key of the new principal when ARGV[6] is
+	 * {@link #SCRIPT_FLAG_SET}, so only the keys that are written are passed. ARGV[1] is the session id, ARGV[2] the
+	 * expiration of the session key in seconds, ARGV[3] the expiration of the expiration key in seconds, ARGV[4]
+	 * {@link #SCRIPT_EXPIRATION_REFRESH} when the session stays in the same expiration key,
+	 * {@link #SCRIPT_EXPIRATION_ADD} when it is new or {@link #SCRIPT_EXPIRATION_MOVE} when it is moved from the
+	 * original expiration key, ARGV[7] the channel to publish the invalidation to (or empty for none), ARGV[8] the
+	 * invalidation and the remaining arguments are the hash fields and values that changed.
+	 */
+	static final RedisScript<Object> SAVE_SCRIPT = new DefaultRedisScript<Object>(
+			"local key = 3\n" +
+			"if #ARGV > 8 then redis.call('HMSET', KEYS[1], unpack(ARGV, 9)) end\n" +
+			"if ARGV[4] == 'move' then\n" +
+			"  redis.call('SREM', KEYS[key], ARGV[1])\n" +
+			"  key = key + 1\n" +
+			"end\n" +
+			"if ARGV[4] ~= 'refresh' then\n" +
+			"  redis.call('SADD', KEYS[2], ARGV[1])\n" +
+			"  redis.call('EXPIRE', KEYS[2], ARGV[3])\n" +
+			"end\n" +
+			"redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+			"if ARGV[5] == '1' then\n" +
+			"  redis.call('SREM', KEYS[key], ARGV[1])\n" +
+			"  key = key + 1\n" +
+			"end\n" +
+			"if ARGV[6] == '1' then redis.call('SADD', KEYS[key], ARGV[1]) end\n" +
+			"if ARGV[7] ~= '' then redis.call('PUBLISH', ARGV[7], ARGV[8]) end", null);
+
+	/**
+	 * The script used to save a session when using {@link RedisSaveMode#SCRIPT} and
+	 * {@link RedisExpirationMode#SORTED_SET}. KEYS[1] is the session key and KEYS[2] the Sorted Set of expirations.
+	 * They are followed by the principal index key of the original principal when ARGV[4] is {@link #SCRIPT_FLAG_SET}
+	 * and then by the principal index key of the new principal when ARGV[5] is {@link #SCRIPT_FLAG_SET}. ARGV[1] is
+	 * the session id, ARGV[2] the expiration of the session key in seconds, ARGV[3] the expiration time of the session
+	 * in milliseconds, ARGV[6] the channel to publish the invalidation to (or empty for none), ARGV[7] the
+	 * invalidation and the remaining arguments are the hash fields and values that changed.
+	 */
+	static final RedisScript<Object> SORTED_SET_SAVE_SCRIPT = new DefaultRedisScript<Object>(
+			"local key = 3\n" +
+			"if #ARGV > 7 then redis.call('HMSET', KEYS[1], unpack(ARGV, 8)) end\n" +
+			"redis.call('ZADD', KEYS[2], ARGV[3], ARGV[1])\n" +
+			"redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+			"if ARGV[4] == '1' then\n" +
+			"  redis.call('SREM', KEYS[key], ARGV[1])\n" +
+			"  key = key + 1\n" +
+			"end\n" +
+			"if ARGV[5] == '1' then redis.call('SADD', KEYS[key], ARGV[1]) end\n" +
+			"if ARGV[6] ~= '' then redis.call('PUBLISH', ARGV[6], ARGV[7]) end", null);
+
+	/**
+	 * Tells {@link #SAVE_SCRIPT} to only refresh the expiration of a session that stays in the same expiration key.
+	 */
+	static final String SCRIPT_EXPIRATION_REFRESH = "refresh";
+
+	/**
+	 * Tells {@link #SAVE_SCRIPT} to add a new session to the expiration key.
+	 */
+	static final String SCRIPT_EXPIRATION_ADD = "add";
+
+	/**
+	 * Tells {@link #SAVE_SCRIPT} to move a session from the original expiration key to the expiration key.
+	 */
+	static final String SCRIPT_EXPIRATION_MOVE = "move";
+
+	/**
+	 * The value of a flag of the save scripts that is set.
+	 */
+	static final String SCRIPT_FLAG_SET = "1";
+
+	/**
+	 * The value of a flag of the save scripts that is not set.
+	 */
+	static final String SCRIPT_FLAG_UNSET = "0";
+
+	/**
+	 * How long after creating an instance the expired sessions must have been cleaned up before a warning is logged.
+	 * The cleanup scheduled by {@link #cleanupExpiredSessions()} or by
+	 * {@link org.springframework.session.data.redis.config.annotation.web.http.RedisHttpSessionConfiguration} first
+	 * runs within two minutes.
+	 */
+	private static final long CLEANUP_WARNING_DELAY_IN_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+	/**
+	 * The keys in the Hash that are loaded up front when {@link #setLazyAttributeLoading(boolean)} is enabled.
+	 */
+	private static final List<Object> METADATA_ATTRS = Arrays.<Object>asList(CREATION_TIME_ATTR, MAX_INACTIVE_ATTR, LAST_ACCESSED_ATTR);
+
+	private static final RedisSerializer<String> SCRIPT_ARGS_SERIALIZER = new StringRedisSerializer();
+
+	/**
+	 * Used to take the digest of attributes and to copy the attributes of cached sessions if the
+	 * {@link RedisOperations} does not provide a hash value serializer.
+	 */
+	private static final RedisSerializer<Object> DIGEST_SERIALIZER = new JdkSerializationRedisSerializer();
+
+	private static final Log logger = LogFactory.getLog(RedisOperationsSessionRepository.class);
+
 	private final RedisOperations<String,ExpiringSession> sessionRedisOperations;
 
 	private final RedisSessionExpirationPolicy expirationPolicy;
@@ -175,6 +341,52 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	 */
 	private Integer defaultMaxInactiveInterval;
 
+	private RedisSaveMode saveMode = RedisSaveMode.SEQUENTIAL;
+
+	private boolean lazyAttributeLoading;
+
+	private SessionNearCache nearCache;
+
+	private boolean detectAttributeChanges;
+
+	private boolean indexPrincipalNames;
+
+	private long touchGranularityInMillis;
+
+	private PrincipalNameResolver principalNameResolver = new DefaultPrincipalNameResolver();
+
+	private RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	private RedisSessionHashCodec hashCodec = new RedisSessionHashCodec(keyBuilder);
+
+	private RedisOperations<String, ExpiringSession> replicaRedisOperations;
+
+	private long replicaReadAfterWriteDelayInMillis = 1000;
+
+	/**
+	 * The time at which this instance last wrote each session, so that the sessions it wrote recently are loaded from
+	 * the master (see {@link #setReplicaReadAfterWriteDelayInMillis(long)}). The writes whose delay elapsed are pruned
+	 * at most once per delay (see {@link #nextRecentWritesPruning}), so it holds the sessions written within about twice
+	 * the delay.
+	 */
+	private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * The time at which the writes whose delay elapsed are next pruned from {@link #recentWrites}.
+	 */
+	private final AtomicLong nextRecentWritesPruning = new AtomicLong();
+
+	private final AtomicLong replicaFallbacks = new AtomicLong();
+
+	private final long cleanupWarningTime = System.currentTimeMillis() + CLEANUP_WARNING_DELAY_IN_MILLIS;
+
+	private boolean scheduledCleanupEnabled = true;
+
+	/**
+	 * True once the expired sessions were cleaned up or a warning was logged because they were not.
+	 */
+	private volatile boolean cleanupChecked;
+
 	/**
 	 * Allows creating an instance and uses a default {@link RedisOperations} for both managing the session and the expirations.
 	 *
@@ -207,13 +419,324 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 		this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
 	}
 
+	/**
+	 * Sets the {@link RedisKeyBuilder} that determines the keys of the sessions, their expirations and the principal
+	 * index. The default uses the "spring:session" namespace without a hash tag. Changing the keys does not migrate
+	 * the sessions that are stored under the previous keys.
+	 *
+	 * @param keyBuilder the {@link RedisKeyBuilder} to use. Cannot be null.
+	 */
+	public void setKeyBuilder(RedisKeyBuilder keyBuilder) {
+		Assert.notNull(keyBuilder, "keyBuilder cannot be null");
+		this.keyBuilder = keyBuilder;
+		this.hashCodec = new RedisSessionHashCodec(keyBuilder);
+		this.expirationPolicy.setKeyBuilder(keyBuilder);
+	}
+
+	/**
+	 * Sets how the commands that save or delete a {@link Session} are sent to Redis. The default is
+	 * {@link RedisSaveMode#SEQUENTIAL}.
+	 *
+	 * @param saveMode the {@link RedisSaveMode} to use. Cannot be null.
+	 */
+	public void setSaveMode(RedisSaveMode saveMode) {
+		Assert.notNull(saveMode, "saveMode cannot be null");
+		this.saveMode = saveMode;
+	}
+
+	/**
+	 * Sets if the attributes of a {@link Session} are loaded lazily. When false (the default) the entire session is
+	 * retrieved using HGETALL. When true only the creation time, max inactive interval and last accessed time are
+	 * retrieved using HMGET and each attribute is retrieved using HGET the first time it is accessed. This is
+	 * beneficial when sessions contain large attributes that most requests do not use. Invoking
+	 * {@link RedisSession#getAttributeNames()} loads all of the attributes.
+	 *
+	 * @param lazyAttributeLoading true if attributes should be loaded on first access, else false
+	 */
+	public void setLazyAttributeLoading(boolean lazyAttributeLoading) {
+		this.lazyAttributeLoading = lazyAttributeLoading;
+	}
+
+	/**
+	 * Sets the {@link SessionNearCache} used to avoid retrieving recently used sessions from Redis. When set, each
+	 * save and delete also publishes an invalidation so that the {@link SessionNearCache} of other JVMs evict the
+	 * session. The default is null (no near cache). The attribute values are cached serialized with the hash value
+	 * serializer of the {@link RedisOperations}, so every session returned from the near cache has its own copies.
+	 *
+	 * @param nearCache the {@link SessionNearCache} to use or null to disable the near cache
+	 */
+	public void setNearCache(SessionNearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	/**
+	 * Sets if the attributes that changed are detected by comparing their serialized values. When false (the default)
+	 * only the attributes that were passed to {@link Session#setAttribute(String, Object)} or
+	 * {@link Session#removeAttribute(String)} are saved, so an attribute that is modified in place must be set again.
+	 * When true, an MD5 digest of each serialized attribute is taken when it is loaded and only the attributes whose
+	 * serialized value changed are saved. This catches attributes that were modified in place and avoids rewriting
+	 * attributes that were set again without changing, at the cost of serializing each attribute when it is loaded
+	 * and when the session is saved. The attributes that changed are written using the bytes the digest was taken of,
+	 * so they are not serialized again, and when {@link DirtyTrackingSession#isDirty()} is invoked right before
+	 * saving, the save reuses the changes it detected unless an attribute of the session was accessed in between.
+	 *
+	 * @param detectAttributeChanges true if changed attributes should be detected by their serialized value, else false
+	 */
+	public void setDetectAttributeChanges(boolean detectAttributeChanges) {
+		this.detectAttributeChanges = detectAttributeChanges;
+	}
+
+	/**
+	 * Sets how much time must pass since the last accessed time that is persisted before retrieving a {@link Session}
+	 * updates it. When 0 (the default) every retrieval updates the last accessed time, so every request that uses a
+	 * session writes to Redis when it is saved. When positive, a session that was accessed less than that many seconds
+	 * ago keeps its last accessed time and expiration, so a request that does not change the session does not write to
+	 * Redis at all. The trade off is that a session may expire up to that many seconds earlier than its max inactive
+	 * interval, so it should be small compared to the max inactive interval.
+	 *
+	 * @param touchGranularityInSeconds the minimum number of seconds between updates of the last accessed time. Cannot
+	 *                                  be negative.
+	 */
+	public void setTouchGranularityInSeconds(int touchGranularityInSeconds) {
+		Assert.isTrue(touchGranularityInSeconds >= 0, "touchGranularityInSeconds cannot be negative");
+		this.touchGranularityInMillis = TimeUnit.SECONDS.toMillis(touchGranularityInSeconds);
+	}
+
+	/**
+	 * Gets the number of saves that did not need to move the session to a different
+	 * <code>spring:session:expirations:&lt;minute&gt;</code> key because its expiration rounded up to the same minute as
+	 * before. These saves only refresh the expiration of the session.
+	 *
+	 * @return the number of expiration moves that were skipped
+	 */
+	public long getSkippedExpirationMoveCount() {
+		return expirationPolicy.getSkippedExpirationMoveCount();
+	}
+
+	/**
+	 * Sets the size of the buckets that session expirations are rounded up to in order to be tracked by
+	 * {@link #cleanupExpiredSessions()}. Smaller buckets ensure expired sessions are cleaned up closer to when they
+	 * expire, while larger buckets result in fewer <code>spring:session:expirations:&lt;bucket&gt;</code> keys. The
+	 * default is 60 seconds.
+	 *
+	 * @param expirationBucketSizeInSeconds the size of a bucket in seconds. Must be positive.
+	 */
+	public void setExpirationBucketSizeInSeconds(int expirationBucketSizeInSeconds) {
+		expirationPolicy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(expirationBucketSizeInSeconds));
+	}
+
+	/**
+	 * Sets if the sessions are indexed by principal name, so that
+	 * {@link #findByIndexNameAndIndexValue(String, String)} can find the sessions of a principal. The default is false,
+	 * in which case the principal name of a session is never resolved and
+	 * {@link #findByIndexNameAndIndexValue(String, String)} finds no sessions.
+	 * <p>
+	 * The Set of a principal never expires and the ids of the sessions that expired are only removed from it when the
+	 * sessions of the principal are found, so the index grows with the number of distinct principals.
+	 * </p>
+	 *
+	 * @param indexPrincipalNames true to index the sessions by principal name, else false
+	 */
+	public void setIndexPrincipalNames(boolean indexPrincipalNames) {
+		this.indexPrincipalNames = indexPrincipalNames;
+	}
+
+	/**
+	 * Sets the {@link PrincipalNameResolver} used to index the sessions by principal name (see
+	 * {@link #setIndexPrincipalNames(boolean)}). The default uses the
+	 * {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME} attribute or else the name of the
+	 * authentication of the Spring Security context.
+	 *
+	 * @param principalNameResolver the {@link PrincipalNameResolver} to use. Cannot be null.
+	 */
+	public void setPrincipalNameResolver(PrincipalNameResolver principalNameResolver) {
+		Assert.notNull(principalNameResolver, "principalNameResolver cannot be null");
+		this.principalNameResolver = principalNameResolver;
+	}
+
+	/**
+	 * Sets how the expirations of the sessions are tracked for {@link #cleanupExpiredSessions()}. The default is
+	 * {@link RedisExpirationMode#BUCKETS}. Switching modes does not migrate the expirations that are already tracked,
+	 * so the sessions that were saved before are left to expire without being accessed by a cleanup.
+	 *
+	 * @param expirationMode the {@link RedisExpirationMode} to use. Cannot be null.
+	 */
+	public void setExpirationMode(RedisExpirationMode expirationMode) {
+		expirationPolicy.setExpirationMode(expirationMode);
+	}
+
+	/**
+	 * Sets the maximum number of expired sessions that {@link #cleanupExpiredSessions()} accesses in a single round
+	 * trip. When using {@link RedisExpirationMode#SORTED_SET} this is also the number of expired sessions retrieved at
+	 * once. The default is 1000.
+	 *
+	 * @param cleanupBatchSize the maximum number of sessions per batch. Must be positive.
+	 */
+	public void setCleanupBatchSize(int cleanupBatchSize) {
+		expirationPolicy.setCleanupBatchSize(cleanupBatchSize);
+	}
+
+	/**
+	 * Sets the duration of a lease in Redis that an instance must hold in order to perform
+	 * {@link #cleanupExpiredSessions()}. This ensures that only one of the instances that share a Redis cleans up at
+	 * a time rather than all of them accessing the same sessions. The holder renews the lease each time it cleans up,
+	 * so it must be longer than the interval between cleanups (one minute), for example 90 seconds. When the cleanup
+	 * is delayed by a random jitter, the lease must also outlast the jitter. If the holder stops, another instance
+	 * acquires the lease once it expires and also cleans up the expirations that were missed in the meantime, which is
+	 * why the expiration keys are kept the duration of the lease longer. When 0 (the default) every instance cleans up.
+	 *
+	 * @param cleanupLeaseInSeconds the duration of the lease in seconds. Must be 0 or more than 60.
+	 */
+	public void setCleanupLeaseInSeconds(int cleanupLeaseInSeconds) {
+		Assert.isTrue(cleanupLeaseInSeconds == 0 || cleanupLeaseInSeconds > 60, "cleanupLeaseInSeconds must be 0 or more than 60");
+		expirationPolicy.setCleanupLeaseInMillis(TimeUnit.SECONDS.toMillis(cleanupLeaseInSeconds));
+	}
+
+	/**
+	 * Gets the number of times {@link #cleanupExpiredSessions()} did nothing because another instance held the
+	 * cleanup lease (see {@link #setCleanupLeaseInSeconds(int)}).
+	 *
+	 * @return the number of cleanups that were skipped
+	 */
+	public long getSkippedCleanupCount() {
+		return expirationPolicy.getSkippedCleanupCount();
+	}
+
+	/**
+	 * Sets the maximum number of expiration buckets that {@link #cleanupExpiredSessions()} cleans up per invocation.
+	 * When it has to catch up on more buckets, for example after the application was paused, the remaining buckets
+	 * are left for the following invocations (see {@link #isCleanupBehind()}). The expiration keys are kept this many
+	 * buckets past the bucket they represent, so the cleanup catches up on pauses of up to this many buckets. The
+	 * default is 60.
+	 *
+	 * @param maxBucketsPerCleanup the maximum number of buckets per invocation. Must be positive.
+	 */
+	public void setMaxBucketsPerCleanup(int maxBucketsPerCleanup) {
+		expirationPolicy.setMaxBucketsPerCleanup(maxBucketsPerCleanup);
+	}
+
+	/**
+	 * Sets the {@link RedisOperations} used to load sessions from a replica, which scales the read capacity with the
+	 * number of replicas. A session is loaded from the master instead when the replica does not have it or has it
+	 * expired, and when this instance wrote it recently (see {@link #setReplicaReadAfterWriteDelayInMillis(long)}). It
+	 * must serialize the keys and values the same way as the {@link RedisOperations} passed to the constructor. The
+	 * default is null, which loads every session from the master.
+	 * <p>
+	 * The sessions loaded from the replica may be stale, so they are not added to the {@link SessionNearCache} (see
+	 * {@link #setNearCache(SessionNearCache)}), which only caches sessions loaded from or written to the master.
+	 * </p>
+	 *
+	 * @param replicaRedisOperations the {@link RedisOperations} connected to a replica or null to only use the master
+	 */
+	public void setReplicaRedisOperations(RedisOperations<String, ExpiringSession> replicaRedisOperations) {
+		this.replicaRedisOperations = replicaRedisOperations;
+	}
+
+	/**
+	 * Sets how long a session is loaded from the master rather than from the replica after this instance saved or
+	 * deleted it, which should exceed the replication lag (see {@link #setReplicaRedisOperations(RedisOperations)}).
+	 * The default is 1000. Each session written is remembered for up to twice the delay, so the memory used grows with
+	 * the number of sessions written per delay.
+	 *
+	 * @param replicaReadAfterWriteDelayInMillis the delay in milliseconds. Cannot be negative.
+	 */
+	public void setReplicaReadAfterWriteDelayInMillis(long replicaReadAfterWriteDelayInMillis) {
+		Assert.isTrue(replicaReadAfterWriteDelayInMillis >= 0, "replicaReadAfterWriteDelayInMillis cannot be negative");
+		this.replicaReadAfterWriteDelayInMillis = replicaReadAfterWriteDelayInMillis;
+	}
+
+	/**
+	 * Gets the number of sessions that were loaded from the master because the replica did not have them or had them
+	 * expired (see {@link #setReplicaRedisOperations(RedisOperations)}).
+	 *
+	 * @return the number of sessions that were loaded from the master after being loaded from the replica
+	 */
+	public long getReplicaFallbackCount() {
+		return replicaFallbacks.get();
+	}
+
+	/**
+	 * Determines if the last invocation of {@link #cleanupExpiredSessions()} left buckets that already ended to the
+	 * following invocations, in which case it should be invoked again soon rather than a minute later.
+	 *
+	 * @return true if there are expired buckets left to clean up
+	 */
+	public boolean isCleanupBehind() {
+		return expirationPolicy.isCleanupBehind();
+	}
+
 	public void save(RedisSession session) {
+		if(!cleanupChecked) {
+			checkCleanupInvoked(System.currentTimeMillis());
+		}
 		session.saveDelta();
 	}
 
+	/**
+	 * Sets if {@link #cleanupExpiredSessions()}, which is scheduled at the start of each minute when scheduling is
+	 * enabled, cleans up the expired sessions. It is disabled when the cleanup is scheduled differently using
+	 * {@link #cleanupExpiredSessionsNow()}, as
+	 * {@link org.springframework.session.data.redis.config.annotation.web.http.RedisHttpSessionConfiguration} does.
+	 * The default is true.
+	 *
+	 * @param scheduledCleanupEnabled false if {@link #cleanupExpiredSessions()} should do nothing
+	 */
+	public void setScheduledCleanupEnabled(boolean scheduledCleanupEnabled) {
+		this.scheduledCleanupEnabled = scheduledCleanupEnabled;
+	}
+
+	/**
+	 * Cleans up the expired sessions using {@link #cleanupExpiredSessionsNow()} at the start of each minute when
+	 * scheduling is enabled, unless {@link #setScheduledCleanupEnabled(boolean)} is false.
+	 */
 	@Scheduled(cron="0 * * * * *")
 	public void cleanupExpiredSessions() {
-		this.expirationPolicy.cleanExpiredSessions();
+		if(scheduledCleanupEnabled) {
+			cleanupExpiredSessionsNow();
+		}
+	}
+
+	/**
+	 * Accesses the sessions that expired since the previous invocation, so that Redis deletes them and fires the
+	 * expired events (see the class level javadoc). It is meant to be invoked once a minute, either by
+	 * {@link #cleanupExpiredSessions()} or by a schedule of the application. If it is not invoked at all, a warning is
+	 * logged when sessions are saved a few minutes after this instance was created. Buckets that ended while it was
+	 * not invoked (e.g. while the application was paused or restarted) are cleaned up as well, at most
+	 * {@link #setMaxBucketsPerCleanup(int)} buckets at a time, as long as the pause lasted no more than that many
+	 * buckets.
+	 */
+	public void cleanupExpiredSessionsNow() {
+		cleanupExpiredSessionsNow(System.currentTimeMillis());
+	}
+
+	/**
+	 * Accesses the sessions that expired up to the provided time (see {@link #cleanupExpiredSessionsNow()}).
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	void cleanupExpiredSessionsNow(long now) {
+		cleanupChecked = true;
+		this.expirationPolicy.cleanExpiredSessions(now);
+	}
+
+	/**
+	 * Logs a warning, once, if {@link #cleanupExpiredSessionsNow()} was not invoked within a few minutes of creating this
+	 * instance, which means that it is not scheduled and the expired sessions are neither cleaned up nor is a
+	 * {@link SessionDestroyedEvent} published for them.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return true if the warning was logged
+	 */
+	boolean checkCleanupInvoked(long now) {
+		if(cleanupChecked || now < cleanupWarningTime) {
+			return false;
+		}
+		cleanupChecked = true;
+		logger.warn("The expired sessions were not cleaned up within "
+				+ TimeUnit.MILLISECONDS.toMinutes(CLEANUP_WARNING_DELAY_IN_MILLIS) + " minutes. Enable scheduling (e.g. "
+				+ "using @EnableScheduling) or invoke RedisOperationsSessionRepository.cleanupExpiredSessionsNow() every "
+				+ "minute, otherwise the expired sessions are not cleaned up.");
+		return true;
 	}
 
 	public RedisSession getSession(String id) {
@@ -221,17 +744,334 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	}
 
 	/**
+	 * Gets the sessions with the provided ids using a single pipeline of HGETALL commands for the sessions that are not
+	 * in the {@link SessionNearCache}. The entire sessions are retrieved, even if {@link #setLazyAttributeLoading(boolean)}
+	 * is true. With a replica (see {@link #setReplicaRedisOperations(RedisOperations)}), the sessions that the replica
+	 * does not have are retrieved from the master using a second pipeline.
+	 *
+	 * @param ids the session ids. Cannot be null.
+	 * @return the sessions that were found by their id in the order of the provided ids
+	 */
+	public Map<String, RedisSession> getSessions(Collection<String> ids) {
+		Assert.notNull(ids, "ids cannot be null");
+		Set<String> distinctIds = new LinkedHashSet<String>(ids);
+		Map<String, MapSession> loaded = new HashMap<String, MapSession>(distinctIds.size());
+		final List<String> toLoad = new ArrayList<String>(distinctIds.size());
+		for(String id : distinctIds) {
+			MapSession cached = nearCache == null ? null : nearCache.get(id, getAttributeSerializer());
+			if(cached == null) {
+				toLoad.add(id);
+			} else {
+				loaded.put(id, cached);
+			}
+		}
+		if(!toLoad.isEmpty()) {
+			long invalidationCount = nearCache == null ? 0 : nearCache.getInvalidationCount();
+			List<String> masterIds = toLoad;
+			if(replicaRedisOperations != null) {
+				List<String> replicaIds = new ArrayList<String>(toLoad.size());
+				masterIds = new ArrayList<String>();
+				for(String id : toLoad) {
+					if(isRecentlyWritten(id)) {
+						masterIds.add(id);
+					} else {
+						replicaIds.add(id);
+					}
+				}
+				// the replica may be stale, so its sessions are not cached
+				List<String> missed = loadSessions(replicaRedisOperations, replicaIds, loaded, null);
+				replicaFallbacks.addAndGet(missed.size());
+				masterIds.addAll(missed);
+			}
+			loadSessions(sessionRedisOperations, masterIds, loaded, invalidationCount);
+		}
+		return getSessions(distinctIds, loaded);
+	}
+
+	/**
+	 * Creates the {@link RedisSession} instances of the sessions that were loaded, omitting the expired sessions.
+	 *
+	 * @param ids the distinct session ids in the order of the result
+	 * @param loaded the sessions that were loaded by their id
+	 * @return the sessions that were found by their id in the order of the provided ids
+	 */
+	private Map<String, RedisSession> getSessions(Collection<String> ids, Map<String, MapSession> loaded) {
+		Map<String, RedisSession> result = new LinkedHashMap<String, RedisSession>(loaded.size());
+		for(String id : ids) {
+			MapSession session = loaded.get(id);
+			RedisSession redisSession = session == null ? null : getSession(session, true, false);
+			if(redisSession != null) {
+				result.put(id, redisSession);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the entire sessions using a single pipeline of HGETALL commands.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to load the sessions with
+	 * @param ids the ids of the sessions to load
+	 * @param loaded the sessions that were loaded by their id, which the sessions that are found are added to
+	 * @param invalidationCount the {@link SessionNearCache#getInvalidationCount()} before the sessions were loaded or
+	 * null if the sessions must not be added to the {@link SessionNearCache}
+	 * @return the ids of the sessions that were not found or are expired
+	 */
+	private List<String> loadSessions(RedisOperations<String, ExpiringSession> redisOperations, final List<String> ids,
+			Map<String, MapSession> loaded, Long invalidationCount) {
+		List<String> missed = new ArrayList<String>();
+		if(ids.isEmpty()) {
+			return missed;
+		}
+		List<Object> results = redisOperations.executePipelined(new SessionCallback<Object>() {
+			@SuppressWarnings("unchecked")
+			public <K, V> Object execute(RedisOperations<K, V> operations) {
+				RedisOperations<String, ExpiringSession> sessionOperations = (RedisOperations<String, ExpiringSession>) operations;
+				for(String id : ids) {
+					hashCodec.requestEntries(sessionOperations, id);
+				}
+				return null;
+			}
+		});
+		for(int i = 0; i < ids.size(); i++) {
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> entries = (Map<Object, Object>) results.get(i);
+			MapSession session = loadSession(ids.get(i), entries);
+			if(session == null || session.isExpired()) {
+				missed.add(ids.get(i));
+			} else {
+				loaded.put(session.getId(), session);
+				if(nearCache != null && invalidationCount != null) {
+					nearCache.put(session, getAttributeSerializer(), invalidationCount);
+				}
+			}
+		}
+		return missed;
+	}
+
+	/**
+	 * Finds the sessions of a principal using the Set that is updated each time the principal of a session changes,
+	 * which requires {@link #setIndexPrincipalNames(boolean)} to be true (otherwise no sessions are found).
+	 * When the keys are sharded (see {@link RedisKeyBuilder#RedisKeyBuilder(String, int)}), there is a Set per shard
+	 * and the Set of every shard is read. The sessions are then retrieved using a single pipeline of HGETALL. Since
+	 * the Set is not updated when a session expires, the ids of sessions that no longer exist (or no longer belong to
+	 * the principal) are removed from the Set as they are found. So that a stale copy of a session cannot remove it
+	 * from the Set, the sessions are always loaded from the master, neither from the {@link SessionNearCache} nor from
+	 * the replica.
+	 *
+	 * @param indexName the name of the index. Only {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME}
+	 *                  is supported.
+	 * @param indexValue the principal name
+	 * @return the sessions of the principal by their id
+	 */
+	public Map<String, RedisSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+		if(!indexPrincipalNames || !PRINCIPAL_NAME_INDEX_NAME.equals(indexName) || indexValue == null) {
+			return Collections.emptyMap();
+		}
+		int shards = keyBuilder.getShards();
+		Set<String> sessionIds = new LinkedHashSet<String>();
+		for(int shard = 0; shard < shards; shard++) {
+			Set<String> shardSessionIds = getPrincipalBoundSetOperations(this.sessionRedisOperations, shard, indexValue).members();
+			if(shardSessionIds != null) {
+				sessionIds.addAll(shardSessionIds);
+			}
+		}
+		if(sessionIds.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, MapSession> loaded = new HashMap<String, MapSession>(sessionIds.size());
+		long invalidationCount = nearCache == null ? 0 : nearCache.getInvalidationCount();
+		loadSessions(sessionRedisOperations, new ArrayList<String>(sessionIds), loaded, invalidationCount);
+		Map<String, RedisSession> sessions = getSessions(sessionIds, loaded);
+		List<List<Object>> staleIds = new ArrayList<List<Object>>(shards);
+		for(int shard = 0; shard < shards; shard++) {
+			staleIds.add(new ArrayList<Object>());
+		}
+		for(String sessionId : sessionIds) {
+			RedisSession session = sessions.get(sessionId);
+			if(session == null) {
+				staleIds.get(keyBuilder.getShard(sessionId)).add(sessionId);
+			} else if(!indexValue.equals(session.originalPrincipalName)) {
+				sessions.remove(sessionId);
+				staleIds.get(keyBuilder.getShard(sessionId)).add(sessionId);
+			}
+		}
+		for(int shard = 0; shard < shards; shard++) {
+			List<Object> shardStaleIds = staleIds.get(shard);
+			if(!shardStaleIds.isEmpty()) {
+				getPrincipalBoundSetOperations(this.sessionRedisOperations, shard, indexValue).remove(shardStaleIds.toArray());
+			}
+		}
+		return sessions;
+	}
+
+	/**
+	 *
+	 * @param id the session id
+	 * @param allowExpired
+	 *            if true, will also include expired sessions that have not been
+	 *            deleted. If false, will ensure expired sessions are not
+	 *            returned.
+	 * @return
+	 */
+	private RedisSession getSession(String id, boolean allowExpired) {
+		MapSession loaded = nearCache == null ? null : nearCache.get(id, getAttributeSerializer());
+		boolean attributesLoaded = true;
+		boolean replicaLoaded = false;
+		if(loaded == null) {
+			long invalidationCount = nearCache == null ? 0 : nearCache.getInvalidationCount();
+			// an expired session is only allowed when it is about to be deleted, so it is loaded from the master
+			if(!allowExpired && replicaRedisOperations != null && !isRecentlyWritten(id)) {
+				loaded = load(replicaRedisOperations, id);
+				replicaLoaded = loaded != null && !loaded.isExpired();
+				if(!replicaLoaded) {
+					// the replica may lag behind the master
+					replicaFallbacks.incrementAndGet();
+				}
+			}
+			if(!replicaLoaded) {
+				loaded = load(sessionRedisOperations, id);
+			}
+			if(loaded == null) {
+				return null;
+			}
+			attributesLoaded = !lazyAttributeLoading;
+			// the replica may be stale, so its sessions are not cached
+			if(nearCache != null && attributesLoaded && !replicaLoaded) {
+				nearCache.put(loaded, getAttributeSerializer(), invalidationCount);
+			}
+		}
+		RedisSession result = getSession(loaded, attributesLoaded, allowExpired);
+		if(result != null) {
+			result.replicaLoaded = replicaLoaded;
+		}
+		return result;
+	}
+
+	/**
+	 * Loads a session using HGETALL or, if {@link #setLazyAttributeLoading(boolean)} is true, HMGET.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to load the session with
+	 * @param id the session id
+	 * @return the {@link MapSession} that was loaded or null if it was not found
+	 */
+	private MapSession load(RedisOperations<String, ExpiringSession> redisOperations, String id) {
+		return lazyAttributeLoading ? loadMetadata(redisOperations, id) : loadSession(redisOperations, id);
+	}
+
+	/**
+	 * Determines if this instance saved or deleted a session within
+	 * {@link #setReplicaReadAfterWriteDelayInMillis(long)}, in which case the replica may not have the changes yet.
+	 *
+	 * @param id the session id
+	 * @return true if the session must be loaded from the master
+	 */
+	private boolean isRecentlyWritten(String id) {
+		Long written = recentWrites.get(id);
+		return written != null && System.currentTimeMillis() - written < replicaReadAfterWriteDelayInMillis;
+	}
+
+	/**
+	 * Records that this instance is about to save or delete a session when a replica is used (see
+	 * {@link #isRecentlyWritten(String)}).
+	 *
+	 * @param id the session id
+	 */
+	private void recordWrite(String id) {
+		if(replicaRedisOperations == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		recentWrites.put(id, now);
+		long nextPruning = nextRecentWritesPruning.get();
+		// a single thread prunes the writes once the delay elapsed since the previous pruning
+		if(now < nextPruning || !nextRecentWritesPruning.compareAndSet(nextPruning, now + replicaReadAfterWriteDelayInMillis)) {
+			return;
+		}
+		for(Map.Entry<String, Long> write : recentWrites.entrySet()) {
+			Long written = write.getValue();
+			if(now - written >= replicaReadAfterWriteDelayInMillis) {
+				// keeps the session if it was written again in the meantime
+				recentWrites.remove(write.getKey(), written);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of sessions that this instance remembers as recently written (see {@link #recordWrite(String)}).
+	 *
+	 * @return the number of sessions, including the ones whose delay elapsed but that were not pruned yet
+	 */
+	int getRecentWriteCount() {
+		return recentWrites.size();
+	}
+
+	/**
+	 * Gets a copy of a session that was detached (see {@link RedisSession#detach()}) but may not have been saved yet.
+	 * The attribute values are deserialized from the snapshot, so the copy does not share any attribute object with
+	 * the detached session or with other copies.
+	 *
+	 * @param snapshot the snapshot of the session that was detached (see {@link RedisSession#snapshot()})
+	 * @return a copy of the session or null if it is expired
+	 */
+	RedisSession getSession(DetachedSnapshot snapshot) {
+		MapSession copy = snapshot.session;
+		if(copy.isExpired()) {
+			return null;
+		}
+		if(!snapshot.serializedAttributes.isEmpty()) {
+			RedisSerializer<Object> serializer = getAttributeSerializer();
+			for(Map.Entry<String, byte[]> attribute : snapshot.serializedAttributes.entrySet()) {
+				copy.setAttribute(attribute.getKey(), serializer.deserialize(attribute.getValue()));
+			}
+		}
+		return getSession(copy, true, false);
+	}
+
+	private RedisSession getSession(MapSession loaded, boolean attributesLoaded, boolean allowExpired) {
+		if(!allowExpired && loaded.isExpired()) {
+			return null;
+		}
+		RedisSession result = new RedisSession(loaded);
+		result.attributesLoaded = attributesLoaded;
+		if(attributesLoaded && indexPrincipalNames) {
+			result.originalPrincipalName = principalNameResolver.resolvePrincipalName(result);
+			result.originalPrincipalNameResolved = true;
+		}
+		if(detectAttributeChanges) {
+			result.attributeDigests = new HashMap<String, byte[]>();
+			for(String attributeName : loaded.getAttributeNames()) {
+				result.attributeDigests.put(attributeName, digest(loaded.getAttribute(attributeName)));
+			}
+		}
+		result.originalLastAccessTime = loaded.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(loaded.getMaxInactiveIntervalInSeconds());
+		long now = System.currentTimeMillis();
+		if(now - loaded.getLastAccessedTime() >= touchGranularityInMillis) {
+			result.setLastAccessedTime(now);
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the entire {@link Session} using HGETALL.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to load the session with
+	 * @param id the session id
+	 * @return the {@link MapSession} that was loaded or null if it was not found
+	 */
+	private MapSession loadSession(RedisOperations<String, ExpiringSession> redisOperations, String id) {
+		return loadSession(id, hashCodec.getEntries(redisOperations, id));
+	}
+
+	/**
+	 * Creates the {@link Session} from the entries of its Hash.
 	 *
 	 * @param id the session id
-	 * @param allowExpired
-	 *            if true, will also include expired sessions that have not been
-	 *            deleted. If false, will ensure expired sessions are not
-	 *            returned.
-	 * @return
+	 * @param entries the entries of the Hash that were retrieved using HGETALL
+	 * @return the {@link MapSession} that was loaded or null if it was not found
 	 */
-	private RedisSession getSession(String id, boolean allowExpired) {
-		Map<Object, Object> entries = getSessionBoundHashOperations(id).entries();
-		if(entries.isEmpty()) {
+	private MapSession loadSession(String id, Map<Object, Object> entries) {
+		if(entries == null || entries.isEmpty()) {
 			return null;
 		}
 		MapSession loaded = new MapSession();
@@ -248,30 +1088,69 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 				loaded.setAttribute(key.substring(SESSION_ATTR_PREFIX.length()), entry.getValue());
 			}
 		}
-		if(!allowExpired && loaded.isExpired()) {
+		return loaded;
+	}
+
+	/**
+	 * Loads the {@link Session} without any of its attributes using HMGET.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to load the session with
+	 * @param id the session id
+	 * @return the {@link MapSession} that was loaded or null if it was not found
+	 */
+	private MapSession loadMetadata(RedisOperations<String, ExpiringSession> redisOperations, String id) {
+		List<Object> values = hashCodec.getValues(redisOperations, id, METADATA_ATTRS);
+		Long creationTime = (Long) values.get(0);
+		Integer maxInactiveInterval = (Integer) values.get(1);
+		Long lastAccessedTime = (Long) values.get(2);
+		if(creationTime == null && maxInactiveInterval == null && lastAccessedTime == null) {
 			return null;
 		}
-		RedisSession result = new RedisSession(loaded);
-		result.originalLastAccessTime = loaded.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(loaded.getMaxInactiveIntervalInSeconds());
-		result.setLastAccessedTime(System.currentTimeMillis());
-		return result;
+		MapSession loaded = new MapSession();
+		loaded.setId(id);
+		if(creationTime != null) {
+			loaded.setCreationTime(creationTime);
+		}
+		if(maxInactiveInterval != null) {
+			loaded.setMaxInactiveIntervalInSeconds(maxInactiveInterval);
+		}
+		if(lastAccessedTime != null) {
+			loaded.setLastAccessedTime(lastAccessedTime);
+		}
+		return loaded;
 	}
 
 	public void delete(String sessionId) {
-		ExpiringSession session = getSession(sessionId, true);
+		final ExpiringSession session = getSession(sessionId, true);
 		if(session == null) {
 			return;
 		}
 
-		String key = getKey(sessionId);
-		expirationPolicy.onDelete(session);
+		final String key = getKey(sessionId);
+		final String principalName = indexPrincipalNames ? principalNameResolver.resolvePrincipalName(session) : null;
+		recordWrite(sessionId);
+		if(nearCache != null) {
+			nearCache.evict(sessionId);
+		}
+		executeWrite(new WriteCallback() {
+			void doWrite(RedisOperations<String, ExpiringSession> operations) {
+				expirationPolicy.onDelete(operations, session);
+				if(principalName != null) {
+					getPrincipalBoundSetOperations(operations, keyBuilder.getShard(session.getId()), principalName).remove(session.getId());
+				}
 
-		// always delete they key since session may be null if just expired
-		this.sessionRedisOperations.delete(key);
+				// always delete they key since session may be null if just expired
+				operations.delete(key);
+				publishInvalidation(operations, session.getId());
+			}
+		});
 	}
 
 	public RedisSession createSession() {
 		RedisSession redisSession = new RedisSession();
+		if(detectAttributeChanges) {
+			redisSession.attributeDigests = new HashMap<String, byte[]>();
+		}
 		if(defaultMaxInactiveInterval != null) {
 			redisSession.setMaxInactiveIntervalInSeconds(defaultMaxInactiveInterval);
 		}
@@ -284,8 +1163,8 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	 * @param sessionId the session id
 	 * @return the Hash key for this session by prefixing it appropriately.
 	 */
-	static String getKey(String sessionId) {
-		return BOUNDED_HASH_KEY_PREFIX + sessionId;
+	String getKey(String sessionId) {
+		return keyBuilder.getSessionKey(sessionId);
 	}
 
 	/**
@@ -299,13 +1178,169 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	}
 
 	/**
-	 * Gets the {@link BoundHashOperations} to operate on a {@link Session}
-	 * @param sessionId the id of the {@link Session} to work with
-	 * @return the {@link BoundHashOperations} to operate on a {@link Session}
+	 * Gets the key of the Set that contains the ids of the sessions of a principal within a shard.
+	 *
+	 * @param shard the shard (see {@link RedisKeyBuilder#getShard(String)})
+	 * @param principalName the principal name
+	 * @return the key of the Set that contains the ids of the sessions of the principal
+	 */
+	String getPrincipalKey(int shard, String principalName) {
+		return keyBuilder.getPrincipalKey(shard, principalName);
+	}
+
+	/**
+	 * Gets the {@link BoundSetOperations} to operate on the ids of the sessions of a principal within a shard.
+	 *
+	 * @param operations the {@link RedisOperations} to issue the commands with
+	 * @param shard the shard (see {@link RedisKeyBuilder#getShard(String)})
+	 * @param principalName the principal name
+	 * @return the {@link BoundSetOperations} to operate on the ids of the sessions of the principal
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private BoundSetOperations<String, String> getPrincipalBoundSetOperations(RedisOperations operations, int shard, String principalName) {
+		RedisOperations<String, String> indexOperations = operations;
+		return indexOperations.boundSetOps(getPrincipalKey(shard, principalName));
+	}
+
+	/**
+	 * Issues the commands of the {@link WriteCallback} using the configured {@link RedisSaveMode}.
+	 *
+	 * @param callback the {@link WriteCallback} that issues the commands
+	 */
+	private void executeWrite(final WriteCallback callback) {
+		switch(saveMode) {
+			case PIPELINED:
+			case SCRIPT:
+				this.sessionRedisOperations.executePipelined(callback);
+				break;
+			case TRANSACTIONAL:
+				this.sessionRedisOperations.execute(new SessionCallback<Object>() {
+					public <K, V> Object execute(RedisOperations<K, V> operations) {
+						operations.multi();
+						callback.execute(operations);
+						return operations.exec();
+					}
+				});
+				break;
+			default:
+				callback.doWrite(this.sessionRedisOperations);
+		}
+	}
+
+	/**
+	 * Saves the delta, updates the expiration and the principal index of the session and publishes its invalidation
+	 * using {@link #SAVE_SCRIPT} (or {@link #SORTED_SET_SAVE_SCRIPT}).
+	 *
+	 * @param write the {@link DeltaWrite} of the session being saved
+	 */
+	@SuppressWarnings("unchecked")
+	private void executeSaveScript(DeltaWrite write) {
+		RedisSession session = write.session;
+		String sessionId = write.sessionId;
+		Map<String, Object> delta = write.toSave;
+		Map<String, byte[]> serializedDelta = write.serializedDelta;
+		Long originalExpiration = write.originalExpiration;
+		boolean sortedSet = expirationPolicy.getExpirationMode() == RedisExpirationMode.SORTED_SET;
+		long expiresInMillis = RedisSessionExpirationPolicy.expiresInMillis(session);
+		long toExpire = expirationPolicy.roundUpToNextBucket(expiresInMillis);
+		String sessionKey = getKey(sessionId);
+		String expirationKey = sortedSet ? expirationPolicy.getExpirationsKey(sessionId) : expirationPolicy.getExpirationKey(sessionId, toExpire);
+		List<String> keys = new ArrayList<String>(5);
+		keys.add(sessionKey);
+		keys.add(expirationKey);
+		// with a Sorted Set the score is simply replaced, so there is nothing to move
+		String expirationMode = null;
+		if(!sortedSet) {
+			if(!expirationPolicy.isExpirationMoveRequired(originalExpiration, toExpire)) {
+				expirationPolicy.recordSkippedExpirationMove();
+				expirationMode = SCRIPT_EXPIRATION_REFRESH;
+			} else if(originalExpiration != null) {
+				expirationMode = SCRIPT_EXPIRATION_MOVE;
+				keys.add(expirationPolicy.getExpirationKey(sessionId, expirationPolicy.roundUpToNextBucket(originalExpiration)));
+			} else {
+				expirationMode = SCRIPT_EXPIRATION_ADD;
+			}
+		}
+		int shard = keyBuilder.getShard(sessionId);
+		boolean principalNameChanged = write.isPrincipalNameChanged();
+		boolean removePrincipal = principalNameChanged && write.originalPrincipalName != null;
+		boolean addPrincipal = principalNameChanged && write.principalName != null;
+		if(removePrincipal) {
+			keys.add(keyBuilder.getPrincipalKey(shard, write.originalPrincipalName));
+		}
+		if(addPrincipal) {
+			keys.add(keyBuilder.getPrincipalKey(shard, write.principalName));
+		}
+
+		// the arguments are serialized up front since they are not all serialized the same way
+		RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) sessionRedisOperations.getValueSerializer();
+		RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) sessionRedisOperations.getHashKeySerializer();
+		RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) sessionRedisOperations.getHashValueSerializer();
+		int sessionExpireInSeconds = session.getMaxInactiveIntervalInSeconds();
+		int flags = sortedSet ? 2 : 3;
+		Object[] args = new Object[5 + flags + delta.size() * 2];
+		args[0] = valueSerializer.serialize(sessionId);
+		args[1] = SCRIPT_ARGS_SERIALIZER.serialize(String.valueOf(sessionExpireInSeconds));
+		long expirationArg = sortedSet ? expiresInMillis : expirationPolicy.getExpirationKeyExpireInSeconds(session);
+		args[2] = SCRIPT_ARGS_SERIALIZER.serialize(String.valueOf(expirationArg));
+		int i = 3;
+		if(!sortedSet) {
+			args[i++] = SCRIPT_ARGS_SERIALIZER.serialize(expirationMode);
+		}
+		args[i++] = SCRIPT_ARGS_SERIALIZER.serialize(removePrincipal ? SCRIPT_FLAG_SET : SCRIPT_FLAG_UNSET);
+		args[i++] = SCRIPT_ARGS_SERIALIZER.serialize(addPrincipal ? SCRIPT_FLAG_SET : SCRIPT_FLAG_UNSET);
+		args[i++] = nearCache == null ? new byte[0] : nearCache.serializeChannel();
+		args[i++] = nearCache == null ? new byte[0] : nearCache.serializeInvalidation(sessionId);
+		for(Map.Entry<String, Object> entry : delta.entrySet()) {
+			byte[] serialized = serializedDelta == null ? null : serializedDelta.get(entry.getKey());
+			args[i++] = hashKeySerializer.serialize(entry.getKey());
+			args[i++] = serialized == null ? hashValueSerializer.serialize(entry.getValue()) : serialized;
+		}
+
+		sessionRedisOperations.execute(sortedSet ? SORTED_SET_SAVE_SCRIPT : SAVE_SCRIPT, null, null, keys, args);
+	}
+
+	/**
+	 * Gets the MD5 digest of the serialized value of a session attribute.
+	 *
+	 * @param attributeValue the value of the session attribute
+	 * @return the MD5 digest of the serialized value
+	 */
+	private byte[] digest(Object attributeValue) {
+		return DigestUtils.md5Digest(serialize(attributeValue));
+	}
+
+	/**
+	 * Serializes the value of a session attribute the same way it is written to Redis.
+	 *
+	 * @param attributeValue the value of the session attribute
+	 * @return the serialized value
+	 */
+	private byte[] serialize(Object attributeValue) {
+		return getAttributeSerializer().serialize(attributeValue);
+	}
+
+	/**
+	 * Gets the {@link RedisSerializer} that the values of session attributes are written to Redis with.
+	 *
+	 * @return the {@link RedisSerializer} of the attribute values
+	 */
+	@SuppressWarnings("unchecked")
+	private RedisSerializer<Object> getAttributeSerializer() {
+		RedisSerializer<Object> serializer = (RedisSerializer<Object>) sessionRedisOperations.getHashValueSerializer();
+		return serializer == null ? DIGEST_SERIALIZER : serializer;
+	}
+
+	/**
+	 * Publishes an invalidation for the session if a {@link SessionNearCache} is being used.
+	 *
+	 * @param operations the {@link RedisOperations} to publish with
+	 * @param sessionId the id of the session that was saved or deleted
 	 */
-	private BoundHashOperations<String, Object, Object> getSessionBoundHashOperations(String sessionId) {
-		String key = getKey(sessionId);
-		return this.sessionRedisOperations.boundHashOps(key);
+	private void publishInvalidation(RedisOperations<String, ExpiringSession> operations, String sessionId) {
+		if(nearCache != null) {
+			nearCache.publishInvalidation(operations, sessionId);
+		}
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -328,11 +1363,61 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 	 * @since 1.0
 	 * @author Rob Winch
 	 */
-	final class RedisSession implements ExpiringSession {
+	final class RedisSession implements DirtyTrackingSession {
 		private final MapSession cached;
 		private Long originalLastAccessTime;
 		private Map<String, Object> delta = new HashMap<String,Object>();
 
+		/**
+		 * False if the attributes have not been loaded yet (see {@link #setLazyAttributeLoading(boolean)}).
+		 */
+		private boolean attributesLoaded = true;
+
+		/**
+		 * True if the session was loaded from the replica (see {@link #setReplicaRedisOperations(RedisOperations)}),
+		 * in which case the attributes that are not loaded yet are retrieved from the replica as well.
+		 */
+		private boolean replicaLoaded;
+
+		/**
+		 * The names of the attributes that have been loaded or modified while {@link #attributesLoaded} is false.
+		 */
+		private final Set<String> loadedAttributeNames = new HashSet<String>();
+
+		/**
+		 * The digests of the serialized attributes as they were loaded or last saved, or null if
+		 * {@link #setDetectAttributeChanges(boolean)} is false.
+		 */
+		private Map<String, byte[]> attributeDigests;
+
+		/**
+		 * The serialized values of the attributes in the delta that were detected as changed, so that they are written
+		 * without serializing them again, or null if {@link #setDetectAttributeChanges(boolean)} is false.
+		 */
+		private Map<String, byte[]> serializedDelta;
+
+		/**
+		 * The serialized values of the attributes by attribute name that are not in {@link #serializedDelta}, which
+		 * are serialized once a copy of this session is first retrieved (see {@link #snapshot()}) or its delta is
+		 * detached again, or null if this session was not detached (see {@link #detach()}).
+		 */
+		private Map<String, byte[]> serializedAttributes;
+
+		/**
+		 * True if {@link #isDirty()} detected the attribute changes and no attribute was accessed since, so that they
+		 * are not detected again when the session is saved.
+		 */
+		private boolean attributeChangesDetected;
+
+		/**
+		 * The principal name the session is indexed by in Redis. When {@link #attributesLoaded} is false, it is only
+		 * resolved once an attribute is saved since resolving it may retrieve attributes. Until then it is unknown, so
+		 * the session is added to the index of its principal without being removed from any other index.
+		 */
+		private String originalPrincipalName;
+
+		private boolean originalPrincipalNameResolved;
+
 		/**
 		 * Creates a new instance ensuring to mark all of the new attributes to be persisted in the next save operation.
 		 */
@@ -341,6 +1426,7 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 			delta.put(CREATION_TIME_ATTR, getCreationTime());
 			delta.put(MAX_INACTIVE_ATTR, getMaxInactiveIntervalInSeconds());
 			delta.put(LAST_ACCESSED_ATTR, getLastAccessedTime());
+			originalPrincipalNameResolved = true;
 		}
 
 		/**
@@ -362,6 +1448,18 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 			return cached.isExpired();
 		}
 
+		public boolean isDirty() {
+			if(!delta.isEmpty()) {
+				return true;
+			}
+			if(attributeDigests != null) {
+				// an attribute may have been modified in place
+				detectAttributeChanges();
+				attributeChangesDetected = true;
+			}
+			return !delta.isEmpty();
+		}
+
 		public long getCreationTime() {
 			return cached.getCreationTime();
 		}
@@ -384,32 +1482,496 @@ public class RedisOperationsSessionRepository implements SessionRepository<Redis
 		}
 
 		public Object getAttribute(String attributeName) {
+			attributeChangesDetected = false;
+			loadAttribute(attributeName);
 			return cached.getAttribute(attributeName);
 		}
 
 		public Set<String> getAttributeNames() {
+			attributeChangesDetected = false;
+			loadAttributes();
 			return cached.getAttributeNames();
 		}
 
 		public void setAttribute(String attributeName, Object attributeValue) {
+			loadedAttributeNames.add(attributeName);
 			cached.setAttribute(attributeName, attributeValue);
-			delta.put(getSessionAttrNameKey(attributeName), attributeValue);
+			putDelta(getSessionAttrNameKey(attributeName), attributeValue);
 		}
 
 		public void removeAttribute(String attributeName) {
+			loadedAttributeNames.add(attributeName);
 			cached.removeAttribute(attributeName);
-			delta.put(getSessionAttrNameKey(attributeName), null);
+			putDelta(getSessionAttrNameKey(attributeName), null);
+		}
+
+		private void putDelta(String key, Object value) {
+			attributeChangesDetected = false;
+			delta.put(key, value);
+			if(serializedDelta != null) {
+				serializedDelta.remove(key);
+			}
+		}
+
+		/**
+		 * Retrieves the attribute using HGET unless all the attributes have been loaded or the attribute has already
+		 * been loaded or modified.
+		 *
+		 * @param attributeName the name of the attribute to load
+		 */
+		private void loadAttribute(String attributeName) {
+			if(attributesLoaded || !loadedAttributeNames.add(attributeName)) {
+				return;
+			}
+			Object attributeValue = hashCodec.getValue(getAttributeRedisOperations(), getId(), getSessionAttrNameKey(attributeName));
+			cached.setAttribute(attributeName, attributeValue);
+			recordDigest(attributeName, attributeValue);
+		}
+
+		/**
+		 * Gets the {@link RedisOperations} to retrieve the attributes that are not loaded yet with, which is the replica
+		 * if the session was loaded from it and this instance did not save it since.
+		 *
+		 * @return the {@link RedisOperations} to retrieve the attributes with
+		 */
+		private RedisOperations<String, ExpiringSession> getAttributeRedisOperations() {
+			if(replicaLoaded && replicaRedisOperations != null && !isRecentlyWritten(getId())) {
+				return replicaRedisOperations;
+			}
+			return sessionRedisOperations;
+		}
+
+		/**
+		 * Retrieves all of the attributes using HGETALL unless they have already been loaded. Attributes that have
+		 * already been loaded or modified are retained.
+		 */
+		private void loadAttributes() {
+			if(attributesLoaded) {
+				return;
+			}
+			attributesLoaded = true;
+			Map<Object, Object> entries = hashCodec.getEntries(getAttributeRedisOperations(), getId());
+			for(Map.Entry<Object,Object> entry : entries.entrySet()) {
+				String key = (String) entry.getKey();
+				if(key.startsWith(SESSION_ATTR_PREFIX)) {
+					String attributeName = key.substring(SESSION_ATTR_PREFIX.length());
+					if(loadedAttributeNames.add(attributeName)) {
+						cached.setAttribute(attributeName, entry.getValue());
+						recordDigest(attributeName, entry.getValue());
+					}
+				}
+			}
+		}
+
+		/**
+		 * Resolves the principal name of the session again if any of its attributes are about to be saved, since the
+		 * session is then indexed by that principal name.
+		 *
+		 * @param toSave the hash fields that are about to be saved
+		 * @return the principal name the session was indexed by before or null if it is unknown
+		 */
+		private String updatePrincipalName(Map<String, Object> toSave) {
+			if(!indexPrincipalNames) {
+				return null;
+			}
+			for(String key : toSave.keySet()) {
+				if(key.startsWith(SESSION_ATTR_PREFIX)) {
+					String principalName = originalPrincipalName;
+					originalPrincipalName = principalNameResolver.resolvePrincipalName(this);
+					originalPrincipalNameResolved = true;
+					return principalName;
+				}
+			}
+			return originalPrincipalName;
+		}
+
+		/**
+		 * Records the digest of an attribute that was loaded if {@link #setDetectAttributeChanges(boolean)} is true.
+		 *
+		 * @param attributeName the name of the attribute
+		 * @param attributeValue the value of the attribute that was loaded
+		 */
+		private void recordDigest(String attributeName, Object attributeValue) {
+			if(attributeDigests != null && attributeValue != null) {
+				attributeDigests.put(attributeName, digest(attributeValue));
+			}
+		}
+
+		/**
+		 * Compares the digest of each attribute with the digest it was loaded (or last saved) with. Attributes that
+		 * changed are added to the delta along with their serialized value, even if they were modified in place, and
+		 * attributes that were set again without changing are removed from it. The changes are not detected again if
+		 * {@link #isDirty()} already detected them.
+		 */
+		private void detectAttributeChanges() {
+			if(attributeChangesDetected) {
+				attributeChangesDetected = false;
+				return;
+			}
+			if(serializedDelta == null) {
+				serializedDelta = new HashMap<String, byte[]>();
+			}
+			for(String attributeName : cached.getAttributeNames()) {
+				Object attributeValue = cached.getAttribute(attributeName);
+				byte[] serialized = serialize(attributeValue);
+				String key = getSessionAttrNameKey(attributeName);
+				if(Arrays.equals(DigestUtils.md5Digest(serialized), attributeDigests.get(attributeName))) {
+					delta.remove(key);
+					serializedDelta.remove(key);
+				} else {
+					delta.put(key, attributeValue);
+					serializedDelta.put(key, serialized);
+				}
+			}
+		}
+
+		/**
+		 * Records the digests of the attributes in the delta, which are about to be saved.
+		 */
+		private void updateAttributeDigests() {
+			for(Map.Entry<String, Object> entry : delta.entrySet()) {
+				if(entry.getKey().startsWith(SESSION_ATTR_PREFIX)) {
+					String attributeName = entry.getKey().substring(SESSION_ATTR_PREFIX.length());
+					byte[] serialized = serializedDelta.get(entry.getKey());
+					if(entry.getValue() == null) {
+						attributeDigests.remove(attributeName);
+					} else if(serialized != null) {
+						attributeDigests.put(attributeName, DigestUtils.md5Digest(serialized));
+					}
+				}
+			}
 		}
 
 		/**
 		 * Saves any attributes that have been changed and updates the expiration of this session.
 		 */
 		private void saveDelta() {
-			String sessionId = getId();
-			getSessionBoundHashOperations(sessionId).putAll(delta);
+			DeltaWrite write = takeDelta();
+			if(write == null) {
+				return;
+			}
+			if(saveMode == RedisSaveMode.SCRIPT) {
+				executeSaveScript(write);
+			} else {
+				executeWrite(write);
+			}
+			updateNearCache();
+		}
+
+		/**
+		 * Takes the attributes that have been changed, so that any further changes are tracked separately, and
+		 * creates the {@link DeltaWrite} that saves them.
+		 *
+		 * @return the {@link DeltaWrite} that saves the changes or null if nothing changed
+		 */
+		private DeltaWrite takeDelta() {
+			if(attributeDigests != null) {
+				detectAttributeChanges();
+				updateAttributeDigests();
+			}
+			if(delta.isEmpty()) {
+				return null;
+			}
+			String originalPrincipalName = updatePrincipalName(delta);
+			recordWrite(getId());
+			DeltaWrite write = new DeltaWrite(this, delta, serializedDelta, originalLastAccessTime, originalPrincipalName, this.originalPrincipalName);
+			delta = new HashMap<String,Object>(delta.size());
+			if(serializedDelta != null) {
+				serializedDelta = new HashMap<String, byte[]>();
+			}
+
+			// the session now expires according to what is being saved
+			originalLastAccessTime = RedisSessionExpirationPolicy.expiresInMillis(this);
+			return write;
+		}
+
+		private void updateNearCache() {
+			if(nearCache != null) {
+				if(attributesLoaded && !replicaLoaded) {
+					nearCache.put(cached, getAttributeSerializer());
+				} else {
+					// the attributes that were not accessed are unknown or, if loaded from the replica, may be stale
+					nearCache.evict(getId());
+				}
+			}
+		}
+
+		/**
+		 * Creates a copy of this session that holds the changes to save. This session no longer tracks those changes,
+		 * just as if it had been saved, so the copy can be saved at a later time.
+		 * <p>
+		 * The changed attributes are serialized right away, since the requests that keep using this session may modify
+		 * them while the copy is saved. The other attributes are only serialized if a copy of the detached session is
+		 * retrieved (see {@link #snapshot()}), so a save that only changes the last accessed time serializes nothing.
+		 * </p>
+		 *
+		 * @return a copy of this session that holds the changes to save
+		 */
+		RedisSession detach() {
+			if(attributeDigests != null) {
+				detectAttributeChanges();
+				updateAttributeDigests();
+			}
+			RedisSession detached = new RedisSession(new MapSession(cached));
+			detached.serializedAttributes = new HashMap<String, byte[]>();
+			detached.delta = delta;
+			detached.serializedDelta = new HashMap<String, byte[]>();
+			for(Map.Entry<String, Object> entry : delta.entrySet()) {
+				String key = entry.getKey();
+				if(entry.getValue() != null && key.startsWith(SESSION_ATTR_PREFIX)) {
+					byte[] serialized = serializedDelta == null ? null : serializedDelta.get(key);
+					if(serialized == null) {
+						serialized = serialize(entry.getValue());
+					}
+					detached.serializedDelta.put(key, serialized);
+					if(serializedAttributes != null) {
+						// this session is detached itself, so its copies are retrieved from the same bytes until
+						// the changes are written
+						serializedAttributes.put(key.substring(SESSION_ATTR_PREFIX.length()), serialized);
+					}
+				}
+			}
+			detached.originalLastAccessTime = originalLastAccessTime;
+			detached.attributesLoaded = attributesLoaded;
+			detached.replicaLoaded = replicaLoaded;
+			detached.loadedAttributeNames.addAll(loadedAttributeNames);
+			// the copy is indexed by the principal name that is persisted until it is saved
+			detached.originalPrincipalName = updatePrincipalName(delta);
+			detached.originalPrincipalNameResolved = originalPrincipalNameResolved;
 			delta = new HashMap<String,Object>(delta.size());
+			if(serializedDelta != null) {
+				serializedDelta = new HashMap<String, byte[]>();
+			}
+			originalLastAccessTime = RedisSessionExpirationPolicy.expiresInMillis(this);
+			return detached;
+		}
+
+		/**
+		 * Takes what is needed to retrieve a copy of this detached session (see
+		 * {@link RedisOperationsSessionRepository#getSession(DetachedSnapshot)}). The changed attributes are taken
+		 * from the values serialized when the session was detached and the other attributes are serialized the first
+		 * time a snapshot is taken. Must be invoked while holding the lock that guards this detached session, while
+		 * the copy can be created without holding it.
+		 *
+		 * @return the snapshot or null if the attributes of the session were not loaded
+		 */
+		DetachedSnapshot snapshot() {
+			if(!attributesLoaded) {
+				return null;
+			}
+			MapSession session = new MapSession();
+			session.setId(getId());
+			session.setCreationTime(getCreationTime());
+			session.setLastAccessedTime(getLastAccessedTime());
+			session.setMaxInactiveIntervalInSeconds(getMaxInactiveIntervalInSeconds());
+			Map<String, byte[]> serialized = new HashMap<String, byte[]>();
+			for(String attributeName : cached.getAttributeNames()) {
+				byte[] value = serializedDelta == null ? null : serializedDelta.get(getSessionAttrNameKey(attributeName));
+				if(value == null) {
+					value = serializedAttributes.get(attributeName);
+				}
+				if(value == null) {
+					value = serialize(cached.getAttribute(attributeName));
+					serializedAttributes.put(attributeName, value);
+				}
+				serialized.put(attributeName, value);
+			}
+			return new DetachedSnapshot(session, serialized);
+		}
+
+		/**
+		 * Combines the changes of a session that was detached earlier, but not saved yet, with the changes of this
+		 * detached session. The changes of this session take precedence.
+		 *
+		 * @param older the session that was detached earlier
+		 */
+		void mergeOlder(RedisSession older) {
+			mergeOlder(older.delta, older.serializedDelta, older.originalLastAccessTime);
+			if(older.originalPrincipalNameResolved) {
+				originalPrincipalName = older.originalPrincipalName;
+				originalPrincipalNameResolved = true;
+			}
+		}
+
+		/**
+		 * Restores the changes of a {@link DeltaWrite} that failed, so that they are saved again. Any changes made
+		 * since take precedence.
+		 *
+		 * @param write the {@link DeltaWrite} that failed
+		 */
+		private void restoreDelta(DeltaWrite write) {
+			mergeOlder(write.toSave, write.serializedDelta, write.originalExpiration);
+			originalPrincipalName = write.originalPrincipalName;
+		}
+
+		private void mergeOlder(Map<String,Object> olderDelta, Map<String, byte[]> olderSerializedDelta, Long olderExpiration) {
+			Map<String,Object> merged = new HashMap<String,Object>(olderDelta);
+			merged.putAll(delta);
+			if(olderSerializedDelta != null) {
+				Map<String, byte[]> mergedSerialized = new HashMap<String, byte[]>(olderSerializedDelta);
+				mergedSerialized.keySet().removeAll(delta.keySet());
+				if(serializedDelta != null) {
+					mergedSerialized.putAll(serializedDelta);
+				}
+				serializedDelta = mergedSerialized;
+			}
+			delta = merged;
+			// the expiration and principal name that are persisted are still the older ones
+			originalLastAccessTime = olderExpiration;
+		}
+	}
+
+	/**
+	 * Saves the sessions using a single pipeline, regardless of the {@link RedisSaveMode}. If the pipeline fails, the
+	 * changes of the sessions are restored so that saving them again writes those changes too.
+	 *
+	 * @param sessions the sessions to save
+	 */
+	void saveAll(Collection<RedisSession> sessions) {
+		final List<DeltaWrite> writes = new ArrayList<DeltaWrite>(sessions.size());
+		for(RedisSession session : sessions) {
+			DeltaWrite write = session.takeDelta();
+			if(write != null) {
+				writes.add(write);
+			}
+		}
+		if(writes.isEmpty()) {
+			return;
+		}
+		try {
+			this.sessionRedisOperations.executePipelined(new WriteCallback() {
+				void doWrite(RedisOperations<String, ExpiringSession> operations) {
+					for(DeltaWrite write : writes) {
+						write.doWrite(operations);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			for(DeltaWrite write : writes) {
+				write.session.restoreDelta(write);
+			}
+			throw e;
+		}
+		for(RedisSession session : sessions) {
+			session.updateNearCache();
+		}
+	}
+
+	/**
+	 * Writes the attributes of a {@link RedisSession} that changed and updates its expiration.
+	 *
+	 * @since 1.1
+	 */
+	final class DeltaWrite extends WriteCallback {
+		private final RedisSession session;
+		private final String sessionId;
+		private final Map<String,Object> toSave;
+		private final Map<String, byte[]> serializedDelta;
+		private final Long originalExpiration;
+		private final String originalPrincipalName;
+		private final String principalName;
+
+		DeltaWrite(RedisSession session, Map<String,Object> toSave, Map<String, byte[]> serializedDelta, Long originalExpiration, String originalPrincipalName, String principalName) {
+			this.session = session;
+			this.sessionId = session.getId();
+			this.toSave = toSave;
+			this.serializedDelta = serializedDelta;
+			this.originalExpiration = originalExpiration;
+			this.originalPrincipalName = originalPrincipalName;
+			this.principalName = principalName;
+		}
+
+		void doWrite(RedisOperations<String, ExpiringSession> operations) {
+			hashCodec.putAll(operations, sessionId, toSave, serializedDelta);
+			expirationPolicy.onExpirationUpdated(operations, originalExpiration, session);
+			if(isPrincipalNameChanged()) {
+				updatePrincipalIndex(operations);
+			}
+			publishInvalidation(operations, sessionId);
+		}
+
+		boolean isPrincipalNameChanged() {
+			return !ObjectUtils.nullSafeEquals(originalPrincipalName, principalName);
+		}
+
+		/**
+		 * Moves the session id from the Set of the original principal to the Set of the new principal.
+		 *
+		 * @param operations the {@link RedisOperations} to issue the commands with
+		 */
+		void updatePrincipalIndex(RedisOperations<String, ExpiringSession> operations) {
+			int shard = keyBuilder.getShard(sessionId);
+			if(originalPrincipalName != null) {
+				getPrincipalBoundSetOperations(operations, shard, originalPrincipalName).remove(sessionId);
+			}
+			if(principalName != null) {
+				getPrincipalBoundSetOperations(operations, shard, principalName).add(sessionId);
+			}
+		}
+	}
+
+	/**
+	 * The id, times and serialized attributes of a detached {@link RedisSession} (see {@link RedisSession#snapshot()}).
+	 *
+	 * @since 1.1
+	 */
+	static final class DetachedSnapshot {
+		private final MapSession session;
+		private final Map<String, byte[]> serializedAttributes;
+
+		DetachedSnapshot(MapSession session, Map<String, byte[]> serializedAttributes) {
+			this.session = session;
+			this.serializedAttributes = serializedAttributes;
+		}
+	}
+
+	/**
+	 * The default {@link PrincipalNameResolver}. It uses the value of the
+	 * {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME} attribute if present or else the name of the
+	 * authentication of the Spring Security context. SpEL is used to access the Spring Security context, so Spring
+	 * Security is not required.
+	 *
+	 * @since 1.1
+	 */
+	static class DefaultPrincipalNameResolver implements PrincipalNameResolver {
+		static final String SPRING_SECURITY_CONTEXT = "SPRING_SECURITY_CONTEXT";
+
+		private final Expression expression = new SpelExpressionParser().parseExpression("authentication?.name");
+
+		public String resolvePrincipalName(Session session) {
+			Object principalName = session.getAttribute(PRINCIPAL_NAME_INDEX_NAME);
+			if(principalName != null) {
+				return principalName.toString();
+			}
+			Object securityContext = session.getAttribute(SPRING_SECURITY_CONTEXT);
+			if(securityContext == null) {
+				return null;
+			}
+			return expression.getValue(securityContext, String.class);
+		}
+	}
+
+	/**
+	 * A {@link SessionCallback} that issues the commands to write to Redis. Depending on the {@link RedisSaveMode} it
+	 * is either invoked directly or within a pipeline or transaction, so it must not rely on the replies of the
+	 * commands it issues.
+	 *
+	 * @since 1.1
+	 */
+	abstract static class WriteCallback implements SessionCallback<Object> {
 
-			expirationPolicy.onExpirationUpdated(originalLastAccessTime, this);
+		@SuppressWarnings("unchecked")
+		public <K, V> Object execute(RedisOperations<K, V> operations) {
+			doWrite((RedisOperations<String, ExpiringSession>) operations);
+			return null;
 		}
+
+		/**
+		 * Issues the commands using the provided {@link RedisOperations}.
+		 *
+		 * @param operations the {@link RedisOperations} to issue the commands with
+		 */
+		abstract void doWrite(RedisOperations<String, ExpiringSession> operations);
 	}
 }
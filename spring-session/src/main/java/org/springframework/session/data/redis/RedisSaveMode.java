@@ -0,0 +1,57 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+/**
+ * Specifies how the commands that persist a
+ * {@link RedisOperationsSessionRepository.RedisSession} (the delta and the
+ * expiration bookkeeping) are sent to Redis.
+ *
+ * @since 1.1
+ * @see RedisOperationsSessionRepository#setSaveMode(RedisSaveMode)
+ */
+public enum RedisSaveMode {
+
+	/**
+	 * Each command is sent individually and its reply is awaited before the next
+	 * command is sent. This results in a round trip per command and is the
+	 * default.
+	 */
+	SEQUENTIAL,
+
+	/**
+	 * All of the commands are pipelined on a single connection, so saving a
+	 * session costs a single round trip.
+	 */
+	PIPELINED,
+
+	/**
+	 * All of the commands are wrapped in MULTI/EXEC on a single connection, so they
+	 * are applied atomically. Drivers that buffer queued commands until EXEC (for
+	 * example Jedis) also send them in a single round trip.
+	 */
+	TRANSACTIONAL,
+
+	/**
+	 * The delta, the expiration bookkeeping, the principal index and the
+	 * invalidation of the near cache are applied atomically by a Lua script
+	 * invoked with a single EVALSHA. The script is cached by its SHA1 and
+	 * is sent using EVAL whenever Redis replies with NOSCRIPT (i.e. the first time
+	 * it is used or after a SCRIPT FLUSH). Deletes are pipelined as they are for
+	 * {@link #PIPELINED}.
+	 */
+	SCRIPT
+}
@@ -15,17 +15,33 @@
  */
 package org.springframework.session.data.redis;
 
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.BoundSetOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.util.Assert;
 
 /**
  * A strategy for expiring {@link RedisSession} instances. This performs two
@@ -33,14 +49,25 @@ import org.springframework.session.data.redis.RedisOperationsSessionRepository.R
  *
  * Redis has no guarantees of when an expired session event will be fired. In
  * order to ensure expired session events are processed in a timely fashion the
- * expiration (rounded to the nearest minute) is mapped to all the sessions that
+ * expiration (rounded up to the next bucket, by default the next minute) is mapped to all the sessions that
  * expire at that time. Whenever {@link #cleanExpiredSessions()} is invoked, the
- * sessions for the previous minute are then accessed to ensure they are deleted if expired.
+ * sessions for the buckets that ended since the previous minute are then accessed to ensure they are deleted if expired.
  *
  * In some instances the {@link #cleanExpiredSessions()} method may not be not
  * invoked for a specific time. For example, this may happen when a server is
  * restarted. To account for this, the expiration on the Redis session is also set.
  *
+ * With {@link RedisExpirationMode#SORTED_SET} the exact expiration of each session
+ * is instead tracked in a single Sorted Set, which {@link #cleanExpiredSessions()}
+ * drains in batches of {@link #setCleanupBatchSize(int)} sessions.
+ *
+ * When {@link #setCleanupLeaseInMillis(long)} is positive, only the instance that
+ * holds a lease in Redis performs {@link #cleanExpiredSessions()}, so the cleanup
+ * load does not grow with the number of instances.
+ *
+ * The last bucket that was cleaned up is stored in Redis, so the buckets that ended
+ * while no instance cleaned up (e.g. during a restart) are cleaned up as well.
+ *
  * @author Rob Winch
  * @since 1.0
  */
@@ -48,15 +75,73 @@ final class RedisSessionExpirationPolicy {
 
 	private static final Log logger = LogFactory.getLog(RedisOperationsSessionRepository.class);
 
+	static final int DEFAULT_CLEANUP_BATCH_SIZE = 1000;
+
+	static final int DEFAULT_MAX_BUCKETS_PER_CLEANUP = 60;
+
+	static final long LEASE_HELD_BY_OTHER = 0;
+
+	static final long LEASE_ACQUIRED = 1;
+
+	static final long LEASE_RENEWED = 2;
+
+	/**
+	 * Acquires or renews the cleanup lease. KEYS[1] is the lease key, ARGV[1] the id of the instance and ARGV[2] the
+	 * duration of the lease in milliseconds. Returns {@link #LEASE_ACQUIRED}, {@link #LEASE_RENEWED} or
+	 * {@link #LEASE_HELD_BY_OTHER}.
+	 */
+	static final RedisScript<Long> CLEANUP_LEASE_SCRIPT = new DefaultRedisScript<Long>(
+			"local owner = redis.call('GET', KEYS[1])\n" +
+			"if owner == ARGV[1] then\n" +
+			"  redis.call('PEXPIRE', KEYS[1], ARGV[2])\n" +
+			"  return 2\n" +
+			"end\n" +
+			"if owner then return 0 end\n" +
+			"redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])\n" +
+			"return 1", Long.class);
+
+	private static final RedisSerializer<String> LEASE_ARGS_SERIALIZER = new StringRedisSerializer();
+
+	static final long ONE_MINUTE_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
 	/**
-	 * The prefix for each key of the Redis Hash representing a single session. The suffix is the unique session id.
+	 * How often {@link #cleanExpiredSessions()} is invoked.
 	 */
-	static final String EXPIRATION_BOUNDED_HASH_KEY_PREFIX = "spring:session:expirations:";
+	static final long CLEANUP_INTERVAL_IN_MILLIS = ONE_MINUTE_IN_MILLIS;
 
 	private final RedisOperations<String,ExpiringSession> sessionRedisOperations;
 
 	private final RedisOperations<String,String> expirationRedisOperations;
 
+	private final AtomicLong skippedExpirationMoves = new AtomicLong();
+
+	private RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	private long expirationBucketSizeInMillis = ONE_MINUTE_IN_MILLIS;
+
+	private RedisExpirationMode expirationMode = RedisExpirationMode.BUCKETS;
+
+	private int cleanupBatchSize = DEFAULT_CLEANUP_BATCH_SIZE;
+
+	private long cleanupLeaseInMillis;
+
+	/**
+	 * Identifies this instance as the holder of the cleanup lease.
+	 */
+	private final String leaseOwner = UUID.randomUUID().toString();
+
+	private final AtomicLong skippedCleanups = new AtomicLong();
+
+	private int maxBucketsPerCleanup = DEFAULT_MAX_BUCKETS_PER_CLEANUP;
+
+	/**
+	 * The most recent bucket that was cleaned up by this instance or 0 if none was. It is also stored in Redis (see
+	 * {@link RedisKeyBuilder#getCleanupBucketKey()}), which is read when it is 0 or the cleanup lease was acquired.
+	 */
+	private volatile long lastCleanedBucket;
+
+	private volatile boolean cleanupBehind;
+
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public RedisSessionExpirationPolicy(
 			RedisOperations sessionRedisOperations) {
@@ -65,65 +150,590 @@ final class RedisSessionExpirationPolicy {
 		this.expirationRedisOperations = sessionRedisOperations;
 	}
 
+	/**
+	 * Sets the size of the buckets that session expirations are rounded up to. Smaller buckets clean up expired
+	 * sessions closer to when they expire at the cost of more expiration keys. The default is one minute.
+	 *
+	 * @param expirationBucketSizeInMillis the size of a bucket in milliseconds. Must be positive.
+	 */
+	void setExpirationBucketSizeInMillis(long expirationBucketSizeInMillis) {
+		Assert.isTrue(expirationBucketSizeInMillis > 0, "expirationBucketSizeInMillis must be positive");
+		this.expirationBucketSizeInMillis = expirationBucketSizeInMillis;
+		// the buckets that were cleaned up no longer line up with the new buckets
+		this.lastCleanedBucket = 0;
+	}
+
+	void setKeyBuilder(RedisKeyBuilder keyBuilder) {
+		Assert.notNull(keyBuilder, "keyBuilder cannot be null");
+		this.keyBuilder = keyBuilder;
+	}
+
+	void setExpirationMode(RedisExpirationMode expirationMode) {
+		Assert.notNull(expirationMode, "expirationMode cannot be null");
+		this.expirationMode = expirationMode;
+	}
+
+	RedisExpirationMode getExpirationMode() {
+		return expirationMode;
+	}
+
+	/**
+	 * Sets the maximum number of sessions that are accessed at once by {@link #cleanExpiredSessions()}. When using
+	 * {@link RedisExpirationMode#SORTED_SET} this is also the number of sessions retrieved at once. The default is
+	 * 1000.
+	 *
+	 * @param cleanupBatchSize the maximum number of sessions per batch. Must be positive.
+	 */
+	void setCleanupBatchSize(int cleanupBatchSize) {
+		Assert.isTrue(cleanupBatchSize > 0, "cleanupBatchSize must be positive");
+		this.cleanupBatchSize = cleanupBatchSize;
+	}
+
+	/**
+	 * Sets the duration of the lease that an instance must hold in order to perform {@link #cleanExpiredSessions()}.
+	 * The holder renews the lease each time it cleans up, so it must be longer than the interval between cleanups
+	 * (one minute). If the holder stops, another instance acquires the lease once it expired. When 0 (the default)
+	 * every instance cleans up.
+	 *
+	 * @param cleanupLeaseInMillis the duration of the lease in milliseconds. Must be 0 or longer than a minute.
+	 */
+	void setCleanupLeaseInMillis(long cleanupLeaseInMillis) {
+		Assert.isTrue(cleanupLeaseInMillis == 0 || cleanupLeaseInMillis > CLEANUP_INTERVAL_IN_MILLIS, "cleanupLeaseInMillis must be 0 or longer than "
+				+ CLEANUP_INTERVAL_IN_MILLIS + " ms");
+		this.cleanupLeaseInMillis = cleanupLeaseInMillis;
+	}
+
+	/**
+	 * Sets the maximum number of buckets that {@link #cleanExpiredSessions()} cleans up at once. When more buckets
+	 * ended since the last bucket that was cleaned up (e.g. because the application was paused), the remaining buckets
+	 * are cleaned up by the following invocations (see {@link #isCleanupBehind()}). The expiration keys are kept this
+	 * many buckets past the bucket they represent, so the buckets missed during a pause of up to this many buckets are
+	 * cleaned up. The default is 60.
+	 *
+	 * @param maxBucketsPerCleanup the maximum number of buckets per cleanup. Must be positive.
+	 */
+	void setMaxBucketsPerCleanup(int maxBucketsPerCleanup) {
+		Assert.isTrue(maxBucketsPerCleanup > 0, "maxBucketsPerCleanup must be positive");
+		this.maxBucketsPerCleanup = maxBucketsPerCleanup;
+	}
+
+	/**
+	 * Determines if the last invocation of {@link #cleanExpiredSessions()} left buckets that already ended for the
+	 * next invocation.
+	 *
+	 * @return true if there are buckets left to clean up
+	 */
+	boolean isCleanupBehind() {
+		return cleanupBehind;
+	}
+
+	/**
+	 * Gets the number of times {@link #cleanExpiredSessions()} was skipped because another instance held the cleanup
+	 * lease.
+	 *
+	 * @return the number of cleanups that were skipped
+	 */
+	long getSkippedCleanupCount() {
+		return skippedCleanups.get();
+	}
+
 	public void onDelete(ExpiringSession session) {
-		long toExpire = roundUpToNextMinute(expiresInMillis(session));
-		String expireKey = getExpirationKey(toExpire);
-		expirationRedisOperations.boundSetOps(expireKey).remove(session.getId());
+		onDelete(sessionRedisOperations, session);
+	}
+
+	/**
+	 * Removes the session from its expiration mapping using the provided {@link RedisOperations}. This allows the
+	 * commands to be issued within a pipeline or transaction.
+	 *
+	 * @param operations the {@link RedisOperations} to issue the commands with
+	 * @param session the {@link ExpiringSession} that is being deleted
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	void onDelete(RedisOperations operations, ExpiringSession session) {
+		RedisOperations<String,String> expirationOperations = operations;
+		if(expirationMode == RedisExpirationMode.SORTED_SET) {
+			expirationOperations.boundZSetOps(getExpirationsKey(session.getId())).remove(session.getId());
+			return;
+		}
+		long toExpire = roundUpToNextBucket(expiresInMillis(session));
+		String expireKey = getExpirationKey(session.getId(), toExpire);
+		expirationOperations.boundSetOps(expireKey).remove(session.getId());
 	}
 
 	public void onExpirationUpdated(Long originalExpirationTimeInMilli, ExpiringSession session) {
-		if(originalExpirationTimeInMilli != null) {
-			long originalRoundedUp = roundUpToNextMinute(originalExpirationTimeInMilli);
-			String expireKey = getExpirationKey(originalRoundedUp);
-			expirationRedisOperations.boundSetOps(expireKey).remove(session.getId());
+		onExpirationUpdated(sessionRedisOperations, originalExpirationTimeInMilli, session);
+	}
+
+	/**
+	 * Updates the expiration mapping and the expiration of the session using the provided {@link RedisOperations}.
+	 * This allows the commands to be issued within a pipeline or transaction, so the replies are never inspected.
+	 *
+	 * @param operations the {@link RedisOperations} to issue the commands with
+	 * @param originalExpirationTimeInMilli the expiration time of the session when it was loaded or null if it is new
+	 * @param session the {@link ExpiringSession} that was saved
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	void onExpirationUpdated(RedisOperations operations, Long originalExpirationTimeInMilli, ExpiringSession session) {
+		RedisOperations<String,String> expirationOperations = operations;
+		RedisOperations<String,ExpiringSession> sessionOperations = operations;
+		long sessionExpireInSeconds = session.getMaxInactiveIntervalInSeconds();
+		String sessionKey = getSessionKey(session.getId());
+
+		if(expirationMode == RedisExpirationMode.SORTED_SET) {
+			// the score is simply replaced, so there is nothing to move
+			expirationOperations.boundZSetOps(getExpirationsKey(session.getId())).add(session.getId(), expiresInMillis(session));
+			sessionOperations.boundHashOps(sessionKey).expire(sessionExpireInSeconds, TimeUnit.SECONDS);
+			return;
 		}
 
-		long toExpire = roundUpToNextMinute(expiresInMillis(session));
+		long toExpire = roundUpToNextBucket(expiresInMillis(session));
 
-		String expireKey = getExpirationKey(toExpire);
-		BoundSetOperations<String, String> expireOperations = expirationRedisOperations.boundSetOps(expireKey);
+		if(!isExpirationMoveRequired(originalExpirationTimeInMilli, toExpire)) {
+			recordSkippedExpirationMove();
+			sessionOperations.boundHashOps(sessionKey).expire(sessionExpireInSeconds, TimeUnit.SECONDS);
+			return;
+		}
+
+		if(originalExpirationTimeInMilli != null) {
+			long originalRoundedUp = roundUpToNextBucket(originalExpirationTimeInMilli);
+			String expireKey = getExpirationKey(session.getId(), originalRoundedUp);
+			expirationOperations.boundSetOps(expireKey).remove(session.getId());
+		}
+
+		String expireKey = getExpirationKey(session.getId(), toExpire);
+		BoundSetOperations<String, String> expireOperations = expirationOperations.boundSetOps(expireKey);
 		expireOperations.add(session.getId());
 
-		long sessionExpireInSeconds = session.getMaxInactiveIntervalInSeconds();
-		String sessionKey = getSessionKey(session.getId());
+		expireOperations.expire(getExpirationKeyExpireInSeconds(session), TimeUnit.SECONDS);
+		sessionOperations.boundHashOps(sessionKey).expire(sessionExpireInSeconds, TimeUnit.SECONDS);
+	}
 
-		expireOperations.expire(sessionExpireInSeconds + 60, TimeUnit.SECONDS);
-		sessionRedisOperations.boundHashOps(sessionKey).expire(sessionExpireInSeconds, TimeUnit.SECONDS);
+	/**
+	 * Determines if the session needs to be moved to a different expiration key. This is not necessary when the
+	 * expiration rounds up to the same bucket as the original expiration, which is the case for most requests that
+	 * are made in quick succession. In that case the session is already a member of the expiration key and the
+	 * expiration of the key (set when the session was added) outlives the bucket it represents, so only the
+	 * expiration of the session needs to be refreshed.
+	 *
+	 * @param originalExpirationTimeInMilli the expiration time of the session when it was loaded or null if it is new
+	 * @param roundedUpExpirationTimeInMilli the expiration time of the session rounded up to the next bucket
+	 * @return true if the session must be removed from the original expiration key and added to the new one
+	 */
+	boolean isExpirationMoveRequired(Long originalExpirationTimeInMilli, long roundedUpExpirationTimeInMilli) {
+		return originalExpirationTimeInMilli == null || roundUpToNextBucket(originalExpirationTimeInMilli) != roundedUpExpirationTimeInMilli;
+	}
+
+	/**
+	 * Records that a save only refreshed the expiration of a session because
+	 * {@link #isExpirationMoveRequired(Long, long)} found that it did not need to be moved to a different expiration key.
+	 */
+	void recordSkippedExpirationMove() {
+		skippedExpirationMoves.incrementAndGet();
 	}
 
-	String getExpirationKey(long expires) {
-		return EXPIRATION_BOUNDED_HASH_KEY_PREFIX + expires;
+	/**
+	 * Gets the number of saves that did not move a session to a different expiration key (see
+	 * {@link #recordSkippedExpirationMove()}).
+	 *
+	 * @return the number of expiration moves that were skipped
+	 */
+	long getSkippedExpirationMoveCount() {
+		return skippedExpirationMoves.get();
+	}
+
+	/**
+	 * Gets the key of the Set that contains the ids of the sessions that expire in a bucket within the shard of a
+	 * session.
+	 *
+	 * @param sessionId the session id
+	 * @param expires the end of the bucket in milliseconds
+	 * @return the key of the Set that the session is added to
+	 */
+	String getExpirationKey(String sessionId, long expires) {
+		return keyBuilder.getExpirationKey(keyBuilder.getShard(sessionId), expires);
+	}
+
+	/**
+	 * Gets the key of the Sorted Set that contains the ids of the sessions within the shard of a session.
+	 *
+	 * @param sessionId the session id
+	 * @return the key of the Sorted Set that the session is added to
+	 */
+	String getExpirationsKey(String sessionId) {
+		return keyBuilder.getExpirationsKey(keyBuilder.getShard(sessionId));
 	}
 
 	String getSessionKey(String sessionId) {
-		return RedisOperationsSessionRepository.BOUNDED_HASH_KEY_PREFIX + sessionId;
+		return keyBuilder.getSessionKey(sessionId);
 	}
 
 	public void cleanExpiredSessions() {
-		long now = System.currentTimeMillis();
-		long prevMin = roundDownMinute(now);
+		cleanExpiredSessions(System.currentTimeMillis());
+	}
+
+	/**
+	 * Cleans up the sessions that expired up to the provided time.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	void cleanExpiredSessions(long now) {
+		long start = System.currentTimeMillis();
+		// without a previous cleanup, clean up every bucket that ended within the previous minute
+		long cleanedUpTo = now - CLEANUP_INTERVAL_IN_MILLIS;
+		boolean leaseAcquired = false;
+		if(cleanupLeaseInMillis > 0) {
+			long lease = acquireCleanupLease();
+			if(lease == LEASE_HELD_BY_OTHER) {
+				skippedCleanups.incrementAndGet();
+				return;
+			}
+			if(lease == LEASE_ACQUIRED) {
+				// the previous holder may have stopped up to the duration of the lease ago, so its buckets are cleaned too
+				cleanedUpTo -= cleanupLeaseInMillis;
+				leaseAcquired = true;
+			}
+		}
+		int touched = 0;
+		int shards = keyBuilder.getShards();
+		if(expirationMode == RedisExpirationMode.SORTED_SET) {
+			touched += shards == 1 ? cleanExpiredSessionsUpTo(0, now) : cleanExpiredShardsUpTo(now);
+		} else {
+			long lastCleanedBucket = this.lastCleanedBucket;
+			if(lastCleanedBucket == 0 || leaseAcquired) {
+				// the last bucket cleaned up before this instance started or by the previous holder of the lease
+				long storedBucket = getStoredCleanupBucket();
+				if(storedBucket != 0) {
+					lastCleanedBucket = Math.max(lastCleanedBucket, roundDownToBucket(storedBucket));
+				} else if(leaseAcquired && lastCleanedBucket <= cleanedUpTo) {
+					// the buckets before that were cleaned up by the previous holder
+					lastCleanedBucket = 0;
+				}
+			}
+			// catch up on the buckets that ended since the last bucket that was cleaned up, e.g. after a pause
+			long bucket = lastCleanedBucket != 0 ? lastCleanedBucket + expirationBucketSizeInMillis : roundDownToBucket(cleanedUpTo) + expirationBucketSizeInMillis;
+			// the expiration keys of older buckets expired, so there is nothing left to clean up in them
+			bucket = Math.max(bucket, roundDownToBucket(now - getExpirationKeySlackInMillis()));
+			long lastBucket = roundDownToBucket(now);
+			int cleaned = 0;
+			for(; bucket <= lastBucket && cleaned < maxBucketsPerCleanup; bucket += expirationBucketSizeInMillis, cleaned++) {
+				touched += shards == 1 ? cleanExpiredSessions(0, bucket) : cleanExpiredShards(bucket);
+				lastCleanedBucket = bucket;
+			}
+			this.lastCleanedBucket = lastCleanedBucket;
+			if(cleaned > 0) {
+				storeCleanupBucket(lastCleanedBucket);
+			}
+			cleanupBehind = bucket <= lastBucket;
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("Accessed " + touched + " sessions in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
 
+	/**
+	 * Accesses the sessions of a bucket within a shard in batches of {@link #setCleanupBatchSize(int)} sessions, each
+	 * using a single pipeline.
+	 *
+	 * @param shard the shard to clean up (see {@link RedisKeyBuilder#getShard(String)})
+	 * @param bucket the bucket to clean up
+	 * @return the number of sessions that were accessed
+	 */
+	private int cleanExpiredSessions(int shard, long bucket) {
 		if(logger.isDebugEnabled()) {
-			logger.debug("Cleaning up sessions expiring at "+ new Date(prevMin));
+			logger.debug("Cleaning up sessions expiring at "+ new Date(bucket) + " in shard " + shard);
 		}
 
-		String expirationKey = getExpirationKey(prevMin);
+		String expirationKey = keyBuilder.getExpirationKey(shard, bucket);
 		Set<String> sessionsToExpire = expirationRedisOperations.boundSetOps(expirationKey).members();
 		expirationRedisOperations.delete(expirationKey);
-		for(String session : sessionsToExpire) {
-			String sessionKey = getSessionKey(session);
-			touch(sessionKey);
+		if(sessionsToExpire == null || sessionsToExpire.isEmpty()) {
+			return 0;
 		}
+		List<String> sessionIds = new ArrayList<String>(sessionsToExpire);
+		for(int start = 0; start < sessionIds.size(); start += cleanupBatchSize) {
+			touch(sessionIds.subList(start, Math.min(start + cleanupBatchSize, sessionIds.size())));
+		}
+		return sessionIds.size();
 	}
 
 	/**
-	 * By trying to access the session we only trigger a deletion if it the TTL is expired. This is done to handle
+	 * Accesses the sessions of a bucket within every shard. The expiration keys of all the shards are retrieved and
+	 * deleted using a single pipeline, rather than a round trip per shard, and the sessions are then accessed in
+	 * batches of {@link #setCleanupBatchSize(int)} sessions, each using a single pipeline.
+	 *
+	 * @param bucket the bucket to clean up
+	 * @return the number of sessions that were accessed
+	 */
+	private int cleanExpiredShards(long bucket) {
+		if(logger.isDebugEnabled()) {
+			logger.debug("Cleaning up sessions expiring at "+ new Date(bucket) + " in " + keyBuilder.getShards() + " shards");
+		}
+
+		final List<String> expirationKeys = new ArrayList<String>(keyBuilder.getShards());
+		for(int shard = 0; shard < keyBuilder.getShards(); shard++) {
+			expirationKeys.add(keyBuilder.getExpirationKey(shard, bucket));
+		}
+		List<Object> results = expirationRedisOperations.executePipelined(new SessionCallback<Object>() {
+			@SuppressWarnings("unchecked")
+			public <K, V> Object execute(RedisOperations<K, V> operations) {
+				RedisOperations<String, String> expirationOperations = (RedisOperations<String, String>) operations;
+				for(String expirationKey : expirationKeys) {
+					expirationOperations.boundSetOps(expirationKey).members();
+				}
+				for(String expirationKey : expirationKeys) {
+					expirationOperations.delete(expirationKey);
+				}
+				return null;
+			}
+		});
+		List<String> sessionIds = new ArrayList<String>();
+		// the members of each expiration key precede the replies to the deletions
+		for(int shard = 0; shard < expirationKeys.size() && shard < results.size(); shard++) {
+			addSessionIds(sessionIds, results.get(shard));
+		}
+		for(int start = 0; start < sessionIds.size(); start += cleanupBatchSize) {
+			touch(sessionIds.subList(start, Math.min(start + cleanupBatchSize, sessionIds.size())));
+		}
+		return sessionIds.size();
+	}
+
+	/**
+	 * Accesses the sessions in the Sorted Sets of every shard that expired up to the provided time, like
+	 * {@link #cleanExpiredSessionsUpTo(int, long)} does for a single shard. Each round retrieves a batch of every shard
+	 * that may have more expired sessions using a single pipeline, accesses the sessions in batches of
+	 * {@link #setCleanupBatchSize(int)} sessions and removes the sessions that no longer exist using a single pipeline,
+	 * so the number of round trips does not grow with the number of shards.
+	 *
+	 * @param now the time up to which expired sessions are accessed
+	 * @return the number of sessions that were accessed
+	 */
+	private int cleanExpiredShardsUpTo(final long now) {
+		if(logger.isDebugEnabled()) {
+			logger.debug("Cleaning up sessions expiring up to "+ new Date(now) + " in " + keyBuilder.getShards() + " shards");
+		}
+
+		final long[] offsets = new long[keyBuilder.getShards()];
+		final List<Integer> remainingShards = new ArrayList<Integer>(offsets.length);
+		for(int shard = 0; shard < offsets.length; shard++) {
+			remainingShards.add(shard);
+		}
+		int touched = 0;
+		while(!remainingShards.isEmpty()) {
+			List<Object> batches = expirationRedisOperations.executePipelined(new SessionCallback<Object>() {
+				@SuppressWarnings("unchecked")
+				public <K, V> Object execute(RedisOperations<K, V> operations) {
+					RedisOperations<String, String> expirationOperations = (RedisOperations<String, String>) operations;
+					for(int shard : remainingShards) {
+						expirationOperations.opsForZSet().rangeByScore(keyBuilder.getExpirationsKey(shard), 0, now, offsets[shard], cleanupBatchSize);
+					}
+					return null;
+				}
+			});
+			List<String> sessionIds = new ArrayList<String>();
+			int[] batchSizes = new int[remainingShards.size()];
+			for(int i = 0; i < batchSizes.length && i < batches.size(); i++) {
+				batchSizes[i] = addSessionIds(sessionIds, batches.get(i));
+			}
+			if(sessionIds.isEmpty()) {
+				return touched;
+			}
+			touched += sessionIds.size();
+			List<Object> exists = new ArrayList<Object>(sessionIds.size());
+			for(int start = 0; start < sessionIds.size(); start += cleanupBatchSize) {
+				exists.addAll(touch(sessionIds.subList(start, Math.min(start + cleanupBatchSize, sessionIds.size()))));
+			}
+			final Map<String, Object[]> expiredByKey = new LinkedHashMap<String, Object[]>();
+			List<Integer> nextShards = new ArrayList<Integer>(remainingShards.size());
+			int start = 0;
+			for(int i = 0; i < batchSizes.length; i++) {
+				int shard = remainingShards.get(i);
+				List<Object> expired = new ArrayList<Object>(batchSizes[i]);
+				for(int j = start; j < start + batchSizes[i]; j++) {
+					if(!Boolean.TRUE.equals(exists.get(j))) {
+						expired.add(sessionIds.get(j));
+					}
+				}
+				start += batchSizes[i];
+				if(!expired.isEmpty()) {
+					expiredByKey.put(keyBuilder.getExpirationsKey(shard), expired.toArray());
+				}
+				offsets[shard] += batchSizes[i] - expired.size();
+				if(batchSizes[i] == cleanupBatchSize) {
+					nextShards.add(shard);
+				}
+			}
+			if(!expiredByKey.isEmpty()) {
+				expirationRedisOperations.executePipelined(new SessionCallback<Object>() {
+					@SuppressWarnings("unchecked")
+					public <K, V> Object execute(RedisOperations<K, V> operations) {
+						RedisOperations<String, String> expirationOperations = (RedisOperations<String, String>) operations;
+						for(Map.Entry<String, Object[]> expired : expiredByKey.entrySet()) {
+							expirationOperations.boundZSetOps(expired.getKey()).remove(expired.getValue());
+						}
+						return null;
+					}
+				});
+			}
+			remainingShards.clear();
+			remainingShards.addAll(nextShards);
+		}
+		return touched;
+	}
+
+	/**
+	 * Adds the session ids of a pipelined reply to a list.
+	 *
+	 * @param sessionIds the list to add the session ids to
+	 * @param reply the reply of a command returning session ids or null
+	 * @return the number of session ids that were added
+	 */
+	private static int addSessionIds(List<String> sessionIds, Object reply) {
+		if(!(reply instanceof Collection)) {
+			return 0;
+		}
+		Collection<?> ids = (Collection<?>) reply;
+		for(Object id : ids) {
+			sessionIds.add((String) id);
+		}
+		return ids.size();
+	}
+
+	/**
+	 * Gets the last bucket that was cleaned up by any instance (see {@link RedisKeyBuilder#getCleanupBucketKey()}).
+	 *
+	 * @return the last bucket that was cleaned up or 0 if it is unknown
+	 */
+	private long getStoredCleanupBucket() {
+		final String cleanupBucketKey = keyBuilder.getCleanupBucketKey();
+		Object bucket = sessionRedisOperations.execute(new SessionCallback<Object>() {
+			public <K, V> Object execute(RedisOperations<K, V> operations) {
+				@SuppressWarnings("unchecked")
+				RedisOperations<String, Object> bucketOperations = (RedisOperations<String, Object>) operations;
+				return bucketOperations.boundValueOps(cleanupBucketKey).get();
+			}
+		});
+		if(bucket == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(bucket.toString());
+		} catch(NumberFormatException e) {
+			logger.warn("Ignoring the invalid cleanup bucket " + bucket + " stored in " + cleanupBucketKey);
+			return 0;
+		}
+	}
+
+	/**
+	 * Stores the last bucket that was cleaned up, so that the cleanup catches up from it after a restart or when
+	 * another instance acquires the cleanup lease. It expires once its expiration keys did.
+	 *
+	 * @param bucket the last bucket that was cleaned up
+	 */
+	private void storeCleanupBucket(long bucket) {
+		final String cleanupBucketKey = keyBuilder.getCleanupBucketKey();
+		final String value = String.valueOf(bucket);
+		final long timeoutInMillis = getExpirationKeySlackInMillis();
+		sessionRedisOperations.execute(new SessionCallback<Object>() {
+			public <K, V> Object execute(RedisOperations<K, V> operations) {
+				@SuppressWarnings("unchecked")
+				RedisOperations<String, Object> bucketOperations = (RedisOperations<String, Object>) operations;
+				bucketOperations.boundValueOps(cleanupBucketKey).set(value, timeoutInMillis, TimeUnit.MILLISECONDS);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Acquires the cleanup lease if no instance holds it or renews it if this instance holds it.
+	 *
+	 * @return {@link #LEASE_ACQUIRED}, {@link #LEASE_RENEWED} or {@link #LEASE_HELD_BY_OTHER}
+	 */
+	private long acquireCleanupLease() {
+		Object[] args = new Object[] { LEASE_ARGS_SERIALIZER.serialize(leaseOwner),
+				LEASE_ARGS_SERIALIZER.serialize(String.valueOf(cleanupLeaseInMillis)) };
+		Long result = sessionRedisOperations.execute(CLEANUP_LEASE_SCRIPT, null, null,
+				Collections.singletonList(keyBuilder.getCleanupLeaseKey()), args);
+		return result == null ? LEASE_HELD_BY_OTHER : result;
+	}
+
+	/**
+	 * Accesses the sessions in the Sorted Set of a shard that expired up to the provided time, a batch at a time. Each batch is
+	 * retrieved using ZRANGEBYSCORE with LIMIT and its sessions are accessed using a single pipeline. The sessions that
+	 * no longer exist are then removed from the Sorted Set. The sessions that still exist (i.e. they were saved again
+	 * after being retrieved) are kept and skipped by the following batches. If such a session was saved with a later
+	 * expiration in the meantime, a few expired sessions may be left for the next cleanup.
+	 *
+	 * @param shard the shard to clean up (see {@link RedisKeyBuilder#getShard(String)})
+	 * @param now the time up to which expired sessions are accessed
+	 * @return the number of sessions that were accessed
+	 */
+	private int cleanExpiredSessionsUpTo(int shard, long now) {
+		if(logger.isDebugEnabled()) {
+			logger.debug("Cleaning up sessions expiring up to "+ new Date(now) + " in shard " + shard);
+		}
+
+		String expirationsKey = keyBuilder.getExpirationsKey(shard);
+		int touched = 0;
+		long offset = 0;
+		int batchSize;
+		do {
+			Set<String> sessionsToExpire = expirationRedisOperations.opsForZSet().rangeByScore(expirationsKey, 0, now, offset, cleanupBatchSize);
+			if(sessionsToExpire == null || sessionsToExpire.isEmpty()) {
+				return touched;
+			}
+			batchSize = sessionsToExpire.size();
+			touched += batchSize;
+			List<String> sessionIds = new ArrayList<String>(sessionsToExpire);
+			List<Object> exists = touch(sessionIds);
+			List<Object> expired = new ArrayList<Object>(batchSize);
+			for(int i = 0; i < batchSize; i++) {
+				if(!Boolean.TRUE.equals(exists.get(i))) {
+					expired.add(sessionIds.get(i));
+				}
+			}
+			if(!expired.isEmpty()) {
+				expirationRedisOperations.boundZSetOps(expirationsKey).remove(expired.toArray());
+			}
+			offset += batchSize - expired.size();
+		} while(batchSize == cleanupBatchSize);
+		return touched;
+	}
+
+	/**
+	 * By trying to access the sessions we only trigger a deletion if the TTL is expired. This is done to handle
 	 * https://github.com/spring-projects/spring-session/issues/93
 	 *
-	 * @param key
+	 * The sessions are accessed using a single pipeline, so accessing a batch of sessions takes a single round trip.
+	 * The keys are serialized using {@link RedisKeyBuilder#serializeSessionKey(RedisSerializer, String)}, which reuses
+	 * the encoded prefix.
+	 *
+	 * @param sessionIds the ids of the sessions to access
+	 * @return for each session whether it still exists
 	 */
-	private void touch(String key) {
-		sessionRedisOperations.hasKey(key);
+	@SuppressWarnings("unchecked")
+	private List<Object> touch(final List<String> sessionIds) {
+		final RedisSerializer<String> keySerializer = (RedisSerializer<String>) sessionRedisOperations.getKeySerializer();
+		if(keySerializer != null) {
+			final RedisKeyBuilder keyBuilder = this.keyBuilder;
+			return sessionRedisOperations.executePipelined(new RedisCallback<Object>() {
+				public Object doInRedis(RedisConnection connection) throws DataAccessException {
+					for(String sessionId : sessionIds) {
+						connection.exists(keyBuilder.serializeSessionKey(keySerializer, sessionId));
+					}
+					return null;
+				}
+			});
+		}
+		return sessionRedisOperations.executePipelined(new SessionCallback<Object>() {
+			@SuppressWarnings("unchecked")
+			public <K, V> Object execute(RedisOperations<K, V> operations) {
+				RedisOperations<String, ExpiringSession> sessionOperations = (RedisOperations<String, ExpiringSession>) operations;
+				for(String sessionId : sessionIds) {
+					sessionOperations.hasKey(getSessionKey(sessionId));
+				}
+				return null;
+			}
+		});
 	}
 
 	static long expiresInMillis(ExpiringSession session) {
@@ -132,21 +742,70 @@ final class RedisSessionExpirationPolicy {
 		return lastAccessedTimeInMillis + TimeUnit.SECONDS.toMillis(maxInactiveInSeconds);
 	}
 
-	static long roundUpToNextMinute(long timeInMs) {
+	/**
+	 * Gets the expiration of an expiration key in seconds. It must outlive the bucket it represents until
+	 * {@link #cleanExpiredSessions()} processes it (see {@link #getExpirationKeySlackInMillis()}).
+	 *
+	 * @param session the {@link ExpiringSession} being added to the expiration key
+	 * @return the expiration of the expiration key in seconds
+	 */
+	long getExpirationKeyExpireInSeconds(ExpiringSession session) {
+		long slackInMillis = getExpirationKeySlackInMillis();
+		return session.getMaxInactiveIntervalInSeconds() + TimeUnit.MILLISECONDS.toSeconds(slackInMillis + 999);
+	}
 
-		Calendar date = Calendar.getInstance();
-		date.setTimeInMillis(timeInMs);
-		date.add(Calendar.MINUTE, 1);
-		date.clear(Calendar.SECOND);
-		date.clear(Calendar.MILLISECOND);
-		return date.getTimeInMillis();
+	/**
+	 * Gets how long an expiration key outlives the expiration of the sessions it contains. The expiration is rounded
+	 * up to the end of the bucket, so the key outlives the bucket by a bucket less. After that, the bucket is
+	 * processed by the next cleanup (at the latest a minute later), by a cleanup catching up after a pause or a restart
+	 * (at most {@link #setMaxBucketsPerCleanup(int)} buckets later, since the last bucket that was cleaned up is stored
+	 * in Redis) or by the instance taking over the cleanup lease (at most {@link #setCleanupLeaseInMillis(long)} later
+	 * still).
+	 *
+	 * @return how long an expiration key outlives the expiration of its sessions in milliseconds
+	 */
+	long getExpirationKeySlackInMillis() {
+		long catchUpInMillis = Math.max(CLEANUP_INTERVAL_IN_MILLIS, maxBucketsPerCleanup * expirationBucketSizeInMillis);
+		return expirationBucketSizeInMillis + catchUpInMillis + cleanupLeaseInMillis;
+	}
+
+	long roundUpToNextBucket(long timeInMs) {
+		return roundUpToNextBucket(timeInMs, expirationBucketSizeInMillis);
+	}
+
+	long roundDownToBucket(long timeInMs) {
+		return roundDownToBucket(timeInMs, expirationBucketSizeInMillis);
+	}
+
+	static long roundUpToNextMinute(long timeInMs) {
+		return roundUpToNextBucket(timeInMs, ONE_MINUTE_IN_MILLIS);
 	}
 
 	static long roundDownMinute(long timeInMs) {
-		Calendar date = Calendar.getInstance();
-		date.setTimeInMillis(timeInMs);
-		date.clear(Calendar.SECOND);
-		date.clear(Calendar.MILLISECOND);
-		return date.getTimeInMillis();
+		return roundDownToBucket(timeInMs, ONE_MINUTE_IN_MILLIS);
+	}
+
+	/**
+	 * Rounds up to the start of the next bucket. Like adding a minute and then clearing the seconds, a time that is
+	 * already at the start of a bucket is rounded up to the next bucket.
+	 *
+	 * @param timeInMs the time in milliseconds since midnight of 1/1/1970 GMT
+	 * @param bucketSizeInMs the size of a bucket in milliseconds
+	 * @return the start of the next bucket
+	 */
+	static long roundUpToNextBucket(long timeInMs, long bucketSizeInMs) {
+		return roundDownToBucket(timeInMs, bucketSizeInMs) + bucketSizeInMs;
+	}
+
+	/**
+	 * Rounds down to the start of the bucket containing the time. Buckets are aligned to midnight of 1/1/1970 GMT,
+	 * which matches the minute boundaries of every time zone currently in use.
+	 *
+	 * @param timeInMs the time in milliseconds since midnight of 1/1/1970 GMT
+	 * @param bucketSizeInMs the size of a bucket in milliseconds
+	 * @return the start of the bucket containing the time
+	 */
+	static long roundDownToBucket(long timeInMs, long bucketSizeInMs) {
+		return timeInMs - (timeInMs % bucketSizeInMs);
 	}
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.util.Assert;
+
+/**
+ * Reads and writes the Hash of a session. When the {@link RedisOperations} provides its serializers, the commands are
+ * issued through the {@link RedisConnection} with the key that the {@link RedisKeyBuilder} encodes from its cached
+ * prefix (see {@link RedisKeyBuilder#getSessionKeyBytes(String)}), and the hash keys and values are serialized with the
+ * serializers of the {@link RedisOperations}. Otherwise the Hash is accessed through
+ * {@link RedisOperations#boundHashOps(Object)}.
+ *
+ * @since 1.1
+ */
+final class RedisSessionHashCodec {
+	private final RedisKeyBuilder keyBuilder;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param keyBuilder the {@link RedisKeyBuilder} that determines the keys of the sessions. Cannot be null.
+	 */
+	RedisSessionHashCodec(RedisKeyBuilder keyBuilder) {
+		Assert.notNull(keyBuilder, "keyBuilder cannot be null");
+		this.keyBuilder = keyBuilder;
+	}
+
+	/**
+	 * Gets the key of the Hash of a session as it is sent to Redis.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the commands with
+	 * @param sessionId the id of the session to work with
+	 * @return the serialized key or null if the {@link RedisOperations} does not provide its serializers, in which case
+	 * the Hash is accessed through {@link RedisOperations#boundHashOps(Object)}
+	 */
+	@SuppressWarnings("unchecked")
+	byte[] getRawKey(RedisOperations<String, ExpiringSession> redisOperations, String sessionId) {
+		RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisOperations.getKeySerializer();
+		if(keySerializer == null || redisOperations.getHashKeySerializer() == null || redisOperations.getHashValueSerializer() == null) {
+			return null;
+		}
+		return keyBuilder.serializeSessionKey(keySerializer, sessionId);
+	}
+
+	/**
+	 * Issues HGETALL for the Hash of a session without using its reply, so that it can be used within a pipeline. The
+	 * reply is then the entries of the Hash with the hash keys and values deserialized.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the command with
+	 * @param sessionId the id of the session to retrieve
+	 */
+	void requestEntries(RedisOperations<String, ExpiringSession> redisOperations, String sessionId) {
+		final byte[] rawKey = getRawKey(redisOperations, sessionId);
+		if(rawKey == null) {
+			redisOperations.boundHashOps(keyBuilder.getSessionKey(sessionId)).entries();
+			return;
+		}
+		redisOperations.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) {
+				connection.hGetAll(rawKey);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the entries of the Hash of a session using HGETALL.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the command with
+	 * @param sessionId the id of the session to retrieve
+	 * @return the entries of the Hash, which are empty if the session was not found
+	 */
+	@SuppressWarnings("unchecked")
+	Map<Object, Object> getEntries(RedisOperations<String, ExpiringSession> redisOperations, String sessionId) {
+		final byte[] rawKey = getRawKey(redisOperations, sessionId);
+		if(rawKey == null) {
+			return redisOperations.boundHashOps(keyBuilder.getSessionKey(sessionId)).entries();
+		}
+		Map<byte[], byte[]> rawEntries = redisOperations.execute(new RedisCallback<Map<byte[], byte[]>>() {
+			public Map<byte[], byte[]> doInRedis(RedisConnection connection) {
+				return connection.hGetAll(rawKey);
+			}
+		});
+		RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) redisOperations.getHashKeySerializer();
+		RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisOperations.getHashValueSerializer();
+		Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+		if(rawEntries != null) {
+			for(Map.Entry<byte[], byte[]> entry : rawEntries.entrySet()) {
+				entries.put(hashKeySerializer.deserialize(entry.getKey()), hashValueSerializer.deserialize(entry.getValue()));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Retrieves a value of the Hash of a session using HGET.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the command with
+	 * @param sessionId the id of the session to retrieve
+	 * @param hashKey the key of the value to retrieve
+	 * @return the value or null if it was not found
+	 */
+	@SuppressWarnings("unchecked")
+	Object getValue(RedisOperations<String, ExpiringSession> redisOperations, String sessionId, Object hashKey) {
+		final byte[] rawKey = getRawKey(redisOperations, sessionId);
+		if(rawKey == null) {
+			return redisOperations.boundHashOps(keyBuilder.getSessionKey(sessionId)).get(hashKey);
+		}
+		final byte[] rawHashKey = ((RedisSerializer<Object>) redisOperations.getHashKeySerializer()).serialize(hashKey);
+		byte[] rawValue = redisOperations.execute(new RedisCallback<byte[]>() {
+			public byte[] doInRedis(RedisConnection connection) {
+				return connection.hGet(rawKey, rawHashKey);
+			}
+		});
+		return rawValue == null ? null : redisOperations.getHashValueSerializer().deserialize(rawValue);
+	}
+
+	/**
+	 * Retrieves values of the Hash of a session using HMGET.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the command with
+	 * @param sessionId the id of the session to retrieve
+	 * @param hashKeys the keys of the values to retrieve
+	 * @return the values in the same order as the keys, with null for the values that were not found
+	 */
+	@SuppressWarnings("unchecked")
+	List<Object> getValues(RedisOperations<String, ExpiringSession> redisOperations, String sessionId, List<Object> hashKeys) {
+		final byte[] rawKey = getRawKey(redisOperations, sessionId);
+		if(rawKey == null) {
+			return redisOperations.boundHashOps(keyBuilder.getSessionKey(sessionId)).multiGet(hashKeys);
+		}
+		RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) redisOperations.getHashKeySerializer();
+		RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisOperations.getHashValueSerializer();
+		final byte[][] rawHashKeys = new byte[hashKeys.size()][];
+		for(int i = 0; i < rawHashKeys.length; i++) {
+			rawHashKeys[i] = hashKeySerializer.serialize(hashKeys.get(i));
+		}
+		List<byte[]> rawValues = redisOperations.execute(new RedisCallback<List<byte[]>>() {
+			public List<byte[]> doInRedis(RedisConnection connection) {
+				return connection.hMGet(rawKey, rawHashKeys);
+			}
+		});
+		List<Object> values = new ArrayList<Object>(hashKeys.size());
+		for(int i = 0; i < rawHashKeys.length; i++) {
+			byte[] rawValue = rawValues == null ? null : rawValues.get(i);
+			values.add(rawValue == null ? null : hashValueSerializer.deserialize(rawValue));
+		}
+		return values;
+	}
+
+	/**
+	 * Writes values of the Hash of a session using HMSET.
+	 *
+	 * @param redisOperations the {@link RedisOperations} to issue the command with
+	 * @param sessionId the id of the session to write
+	 * @param values the values to write by their hash key
+	 * @param serializedValues the values that are already serialized by their hash key, which are written as is
+	 * instead of being serialized again. Only used when the command is issued through the {@link RedisConnection}.
+	 * Can be null.
+	 */
+	@SuppressWarnings("unchecked")
+	void putAll(RedisOperations<String, ExpiringSession> redisOperations, String sessionId, Map<String, Object> values, Map<String, byte[]> serializedValues) {
+		final byte[] rawKey = getRawKey(redisOperations, sessionId);
+		if(rawKey == null) {
+			redisOperations.boundHashOps(keyBuilder.getSessionKey(sessionId)).putAll(values);
+			return;
+		}
+		RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) redisOperations.getHashKeySerializer();
+		RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisOperations.getHashValueSerializer();
+		final Map<byte[], byte[]> rawHash = new LinkedHashMap<byte[], byte[]>(values.size());
+		for(Map.Entry<String, Object> entry : values.entrySet()) {
+			byte[] serialized = serializedValues == null ? null : serializedValues.get(entry.getKey());
+			rawHash.put(hashKeySerializer.serialize(entry.getKey()), serialized == null ? hashValueSerializer.serialize(entry.getValue()) : serialized);
+		}
+		redisOperations.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) {
+				connection.hMSet(rawKey, rawHash);
+				return null;
+			}
+		});
+	}
+}
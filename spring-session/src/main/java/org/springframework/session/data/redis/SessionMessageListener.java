@@ -15,8 +15,20 @@
  */
 package org.springframework.session.data.redis;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.redis.connection.Message;
@@ -28,14 +40,80 @@ import org.springframework.util.Assert;
  * Listen for Redis {@link Message} notifications. If it is a "del" or "expired"
  * translate into a {@link SessionDestroyedEvent}.
  *
+ * The channel and body of every notification are compared as bytes, so no
+ * String is decoded for the notifications of keys other than sessions (the
+ * arrays returned by {@link Message} may still be copies).
+ * Both the keyevent notifications (e.g. <code>__keyevent@0__:del</code>) and the
+ * keyspace notifications (e.g.
+ * <code>__keyspace@0__:spring:session:sessions:&lt;id&gt;</code>) are supported
+ * (see {@link org.springframework.session.data.redis.config.KeyspaceNotificationMode}).
+ *
+ * By default the {@link SessionDestroyedEvent} is published by the thread that
+ * received the notification, so a slow
+ * {@link org.springframework.context.ApplicationListener} delays every following
+ * notification. When {@link #setDispatchThreads(int)} is positive, the events are
+ * instead queued and published by a pool of background threads. The number of
+ * queued events is bounded by {@link #setMaxPendingEvents(int)}, and the
+ * {@link OverflowPolicy} determines what happens when the queue is full. Events
+ * published by more than one thread are not guaranteed to be published in the
+ * order they were received.
+ *
  * @author Rob Winch
  * @since 1.0
  */
-public class SessionMessageListener implements MessageListener {
+public class SessionMessageListener implements MessageListener, InitializingBean, DisposableBean {
 	private static final Log logger = LogFactory.getLog(SessionMessageListener.class);
 
+	/**
+	 * What to do when a notification is received while
+	 * {@link SessionMessageListener#setMaxPendingEvents(int)} events are waiting to
+	 * be published.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The event is published by the thread that received the notification,
+		 * unless the background threads were stopped (see
+		 * {@link SessionMessageListener#destroy()}), in which case it is discarded.
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * The event is discarded (see
+		 * {@link SessionMessageListener#getDiscardedEventCount()}).
+		 */
+		DISCARD
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] DEL_CHANNEL_SUFFIX = ":del".getBytes(UTF_8);
+
+	private static final byte[] EXPIRED_CHANNEL_SUFFIX = ":expired".getBytes(UTF_8);
+
+	private static final byte[] KEYSPACE_CHANNEL_PREFIX = "__keyspace@".getBytes(UTF_8);
+
+	private static final byte[] KEYSPACE_CHANNEL_KEY_SEPARATOR = "__:".getBytes(UTF_8);
+
+	private static final byte[] DEL_EVENT = "del".getBytes(UTF_8);
+
+	private static final byte[] EXPIRED_EVENT = "expired".getBytes(UTF_8);
+
 	private final ApplicationEventPublisher eventPublisher;
 
+	private final AtomicLong discardedEvents = new AtomicLong();
+
+	private final AtomicLong lastDispatchLag = new AtomicLong();
+
+	private ThreadPoolExecutor executor;
+
+	private RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	private int dispatchThreads;
+
+	private int maxPendingEvents = 10000;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+
 	/**
 	 * Creates a new instance
 	 *
@@ -46,30 +124,190 @@ public class SessionMessageListener implements MessageListener {
 		this.eventPublisher = eventPublisher;
 	}
 
+	/**
+	 * Sets the {@link RedisKeyBuilder} that determines the keys of the sessions. It must be the same as the one used
+	 * by the {@link RedisOperationsSessionRepository}. The default uses the "spring:session" namespace.
+	 *
+	 * @param keyBuilder the {@link RedisKeyBuilder} to use. Cannot be null.
+	 */
+	public void setKeyBuilder(RedisKeyBuilder keyBuilder) {
+		Assert.notNull(keyBuilder, "keyBuilder cannot be null");
+		this.keyBuilder = keyBuilder;
+	}
+
+	/**
+	 * Sets the number of background threads that publish the events. When 0 (the
+	 * default) the events are published by the thread that received the
+	 * notification. Must be set before {@link #afterPropertiesSet()} is invoked.
+	 *
+	 * @param dispatchThreads the number of background threads. Cannot be negative.
+	 */
+	public void setDispatchThreads(int dispatchThreads) {
+		Assert.isTrue(dispatchThreads >= 0, "dispatchThreads cannot be negative");
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	/**
+	 * Sets the maximum number of events waiting to be published by the background
+	 * threads. The default is 10000. Must be set before
+	 * {@link #afterPropertiesSet()} is invoked.
+	 *
+	 * @param maxPendingEvents the maximum number of pending events. Must be positive.
+	 */
+	public void setMaxPendingEvents(int maxPendingEvents) {
+		Assert.isTrue(maxPendingEvents > 0, "maxPendingEvents must be positive");
+		this.maxPendingEvents = maxPendingEvents;
+	}
+
+	/**
+	 * Sets what to do when the maximum number of pending events is reached. The
+	 * default is {@link OverflowPolicy#CALLER_RUNS}.
+	 *
+	 * @param overflowPolicy the {@link OverflowPolicy} to use. Cannot be null.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		Assert.notNull(overflowPolicy, "overflowPolicy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Gets the number of events waiting to be published by the background threads.
+	 *
+	 * @return the number of pending events
+	 */
+	public int getPendingEventCount() {
+		ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of events that were discarded because the maximum number of
+	 * pending events was reached (see {@link OverflowPolicy#DISCARD}) or because
+	 * they were received after the background threads were stopped.
+	 *
+	 * @return the number of discarded events
+	 */
+	public long getDiscardedEventCount() {
+		return discardedEvents.get();
+	}
+
+	/**
+	 * Gets how long the most recently published event waited between the
+	 * notification being received and the event being published.
+	 *
+	 * @return the lag of the most recently published event in milliseconds
+	 */
+	public long getLastDispatchLagInMillis() {
+		return lastDispatchLag.get();
+	}
+
+	/**
+	 * Starts the background threads that publish the events if
+	 * {@link #setDispatchThreads(int)} is positive.
+	 */
+	public void afterPropertiesSet() {
+		if(dispatchThreads == 0) {
+			return;
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxPendingEvents), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "spring-session-event-dispatch-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if(executor.isShutdown()) {
+							// like CallerRunsPolicy, do not publish on the caller after destroy()
+							discardedEvents.incrementAndGet();
+							if(logger.isDebugEnabled()) {
+								logger.debug("Discarding SessionDestroyedEvent received after the dispatch threads were stopped");
+							}
+						} else if(overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+							r.run();
+						} else {
+							discardedEvents.incrementAndGet();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Stops the background threads after they published the pending events.
+	 */
+	public void destroy() throws Exception {
+		ThreadPoolExecutor executor = this.executor;
+		if(executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		}
+	}
+
 	public void onMessage(Message message, byte[] pattern) {
 		byte[] messageChannel = message.getChannel();
 		byte[] messageBody = message.getBody();
 		if(messageChannel == null || messageBody == null) {
 			return;
 		}
-		String channel = new String(messageChannel);
-		if(!(channel.endsWith(":del") || channel.endsWith(":expired"))) {
-			return;
+		byte[] key;
+		int sessionIdIndex;
+		if(RedisKeyBuilder.startsWith(messageChannel, 0, KEYSPACE_CHANNEL_PREFIX)) {
+			// __keyspace@<database>__:<key> with the event as the body
+			if(!(Arrays.equals(messageBody, DEL_EVENT) || Arrays.equals(messageBody, EXPIRED_EVENT))) {
+				return;
+			}
+			int keyIndex = indexOf(messageChannel, KEYSPACE_CHANNEL_KEY_SEPARATOR, KEYSPACE_CHANNEL_PREFIX.length);
+			if(keyIndex < 0) {
+				return;
+			}
+			key = messageChannel;
+			sessionIdIndex = keyBuilder.getSessionIdIndex(key, keyIndex + KEYSPACE_CHANNEL_KEY_SEPARATOR.length);
+		} else {
+			// __keyevent@<database>__:<event> with the key as the body
+			if(!(endsWith(messageChannel, DEL_CHANNEL_SUFFIX) || endsWith(messageChannel, EXPIRED_CHANNEL_SUFFIX))) {
+				return;
+			}
+			key = messageBody;
+			sessionIdIndex = keyBuilder.getSessionIdIndex(key, 0);
 		}
-		String body = new String(messageBody);
-		if(!body.startsWith("spring:session:sessions:")) {
+		if(sessionIdIndex < 0) {
 			return;
 		}
 
-		int beginIndex = body.lastIndexOf(":") + 1;
-		int endIndex = body.length();
-		String sessionId = body.substring(beginIndex, endIndex);
+		String sessionId = new String(key, sessionIdIndex, key.length - sessionIdIndex, UTF_8);
 
 		if(logger.isDebugEnabled()) {
 			logger.debug("Publishing SessionDestroyedEvent for session " + sessionId);
 		}
 
-		publishEvent(new SessionDestroyedEvent(this, sessionId));
+		final SessionDestroyedEvent event = new SessionDestroyedEvent(this, sessionId);
+		ThreadPoolExecutor executor = this.executor;
+		if(executor == null) {
+			publishEvent(event);
+			return;
+		}
+		final long received = System.currentTimeMillis();
+		executor.execute(new Runnable() {
+			public void run() {
+				lastDispatchLag.set(System.currentTimeMillis() - received);
+				publishEvent(event);
+			}
+		});
+	}
+
+	private static int indexOf(byte[] bytes, byte[] target, int fromIndex) {
+		for(int i = fromIndex; i <= bytes.length - target.length; i++) {
+			if(RedisKeyBuilder.startsWith(bytes, i, target)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean endsWith(byte[] bytes, byte[] suffix) {
+		return RedisKeyBuilder.startsWith(bytes, bytes.length - suffix.length, suffix);
 	}
 
 	private void publishEvent(ApplicationEvent event) {
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.MapSession;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * A bounded, per JVM cache of the sessions that were recently loaded or saved by a
+ * {@link RedisOperationsSessionRepository}. When a session is found in the cache, the
+ * {@link RedisOperationsSessionRepository} does not need to retrieve it from Redis.
+ * </p>
+ *
+ * <p>
+ * To keep the caches of multiple JVMs consistent, every save and delete publishes the id of the session to a Redis
+ * channel and each {@link SessionNearCache} evicts the sessions that were published by other JVMs. For this reason,
+ * the {@link SessionNearCache} must be registered with a
+ * {@link org.springframework.data.redis.listener.RedisMessageListenerContainer} for {@link #getChannel()}. Since the
+ * invalidations are delivered asynchronously (and may be lost if the subscription is interrupted), a session may be
+ * stale for a short period of time. The time to live of each entry bounds how long that can be.
+ * </p>
+ *
+ * <p>
+ * The attribute values are cached in their serialized form and are deserialized each time the session is found in the
+ * cache, using the same {@link RedisSerializer} that stores them in Redis. Just as when a session is retrieved from
+ * Redis, every request therefore gets its own attribute objects and modifying one in place is not visible to other
+ * requests unless the session is saved.
+ * </p>
+ *
+ * @since 1.1
+ * @see RedisOperationsSessionRepository#setNearCache(SessionNearCache)
+ */
+public class SessionNearCache implements MessageListener {
+	/**
+	 * The default channel that invalidations are published to.
+	 */
+	public static final String DEFAULT_CHANNEL = "spring:session:invalidations";
+
+	private static final Log logger = LogFactory.getLog(SessionNearCache.class);
+
+	/**
+	 * Separates the origin from the session id in an invalidation. Neither contain it.
+	 */
+	private static final char ORIGIN_SEPARATOR = ' ';
+
+	private static final RedisSerializer<String> SERIALIZER = new StringRedisSerializer();
+
+	private final String origin = UUID.randomUUID().toString();
+
+	private final Map<String, CachedSession> sessions = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The number of sessions that have been invalidated. Stamps each invalidation so that a session that is
+	 * invalidated while it is being loaded is not cached.
+	 */
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	/**
+	 * The stamp of the most recent invalidation of each session, oldest first. Bounded like the cached sessions.
+	 */
+	private final Map<String, Long> invalidations = new LinkedHashMap<String, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			if(size() > maxSize) {
+				forgottenInvalidation = eldest.getValue();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * The stamp of the most recent invalidation that is no longer tracked per session, which must be assumed to
+	 * apply to every session. Guarded by {@link #sessions}.
+	 */
+	private long forgottenInvalidation;
+
+	private int maxSize = 10000;
+
+	private long timeToLiveInMillis = TimeUnit.SECONDS.toMillis(60);
+
+	private String channel = DEFAULT_CHANNEL;
+
+	/**
+	 * Sets the maximum number of sessions to cache. When exceeded, the least recently used session is evicted. The
+	 * number of invalidations that are tracked per session is bounded by the same value. The default is 10000.
+	 *
+	 * @param maxSize the maximum number of sessions to cache. Must be positive.
+	 */
+	public void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Sets how long a session is cached before it must be retrieved from Redis again. The default is 60 seconds.
+	 *
+	 * @param timeToLiveInSeconds how long a session is cached in seconds. Cannot be negative.
+	 */
+	public void setTimeToLiveInSeconds(int timeToLiveInSeconds) {
+		Assert.isTrue(timeToLiveInSeconds >= 0, "timeToLiveInSeconds cannot be negative");
+		this.timeToLiveInMillis = TimeUnit.SECONDS.toMillis(timeToLiveInSeconds);
+	}
+
+	/**
+	 * Sets the channel that invalidations are published to. The default is {@link #DEFAULT_CHANNEL}.
+	 *
+	 * @param channel the channel that invalidations are published to. Cannot be null or empty.
+	 */
+	public void setChannel(String channel) {
+		Assert.hasText(channel, "channel cannot be null or empty");
+		this.channel = channel;
+	}
+
+	/**
+	 * Gets the channel that invalidations are published to.
+	 *
+	 * @return the channel that invalidations are published to
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the number of times a session was found in the cache.
+	 *
+	 * @return the number of times a session was found in the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of times a session was not found in the cache.
+	 *
+	 * @return the number of times a session was not found in the cache
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of sessions that are currently cached, including those whose time to live has passed but that
+	 * have not been evicted yet.
+	 *
+	 * @return the number of sessions that are currently cached
+	 */
+	public int getSize() {
+		synchronized(sessions) {
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * Removes all of the cached sessions.
+	 */
+	public void clear() {
+		synchronized(sessions) {
+			sessions.clear();
+			invalidations.clear();
+			forgottenInvalidation = invalidationCount.incrementAndGet();
+		}
+	}
+
+	public void onMessage(Message message, byte[] pattern) {
+		String body = SERIALIZER.deserialize(message.getBody());
+		if(body == null) {
+			return;
+		}
+		int separator = body.indexOf(ORIGIN_SEPARATOR);
+		if(separator < 0) {
+			return;
+		}
+		if(origin.equals(body.substring(0, separator))) {
+			// the cache was already updated when the session was saved or deleted
+			return;
+		}
+		String sessionId = body.substring(separator + 1);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Evicting session " + sessionId);
+		}
+
+		evict(sessionId);
+	}
+
+	/**
+	 * Gets a copy of the cached session.
+	 *
+	 * @param sessionId the id of the session
+	 * @param serializer the {@link RedisSerializer} to deserialize the attribute values with
+	 * @return a copy of the cached session or null if it is not cached or its time to live has passed
+	 */
+	MapSession get(String sessionId, RedisSerializer<Object> serializer) {
+		CachedSession cached;
+		synchronized(sessions) {
+			cached = sessions.get(sessionId);
+			if(cached != null && cached.isExpired(timeToLiveInMillis)) {
+				sessions.remove(sessionId);
+				cached = null;
+			}
+		}
+		if(cached == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return cached.toSession(serializer);
+	}
+
+	/**
+	 * Gets a value that can be passed to {@link #put(ExpiringSession, RedisSerializer, long)} to ensure the session was not invalidated
+	 * while it was loaded.
+	 *
+	 * @return the number of sessions that have been invalidated
+	 */
+	long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * Caches a copy of the session.
+	 *
+	 * @param session the session to cache
+	 * @param serializer the {@link RedisSerializer} to serialize the attribute values with
+	 */
+	void put(ExpiringSession session, RedisSerializer<Object> serializer) {
+		CachedSession cached = new CachedSession(session, serializer);
+		synchronized(sessions) {
+			sessions.put(session.getId(), cached);
+		}
+	}
+
+	/**
+	 * Caches a copy of the session unless it was invalidated since {@link #getInvalidationCount()} was invoked. This
+	 * prevents caching a session that was modified by another JVM while it was being loaded. Invalidations of other
+	 * sessions do not prevent it from being cached.
+	 *
+	 * @param session the session to cache
+	 * @param serializer the {@link RedisSerializer} to serialize the attribute values with
+	 * @param invalidationCount the result of {@link #getInvalidationCount()} before the session was loaded
+	 */
+	void put(ExpiringSession session, RedisSerializer<Object> serializer, long invalidationCount) {
+		CachedSession cached = new CachedSession(session, serializer);
+		synchronized(sessions) {
+			if(!isInvalidatedSince(session.getId(), invalidationCount)) {
+				sessions.put(session.getId(), cached);
+			}
+		}
+	}
+
+	/**
+	 * Determines if the session may have been invalidated since {@link #getInvalidationCount()} returned the given
+	 * value. Must be invoked while holding the lock on {@link #sessions}.
+	 *
+	 * @param sessionId the id of the session
+	 * @param invalidationCount the result of {@link #getInvalidationCount()}
+	 * @return true if the session may have been invalidated since, else false
+	 */
+	private boolean isInvalidatedSince(String sessionId, long invalidationCount) {
+		if(forgottenInvalidation > invalidationCount) {
+			return true;
+		}
+		Long invalidation = invalidations.get(sessionId);
+		return invalidation != null && invalidation > invalidationCount;
+	}
+
+	/**
+	 * Removes the session from the cache.
+	 *
+	 * @param sessionId the id of the session to remove
+	 */
+	void evict(String sessionId) {
+		synchronized(sessions) {
+			// re-insert so that the least recently invalidated session is forgotten first
+			invalidations.remove(sessionId);
+			invalidations.put(sessionId, invalidationCount.incrementAndGet());
+			sessions.remove(sessionId);
+		}
+	}
+
+	/**
+	 * Publishes the id of a session that was saved or deleted so that other JVMs evict it.
+	 *
+	 * @param operations the {@link RedisOperations} to publish with, which may be pipelined
+	 * @param sessionId the id of the session that was saved or deleted
+	 */
+	void publishInvalidation(RedisOperations<?, ?> operations, String sessionId) {
+		final byte[] rawChannel = serializeChannel();
+		final byte[] rawMessage = serializeInvalidation(sessionId);
+		operations.execute(new RedisCallback<Object>() {
+			public Object doInRedis(RedisConnection connection) throws DataAccessException {
+				connection.publish(rawChannel, rawMessage);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Serializes the channel that invalidations are published to.
+	 *
+	 * @return the serialized channel
+	 */
+	byte[] serializeChannel() {
+		return SERIALIZER.serialize(channel);
+	}
+
+	/**
+	 * Serializes the invalidation of a session that was saved or deleted, which identifies this instance as its
+	 * origin.
+	 *
+	 * @param sessionId the id of the session that was saved or deleted
+	 * @return the serialized invalidation
+	 */
+	byte[] serializeInvalidation(String sessionId) {
+		return SERIALIZER.serialize(origin + ORIGIN_SEPARATOR + sessionId);
+	}
+
+	/**
+	 * A snapshot of a session, with its attribute values serialized, and when it was cached.
+	 */
+	private static final class CachedSession {
+		private final String id;
+		private final long creationTime;
+		private final long lastAccessedTime;
+		private final int maxInactiveIntervalInSeconds;
+		private final Map<String, byte[]> attributes;
+		private final long cachedAt = System.currentTimeMillis();
+
+		CachedSession(ExpiringSession session, RedisSerializer<Object> serializer) {
+			this.id = session.getId();
+			this.creationTime = session.getCreationTime();
+			this.lastAccessedTime = session.getLastAccessedTime();
+			this.maxInactiveIntervalInSeconds = session.getMaxInactiveIntervalInSeconds();
+			this.attributes = new HashMap<String, byte[]>();
+			for(String attributeName : session.getAttributeNames()) {
+				this.attributes.put(attributeName, serializer.serialize(session.getAttribute(attributeName)));
+			}
+		}
+
+		/**
+		 * Creates a session with its own copy of the attribute values.
+		 *
+		 * @param serializer the {@link RedisSerializer} to deserialize the attribute values with
+		 * @return the session
+		 */
+		MapSession toSession(RedisSerializer<Object> serializer) {
+			MapSession session = new MapSession();
+			session.setId(id);
+			session.setCreationTime(creationTime);
+			session.setLastAccessedTime(lastAccessedTime);
+			session.setMaxInactiveIntervalInSeconds(maxInactiveIntervalInSeconds);
+			for(Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+				session.setAttribute(attribute.getKey(), serializer.deserialize(attribute.getValue()));
+			}
+			return session;
+		}
+
+		boolean isExpired(long timeToLiveInMillis) {
+			return System.currentTimeMillis() - cachedAt >= timeToLiveInMillis;
+		}
+	}
+}
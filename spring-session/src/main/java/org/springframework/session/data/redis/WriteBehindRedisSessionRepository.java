@@ -0,0 +1,615 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.session.BatchSessionRepository;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.SessionRepository;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.DetachedSnapshot;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * A {@link SessionRepository} that saves sessions asynchronously using a {@link RedisOperationsSessionRepository}.
+ * Invoking {@link #save(RedisSession)} only records the changes of the session, which removes the latency of Redis
+ * from the response. The changes are written by a background thread in batches, each of which is sent using a single
+ * pipeline. The changed attributes are serialized by {@link #save(RedisSession)}, so the requests that keep using the
+ * session may modify them while the changes are pending without affecting what is written. A session retrieved from
+ * its pending changes gets its own copies of the attribute values, which are deserialized when it is retrieved.
+ * </p>
+ *
+ * <p>
+ * Changes to the same session that have not been written yet are combined, so a session that is saved by many
+ * requests in quick succession is only written once. A session that has changes which have not been written yet is
+ * retrieved from those changes rather than from Redis, which ensures each request sees the changes of the previous
+ * requests.
+ * </p>
+ *
+ * <p>
+ * The number of sessions with pending changes is bounded by {@link #setMaxPendingSessions(int)}. When the limit is
+ * reached, the {@link OverflowPolicy} determines if the session is saved by the thread invoking
+ * {@link #save(RedisSession)} (in which case the limit is exceeded until it is written) or if that thread waits for the
+ * background thread to catch up. The pending changes are
+ * written when the application context is closed (see {@link #destroy()}).
+ * </p>
+ *
+ * <p>
+ * A session remains pending while its changes are being written, so it is retrieved from its pending changes until
+ * they are in Redis. The writes and deletes of the same session are never sent concurrently, so they reach Redis in
+ * order, while the writes of other sessions are not held back. If the changes fail to be written, the error is logged and they are combined with any newer
+ * changes of the same session, which are written by the next flush (see {@link #getFailedSaveCount()}). Changes that
+ * still fail to be written when the session expires are discarded.
+ * </p>
+ *
+ * <p>
+ * <b>NOTE</b>: Changes that have not been written yet are lost if the JVM terminates abruptly or if they still fail
+ * to be written by {@link #destroy()}, and other JVMs do not see them until they are written.
+ * </p>
+ *
+ * @since 1.1
+ */
+public class WriteBehindRedisSessionRepository implements BatchSessionRepository<RedisSession>,
+		FindByIndexNameSessionRepository<RedisSession>, InitializingBean, DisposableBean {
+	private static final Log logger = LogFactory.getLog(WriteBehindRedisSessionRepository.class);
+
+	/**
+	 * What to do when {@link #save(RedisSession)} is invoked while the number of sessions with pending changes is at
+	 * {@link WriteBehindRedisSessionRepository#setMaxPendingSessions(int)}.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The session is saved by the thread that invoked {@link WriteBehindRedisSessionRepository#save(RedisSession)}.
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * The thread that invoked {@link WriteBehindRedisSessionRepository#save(RedisSession)} waits until the
+		 * background thread has written enough sessions.
+		 */
+		BLOCK
+	}
+
+	private final RedisOperationsSessionRepository delegate;
+
+	/**
+	 * The detached sessions that have not been written yet by session id, oldest first. Guarded by itself.
+	 */
+	private final Map<String, RedisSession> pending = new LinkedHashMap<String, RedisSession>();
+
+	/**
+	 * The ids of the sessions that are being written or deleted, which ensures that the writes of the same session are
+	 * not reordered. Guarded by the lock of {@link #pending}.
+	 */
+	private final Set<String> writing = new HashSet<String>();
+
+	/**
+	 * The ids of the sessions that are being deleted, so that their newer changes are not written before they are
+	 * deleted and the changes of a write that was in progress and failed are not pending again. Guarded by the lock
+	 * of {@link #pending}.
+	 */
+	private final Set<String> deleting = new HashSet<String>();
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			try {
+				flush();
+			}
+			catch (Throwable t) {
+				logger.error("Error flushing pending sessions", t);
+			}
+		}
+	};
+
+	private final AtomicLong coalescedSaves = new AtomicLong();
+
+	private final AtomicLong failedSaves = new AtomicLong();
+
+	private ScheduledExecutorService executor;
+
+	private int maxPendingSessions = 10000;
+
+	private int batchSize = 100;
+
+	private long flushIntervalInMillis = 100;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate the {@link RedisOperationsSessionRepository} used to retrieve and write sessions. Cannot be null.
+	 */
+	public WriteBehindRedisSessionRepository(RedisOperationsSessionRepository delegate) {
+		Assert.notNull(delegate, "delegate cannot be null");
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Sets the maximum number of sessions with changes that have not been written yet. The default is 10000.
+	 *
+	 * @param maxPendingSessions the maximum number of sessions with pending changes. Must be positive.
+	 */
+	public void setMaxPendingSessions(int maxPendingSessions) {
+		Assert.isTrue(maxPendingSessions > 0, "maxPendingSessions must be positive");
+		this.maxPendingSessions = maxPendingSessions;
+	}
+
+	/**
+	 * Sets the maximum number of sessions written in a single pipeline. A flush is also triggered as soon as this many
+	 * sessions have pending changes. The default is 100.
+	 *
+	 * @param batchSize the maximum number of sessions written in a single pipeline. Must be positive.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets how long to wait between writing the pending changes. The default is 100 milliseconds. Must be set before
+	 * {@link #afterPropertiesSet()} is invoked.
+	 *
+	 * @param flushIntervalInMillis how long to wait between writing the pending changes. Must be positive.
+	 */
+	public void setFlushIntervalInMillis(long flushIntervalInMillis) {
+		Assert.isTrue(flushIntervalInMillis > 0, "flushIntervalInMillis must be positive");
+		this.flushIntervalInMillis = flushIntervalInMillis;
+	}
+
+	/**
+	 * Sets what to do when the maximum number of sessions with pending changes is reached. The default is
+	 * {@link OverflowPolicy#CALLER_RUNS}.
+	 *
+	 * @param overflowPolicy the {@link OverflowPolicy} to use. Cannot be null.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		Assert.notNull(overflowPolicy, "overflowPolicy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Gets the number of sessions with changes that have not been written yet.
+	 *
+	 * @return the number of sessions with pending changes
+	 */
+	public int getPendingCount() {
+		synchronized(pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Gets the number of saves that were combined with the pending changes of the same session.
+	 *
+	 * @return the number of saves that were combined with pending changes
+	 */
+	public long getCoalescedSaveCount() {
+		return coalescedSaves.get();
+	}
+
+	/**
+	 * Gets the number of times the changes of a session failed to be written. Each failure is counted, including
+	 * those of changes that are written by a later flush.
+	 *
+	 * @return the number of times the changes of a session failed to be written
+	 */
+	public long getFailedSaveCount() {
+		return failedSaves.get();
+	}
+
+	/**
+	 * Starts the background thread that writes the pending changes.
+	 */
+	public void afterPropertiesSet() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "spring-session-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(flushTask, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread and writes all of the pending changes.
+	 */
+	public void destroy() throws Exception {
+		if(executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		flush();
+	}
+
+	public RedisSession createSession() {
+		return delegate.createSession();
+	}
+
+	public void save(RedisSession session) {
+		RedisSession detached = session.detach();
+		String id = detached.getId();
+		boolean overflow = false;
+		boolean triggerFlush;
+		synchronized(pending) {
+			if(overflowPolicy == OverflowPolicy.BLOCK) {
+				// the pending changes of the session stay pending while waiting, so a write of them that fails can
+				// still be combined with them
+				while(!pending.containsKey(id) && pending.size() >= maxPendingSessions && awaitFlush()) {
+				}
+			}
+			RedisSession older = pending.remove(id);
+			if(older != null) {
+				detached.mergeOlder(older);
+				coalescedSaves.incrementAndGet();
+			}
+			overflow = pending.size() >= maxPendingSessions;
+			// even when overflowing, the session is added so that a concurrent save or delete of the same session
+			// is ordered with its write
+			pending.put(id, detached);
+			triggerFlush = pending.size() >= batchSize;
+		}
+		if(overflow) {
+			flush(id);
+		}
+		if(triggerFlush) {
+			triggerFlush();
+		}
+	}
+
+	public RedisSession getSession(String id) {
+		RedisSession session = getPendingSession(id);
+		return session == null ? delegate.getSession(id) : session;
+	}
+
+	public Map<String, RedisSession> getSessions(Collection<String> ids) {
+		Assert.notNull(ids, "ids cannot be null");
+		Map<String, RedisSession> pendingSessions = new LinkedHashMap<String, RedisSession>();
+		List<String> toLoad = new ArrayList<String>(ids.size());
+		for(String id : ids) {
+			RedisSession session = getPendingSession(id);
+			if(session == null) {
+				toLoad.add(id);
+			} else {
+				pendingSessions.put(id, session);
+			}
+		}
+		Map<String, RedisSession> loaded = toLoad.isEmpty() ? Collections.<String, RedisSession>emptyMap() : delegate.getSessions(toLoad);
+		Map<String, RedisSession> result = new LinkedHashMap<String, RedisSession>(ids.size());
+		for(String id : ids) {
+			RedisSession session = pendingSessions.containsKey(id) ? pendingSessions.get(id) : loaded.get(id);
+			if(session != null) {
+				result.put(id, session);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all of the pending changes, since they may change the principal of a session, and then finds the sessions
+	 * using {@link RedisOperationsSessionRepository#findByIndexNameAndIndexValue(String, String)}.
+	 */
+	public Map<String, RedisSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+		flush();
+		return delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+	}
+
+	/**
+	 * Gets a session from its pending changes. If the attributes of the session were not loaded or it expired, its
+	 * pending changes are written so it can be retrieved from Redis instead.
+	 *
+	 * @param id the session id
+	 * @return the session or null if it has no pending changes that contain the entire session
+	 */
+	private RedisSession getPendingSession(String id) {
+		DetachedSnapshot snapshot;
+		synchronized(pending) {
+			RedisSession detached = pending.get(id);
+			if(detached == null) {
+				return null;
+			}
+			snapshot = detached.snapshot();
+		}
+		RedisSession session = snapshot == null ? null : delegate.getSession(snapshot);
+		if(session == null) {
+			// the attributes that were not accessed are unknown, so the pending changes are written first
+			flush(id);
+		}
+		return session;
+	}
+
+	/**
+	 * Discards the pending changes of the session and deletes it once any write of the session that is in progress
+	 * completes, so that the write cannot recreate the session. If that write fails, its changes are discarded as
+	 * well. Saves of the session that happen in the meantime are written after it is deleted.
+	 */
+	public void delete(String id) {
+		synchronized(pending) {
+			pending.remove(id);
+			pending.notifyAll();
+			deleting.add(id);
+			awaitWriting(id, true);
+		}
+		try {
+			delegate.delete(id);
+		}
+		finally {
+			synchronized(pending) {
+				deleting.remove(id);
+			}
+			endWriting(Collections.singleton(id));
+		}
+	}
+
+	/**
+	 * Writes all of the pending changes, including waiting for the writes of other threads that are in progress.
+	 * Stops at the first batch that fails to be written, leaving its changes and those of the remaining sessions
+	 * pending.
+	 */
+	public void flush() {
+		Set<String> inProgress;
+		synchronized(pending) {
+			inProgress = new HashSet<String>(writing);
+		}
+		while(flushBatch()) {
+		}
+		synchronized(pending) {
+			boolean interrupted = false;
+			while(!Collections.disjoint(writing, inProgress)) {
+				try {
+					pending.wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending changes of up to {@link #setBatchSize(int)} sessions, oldest first. The sessions that are
+	 * already being written or deleted by another thread are skipped and left for the next flush.
+	 *
+	 * @return true if a batch was written, false if there were no pending changes or they failed to be written
+	 */
+	private boolean flushBatch() {
+		List<RedisSession> batch = new ArrayList<RedisSession>(batchSize);
+		List<RedisSession> detached = new ArrayList<RedisSession>(batchSize);
+		synchronized(pending) {
+			Iterator<RedisSession> sessions = pending.values().iterator();
+			while(sessions.hasNext() && batch.size() < batchSize) {
+				RedisSession session = sessions.next();
+				if(!deleting.contains(session.getId()) && writing.add(session.getId())) {
+					batch.add(session);
+					detached.add(session.detach());
+				}
+			}
+		}
+		return !batch.isEmpty() && write(batch, detached);
+	}
+
+	/**
+	 * Writes the pending changes of a single session, after any write or delete of the session that is in progress
+	 * completes.
+	 *
+	 * @param id the id of the session
+	 */
+	private void flush(String id) {
+		RedisSession session;
+		RedisSession detached;
+		synchronized(pending) {
+			if(!pending.containsKey(id)) {
+				return;
+			}
+			awaitWriting(id, false);
+			session = pending.get(id);
+			if(session == null) {
+				endWriting(Collections.singleton(id));
+				return;
+			}
+			detached = session.detach();
+		}
+		write(Collections.singletonList(session), Collections.singletonList(detached));
+	}
+
+	/**
+	 * Waits until the session is no longer being written by another thread and marks it as being written by the
+	 * current thread. Unless the current thread deletes the session, it also waits for the session to be deleted. The
+	 * wait is not interrupted, since it only lasts as long as a write of the session. Must be invoked while holding
+	 * the lock of {@link #pending}.
+	 *
+	 * @param id the id of the session
+	 * @param delete true if the current thread deletes the session
+	 */
+	private void awaitWriting(String id, boolean delete) {
+		boolean interrupted = false;
+		while((!delete && deleting.contains(id)) || !writing.add(id)) {
+			try {
+				pending.wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Marks the sessions as no longer being written.
+	 *
+	 * @param ids the ids of the sessions
+	 */
+	private void endWriting(Collection<String> ids) {
+		synchronized(pending) {
+			writing.removeAll(ids);
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the changes of pending sessions, which remain pending until they are written. The pending sessions were
+	 * detached while holding the lock of {@link #pending}, so newer saves are combined with them without writing the
+	 * same changes again. If the batch fails, each session is written on its own, so that a session whose changes
+	 * cannot be written does not hold back the others. The sessions must be marked as being written (see
+	 * {@link #writing}), which they no longer are once this method returns.
+	 *
+	 * @param sessions the pending sessions to write
+	 * @param detached the changes of the pending sessions, in the same order
+	 * @return true if all of the changes were written
+	 */
+	private boolean write(List<RedisSession> sessions, List<RedisSession> detached) {
+		List<String> ids = new ArrayList<String>(sessions.size());
+		for(RedisSession session : sessions) {
+			ids.add(session.getId());
+		}
+		try {
+			return writeAll(sessions, detached);
+		}
+		finally {
+			endWriting(ids);
+		}
+	}
+
+	private boolean writeAll(List<RedisSession> sessions, List<RedisSession> detached) {
+		try {
+			delegate.saveAll(detached);
+			removeWritten(sessions);
+			return true;
+		}
+		catch (RuntimeException e) {
+			if(sessions.size() == 1) {
+				failedSaves.incrementAndGet();
+				logger.error("Error saving session " + sessions.get(0).getId(), e);
+				requeue(detached.get(0));
+				return false;
+			}
+			logger.warn("Error saving " + sessions.size() + " sessions, saving each session separately", e);
+		}
+		boolean written = true;
+		for(int i = 0; i < sessions.size(); i++) {
+			RedisSession session = sessions.get(i);
+			try {
+				delegate.saveAll(Collections.singletonList(detached.get(i)));
+				removeWritten(Collections.singletonList(session));
+			}
+			catch (RuntimeException e) {
+				failedSaves.incrementAndGet();
+				logger.error("Error saving session " + session.getId(), e);
+				requeue(detached.get(i));
+				written = false;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Removes the sessions that were written from the pending sessions, unless they were replaced by a newer save.
+	 *
+	 * @param sessions the pending sessions that were written
+	 */
+	private void removeWritten(List<RedisSession> sessions) {
+		synchronized(pending) {
+			for(RedisSession session : sessions) {
+				String id = session.getId();
+				if(pending.get(id) == session) {
+					pending.remove(id);
+				}
+			}
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Combines the changes that failed to be written with the pending changes of the same session, so they are written
+	 * by the next flush. The changes are discarded if the session expired or is being deleted. Must be invoked while the session is marked
+	 * as being written, so the session is normally still pending. If it is not, the changes that failed are pending
+	 * again on their own.
+	 *
+	 * @param failed the detached session whose changes failed to be written
+	 */
+	private void requeue(RedisSession failed) {
+		String id = failed.getId();
+		synchronized(pending) {
+			if(deleting.contains(id)) {
+				if(logger.isDebugEnabled()) {
+					logger.debug("Discarding the changes of deleted session " + id + " that failed to be written");
+				}
+				return;
+			}
+			RedisSession session = pending.remove(id);
+			if(session == null) {
+				session = failed;
+			} else {
+				session.mergeOlder(failed);
+			}
+			if(session.isExpired()) {
+				logger.warn("Discarding the changes of expired session " + id + " that failed to be written");
+			} else {
+				pending.put(id, session);
+			}
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the background thread to write some of the pending changes. Must be invoked while holding the lock of
+	 * {@link #pending}.
+	 *
+	 * @return false if the current thread was interrupted
+	 */
+	private boolean awaitFlush() {
+		triggerFlush();
+		try {
+			pending.wait(flushIntervalInMillis);
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void triggerFlush() {
+		if(executor != null && !executor.isShutdown()) {
+			executor.execute(flushTask);
+		}
+	}
+}
@@ -19,6 +19,7 @@ import java.util.List;
 
 import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.util.Assert;
 
 /**
  * <p>
@@ -31,6 +32,10 @@ import org.springframework.data.redis.connection.RedisConnection;
  * </pre>
  *
  * <p>
+ * When using {@link KeyspaceNotificationMode#KEYSPACE} the "K" class is enabled rather than the "E" class.
+ * </p>
+ *
+ * <p>
  * This strategy will not work if the Redis instance has been properly secured. Instead,
  * the Redis instance should be configured externally and a Bean of type
  * {@link ConfigureRedisAction#NO_OP} should be exposed.
@@ -43,14 +48,35 @@ public class ConfigureNotifyKeyspaceEventsAction implements ConfigureRedisAction
 
 	static final String CONFIG_NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
 
+	private final KeyspaceNotificationMode notificationMode;
+
+	/**
+	 * Creates a new instance that enables the notifications for {@link KeyspaceNotificationMode#KEYEVENT}.
+	 */
+	public ConfigureNotifyKeyspaceEventsAction() {
+		this(KeyspaceNotificationMode.KEYEVENT);
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param notificationMode the {@link KeyspaceNotificationMode} to enable the notifications for. Cannot be null.
+	 * @since 1.1
+	 */
+	public ConfigureNotifyKeyspaceEventsAction(KeyspaceNotificationMode notificationMode) {
+		Assert.notNull(notificationMode, "notificationMode cannot be null");
+		this.notificationMode = notificationMode;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.springframework.session.data.redis.config.ConfigureRedisAction#configure(org.springframework.data.redis.connection.RedisConnection)
 	 */
 	public void configure(RedisConnection connection) {
 		String notifyOptions = getNotifyOptions(connection);
 		String customizedNotifyOptions = notifyOptions;
-		if(!customizedNotifyOptions.contains("E")) {
-			customizedNotifyOptions += "E";
+		String notificationClass = notificationMode == KeyspaceNotificationMode.KEYSPACE ? "K" : "E";
+		if(!customizedNotifyOptions.contains(notificationClass)) {
+			customizedNotifyOptions += notificationClass;
 		}
 		boolean A = customizedNotifyOptions.contains("A");
 		if(!(A || customizedNotifyOptions.contains("g"))) {
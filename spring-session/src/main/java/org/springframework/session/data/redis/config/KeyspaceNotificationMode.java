@@ -0,0 +1,48 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis.config;
+
+/**
+ * Specifies which Redis
+ * <a href="http://redis.io/topics/notifications">keyspace notifications</a> the
+ * {@link org.springframework.session.data.redis.SessionMessageListener} subscribes
+ * to in order to fire a
+ * {@link org.springframework.session.events.SessionDestroyedEvent}.
+ *
+ * @since 1.1
+ */
+public enum KeyspaceNotificationMode {
+
+	/**
+	 * Subscribes to the <code>__keyevent@*__:del</code> and
+	 * <code>__keyevent@*__:expired</code> channels, which receive the deletion and
+	 * expiration of every key in every database of the Redis server. This is the
+	 * default and requires the "E" notification class.
+	 */
+	KEYEVENT,
+
+	/**
+	 * Subscribes to the <code>__keyspace@&lt;database&gt;__:spring:session:sessions:*</code>
+	 * channels, which only receive the notifications of the session keys. This
+	 * requires the "K" notification class.
+	 *
+	 * Since the "g" class includes both "del" and "expire", every save of a session
+	 * also delivers an "expire" notification (which is ignored) to every subscriber.
+	 * This mode therefore only receives fewer notifications than {@link #KEYEVENT}
+	 * when other keys are deleted or expire more often than sessions are saved.
+	 */
+	KEYSPACE
+}
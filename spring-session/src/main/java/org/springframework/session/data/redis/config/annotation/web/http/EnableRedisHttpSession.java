@@ -22,6 +22,9 @@ import java.lang.annotation.Target;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.session.data.redis.RedisExpirationMode;
+import org.springframework.session.data.redis.RedisKeyBuilder;
+import org.springframework.session.data.redis.RedisSaveMode;
 
 /**
  * Add this annotation to an {@code @Configuration} class to expose the
@@ -42,6 +45,17 @@ import org.springframework.data.redis.connection.RedisConnectionFactory;
  * }
  * </pre>
  *
+ * The values of the session are written using JDK serialization unless a
+ * {@link org.springframework.data.redis.serializer.RedisSerializer} Bean named
+ * "springSessionDefaultRedisSerializer" is provided. For example:
+ *
+ * <pre>
+ * {@literal @Bean}
+ * public RedisSerializer&lt;Object&gt; springSessionDefaultRedisSerializer() {
+ *     return new CompactRedisSerializer();
+ * }
+ * </pre>
+ *
  * More advanced configurations can extend {@link RedisHttpSessionConfiguration} instead.
  *
  * @author Rob Winch
@@ -54,4 +68,97 @@ import org.springframework.data.redis.connection.RedisConnectionFactory;
 @Configuration
 public @interface EnableRedisHttpSession {
 	int maxInactiveIntervalInSeconds() default 1800;
-}
\ No newline at end of file
+
+	/**
+	 * The namespace that every Redis key starts with (see {@link RedisKeyBuilder}). Applications that share a Redis
+	 * use distinct namespaces in order to not share their sessions.
+	 *
+	 * @return the namespace of the Redis keys
+	 */
+	String redisNamespace() default RedisKeyBuilder.DEFAULT_NAMESPACE;
+
+	/**
+	 * The hash tag added after the namespace of every Redis key, so that Redis Cluster stores them in the same slot
+	 * (see {@link RedisKeyBuilder}). The default is no hash tag.
+	 *
+	 * @return the hash tag of the Redis keys or an empty String for none
+	 */
+	String redisHashTag() default "";
+
+	/**
+	 * The number of shards that the sessions are spread across, so that Redis Cluster stores the keys of each session
+	 * in the same slot while spreading the sessions across its nodes (see {@link RedisKeyBuilder}). Cannot be combined
+	 * with {@link #redisHashTag()}. The default is 1, which does not shard the keys.
+	 *
+	 * @return the number of shards
+	 */
+	int redisShards() default 1;
+
+	/**
+	 * Whether the sessions are indexed by principal name, so that they can be found with
+	 * {@link org.springframework.session.data.redis.RedisOperationsSessionRepository#findByIndexNameAndIndexValue(String, String)}.
+	 * The index sets do not expire and are only pruned when they are queried, so they should only be enabled when
+	 * they are used. The default is false.
+	 *
+	 * @return true to index the sessions by principal name
+	 */
+	boolean indexPrincipalNames() default false;
+
+	/**
+	 * How the commands that save or delete a session are sent to Redis (see {@link RedisSaveMode}). The default is
+	 * {@link RedisSaveMode#SEQUENTIAL}.
+	 *
+	 * @return the {@link RedisSaveMode} to use
+	 */
+	RedisSaveMode saveMode() default RedisSaveMode.SEQUENTIAL;
+
+	/**
+	 * Whether the attributes of a session are loaded the first time they are accessed rather than when the session is
+	 * loaded (see
+	 * {@link org.springframework.session.data.redis.RedisOperationsSessionRepository#setLazyAttributeLoading(boolean)}).
+	 * The default is false.
+	 *
+	 * @return true to load each attribute on first access
+	 */
+	boolean lazyAttributeLoading() default false;
+
+	/**
+	 * Whether the attributes that changed are detected by comparing their serialized values, which also saves the
+	 * attributes that were modified in place (see
+	 * {@link org.springframework.session.data.redis.RedisOperationsSessionRepository#setDetectAttributeChanges(boolean)}).
+	 * The default is false.
+	 *
+	 * @return true to detect changed attributes by their serialized value
+	 */
+	boolean detectAttributeChanges() default false;
+
+	/**
+	 * How many seconds must pass since the persisted last accessed time of a session before retrieving the session
+	 * updates it (see
+	 * {@link org.springframework.session.data.redis.RedisOperationsSessionRepository#setTouchGranularityInSeconds(int)}).
+	 * The default is 0, which updates it on every retrieval.
+	 *
+	 * @return the minimum number of seconds between updates of the last accessed time
+	 */
+	int touchGranularityInSeconds() default 0;
+
+	/**
+	 * How the expirations of the sessions are tracked for the cleanup of expired sessions (see
+	 * {@link RedisExpirationMode}). The default is {@link RedisExpirationMode#BUCKETS}.
+	 *
+	 * @return the {@link RedisExpirationMode} to use
+	 */
+	RedisExpirationMode expirationMode() default RedisExpirationMode.BUCKETS;
+
+	/**
+	 * The duration of the lease that an instance must hold in order to clean up the expired sessions, so that only
+	 * one of the instances sharing a Redis cleans up at a time (see
+	 * {@link org.springframework.session.data.redis.RedisOperationsSessionRepository#setCleanupLeaseInSeconds(int)}).
+	 * It must be longer than a minute plus the jitter of the cleanup (see
+	 * {@link RedisHttpSessionConfiguration#setCleanupJitterInSeconds(int)}). The default is 0, which cleans up on
+	 * every instance.
+	 *
+	 * @return the duration of the cleanup lease in seconds
+	 */
+	int cleanupLeaseInSeconds() default 0;
+}
@@ -16,13 +16,19 @@
 package org.springframework.session.data.redis.config.annotation.web.http;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 
 import org.springframework.beans.factory.BeanClassLoaderAware;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -32,20 +38,36 @@ import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.core.type.AnnotationMetadata;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.SessionRepository;
+import org.springframework.session.data.redis.RedisExpirationMode;
+import org.springframework.session.data.redis.RedisKeyBuilder;
 import org.springframework.session.data.redis.RedisOperationsSessionRepository;
+import org.springframework.session.data.redis.RedisSaveMode;
 import org.springframework.session.data.redis.SessionMessageListener;
+import org.springframework.session.data.redis.SessionNearCache;
 import org.springframework.session.data.redis.config.ConfigureNotifyKeyspaceEventsAction;
 import org.springframework.session.data.redis.config.ConfigureRedisAction;
+import org.springframework.session.data.redis.config.KeyspaceNotificationMode;
 import org.springframework.session.web.http.HttpSessionStrategy;
 import org.springframework.session.web.http.SessionRepositoryFilter;
+import org.springframework.util.Assert;
 import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
 
 /**
  * Exposes the {@link SessionRepositoryFilter} as a bean named
@@ -59,7 +81,13 @@ import org.springframework.util.ClassUtils;
  */
 @Configuration
 @EnableScheduling
-public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoaderAware {
+public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoaderAware, SchedulingConfigurer {
+
+	private static final boolean jedisPresent = ClassUtils.isPresent("redis.clients.jedis.Jedis",
+			RedisHttpSessionConfiguration.class.getClassLoader());
+
+	private static final boolean lettucePresent = ClassUtils.isPresent("com.lambdaworks.redis.RedisClient",
+			RedisHttpSessionConfiguration.class.getClassLoader());
 
 	private ClassLoader beanClassLoader;
 
@@ -67,42 +95,174 @@ public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoad
 
 	private HttpSessionStrategy httpSessionStrategy;
 
+	private SessionNearCache sessionNearCache;
+
+	private RedisSerializer<Object> defaultRedisSerializer;
+
+	private RedisConnectionFactory replicaRedisConnectionFactory;
+
 	@Autowired
 	private ApplicationEventPublisher eventPublisher;
 
-	private ConfigureRedisAction configureRedisAction = new ConfigureNotifyKeyspaceEventsAction();
+	private ConfigureRedisAction configureRedisAction;
+
+	private KeyspaceNotificationMode keyspaceNotificationMode = KeyspaceNotificationMode.KEYEVENT;
+
+	private String redisNamespace = RedisKeyBuilder.DEFAULT_NAMESPACE;
+
+	private String redisHashTag;
+
+	private int redisShards = 1;
+
+	private boolean indexPrincipalNames;
+
+	private RedisSaveMode saveMode = RedisSaveMode.SEQUENTIAL;
+
+	private boolean lazyAttributeLoading;
+
+	private boolean detectAttributeChanges;
+
+	private int touchGranularityInSeconds;
+
+	private RedisExpirationMode expirationMode = RedisExpirationMode.BUCKETS;
+
+	private int cleanupJitterInSeconds;
+
+	private int maxBucketsPerCleanup = 60;
+
+	private int cleanupLeaseInSeconds;
+
+	private RedisOperationsSessionRepository sessionRepository;
+
+	private int eventDispatchThreads;
+
+	private int maxPendingEvents = 10000;
+
+	private SessionMessageListener.OverflowPolicy eventOverflowPolicy = SessionMessageListener.OverflowPolicy.CALLER_RUNS;
 
 	@Bean
 	public RedisMessageListenerContainer redisMessageListenerContainer(
 			RedisConnectionFactory connectionFactory) {
 		RedisMessageListenerContainer container = new RedisMessageListenerContainer();
 		container.setConnectionFactory(connectionFactory);
-		container.addMessageListener(redisSessionMessageListener(),
-				Arrays.asList(new PatternTopic("__keyevent@*:del"),new PatternTopic("__keyevent@*:expired")));
+		container.addMessageListener(redisSessionMessageListener(), getSessionDestroyedTopics(connectionFactory));
+		if(sessionNearCache != null) {
+			container.addMessageListener(sessionNearCache, new ChannelTopic(sessionNearCache.getChannel()));
+		}
 		return container;
 	}
 
+	/**
+	 * Gets the {@link Topic} instances that {@link SessionMessageListener} subscribes to for the
+	 * {@link KeyspaceNotificationMode}.
+	 *
+	 * @param connectionFactory the {@link RedisConnectionFactory} to get the database from
+	 * @return the {@link Topic} instances to subscribe to
+	 */
+	Collection<? extends Topic> getSessionDestroyedTopics(RedisConnectionFactory connectionFactory) {
+		if(keyspaceNotificationMode == KeyspaceNotificationMode.KEYSPACE) {
+			return Collections.singleton(new PatternTopic("__keyspace@" + getDatabase(connectionFactory) + "__:" + getKeyBuilder().getSessionKeyPattern()));
+		}
+		return Arrays.asList(new PatternTopic("__keyevent@*:del"),new PatternTopic("__keyevent@*:expired"));
+	}
+
+	/**
+	 * Gets the database of the {@link RedisConnectionFactory}. Only a {@link JedisConnectionFactory} and a
+	 * {@link LettuceConnectionFactory} expose it.
+	 *
+	 * @throws IllegalStateException if the {@link RedisConnectionFactory} does not expose its database
+	 */
+	private static int getDatabase(RedisConnectionFactory connectionFactory) {
+		// the client libraries are optional, so the classes are only referenced when they can be loaded
+		if(jedisPresent && connectionFactory instanceof JedisConnectionFactory) {
+			return ((JedisConnectionFactory) connectionFactory).getDatabase();
+		}
+		if(lettucePresent && connectionFactory instanceof LettuceConnectionFactory) {
+			return ((LettuceConnectionFactory) connectionFactory).getDatabase();
+		}
+		throw new IllegalStateException("Unable to determine the database of " + connectionFactory
+				+ ", which KeyspaceNotificationMode.KEYSPACE subscribes to. Use a JedisConnectionFactory or a "
+				+ "LettuceConnectionFactory, or KeyspaceNotificationMode.KEYEVENT.");
+	}
+
 	@Bean
 	public SessionMessageListener redisSessionMessageListener() {
-		return new SessionMessageListener(eventPublisher);
+		SessionMessageListener sessionMessageListener = new SessionMessageListener(eventPublisher);
+		sessionMessageListener.setKeyBuilder(getKeyBuilder());
+		sessionMessageListener.setDispatchThreads(eventDispatchThreads);
+		sessionMessageListener.setMaxPendingEvents(maxPendingEvents);
+		sessionMessageListener.setOverflowPolicy(eventOverflowPolicy);
+		return sessionMessageListener;
 	}
 
 	@Bean
 	public RedisTemplate<String,ExpiringSession> sessionRedisTemplate(RedisConnectionFactory connectionFactory) {
+		return createSessionRedisTemplate(connectionFactory);
+	}
+
+	private RedisTemplate<String,ExpiringSession> createSessionRedisTemplate(RedisConnectionFactory connectionFactory) {
 		RedisTemplate<String, ExpiringSession> template = new RedisTemplate<String, ExpiringSession>();
 		template.setKeySerializer(new StringRedisSerializer());
 		template.setHashKeySerializer(new StringRedisSerializer());
+		if(defaultRedisSerializer != null) {
+			template.setDefaultSerializer(defaultRedisSerializer);
+		}
 		template.setConnectionFactory(connectionFactory);
 		return template;
 	}
 
 	@Bean
 	public RedisOperationsSessionRepository sessionRepository(RedisTemplate<String, ExpiringSession> sessionRedisTemplate) {
+		// the cleanups are up to a minute plus the jitter apart, so a shorter lease expires between them
+		long cleanupIntervalInSeconds = TimeUnit.MILLISECONDS.toSeconds(CleanupTrigger.CLEANUP_INTERVAL_IN_MILLIS);
+		Assert.isTrue(cleanupLeaseInSeconds == 0 || cleanupLeaseInSeconds > cleanupIntervalInSeconds + cleanupJitterInSeconds,
+				"cleanupLeaseInSeconds must be 0 or more than " + cleanupIntervalInSeconds + " plus cleanupJitterInSeconds");
 		RedisOperationsSessionRepository sessionRepository = new RedisOperationsSessionRepository(sessionRedisTemplate);
 		sessionRepository.setDefaultMaxInactiveInterval(maxInactiveIntervalInSeconds);
+		sessionRepository.setNearCache(sessionNearCache);
+		sessionRepository.setMaxBucketsPerCleanup(maxBucketsPerCleanup);
+		sessionRepository.setCleanupLeaseInSeconds(cleanupLeaseInSeconds);
+		// the cleanup is scheduled by configureTasks instead
+		sessionRepository.setScheduledCleanupEnabled(false);
+		sessionRepository.setKeyBuilder(getKeyBuilder());
+		sessionRepository.setIndexPrincipalNames(indexPrincipalNames);
+		sessionRepository.setSaveMode(saveMode);
+		sessionRepository.setLazyAttributeLoading(lazyAttributeLoading);
+		sessionRepository.setDetectAttributeChanges(detectAttributeChanges);
+		sessionRepository.setTouchGranularityInSeconds(touchGranularityInSeconds);
+		sessionRepository.setExpirationMode(expirationMode);
+		if(replicaRedisConnectionFactory != null) {
+			RedisTemplate<String, ExpiringSession> replicaRedisTemplate = createSessionRedisTemplate(replicaRedisConnectionFactory);
+			replicaRedisTemplate.afterPropertiesSet();
+			sessionRepository.setReplicaRedisOperations(replicaRedisTemplate);
+		}
+		this.sessionRepository = sessionRepository;
 		return sessionRepository;
 	}
 
+	private RedisKeyBuilder getKeyBuilder() {
+		if(redisShards > 1) {
+			Assert.isNull(redisHashTag, "redisHashTag cannot be combined with redisShards");
+			return new RedisKeyBuilder(redisNamespace, redisShards);
+		}
+		return new RedisKeyBuilder(redisNamespace, redisHashTag);
+	}
+
+	/**
+	 * Schedules {@link RedisOperationsSessionRepository#cleanupExpiredSessionsNow()} using a {@link CleanupTrigger}.
+	 */
+	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+		final RedisOperationsSessionRepository sessionRepository = this.sessionRepository;
+		if(sessionRepository == null) {
+			return;
+		}
+		taskRegistrar.addTriggerTask(new Runnable() {
+			public void run() {
+				sessionRepository.cleanupExpiredSessionsNow();
+			}
+		}, new CleanupTrigger(sessionRepository, TimeUnit.SECONDS.toMillis(cleanupJitterInSeconds)));
+	}
+
 	@Bean
 	public <S extends ExpiringSession> SessionRepositoryFilter<? extends ExpiringSession> springSessionRepositoryFilter(SessionRepository<S> sessionRepository, ServletContext servletContext) {
 		SessionRepositoryFilter<S> sessionRepositoryFilter = new SessionRepositoryFilter<S>(sessionRepository);
@@ -117,6 +277,197 @@ public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoad
 		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
 	}
 
+	/**
+	 * Sets the maximum number of seconds that the cleanup of expired sessions is delayed past the start of each
+	 * minute. Each cleanup is delayed by a random amount up to this value, so that the instances of an application
+	 * do not all access Redis at the same second. The default is 0.
+	 *
+	 * @param cleanupJitterInSeconds the maximum delay in seconds. Must be at least 0 and less than 60.
+	 */
+	public void setCleanupJitterInSeconds(int cleanupJitterInSeconds) {
+		Assert.isTrue(cleanupJitterInSeconds >= 0 && cleanupJitterInSeconds < 60, "cleanupJitterInSeconds must be between 0 and 59");
+		this.cleanupJitterInSeconds = cleanupJitterInSeconds;
+	}
+
+	/**
+	 * Sets the maximum number of expiration buckets cleaned up at once when catching up on the buckets that were missed
+	 * (see {@link RedisOperationsSessionRepository#setMaxBucketsPerCleanup(int)}). While there are buckets left, the
+	 * cleanup is invoked again after a second rather than at the next minute.
+	 *
+	 * @param maxBucketsPerCleanup the maximum number of buckets per cleanup. Must be positive. The default is 60.
+	 */
+	public void setMaxBucketsPerCleanup(int maxBucketsPerCleanup) {
+		Assert.isTrue(maxBucketsPerCleanup > 0, "maxBucketsPerCleanup must be positive");
+		this.maxBucketsPerCleanup = maxBucketsPerCleanup;
+	}
+
+	/**
+	 * Sets the duration of the lease that an instance must hold in order to clean up the expired sessions, so that
+	 * only one of the instances sharing a Redis cleans up at a time (see
+	 * {@link RedisOperationsSessionRepository#setCleanupLeaseInSeconds(int)}). The holder renews the lease each time
+	 * it cleans up, so it must be longer than a minute plus {@link #setCleanupJitterInSeconds(int)}. The default is 0,
+	 * which cleans up on every instance.
+	 *
+	 * @param cleanupLeaseInSeconds the duration of the lease in seconds. Cannot be negative.
+	 */
+	public void setCleanupLeaseInSeconds(int cleanupLeaseInSeconds) {
+		Assert.isTrue(cleanupLeaseInSeconds >= 0, "cleanupLeaseInSeconds cannot be negative");
+		this.cleanupLeaseInSeconds = cleanupLeaseInSeconds;
+	}
+
+	/**
+	 * Sets the number of background threads that publish the
+	 * {@link org.springframework.session.events.SessionDestroyedEvent} instances (see
+	 * {@link SessionMessageListener#setDispatchThreads(int)}). The default is 0, which publishes them on the thread
+	 * that receives the Redis notifications.
+	 *
+	 * @param eventDispatchThreads the number of background threads. Cannot be negative.
+	 */
+	public void setEventDispatchThreads(int eventDispatchThreads) {
+		Assert.isTrue(eventDispatchThreads >= 0, "eventDispatchThreads cannot be negative");
+		this.eventDispatchThreads = eventDispatchThreads;
+	}
+
+	/**
+	 * Sets the maximum number of events waiting to be published by the background threads (see
+	 * {@link SessionMessageListener#setMaxPendingEvents(int)}). The default is 10000.
+	 *
+	 * @param maxPendingEvents the maximum number of pending events. Must be positive.
+	 */
+	public void setMaxPendingEvents(int maxPendingEvents) {
+		Assert.isTrue(maxPendingEvents > 0, "maxPendingEvents must be positive");
+		this.maxPendingEvents = maxPendingEvents;
+	}
+
+	/**
+	 * Sets what to do when the maximum number of pending events is reached (see
+	 * {@link SessionMessageListener#setOverflowPolicy(SessionMessageListener.OverflowPolicy)}). The default is
+	 * {@link SessionMessageListener.OverflowPolicy#CALLER_RUNS}.
+	 *
+	 * @param eventOverflowPolicy the {@link SessionMessageListener.OverflowPolicy} to use. Cannot be null.
+	 */
+	public void setEventOverflowPolicy(SessionMessageListener.OverflowPolicy eventOverflowPolicy) {
+		Assert.notNull(eventOverflowPolicy, "eventOverflowPolicy cannot be null");
+		this.eventOverflowPolicy = eventOverflowPolicy;
+	}
+
+	/**
+	 * Sets which Redis keyspace notifications are subscribed to in order to fire the
+	 * {@link org.springframework.session.events.SessionDestroyedEvent} instances. The default is
+	 * {@link KeyspaceNotificationMode#KEYEVENT}, which receives the deletion and expiration of every key in every
+	 * database. {@link KeyspaceNotificationMode#KEYSPACE} only receives the notifications of the session keys in the
+	 * database of the {@link RedisConnectionFactory}, but including an "expire" notification for every save of a
+	 * session. It requires a JedisConnectionFactory or a LettuceConnectionFactory, which expose their database.
+	 *
+	 * @param keyspaceNotificationMode the {@link KeyspaceNotificationMode} to use. Cannot be null.
+	 */
+	public void setKeyspaceNotificationMode(KeyspaceNotificationMode keyspaceNotificationMode) {
+		Assert.notNull(keyspaceNotificationMode, "keyspaceNotificationMode cannot be null");
+		this.keyspaceNotificationMode = keyspaceNotificationMode;
+	}
+
+	/**
+	 * Sets the namespace that every Redis key starts with (see {@link RedisKeyBuilder}). The default is
+	 * "spring:session".
+	 *
+	 * @param redisNamespace the namespace of the Redis keys. Cannot be empty.
+	 */
+	public void setRedisNamespace(String redisNamespace) {
+		Assert.hasText(redisNamespace, "redisNamespace cannot be empty");
+		this.redisNamespace = redisNamespace;
+	}
+
+	/**
+	 * Sets the hash tag added after the namespace of every Redis key, so that Redis Cluster stores them in the same
+	 * slot (see {@link RedisKeyBuilder}). The default is no hash tag.
+	 *
+	 * @param redisHashTag the hash tag of the Redis keys or null for none
+	 */
+	public void setRedisHashTag(String redisHashTag) {
+		this.redisHashTag = redisHashTag;
+	}
+
+	/**
+	 * Sets the number of shards that the sessions are spread across, so that Redis Cluster stores the keys of each
+	 * session in the same slot while spreading the sessions across its nodes (see {@link RedisKeyBuilder}). Cannot be
+	 * combined with {@link #setRedisHashTag(String)}. The default is 1, which does not shard the keys.
+	 *
+	 * @param redisShards the number of shards. Must be at least 1.
+	 */
+	public void setRedisShards(int redisShards) {
+		Assert.isTrue(redisShards >= 1, "redisShards must be at least 1");
+		this.redisShards = redisShards;
+	}
+
+	/**
+	 * Sets whether the sessions are indexed by principal name, so that they can be found with
+	 * {@link RedisOperationsSessionRepository#findByIndexNameAndIndexValue(String, String)} (see
+	 * {@link RedisOperationsSessionRepository#setIndexPrincipalNames(boolean)}). The default is false.
+	 *
+	 * @param indexPrincipalNames true to index the sessions by principal name
+	 */
+	public void setIndexPrincipalNames(boolean indexPrincipalNames) {
+		this.indexPrincipalNames = indexPrincipalNames;
+	}
+
+	/**
+	 * Sets how the commands that save or delete a session are sent to Redis (see
+	 * {@link RedisOperationsSessionRepository#setSaveMode(RedisSaveMode)}). The default is
+	 * {@link RedisSaveMode#SEQUENTIAL}.
+	 *
+	 * @param saveMode the {@link RedisSaveMode} to use. Cannot be null.
+	 */
+	public void setSaveMode(RedisSaveMode saveMode) {
+		Assert.notNull(saveMode, "saveMode cannot be null");
+		this.saveMode = saveMode;
+	}
+
+	/**
+	 * Sets whether the attributes of a session are loaded the first time they are accessed rather than when the session
+	 * is loaded (see {@link RedisOperationsSessionRepository#setLazyAttributeLoading(boolean)}). The default is false.
+	 *
+	 * @param lazyAttributeLoading true to load each attribute on first access
+	 */
+	public void setLazyAttributeLoading(boolean lazyAttributeLoading) {
+		this.lazyAttributeLoading = lazyAttributeLoading;
+	}
+
+	/**
+	 * Sets whether the attributes that changed are detected by comparing their serialized values, which also saves the
+	 * attributes that were modified in place (see
+	 * {@link RedisOperationsSessionRepository#setDetectAttributeChanges(boolean)}). The default is false.
+	 *
+	 * @param detectAttributeChanges true to detect changed attributes by their serialized value
+	 */
+	public void setDetectAttributeChanges(boolean detectAttributeChanges) {
+		this.detectAttributeChanges = detectAttributeChanges;
+	}
+
+	/**
+	 * Sets how many seconds must pass since the persisted last accessed time of a session before retrieving the session
+	 * updates it (see {@link RedisOperationsSessionRepository#setTouchGranularityInSeconds(int)}). The default is 0,
+	 * which updates it on every retrieval.
+	 *
+	 * @param touchGranularityInSeconds the minimum number of seconds between updates of the last accessed time. Cannot
+	 *                                  be negative.
+	 */
+	public void setTouchGranularityInSeconds(int touchGranularityInSeconds) {
+		Assert.isTrue(touchGranularityInSeconds >= 0, "touchGranularityInSeconds cannot be negative");
+		this.touchGranularityInSeconds = touchGranularityInSeconds;
+	}
+
+	/**
+	 * Sets how the expirations of the sessions are tracked for the cleanup of expired sessions (see
+	 * {@link RedisOperationsSessionRepository#setExpirationMode(RedisExpirationMode)}). The default is
+	 * {@link RedisExpirationMode#BUCKETS}.
+	 *
+	 * @param expirationMode the {@link RedisExpirationMode} to use. Cannot be null.
+	 */
+	public void setExpirationMode(RedisExpirationMode expirationMode) {
+		Assert.notNull(expirationMode, "expirationMode cannot be null");
+		this.expirationMode = expirationMode;
+	}
+
 	public void setImportMetadata(AnnotationMetadata importMetadata) {
 
 		Map<String, Object> enableAttrMap = importMetadata.getAnnotationAttributes(EnableRedisHttpSession.class.getName());
@@ -135,6 +486,17 @@ public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoad
 			}
 		}
 		maxInactiveIntervalInSeconds = enableAttrs.getNumber("maxInactiveIntervalInSeconds");
+		redisNamespace = enableAttrs.getString("redisNamespace");
+		String hashTag = enableAttrs.getString("redisHashTag");
+		redisHashTag = StringUtils.hasLength(hashTag) ? hashTag : null;
+		redisShards = enableAttrs.getNumber("redisShards");
+		indexPrincipalNames = enableAttrs.getBoolean("indexPrincipalNames");
+		saveMode = enableAttrs.getEnum("saveMode");
+		lazyAttributeLoading = enableAttrs.getBoolean("lazyAttributeLoading");
+		detectAttributeChanges = enableAttrs.getBoolean("detectAttributeChanges");
+		touchGranularityInSeconds = enableAttrs.getNumber("touchGranularityInSeconds");
+		expirationMode = enableAttrs.getEnum("expirationMode");
+		cleanupLeaseInSeconds = enableAttrs.getNumber("cleanupLeaseInSeconds");
 	}
 
 	@Autowired(required = false)
@@ -142,8 +504,49 @@ public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoad
 		this.httpSessionStrategy = httpSessionStrategy;
 	}
 
+	/**
+	 * Sets the {@link SessionNearCache} used by the {@link RedisOperationsSessionRepository}. It is also registered
+	 * with the {@link RedisMessageListenerContainer} in order to receive invalidations from other JVMs.
+	 *
+	 * @param sessionNearCache the {@link SessionNearCache} to use. The default is to not use a near cache.
+	 */
+	@Autowired(required = false)
+	public void setSessionNearCache(SessionNearCache sessionNearCache) {
+		this.sessionNearCache = sessionNearCache;
+	}
+
+	/**
+	 * Sets the {@link RedisSerializer} used for the values of the session (i.e. the creation time, last accessed time,
+	 * max inactive interval and attributes) by exposing a Bean named "springSessionDefaultRedisSerializer". For example,
+	 * a {@link org.springframework.session.data.redis.CompactRedisSerializer} stores the values in far fewer bytes than the default JDK serialization.
+	 *
+	 * @param defaultRedisSerializer the {@link RedisSerializer} to use. The default is to use JDK serialization.
+	 */
+	@Autowired(required = false)
+	public void setDefaultRedisSerializer(@Qualifier("springSessionDefaultRedisSerializer") RedisSerializer<Object> defaultRedisSerializer) {
+		this.defaultRedisSerializer = defaultRedisSerializer;
+	}
+
+	/**
+	 * Sets the {@link RedisConnectionFactory} of a replica that the sessions are loaded from by exposing a Bean named
+	 * "springSessionReplicaRedisConnectionFactory" (see
+	 * {@link RedisOperationsSessionRepository#setReplicaRedisOperations(org.springframework.data.redis.core.RedisOperations)}).
+	 * Since there are then two {@link RedisConnectionFactory} Beans, the one of the master must be marked as primary.
+	 *
+	 * @param replicaRedisConnectionFactory the {@link RedisConnectionFactory} of the replica. The default is to load
+	 *        the sessions from the master.
+	 */
+	@Autowired(required = false)
+	public void setReplicaRedisConnectionFactory(@Qualifier("springSessionReplicaRedisConnectionFactory") RedisConnectionFactory replicaRedisConnectionFactory) {
+		this.replicaRedisConnectionFactory = replicaRedisConnectionFactory;
+	}
+
 	@Bean
 	public EnableRedisKeyspaceNotificationsInitializer enableRedisKeyspaceNotificationsInitializer(RedisConnectionFactory connectionFactory) {
+		ConfigureRedisAction configureRedisAction = this.configureRedisAction;
+		if(configureRedisAction == null) {
+			configureRedisAction = new ConfigureNotifyKeyspaceEventsAction(keyspaceNotificationMode);
+		}
 		return new EnableRedisKeyspaceNotificationsInitializer(connectionFactory, configureRedisAction);
 	}
 
@@ -170,10 +573,45 @@ public class RedisHttpSessionConfiguration implements ImportAware, BeanClassLoad
 		}
 	}
 
+	/**
+	 * Triggers the cleanup of expired sessions at the start of each minute plus a random jitter, or a second after the
+	 * previous cleanup while it is catching up on missed buckets.
+	 */
+	static class CleanupTrigger implements Trigger {
+		static final long CLEANUP_INTERVAL_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+		static final long CATCH_UP_DELAY_IN_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+		private final RedisOperationsSessionRepository sessionRepository;
+
+		private final long jitterInMillis;
+
+		private final Random random = new Random();
+
+		CleanupTrigger(RedisOperationsSessionRepository sessionRepository, long jitterInMillis) {
+			this.sessionRepository = sessionRepository;
+			this.jitterInMillis = jitterInMillis;
+		}
+
+		public Date nextExecutionTime(TriggerContext triggerContext) {
+			return new Date(nextExecutionTime(System.currentTimeMillis()));
+		}
+
+		long nextExecutionTime(long now) {
+			if(sessionRepository.isCleanupBehind()) {
+				return now + CATCH_UP_DELAY_IN_MILLIS;
+			}
+			long nextMinute = now - (now % CLEANUP_INTERVAL_IN_MILLIS) + CLEANUP_INTERVAL_IN_MILLIS;
+			long jitter = jitterInMillis == 0 ? 0 : (long) (random.nextDouble() * jitterInMillis);
+			return nextMinute + jitter;
+		}
+	}
+
 	/**
 	 * Sets the action to perform for configuring Redis.
 	 *
-	 * @param configureRedisAction the configureRedis to set. The default is {@link ConfigureNotifyKeyspaceEventsAction}.
+	 * @param configureRedisAction the configureRedis to set. The default is {@link ConfigureNotifyKeyspaceEventsAction}
+	 * for the {@link KeyspaceNotificationMode}.
 	 */
 	@Autowired(required = false)
 	public void setConfigureRedisAction(ConfigureRedisAction configureRedisAction) {
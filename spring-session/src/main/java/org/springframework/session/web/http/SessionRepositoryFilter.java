@@ -33,6 +33,7 @@ import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionContext;
 
 import org.springframework.core.annotation.Order;
+import org.springframework.session.DirtyTrackingSession;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.Session;
 import org.springframework.session.SessionRepository;
@@ -55,6 +56,10 @@ import org.springframework.session.SessionRepository;
  *     <li>The client is notified that the session id is no longer valid with {@link HttpSessionStrategy#onInvalidateSession(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}</li>
  * </ul>
  *
+ * A session that implements {@link DirtyTrackingSession} is only saved if {@link DirtyTrackingSession#isDirty()} returns
+ * true, so a request that does not change the session does not need to write to the
+ * {@link org.springframework.session.SessionRepository}.
+ *
  * @since 1.0
  * @author Rob Winch
  */
@@ -162,6 +167,8 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 	 */
 	private final class SessionRepositoryRequestWrapper extends HttpServletRequestWrapper {
 		private HttpSessionWrapper currentSession;
+		private S requestedSession;
+		private boolean requestedSessionCached;
 		private Boolean requestedSessionIdValid;
 		private boolean requestedSessionInvalidated;
 		private final HttpServletResponse response;
@@ -184,13 +191,22 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 				}
 			} else {
 				S session = wrappedSession.session;
-				sessionRepository.save(session);
+				if(isDirty(session)) {
+					sessionRepository.save(session);
+				}
 				if(!isRequestedSessionIdValid() || !session.getId().equals(getRequestedSessionId())) {
 					httpSessionStrategy.onNewSession(session, this, response);
 				}
 			}
 		}
 
+		/**
+		 * A session that does not track whether it changed is always considered dirty.
+		 */
+		private boolean isDirty(S session) {
+			return !(session instanceof DirtyTrackingSession) || ((DirtyTrackingSession) session).isDirty();
+		}
+
 		@SuppressWarnings("unused")
 		public String changeSessionId() {
 			HttpSession session = getSession(false);
@@ -211,6 +227,7 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 
 			sessionRepository.delete(session.getId());
 			currentSession = null;
+			requestedSession = null;
 
 			HttpSession newSession = getSession();
 			newSession.setMaxInactiveInterval(session.getMaxInactiveInterval());
@@ -224,9 +241,7 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 
 		public boolean isRequestedSessionIdValid() {
 			if(requestedSessionIdValid == null) {
-				String sessionId = getRequestedSessionId();
-				S session = sessionId == null ? null : sessionRepository.getSession(sessionId);
-				return isRequestedSessionIdValid(session);
+				return isRequestedSessionIdValid(getRequestedSession());
 			}
 
 			return requestedSessionIdValid;
@@ -239,6 +254,20 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 			return requestedSessionIdValid;
 		}
 
+		/**
+		 * Looks up the session for the requested session id at most once per request, remembering if it was not found.
+		 *
+		 * @return the session for the requested session id or null if there is none
+		 */
+		private S getRequestedSession() {
+			if(!requestedSessionCached) {
+				String sessionId = getRequestedSessionId();
+				requestedSession = sessionId == null ? null : sessionRepository.getSession(sessionId);
+				requestedSessionCached = true;
+			}
+			return requestedSession;
+		}
+
 		private boolean isInvalidateClientSession() {
 			return currentSession == null && requestedSessionInvalidated;
 		}
@@ -248,20 +277,17 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 			if(currentSession != null) {
 				return currentSession;
 			}
-			String requestedSessionId = getRequestedSessionId();
-			if(requestedSessionId != null) {
-				S session = sessionRepository.getSession(requestedSessionId);
-				if(session != null) {
-					this.requestedSessionIdValid = true;
-					currentSession = new HttpSessionWrapper(session, getServletContext());
-					currentSession.setNew(false);
-					return currentSession;
-				}
+			S session = getRequestedSession();
+			if(session != null) {
+				this.requestedSessionIdValid = true;
+				currentSession = new HttpSessionWrapper(session, getServletContext());
+				currentSession.setNew(false);
+				return currentSession;
 			}
 			if(!create) {
 				return null;
 			}
-			S session = sessionRepository.createSession();
+			session = sessionRepository.createSession();
 			currentSession = new HttpSessionWrapper(session, getServletContext());
 			return currentSession;
 		}
@@ -375,6 +401,7 @@ public class SessionRepositoryFilter<S extends ExpiringSession> extends OncePerR
 				this.invalidated = true;
 				requestedSessionInvalidated = true;
 				currentSession = null;
+				requestedSession = null;
 				sessionRepository.delete(getId());
 			}
 
@@ -17,6 +17,9 @@ package org.springframework.session;
 
 import static org.fest.assertions.Assertions.assertThat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
@@ -42,6 +45,28 @@ public class MapSessionRepositoryTests {
 		assertThat(repository.getSession(session.getId())).isNull();
 	}
 
+	@Test
+	public void getSessions() {
+		MapSession expired = new MapSession();
+		expired.setMaxInactiveIntervalInSeconds(1);
+		expired.setLastAccessedTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
+		repository.save(expired);
+		MapSession other = new MapSession();
+		repository.save(other);
+		repository.save(session);
+
+		Map<String, ExpiringSession> sessions = repository.getSessions(Arrays.asList(session.getId(), "missing", expired.getId(), other.getId()));
+
+		assertThat(new ArrayList<String>(sessions.keySet())).containsExactly(session.getId(), other.getId());
+		assertThat(sessions.get(session.getId()).getCreationTime()).isEqualTo(session.getCreationTime());
+		assertThat(repository.getSession(expired.getId())).isNull();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getSessionsNull() {
+		repository.getSessions(null);
+	}
+
 	@Test
 	public void createSessionDefaultExpiration() {
 		ExpiringSession session = repository.createSession();
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+public class CompactRedisSerializerTests {
+	CompactRedisSerializer serializer = new CompactRedisSerializer();
+
+	JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorNullFallback() {
+		new CompactRedisSerializer(null);
+	}
+
+	@Test
+	public void serializeNull() {
+		assertThat(serializer.serialize(null)).isEmpty();
+	}
+
+	@Test
+	public void deserializeNull() {
+		assertThat(serializer.deserialize(null)).isNull();
+		assertThat(serializer.deserialize(new byte[0])).isNull();
+	}
+
+	@Test
+	public void string() {
+		assertRoundTrip("sessionAttrValue \u00e9\u4e2d", 1 + 16 + 1 + 2 + 3);
+		assertRoundTrip("", 1);
+	}
+
+	@Test
+	public void longValue() {
+		assertRoundTrip(1429111712346L, 9);
+		assertRoundTrip(Long.MIN_VALUE, 9);
+	}
+
+	@Test
+	public void integer() {
+		assertRoundTrip(1800, 5);
+		assertRoundTrip(-1, 5);
+	}
+
+	@Test
+	public void booleanValue() {
+		assertRoundTrip(true, 2);
+		assertRoundTrip(false, 2);
+	}
+
+	@Test
+	public void doubleValue() {
+		assertRoundTrip(1.5d, 9);
+	}
+
+	@Test
+	public void bytes() {
+		byte[] value = new byte[] { 1, 2, 3 };
+
+		byte[] serialized = serializer.serialize(value);
+
+		assertThat(serialized.length).isEqualTo(4);
+		assertThat((byte[]) serializer.deserialize(serialized)).isEqualTo(value);
+	}
+
+	@Test
+	public void fallback() {
+		List<String> value = new ArrayList<String>(Arrays.asList("a", "b"));
+
+		byte[] serialized = serializer.serialize(value);
+
+		assertThat(serialized).isEqualTo(jdkSerializer.serialize(value));
+		assertThat(serializer.deserialize(serialized)).isEqualTo(value);
+	}
+
+	@Test
+	public void deserializeJdkSerialization() {
+		assertThat(serializer.deserialize(jdkSerializer.serialize(1429111712346L))).isEqualTo(1429111712346L);
+		assertThat(serializer.deserialize(jdkSerializer.serialize("value"))).isEqualTo("value");
+	}
+
+	@Test(expected = SerializationException.class)
+	public void deserializeUnknownType() {
+		serializer.deserialize(new byte[] { 0x7F, 1 });
+	}
+
+	@Test
+	public void smallerThanJdkSerialization() {
+		Object[] values = new Object[] { 1429111712346L, 1800, "sessionAttrValue", true };
+		for(Object value : values) {
+			assertThat(serializer.serialize(value).length).isLessThan(jdkSerializer.serialize(value).length);
+		}
+	}
+
+	private void assertRoundTrip(Object value, int expectedLength) {
+		byte[] serialized = serializer.serialize(value);
+
+		assertThat(serialized.length).isEqualTo(expectedLength);
+		assertThat(serializer.deserialize(serialized)).isEqualTo(value);
+	}
+}
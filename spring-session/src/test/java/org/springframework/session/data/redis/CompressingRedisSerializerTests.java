@@ -0,0 +1,161 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+public class CompressingRedisSerializerTests {
+	JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+
+	CompressingRedisSerializer serializer;
+
+	List<String> cart;
+
+	@Before
+	public void setup() {
+		serializer = new CompressingRedisSerializer();
+		cart = new ArrayList<String>();
+		for(int i = 0; i < 100; i++) {
+			cart.add("product-" + i);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorNullDelegate() {
+		new CompressingRedisSerializer(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCompressionThresholdNegative() {
+		serializer.setCompressionThreshold(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCompressionLevelInvalid() {
+		serializer.setCompressionLevel(10);
+	}
+
+	@Test
+	public void serializeNull() {
+		assertThat(serializer.serialize(null)).isEmpty();
+		assertThat(serializer.deserialize(new byte[0])).isNull();
+		assertThat(serializer.deserialize(null)).isNull();
+	}
+
+	@Test
+	public void belowThresholdNotCompressed() {
+		byte[] serialized = serializer.serialize("small");
+
+		assertThat(serialized).isEqualTo(jdkSerializer.serialize("small"));
+		assertThat(serializer.deserialize(serialized)).isEqualTo("small");
+	}
+
+	@Test
+	public void aboveThresholdCompressed() {
+		byte[] uncompressed = jdkSerializer.serialize(cart);
+
+		byte[] serialized = serializer.serialize(cart);
+
+		assertThat(serialized[0]).isEqualTo(CompressingRedisSerializer.COMPRESSED);
+		assertThat(serialized.length).isLessThan(uncompressed.length);
+		assertThat(serializer.deserialize(serialized)).isEqualTo(cart);
+	}
+
+	@Test
+	public void customThreshold() {
+		serializer.setCompressionThreshold(Integer.MAX_VALUE);
+
+		assertThat(serializer.serialize(cart)).isEqualTo(jdkSerializer.serialize(cart));
+	}
+
+	@Test
+	public void incompressibleNotCompressed() {
+		byte[] random = new byte[4096];
+		new Random(0).nextBytes(random);
+
+		byte[] serialized = serializer.serialize(random);
+
+		assertThat(serialized).isEqualTo(jdkSerializer.serialize(random));
+		assertThat((byte[]) serializer.deserialize(serialized)).isEqualTo(random);
+	}
+
+	@Test
+	public void deserializeUncompressed() {
+		assertThat(serializer.deserialize(jdkSerializer.serialize(cart))).isEqualTo(cart);
+	}
+
+	@Test
+	public void delegateValueStartingWithMarkerCompressed() {
+		serializer = new CompressingRedisSerializer(new RawRedisSerializer());
+		byte[] value = new byte[] { CompressingRedisSerializer.COMPRESSED, 1, 2 };
+
+		byte[] serialized = serializer.serialize(value);
+
+		assertThat(serialized).isNotEqualTo(value);
+		assertThat((byte[]) serializer.deserialize(serialized)).isEqualTo(value);
+	}
+
+	@Test
+	public void compactDelegate() {
+		serializer = new CompressingRedisSerializer(new CompactRedisSerializer());
+		serializer.setCompressionThreshold(0);
+		char[] chars = new char[2000];
+		Arrays.fill(chars, 'a');
+		String value = new String(chars);
+
+		byte[] serialized = serializer.serialize(value);
+
+		assertThat(serialized.length).isLessThan(100);
+		assertThat(serializer.deserialize(serialized)).isEqualTo(value);
+		assertThat(serializer.deserialize(serializer.serialize(1800))).isEqualTo(1800);
+	}
+
+	@Test(expected = SerializationException.class)
+	public void deserializeCorrupt() {
+		serializer.deserialize(new byte[] { CompressingRedisSerializer.COMPRESSED, 1, 2, 3 });
+	}
+
+	@Test(expected = SerializationException.class)
+	public void deserializeTruncated() {
+		byte[] serialized = serializer.serialize(cart);
+
+		byte[] truncated = new byte[serialized.length / 2];
+		System.arraycopy(serialized, 0, truncated, 0, truncated.length);
+
+		serializer.deserialize(truncated);
+	}
+
+	static class RawRedisSerializer implements RedisSerializer<Object> {
+		public byte[] serialize(Object t) throws SerializationException {
+			return (byte[]) t;
+		}
+
+		public Object deserialize(byte[] bytes) throws SerializationException {
+			return bytes;
+		}
+	}
+}
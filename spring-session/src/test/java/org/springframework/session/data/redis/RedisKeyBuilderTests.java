@@ -0,0 +1,248 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+public class RedisKeyBuilderTests {
+
+	@Test
+	public void defaultKeys() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+		assertThat(keyBuilder.getNamespace()).isEqualTo("spring:session");
+		assertThat(keyBuilder.getHashTag()).isNull();
+		assertThat(keyBuilder.getShards()).isEqualTo(1);
+		assertThat(keyBuilder.getShard("123")).isEqualTo(0);
+		assertThat(keyBuilder.getSessionKey("123")).isEqualTo("spring:session:sessions:123");
+		assertThat(keyBuilder.getSessionKeyPattern()).isEqualTo("spring:session:sessions:*");
+		assertThat(keyBuilder.getExpirationKey(0, 1429111740000L)).isEqualTo("spring:session:expirations:1429111740000");
+		assertThat(keyBuilder.getExpirationsKey(0)).isEqualTo("spring:session:expirations");
+		assertThat(keyBuilder.getCleanupLeaseKey()).isEqualTo("spring:session:cleanup:lease");
+		assertThat(keyBuilder.getCleanupBucketKey()).isEqualTo("spring:session:cleanup:bucket");
+		assertThat(keyBuilder.getPrincipalKey(0, "rob")).isEqualTo("spring:session:index:" + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME + ":rob");
+	}
+
+	@Test
+	public void namespace() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app");
+
+		assertThat(keyBuilder.getSessionKey("123")).isEqualTo("app:sessions:123");
+		assertThat(keyBuilder.getExpirationsKey(0)).isEqualTo("app:expirations");
+	}
+
+	@Test
+	public void sessionKeyPatternEscapesNamespace() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app*?[x]\\", "t*g");
+
+		assertThat(keyBuilder.getSessionKeyPattern()).isEqualTo("app\\*\\?\\[x\\]\\\\:{t\\*g}:sessions:*");
+	}
+
+	@Test
+	public void sessionKeyPatternEscapesShardedNamespace() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app*", 4);
+
+		assertThat(keyBuilder.getSessionKeyPattern()).isEqualTo("app\\*:{*}:sessions:*");
+	}
+
+	@Test
+	public void hashTag() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", "app");
+
+		assertThat(keyBuilder.getSessionKey("123")).isEqualTo("spring:session:{app}:sessions:123");
+		assertThat(keyBuilder.getSessionKeyPattern()).isEqualTo("spring:session:{app}:sessions:*");
+		assertThat(keyBuilder.getExpirationKey(0, 1)).isEqualTo("spring:session:{app}:expirations:1");
+		assertThat(keyBuilder.getExpirationsKey(0)).isEqualTo("spring:session:{app}:expirations");
+		assertThat(keyBuilder.getCleanupLeaseKey()).isEqualTo("spring:session:{app}:cleanup:lease");
+		assertThat(keyBuilder.getCleanupBucketKey()).isEqualTo("spring:session:{app}:cleanup:bucket");
+		assertThat(keyBuilder.getPrincipalKey(0, "rob")).startsWith("spring:session:{app}:index:");
+	}
+
+	@Test
+	public void shards() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		String sessionId = "0d6d3c2a-1b8f-4f7e-9c6e-6f0e1b7c2d4a";
+		int shard = keyBuilder.getShard(sessionId);
+
+		assertThat(keyBuilder.getShards()).isEqualTo(4);
+		assertThat(keyBuilder.getHashTag()).isNull();
+		assertThat(shard).isEqualTo((sessionId.hashCode() & Integer.MAX_VALUE) % 4);
+		String hashTag = getHashTag(keyBuilder.getSessionKey(sessionId));
+		assertThat(keyBuilder.getSessionKey(sessionId)).isEqualTo("spring:session:{" + hashTag + "}:sessions:" + sessionId);
+		assertThat(keyBuilder.getExpirationKey(shard, 1)).isEqualTo("spring:session:{" + hashTag + "}:expirations:1");
+		assertThat(keyBuilder.getExpirationsKey(shard)).isEqualTo("spring:session:{" + hashTag + "}:expirations");
+		assertThat(keyBuilder.getPrincipalKey(shard, "rob")).startsWith("spring:session:{" + hashTag + "}:index:");
+		assertThat(keyBuilder.getSessionKeyPattern()).isEqualTo("spring:session:{*}:sessions:*");
+		assertThat(keyBuilder.getCleanupLeaseKey()).isEqualTo("spring:session:cleanup:lease");
+		assertThat(keyBuilder.getCleanupBucketKey()).isEqualTo("spring:session:cleanup:bucket");
+	}
+
+	@Test
+	public void shardsKeysOfSessionInSameSlot() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 16);
+		for(int i = 0; i < 100; i++) {
+			String sessionId = "session-" + i;
+			int shard = keyBuilder.getShard(sessionId);
+			int slot = getSlot(keyBuilder.getSessionKey(sessionId));
+
+			assertThat(getSlot(keyBuilder.getExpirationKey(shard, 1429111740000L))).isEqualTo(slot);
+			assertThat(getSlot(keyBuilder.getExpirationsKey(shard))).isEqualTo(slot);
+			assertThat(getSlot(keyBuilder.getPrincipalKey(shard, "rob"))).isEqualTo(slot);
+		}
+	}
+
+	@Test
+	public void shardsSpreadAcrossSlots() {
+		int shards = 3;
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", shards);
+		for(int shard = 0; shard < shards; shard++) {
+			int slot = getSlot(keyBuilder.getExpirationsKey(shard));
+
+			// e.g. a cluster of 3 masters with the default allocation of the slots stores each shard on its own node
+			assertThat(slot).isGreaterThanOrEqualTo(shard * RedisKeyBuilder.SLOTS / shards);
+			assertThat(slot).isLessThan((shard + 1) * RedisKeyBuilder.SLOTS / shards);
+		}
+	}
+
+	@Test
+	public void shardPerSlot() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", RedisKeyBuilder.SLOTS);
+		for(int shard = 0; shard < RedisKeyBuilder.SLOTS; shard++) {
+			assertThat(getSlot(keyBuilder.getExpirationsKey(shard))).isEqualTo(shard);
+		}
+		String sessionId = "8c6a7e5b-3a8e-4d5c-9d1e-2f7b6a4c3e21";
+		assertThat(getSlot(keyBuilder.getSessionKey(sessionId))).isEqualTo(keyBuilder.getShard(sessionId));
+	}
+
+	@Test
+	public void getSlot() {
+		// the examples of the Redis Cluster specification
+		assertThat(RedisKeyBuilder.getSlot("123456789")).isEqualTo(0x31C3);
+		assertThat(RedisKeyBuilder.getSlot("user1000")).isEqualTo(getSlot("{user1000}.following"));
+	}
+
+	@Test
+	public void getSessionIdIndex() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app");
+		byte[] key = "__:app:sessions:123".getBytes("UTF-8");
+
+		assertThat(keyBuilder.getSessionIdIndex(key, 3)).isEqualTo(key.length - 3);
+		assertThat(keyBuilder.getSessionIdIndex(key, 0)).isEqualTo(-1);
+		assertThat(keyBuilder.getSessionIdIndex("app:expirations".getBytes("UTF-8"), 0)).isEqualTo(-1);
+	}
+
+	@Test
+	public void getSessionIdIndexShards() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app", 4);
+		byte[] key = keyBuilder.getSessionKeyBytes("123");
+
+		assertThat(keyBuilder.getSessionIdIndex(key, 0)).isEqualTo(key.length - 3);
+		assertThat(keyBuilder.getSessionIdIndex(keyBuilder.getExpirationsKey(0).getBytes("UTF-8"), 0)).isEqualTo(-1);
+		assertThat(keyBuilder.getSessionIdIndex("app:{0".getBytes("UTF-8"), 0)).isEqualTo(-1);
+		assertThat(keyBuilder.getSessionIdIndex("app:sessions:123".getBytes("UTF-8"), 0)).isEqualTo(-1);
+	}
+
+	@Test
+	public void getSessionKeyBytes() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", "app");
+		String sessionId = "0d6d3c2a-1b8f-4f7e-9c6e-6f0e1b7c2d4a";
+
+		assertThat(keyBuilder.getSessionKeyBytes(sessionId)).isEqualTo(keyBuilder.getSessionKey(sessionId).getBytes("UTF-8"));
+	}
+
+	@Test
+	public void getSessionKeyBytesNonAscii() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+		String sessionId = "séssion-中";
+
+		assertThat(keyBuilder.getSessionKeyBytes(sessionId)).isEqualTo(keyBuilder.getSessionKey(sessionId).getBytes("UTF-8"));
+	}
+
+	@Test
+	public void getSessionKeyBytesShards() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app", 4);
+		String sessionId = "0d6d3c2a-1b8f-4f7e-9c6e-6f0e1b7c2d4a";
+
+		assertThat(keyBuilder.getSessionKeyBytes(sessionId)).isEqualTo(keyBuilder.getSessionKey(sessionId).getBytes("UTF-8"));
+	}
+
+	@Test
+	public void serializeSessionKey() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("séssion");
+		String sessionId = "0d6d3c2a-1b8f-4f7e-9c6e-6f0e1b7c2d4a";
+
+		assertThat(keyBuilder.serializeSessionKey(new StringRedisSerializer(), sessionId)).isEqualTo(keyBuilder.getSessionKey(sessionId).getBytes("UTF-8"));
+	}
+
+	@Test
+	public void serializeSessionKeyOtherCharset() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("séssion");
+		String sessionId = "0d6d3c2a-1b8f-4f7e-9c6e-6f0e1b7c2d4a";
+
+		byte[] key = keyBuilder.serializeSessionKey(new StringRedisSerializer(Charset.forName("ISO-8859-1")), sessionId);
+
+		assertThat(key).isEqualTo(keyBuilder.getSessionKey(sessionId).getBytes("ISO-8859-1"));
+	}
+
+	@Test
+	public void startsWith() throws Exception {
+		byte[] bytes = "spring:session".getBytes("UTF-8");
+
+		assertThat(RedisKeyBuilder.startsWith(bytes, 7, "session".getBytes("UTF-8"))).isTrue();
+		assertThat(RedisKeyBuilder.startsWith(bytes, 8, "session".getBytes("UTF-8"))).isFalse();
+		assertThat(RedisKeyBuilder.startsWith(bytes, -1, "spring".getBytes("UTF-8"))).isFalse();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorEmptyNamespace() {
+		new RedisKeyBuilder("");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorEmptyHashTag() {
+		new RedisKeyBuilder("spring:session", "");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorHashTagBraces() {
+		new RedisKeyBuilder("spring:session", "{app}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorOneShard() {
+		new RedisKeyBuilder("spring:session", 1);
+	}
+
+	/**
+	 * Gets the Redis Cluster slot of a key, taking its hash tag into account.
+	 */
+	private static int getSlot(String key) {
+		String hashTag = getHashTag(key);
+		return RedisKeyBuilder.getSlot(hashTag == null ? key : hashTag);
+	}
+
+	private static String getHashTag(String key) {
+		int start = key.indexOf('{');
+		int end = key.indexOf('}', start + 1);
+		return start < 0 || end < 0 || end == start + 1 ? null : key.substring(start + 1, end);
+	}
+}
@@ -16,17 +16,21 @@
 package org.springframework.session.data.redis;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 import static org.springframework.session.data.redis.RedisOperationsSessionRepository.CREATION_TIME_ATTR;
 import static org.springframework.session.data.redis.RedisOperationsSessionRepository.LAST_ACCESSED_ATTR;
 import static org.springframework.session.data.redis.RedisOperationsSessionRepository.MAX_INACTIVE_ATTR;
-import static org.springframework.session.data.redis.RedisOperationsSessionRepository.getKey;
 import static org.springframework.session.data.redis.RedisOperationsSessionRepository.getSessionAttrNameKey;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -36,14 +40,26 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.BoundHashOperations;
 import org.springframework.data.redis.core.BoundSetOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextImpl;
 import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.MapSession;
 import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
 
@@ -51,6 +67,8 @@ import org.springframework.session.data.redis.RedisOperationsSessionRepository.R
 @RunWith(MockitoJUnitRunner.class)
 @SuppressWarnings({"unchecked","rawtypes"})
 public class RedisOperationsSessionRepositoryTests {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
 	@Mock
 	RedisConnectionFactory factory;
 	@Mock
@@ -60,7 +78,15 @@ public class RedisOperationsSessionRepositoryTests {
 	@Mock
 	BoundHashOperations<String, Object, Object> boundHashOperations;
 	@Mock
+	RedisOperations replicaRedisOperations;
+	@Mock
+	BoundHashOperations<String, Object, Object> replicaBoundHashOperations;
+	@Mock
 	BoundSetOperations<String, String> boundSetOperations;
+	@Mock
+	BoundSetOperations<String, String> indexSetOperations;
+	@Mock
+	BoundSetOperations<String, String> otherIndexSetOperations;
 	@Captor
 	ArgumentCaptor<Map<String,Object>> delta;
 
@@ -104,7 +130,7 @@ public class RedisOperationsSessionRepositoryTests {
 	@Test
 	public void saveNewSession() {
 		RedisSession session = redisRepository.createSession();
-		when(redisOperations.boundHashOps(getKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
 		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
 
 		redisRepository.save(session);
@@ -121,7 +147,7 @@ public class RedisOperationsSessionRepositoryTests {
 	public void saveLastAccessChanged() {
 		RedisSession session = redisRepository.new RedisSession(new MapSession());
 		session.setLastAccessedTime(12345678L);
-		when(redisOperations.boundHashOps(getKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
 		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
 
 		redisRepository.save(session);
@@ -134,7 +160,7 @@ public class RedisOperationsSessionRepositoryTests {
 		String attrName = "attrName";
 		RedisSession session = redisRepository.new RedisSession(new MapSession());
 		session.setAttribute(attrName, "attrValue");
-		when(redisOperations.boundHashOps(getKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
 		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
 
 		redisRepository.save(session);
@@ -147,7 +173,7 @@ public class RedisOperationsSessionRepositoryTests {
 		String attrName = "attrName";
 		RedisSession session = redisRepository.new RedisSession(new MapSession());
 		session.removeAttribute(attrName);
-		when(redisOperations.boundHashOps(getKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
 		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
 
 		redisRepository.save(session);
@@ -155,6 +181,509 @@ public class RedisOperationsSessionRepositoryTests {
 		assertThat(getDelta()).isEqualTo(map(getSessionAttrNameKey(attrName), null));
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void setSaveModeNull() {
+		redisRepository.setSaveMode(null);
+	}
+
+	@Test
+	public void savePipelined() {
+		redisRepository.setSaveMode(RedisSaveMode.PIPELINED);
+		RedisSession session = redisRepository.new RedisSession(new MapSession());
+		session.setLastAccessedTime(12345678L);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallback());
+
+		redisRepository.save(session);
+
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		assertThat(getDelta()).isEqualTo(map(LAST_ACCESSED_ATTR, session.getLastAccessedTime()));
+		verify(boundSetOperations).add(session.getId());
+		verify(boundHashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void saveTransactional() {
+		redisRepository.setSaveMode(RedisSaveMode.TRANSACTIONAL);
+		RedisSession session = redisRepository.new RedisSession(new MapSession());
+		session.setLastAccessedTime(12345678L);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.execute(any(SessionCallback.class))).thenAnswer(executeCallback());
+
+		redisRepository.save(session);
+
+		InOrder inOrder = inOrder(redisOperations, boundHashOperations);
+		inOrder.verify(redisOperations).multi();
+		inOrder.verify(boundHashOperations).putAll(delta.capture());
+		inOrder.verify(redisOperations).exec();
+		assertThat(delta.getValue()).isEqualTo(map(LAST_ACCESSED_ATTR, session.getLastAccessedTime()));
+	}
+
+	@Test
+	public void saveScript() {
+		redisRepository.setSaveMode(RedisSaveMode.SCRIPT);
+		MapSession expected = new MapSession();
+		expected.setLastAccessedTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		Map map = map(
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		when(boundHashOperations.entries()).thenReturn(map);
+		when(redisOperations.getValueSerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(new JdkSerializationRedisSerializer());
+		RedisSession session = redisRepository.getSession(expected.getId());
+		session.setAttribute("attrName", "attrValue");
+		List<List<String>> args = recordScriptArgs();
+
+		redisRepository.save(session);
+
+		ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+		verify(redisOperations).execute(eq(RedisOperationsSessionRepository.SAVE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), keys.capture(), anyVararg());
+		long expiration = RedisSessionExpirationPolicy.roundUpToNextMinute(RedisSessionExpirationPolicy.expiresInMillis(session));
+		long originalExpiration = RedisSessionExpirationPolicy.roundUpToNextMinute(RedisSessionExpirationPolicy.expiresInMillis(expected));
+		assertThat(keys.getValue()).containsExactly(keyBuilder.getSessionKey(session.getId()),
+				keyBuilder.getExpirationKey(0, expiration),
+				keyBuilder.getExpirationKey(0, originalExpiration));
+		assertThat(args.get(0).subList(3, 6)).containsExactly(RedisOperationsSessionRepository.SCRIPT_EXPIRATION_MOVE,
+				RedisOperationsSessionRepository.SCRIPT_FLAG_UNSET, RedisOperationsSessionRepository.SCRIPT_FLAG_UNSET);
+		verify(boundHashOperations, never()).putAll(anyMap());
+		assertThat(redisRepository.getSkippedExpirationMoveCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void saveScriptTwiceSkipsExpirationMove() {
+		redisRepository.setSaveMode(RedisSaveMode.SCRIPT);
+		when(redisOperations.getValueSerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(new JdkSerializationRedisSerializer());
+		RedisSession session = redisRepository.createSession();
+		List<List<String>> args = recordScriptArgs();
+
+		redisRepository.save(session);
+		session.setAttribute("attrName", "attrValue");
+		redisRepository.save(session);
+
+		ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+		verify(redisOperations, times(2)).execute(eq(RedisOperationsSessionRepository.SAVE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), keys.capture(), anyVararg());
+		long expiration = RedisSessionExpirationPolicy.roundUpToNextMinute(RedisSessionExpirationPolicy.expiresInMillis(session));
+		for(List saved : keys.getAllValues()) {
+			assertThat(saved).containsExactly(keyBuilder.getSessionKey(session.getId()), keyBuilder.getExpirationKey(0, expiration));
+		}
+		assertThat(args.get(0).get(3)).isEqualTo(RedisOperationsSessionRepository.SCRIPT_EXPIRATION_ADD);
+		assertThat(args.get(1).get(3)).isEqualTo(RedisOperationsSessionRepository.SCRIPT_EXPIRATION_REFRESH);
+		assertThat(redisRepository.getSkippedExpirationMoveCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void saveScriptSortedSet() {
+		redisRepository.setSaveMode(RedisSaveMode.SCRIPT);
+		redisRepository.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		RedisSession session = loadSession(map());
+		session.setAttribute("attrName", "attrValue");
+		when(redisOperations.getValueSerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		List<List<String>> args = recordScriptArgs();
+
+		redisRepository.save(session);
+
+		ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+		verify(redisOperations).execute(eq(RedisOperationsSessionRepository.SORTED_SET_SAVE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), keys.capture(), anyVararg());
+		assertThat(keys.getValue()).containsExactly(keyBuilder.getSessionKey(session.getId()), keyBuilder.getExpirationsKey(0));
+		assertThat(args.get(0).subList(3, 5)).containsExactly(RedisOperationsSessionRepository.SCRIPT_FLAG_UNSET, RedisOperationsSessionRepository.SCRIPT_FLAG_UNSET);
+		verify(boundHashOperations, never()).putAll(anyMap());
+	}
+
+	@Test
+	public void deletePipelined() {
+		redisRepository.setSaveMode(RedisSaveMode.PIPELINED);
+		MapSession expected = new MapSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		Map map = map(
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		when(boundHashOperations.entries()).thenReturn(map);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallback());
+
+		String id = expected.getId();
+		redisRepository.delete(id);
+
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		verify(boundSetOperations).remove(id);
+		verify(redisOperations).delete(keyBuilder.getSessionKey(id));
+	}
+
+	@Test
+	public void saveTwiceSkipsExpirationMove() {
+		RedisSession session = redisRepository.createSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.save(session);
+		session.setAttribute("attrName", "attrValue");
+		redisRepository.save(session);
+
+		verify(boundSetOperations, times(1)).add(session.getId());
+		verify(boundSetOperations, never()).remove(anyString());
+		verify(boundHashOperations, times(2)).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+		assertThat(redisRepository.getSkippedExpirationMoveCount()).isEqualTo(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setTouchGranularityInSecondsNegative() {
+		redisRepository.setTouchGranularityInSeconds(-1);
+	}
+
+	@Test
+	public void getSessionWithinTouchGranularity() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		long lastAccessedTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(59);
+		RedisSession session = loadSession(map(LAST_ACCESSED_ATTR, lastAccessedTime));
+
+		assertThat(session.getLastAccessedTime()).isEqualTo(lastAccessedTime);
+
+		redisRepository.save(session);
+
+		verify(boundHashOperations, never()).putAll(anyMap());
+		verify(boundHashOperations, never()).expire(anyLong(), any(TimeUnit.class));
+		verifyZeroInteractions(boundSetOperations);
+	}
+
+	@Test
+	public void getSessionAtTouchGranularity() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		long lastAccessedTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(60);
+		RedisSession session = loadSession(map(LAST_ACCESSED_ATTR, lastAccessedTime));
+
+		assertThat(session.getLastAccessedTime()).isGreaterThan(lastAccessedTime);
+
+		redisRepository.save(session);
+
+		assertThat(getDelta()).isEqualTo(map(LAST_ACCESSED_ATTR, session.getLastAccessedTime()));
+	}
+
+	@Test
+	public void getSessionWithinTouchGranularityChanged() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		long lastAccessedTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(30);
+		RedisSession session = loadSession(map(LAST_ACCESSED_ATTR, lastAccessedTime));
+		session.setAttribute("attrName", "attrValue");
+
+		redisRepository.save(session);
+
+		assertThat(getDelta()).isEqualTo(map(getSessionAttrNameKey("attrName"), "attrValue"));
+		// the expiration is refreshed according to the last accessed time that is persisted
+		verify(boundHashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void getSessionWithinTouchGranularityExpired() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		long lastAccessedTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(30) - 1;
+
+		RedisSession session = loadSession(map(LAST_ACCESSED_ATTR, lastAccessedTime, MAX_INACTIVE_ATTR, 30));
+
+		assertThat(session).isNull();
+	}
+
+	@Test
+	public void getSessionWithinTouchGranularityNotExpired() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		long lastAccessedTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(20);
+
+		RedisSession session = loadSession(map(LAST_ACCESSED_ATTR, lastAccessedTime, MAX_INACTIVE_ATTR, 30));
+
+		assertThat(session.isExpired()).isFalse();
+		assertThat(session.getLastAccessedTime()).isEqualTo(lastAccessedTime);
+	}
+
+	@Test
+	public void saveUnchanged() {
+		RedisSession session = loadSession(map());
+		redisRepository.save(session);
+		reset(boundHashOperations, boundSetOperations);
+
+		redisRepository.save(session);
+
+		verifyZeroInteractions(boundHashOperations, boundSetOperations);
+	}
+
+	@Test
+	public void isDirtyNewSession() {
+		assertThat(redisRepository.createSession().isDirty()).isTrue();
+	}
+
+	@Test
+	public void isDirtyLastAccessedTime() {
+		RedisSession session = loadSession(map());
+
+		assertThat(session.isDirty()).isTrue();
+
+		redisRepository.save(session);
+
+		assertThat(session.isDirty()).isFalse();
+	}
+
+	@Test
+	public void isDirtyWithinTouchGranularity() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		RedisSession session = loadSession(map());
+
+		assertThat(session.isDirty()).isFalse();
+
+		session.setAttribute("attrName", "attrValue");
+
+		assertThat(session.isDirty()).isTrue();
+	}
+
+	@Test
+	public void isDirtyDetectAttributeChanges() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey("list"), new ArrayList<String>()));
+
+		assertThat(session.isDirty()).isFalse();
+
+		((List<String>) session.getAttribute("list")).add("modified in place");
+
+		assertThat(session.isDirty()).isTrue();
+		assertThat(session.isDirty()).isTrue();
+		redisRepository.save(session);
+		assertThat(getDelta()).isEqualTo(map(getSessionAttrNameKey("list"), Arrays.asList("modified in place")));
+		assertThat(session.isDirty()).isFalse();
+	}
+
+	@Test
+	public void saveNearCache() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		RedisSession session = redisRepository.createSession();
+		session.setAttribute("attrName", "attrValue");
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.save(session);
+
+		verify(redisOperations).execute(any(RedisCallback.class));
+		RedisSession loaded = redisRepository.getSession(session.getId());
+		assertThat(loaded.getAttribute("attrName")).isEqualTo("attrValue");
+		verify(boundHashOperations, never()).entries();
+		assertThat(nearCache.getHitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void getSessionNearCacheMiss() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		MapSession expected = new MapSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		Map map = map(
+				getSessionAttrNameKey("attrName"), "attrValue",
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		when(boundHashOperations.entries()).thenReturn(map);
+
+		redisRepository.getSession(expected.getId());
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getAttribute("attrName")).isEqualTo("attrValue");
+		verify(boundHashOperations, times(1)).entries();
+		assertThat(nearCache.getMissCount()).isEqualTo(1);
+		assertThat(nearCache.getHitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void deleteNearCache() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		MapSession expected = new MapSession();
+		nearCache.put(expected, new JdkSerializationRedisSerializer());
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.delete(expected.getId());
+
+		verify(redisOperations).delete(keyBuilder.getSessionKey(expected.getId()));
+		verify(redisOperations).execute(any(RedisCallback.class));
+		assertThat(nearCache.get(expected.getId(), new JdkSerializationRedisSerializer())).isNull();
+	}
+
+	@Test
+	public void saveDetectAttributeChangesInPlaceModification() {
+		redisRepository.setDetectAttributeChanges(true);
+		List<String> cart = new ArrayList<String>(Arrays.asList("a"));
+		RedisSession session = loadSession(map(
+				getSessionAttrNameKey("cart"), cart,
+				getSessionAttrNameKey("unchanged"), "value"));
+
+		((List<String>) session.getAttribute("cart")).add("b");
+		redisRepository.save(session);
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue()).includes(entry(getSessionAttrNameKey("cart"), Arrays.asList("a", "b")));
+		assertThat(delta.getValue().keySet()).excludes(getSessionAttrNameKey("unchanged"));
+	}
+
+	@Test
+	public void saveDetectAttributeChangesSetWithoutChangeNotSaved() {
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey("attrName"), "value"));
+
+		session.setAttribute("attrName", "value");
+		session.setAttribute("other", "new");
+		redisRepository.save(session);
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue().keySet()).containsOnly(LAST_ACCESSED_ATTR, getSessionAttrNameKey("other"));
+	}
+
+	@Test
+	public void saveDetectAttributeChangesRemoveAttribute() {
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey("attrName"), "value"));
+
+		session.removeAttribute("attrName");
+		redisRepository.save(session);
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue().keySet()).contains(getSessionAttrNameKey("attrName"));
+		assertThat(delta.getValue().get(getSessionAttrNameKey("attrName"))).isNull();
+	}
+
+	@Test
+	public void saveDetectAttributeChangesSecondSaveOnlyNewChanges() {
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey("attrName"), "value"));
+		session.setAttribute("attrName", "changed");
+		redisRepository.save(session);
+
+		redisRepository.save(session);
+
+		// the second save has nothing to write
+		verify(boundHashOperations, times(1)).putAll(delta.capture());
+		assertThat(delta.getValue()).isEqualTo(map(
+				getSessionAttrNameKey("attrName"), "changed",
+				LAST_ACCESSED_ATTR, session.getLastAccessedTime()));
+	}
+
+	@Test
+	public void saveDetectAttributeChangesSerializesOnce() {
+		redisRepository.setDetectAttributeChanges(true);
+		List<String> cart = new ArrayList<String>(Arrays.asList("a"));
+		RedisSession session = loadSession(map(getSessionAttrNameKey("cart"), cart));
+		RedisSerializer<Object> serializer = spy(new JdkSerializationRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(serializer);
+		when(redisOperations.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.execute(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			}
+		});
+
+		((List<String>) session.getAttribute("cart")).add("b");
+		assertThat(session.isDirty()).isTrue();
+		redisRepository.save(session);
+
+		// once when the digest is taken by isDirty(), the bytes are then reused to save
+		verify(serializer, times(1)).serialize(cart);
+		ArgumentCaptor<Map> hash = ArgumentCaptor.forClass(Map.class);
+		verify(connection).hMSet(eq(keyBuilder.getSessionKey(session.getId()).getBytes()), hash.capture());
+		Map<String, Object> written = new HashMap<String, Object>();
+		for(Object entry : hash.getValue().entrySet()) {
+			Map.Entry<byte[], byte[]> rawEntry = (Map.Entry<byte[], byte[]>) entry;
+			written.put(new String(rawEntry.getKey()), new JdkSerializationRedisSerializer().deserialize(rawEntry.getValue()));
+		}
+		assertThat(written).includes(entry(getSessionAttrNameKey("cart"), Arrays.asList("a", "b")));
+		verify(boundHashOperations, never()).putAll(anyMap());
+	}
+
+	@Test
+	public void saveRawSessionKey() {
+		stubSerializers();
+		when(redisOperations.boundHashOps(anyString())).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		RedisSession session = redisRepository.createSession();
+
+		redisRepository.save(session);
+
+		verify(connection).hMSet(eq(keyBuilder.getSessionKeyBytes(session.getId())), anyMap());
+		verify(boundHashOperations, never()).putAll(anyMap());
+	}
+
+	@Test
+	public void getSessionRawSessionKey() {
+		stubSerializers();
+		MapSession expected = new MapSession();
+		expected.setAttribute("a", "b");
+		JdkSerializationRedisSerializer serializer = new JdkSerializationRedisSerializer();
+		Map<byte[], byte[]> entries = new HashMap<byte[], byte[]>();
+		entries.put(CREATION_TIME_ATTR.getBytes(), serializer.serialize(expected.getCreationTime()));
+		entries.put(MAX_INACTIVE_ATTR.getBytes(), serializer.serialize(expected.getMaxInactiveIntervalInSeconds()));
+		entries.put(LAST_ACCESSED_ATTR.getBytes(), serializer.serialize(expected.getLastAccessedTime()));
+		entries.put(getSessionAttrNameKey("a").getBytes(), serializer.serialize("b"));
+		when(connection.hGetAll(keyBuilder.getSessionKeyBytes(expected.getId()))).thenReturn(entries);
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		verify(redisOperations, never()).boundHashOps(anyString());
+	}
+
+	@Test
+	public void getSessionLazyRawSessionKey() {
+		redisRepository.setLazyAttributeLoading(true);
+		stubSerializers();
+		MapSession expected = new MapSession();
+		JdkSerializationRedisSerializer serializer = new JdkSerializationRedisSerializer();
+		byte[] key = keyBuilder.getSessionKeyBytes(expected.getId());
+		when(connection.hMGet(eq(key), (byte[][]) anyVararg())).thenReturn(Arrays.asList(serializer.serialize(expected.getCreationTime()),
+				serializer.serialize(expected.getMaxInactiveIntervalInSeconds()), serializer.serialize(expected.getLastAccessedTime())));
+		when(connection.hGet(key, getSessionAttrNameKey("a").getBytes())).thenReturn(serializer.serialize("b"));
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getAttribute("missing")).isNull();
+		verify(redisOperations, never()).boundHashOps(anyString());
+	}
+
+	@Test
+	public void saveDetectAttributeChangesAccessedAfterIsDirty() {
+		redisRepository.setTouchGranularityInSeconds(60);
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey("cart"), new ArrayList<String>()));
+
+		assertThat(session.isDirty()).isFalse();
+		((List<String>) session.getAttribute("cart")).add("a");
+		redisRepository.save(session);
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue()).includes(entry(getSessionAttrNameKey("cart"), Arrays.asList("a")));
+	}
+
+	@Test
+	public void saveDetectAttributeChangesNewSession() {
+		redisRepository.setDetectAttributeChanges(true);
+		RedisSession session = redisRepository.createSession();
+		session.setAttribute("attrName", "value");
+		when(redisOperations.getHashValueSerializer()).thenReturn(new JdkSerializationRedisSerializer());
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.save(session);
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue()).includes(entry(getSessionAttrNameKey("attrName"), "value"));
+	}
+
 	@Test
 	public void redisSessionGetAttributes() {
 		String attrName = "attrName";
@@ -172,7 +701,7 @@ public class RedisOperationsSessionRepositoryTests {
 		MapSession expected = new MapSession();
 		expected.setLastAccessedTime(System.currentTimeMillis() - 60000);
 		expected.setAttribute(attrName, "attrValue");
-		when(redisOperations.boundHashOps(getKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
 		Map map = map(
 				getSessionAttrNameKey(attrName), expected.getAttribute(attrName),
 				CREATION_TIME_ATTR, expected.getCreationTime(),
@@ -183,7 +712,7 @@ public class RedisOperationsSessionRepositoryTests {
 
 		String id = expected.getId();
 		redisRepository.delete(id);
-		verify(redisOperations).delete(getKey(id));
+		verify(redisOperations).delete(keyBuilder.getSessionKey(id));
 	}
 
 	@Test
@@ -200,28 +729,94 @@ public class RedisOperationsSessionRepositoryTests {
 	@Test
 	public void getSessionNotFound() {
 		String id = "abc";
-		when(redisOperations.boundHashOps(getKey(id))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(id))).thenReturn(boundHashOperations);
 		when(boundHashOperations.entries()).thenReturn(map());
 
 		assertThat(redisRepository.getSession(id)).isNull();
 	}
 
 	@Test
-	public void getSessionFound() {
-		String attrName = "attrName";
+	public void getSessions() {
 		MapSession expected = new MapSession();
-		expected.setLastAccessedTime(System.currentTimeMillis() - 60000);
-		expected.setAttribute(attrName, "attrValue");
-		when(redisOperations.boundHashOps(getKey(expected.getId()))).thenReturn(boundHashOperations);
-		Map map = map(
-				getSessionAttrNameKey(attrName), expected.getAttribute(attrName),
-				CREATION_TIME_ATTR, expected.getCreationTime(),
-				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
-				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
-		when(boundHashOperations.entries()).thenReturn(map);
+		expected.setAttribute("attrName", "attrValue");
+		MapSession expired = new MapSession();
+		expired.setMaxInactiveIntervalInSeconds(1);
+		expired.setLastAccessedTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
+		when(redisOperations.boundHashOps(anyString())).thenReturn(boundHashOperations);
+		final List<Object> results = Arrays.<Object>asList(entries(expected), map(), entries(expired));
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				((SessionCallback<?>) invocation.getArguments()[0]).execute(redisOperations);
+				return results;
+			}
+		});
 
-		long now = System.currentTimeMillis();
-		RedisSession session = redisRepository.getSession(expected.getId());
+		Map<String, RedisSession> sessions = redisRepository.getSessions(Arrays.asList(expected.getId(), "missing", expired.getId(), expected.getId()));
+
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		verify(redisOperations).boundHashOps(keyBuilder.getSessionKey(expected.getId()));
+		verify(redisOperations).boundHashOps(keyBuilder.getSessionKey("missing"));
+		verify(redisOperations).boundHashOps(keyBuilder.getSessionKey(expired.getId()));
+		verify(boundHashOperations, times(3)).entries();
+
+		assertThat(sessions.keySet()).containsOnly(expected.getId());
+		RedisSession session = sessions.get(expected.getId());
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(session.getAttribute("attrName")).isEqualTo("attrValue");
+		assertThat(session.getLastAccessedTime()).isGreaterThanOrEqualTo(expected.getLastAccessedTime());
+	}
+
+	@Test
+	public void getSessionsNearCache() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		MapSession cached = new MapSession();
+		nearCache.put(cached, new JdkSerializationRedisSerializer());
+		MapSession expected = new MapSession();
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.asList(entries(expected)));
+
+		Map<String, RedisSession> sessions = redisRepository.getSessions(Arrays.asList(cached.getId(), expected.getId()));
+
+		assertThat(new ArrayList<String>(sessions.keySet())).containsExactly(cached.getId(), expected.getId());
+		assertThat(nearCache.get(expected.getId(), new JdkSerializationRedisSerializer())).isNotNull();
+	}
+
+	@Test
+	public void getSessionsAllInNearCache() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		MapSession cached = new MapSession();
+		nearCache.put(cached, new JdkSerializationRedisSerializer());
+
+		Map<String, RedisSession> sessions = redisRepository.getSessions(Arrays.asList(cached.getId()));
+
+		assertThat(sessions.keySet()).containsOnly(cached.getId());
+		// only the serializer of the attributes is used
+		verify(redisOperations).getHashValueSerializer();
+		verifyNoMoreInteractions(redisOperations);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getSessionsNull() {
+		redisRepository.getSessions(null);
+	}
+
+	@Test
+	public void getSessionFound() {
+		String attrName = "attrName";
+		MapSession expected = new MapSession();
+		expected.setLastAccessedTime(System.currentTimeMillis() - 60000);
+		expected.setAttribute(attrName, "attrValue");
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		Map map = map(
+				getSessionAttrNameKey(attrName), expected.getAttribute(attrName),
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		when(boundHashOperations.entries()).thenReturn(map);
+
+		long now = System.currentTimeMillis();
+		RedisSession session = redisRepository.getSession(expected.getId());
 		assertThat(session.getId()).isEqualTo(expected.getId());
 		assertThat(session.getAttributeNames()).isEqualTo(expected.getAttributeNames());
 		assertThat(session.getAttribute(attrName)).isEqualTo(expected.getAttribute(attrName));
@@ -234,7 +829,7 @@ public class RedisOperationsSessionRepositoryTests {
 	@Test
 	public void getSessionExpired() {
 		String expiredId = "expired-id";
-		when(redisOperations.boundHashOps(getKey(expiredId))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expiredId))).thenReturn(boundHashOperations);
 		Map map = map(
 				MAX_INACTIVE_ATTR, 1,
 				LAST_ACCESSED_ATTR, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
@@ -243,24 +838,649 @@ public class RedisOperationsSessionRepositoryTests {
 		assertThat(redisRepository.getSession(expiredId)).isNull();
 	}
 
+	@Test
+	public void getSessionReplica() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(expected));
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(redisRepository.getReplicaFallbackCount()).isEqualTo(0);
+		verifyZeroInteractions(redisOperations);
+	}
+
+	@Test
+	public void getSessionReplicaMissFallsBackToMaster() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(map());
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.entries()).thenReturn(entries(expected));
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(redisRepository.getReplicaFallbackCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void getSessionReplicaExpiredFallsBackToMaster() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		MapSession stale = new MapSession(expected);
+		stale.setMaxInactiveIntervalInSeconds(1);
+		stale.setLastAccessedTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(stale));
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.entries()).thenReturn(entries(expected));
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getMaxInactiveIntervalInSeconds()).isEqualTo(expected.getMaxInactiveIntervalInSeconds());
+		assertThat(redisRepository.getReplicaFallbackCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void getSessionReplicaRecentlySavedLoadsFromMaster() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		RedisSession toSave = redisRepository.createSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(toSave.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		redisRepository.save(toSave);
+		when(boundHashOperations.entries()).thenReturn(entries(new MapSession(toSave)));
+
+		RedisSession session = redisRepository.getSession(toSave.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		verifyZeroInteractions(replicaRedisOperations);
+	}
+
+	@Test
+	public void getSessionReplicaReadAfterWriteDelayElapsed() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		redisRepository.setReplicaReadAfterWriteDelayInMillis(0);
+		RedisSession toSave = redisRepository.createSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(toSave.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		redisRepository.save(toSave);
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(toSave.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(new MapSession(toSave)));
+
+		RedisSession session = redisRepository.getSession(toSave.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+		verify(boundHashOperations, never()).entries();
+	}
+
+	@Test
+	public void getSessionReplicaNotNearCached() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(expected));
+
+		redisRepository.getSession(expected.getId());
+		redisRepository.getSession(expected.getId());
+
+		verify(replicaBoundHashOperations, times(2)).entries();
+		assertThat(nearCache.get(expected.getId(), new JdkSerializationRedisSerializer())).isNull();
+	}
+
+	@Test
+	public void getSessionsReplicaNotNearCached() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession replicated = new MapSession();
+		MapSession notReplicated = new MapSession();
+		when(replicaRedisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.<Object>asList(entries(replicated), map()));
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.<Object>asList(entries(notReplicated)));
+
+		redisRepository.getSessions(Arrays.asList(replicated.getId(), notReplicated.getId()));
+
+		assertThat(nearCache.get(replicated.getId(), new JdkSerializationRedisSerializer())).isNull();
+		assertThat(nearCache.get(notReplicated.getId(), new JdkSerializationRedisSerializer())).isNotNull();
+	}
+
+	@Test
+	public void saveReplicaLoadedNotNearCached() {
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(expected));
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		RedisSession session = redisRepository.getSession(expected.getId());
+		session.setAttribute("attrName", "attrValue");
+
+		redisRepository.save(session);
+
+		// the attributes that were not modified were loaded from the replica
+		assertThat(nearCache.get(expected.getId(), new JdkSerializationRedisSerializer())).isNull();
+	}
+
+	@Test
+	public void getSessionReplicaRecentWritesPrunedOnceDelayElapsed() throws InterruptedException {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		redisRepository.setReplicaReadAfterWriteDelayInMillis(100);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundHashOps(anyString())).thenReturn(boundHashOperations);
+		RedisSession first = redisRepository.createSession();
+		RedisSession rewritten = redisRepository.createSession();
+		redisRepository.save(first);
+		redisRepository.save(rewritten);
+		Thread.sleep(150);
+		rewritten.setAttribute("a", "b");
+		redisRepository.save(rewritten);
+		redisRepository.save(redisRepository.createSession());
+		when(boundHashOperations.entries()).thenReturn(entries(new MapSession(rewritten)));
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(first.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.entries()).thenReturn(entries(new MapSession(first)));
+
+		// the session written again within the delay is still loaded from the master
+		redisRepository.getSession(rewritten.getId());
+		redisRepository.getSession(first.getId());
+
+		verify(replicaRedisOperations, never()).boundHashOps(keyBuilder.getSessionKey(rewritten.getId()));
+		verify(replicaBoundHashOperations).entries();
+		// the first session was pruned when the delay elapsed, unlike the session written again
+		assertThat(redisRepository.getRecentWriteCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void getSessionReplicaRecentWritesWithinDelayNotPruned() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		redisRepository.setReplicaReadAfterWriteDelayInMillis(TimeUnit.MINUTES.toMillis(1));
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundHashOps(anyString())).thenReturn(boundHashOperations);
+		RedisSession first = redisRepository.createSession();
+		redisRepository.save(first);
+		for(int i = 0; i < 10; i++) {
+			redisRepository.save(redisRepository.createSession());
+		}
+		when(boundHashOperations.entries()).thenReturn(entries(new MapSession(first)));
+
+		redisRepository.getSession(first.getId());
+
+		verifyZeroInteractions(replicaRedisOperations);
+		assertThat(redisRepository.getRecentWriteCount()).isEqualTo(11);
+	}
+
+	@Test
+	public void getSessionLazyReplicaLoadsAttributeFromReplica() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		redisRepository.setLazyAttributeLoading(true);
+		MapSession expected = new MapSession();
+		when(replicaRedisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(replicaBoundHashOperations);
+		when(replicaBoundHashOperations.multiGet(anyCollection()))
+			.thenReturn(Arrays.<Object>asList(expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+		when(replicaBoundHashOperations.get(getSessionAttrNameKey("attrName"))).thenReturn("attrValue");
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getAttribute("attrName")).isEqualTo("attrValue");
+		verifyZeroInteractions(redisOperations);
+	}
+
+	@Test
+	public void getSessionsReplicaMissFallsBackToMaster() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession replicated = new MapSession();
+		MapSession notReplicated = new MapSession();
+		when(replicaRedisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.<Object>asList(entries(replicated), map()));
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.<Object>asList(entries(notReplicated)));
+
+		Map<String, RedisSession> sessions = redisRepository.getSessions(Arrays.asList(replicated.getId(), notReplicated.getId()));
+
+		assertThat(new ArrayList<String>(sessions.keySet())).containsExactly(replicated.getId(), notReplicated.getId());
+		verify(replicaRedisOperations).executePipelined(any(SessionCallback.class));
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		assertThat(redisRepository.getReplicaFallbackCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void deleteReplicaLoadsFromMaster() {
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.entries()).thenReturn(entries(expected));
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.delete(expected.getId());
+
+		verify(redisOperations).delete(keyBuilder.getSessionKey(expected.getId()));
+		verifyZeroInteractions(replicaRedisOperations);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setReplicaReadAfterWriteDelayInMillisNegative() {
+		redisRepository.setReplicaReadAfterWriteDelayInMillis(-1);
+	}
+
+	@Test
+	public void getSessionLazyNotFound() {
+		String id = "abc";
+		redisRepository.setLazyAttributeLoading(true);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(id))).thenReturn(boundHashOperations);
+		when(boundHashOperations.multiGet(anyCollection())).thenReturn(Arrays.asList(null, null, null));
+
+		assertThat(redisRepository.getSession(id)).isNull();
+		verify(boundHashOperations, never()).entries();
+	}
+
+	@Test
+	public void getSessionLazyLoadsAttributeOnce() {
+		String attrName = "attrName";
+		MapSession expected = new MapSession();
+		expected.setLastAccessedTime(System.currentTimeMillis() - 60000);
+		redisRepository.setLazyAttributeLoading(true);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.multiGet(Arrays.<Object>asList(CREATION_TIME_ATTR, MAX_INACTIVE_ATTR, LAST_ACCESSED_ATTR)))
+			.thenReturn(Arrays.<Object>asList(expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+		when(boundHashOperations.get(getSessionAttrNameKey(attrName))).thenReturn("attrValue");
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+
+		assertThat(session.getCreationTime()).isEqualTo(expected.getCreationTime());
+		assertThat(session.getMaxInactiveIntervalInSeconds()).isEqualTo(expected.getMaxInactiveIntervalInSeconds());
+		verify(boundHashOperations, never()).get(anyObject());
+
+		assertThat(session.getAttribute(attrName)).isEqualTo("attrValue");
+		assertThat(session.getAttribute(attrName)).isEqualTo("attrValue");
+		assertThat(session.getAttribute("missing")).isNull();
+		assertThat(session.getAttribute("missing")).isNull();
+
+		verify(boundHashOperations).get(getSessionAttrNameKey(attrName));
+		verify(boundHashOperations).get(getSessionAttrNameKey("missing"));
+		verify(boundHashOperations, never()).entries();
+	}
+
+	@Test
+	public void getSessionLazyModifiedAttributeNotLoaded() {
+		MapSession expected = new MapSession();
+		redisRepository.setLazyAttributeLoading(true);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.multiGet(anyCollection()))
+			.thenReturn(Arrays.<Object>asList(expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+		session.setAttribute("a", "new");
+		session.removeAttribute("b");
+
+		assertThat(session.getAttribute("a")).isEqualTo("new");
+		assertThat(session.getAttribute("b")).isNull();
+		verify(boundHashOperations, never()).get(anyObject());
+	}
+
+	@Test
+	public void getSessionLazyGetAttributeNamesLoadsAll() {
+		MapSession expected = new MapSession();
+		redisRepository.setLazyAttributeLoading(true);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(boundHashOperations.multiGet(anyCollection()))
+			.thenReturn(Arrays.<Object>asList(expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+		Map map = map(
+				getSessionAttrNameKey("a"), "persisted",
+				getSessionAttrNameKey("b"), "b",
+				getSessionAttrNameKey("c"), "c",
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		when(boundHashOperations.entries()).thenReturn(map);
+
+		RedisSession session = redisRepository.getSession(expected.getId());
+		session.setAttribute("a", "new");
+		session.removeAttribute("c");
+
+		assertThat(session.getAttributeNames()).containsOnly("a", "b");
+		assertThat(session.getAttribute("a")).isEqualTo("new");
+		assertThat(session.getAttribute("b")).isEqualTo("b");
+		verify(boundHashOperations).entries();
+		verify(boundHashOperations, never()).get(anyObject());
+	}
+
+	@Test
+	public void checkCleanupInvokedWarnsOnce() {
+		long later = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+
+		assertThat(redisRepository.checkCleanupInvoked(System.currentTimeMillis())).isFalse();
+		assertThat(redisRepository.checkCleanupInvoked(later)).isTrue();
+		assertThat(redisRepository.checkCleanupInvoked(later)).isFalse();
+	}
+
+	@Test
+	public void checkCleanupInvokedAfterCleanup() {
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.cleanupExpiredSessions();
+
+		assertThat(redisRepository.checkCleanupInvoked(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5))).isFalse();
+	}
+
 	@Test
 	public void cleanupExpiredSessions() {
 		String expiredId = "expired-id";
-		when(redisOperations.boundHashOps(getKey(expiredId))).thenReturn(boundHashOperations);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expiredId))).thenReturn(boundHashOperations);
 		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
 
 		Set<String> expiredIds = new HashSet<String>(Arrays.asList("expired-key1","expired-key2"));
 		when(boundSetOperations.members()).thenReturn(expiredIds);
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallback());
 
 		redisRepository.cleanupExpiredSessions();
 
 		for(String id : expiredIds) {
-			String expiredKey = RedisOperationsSessionRepository.BOUNDED_HASH_KEY_PREFIX + id;
+			String expiredKey = keyBuilder.getSessionKey(id);
 			// https://github.com/spring-projects/spring-session/issues/93
 			verify(redisOperations).hasKey(expiredKey);
 		}
 	}
 
+	@Test
+	public void cleanupExpiredSessionsScheduledCleanupDisabled() {
+		redisRepository.setScheduledCleanupEnabled(false);
+
+		redisRepository.cleanupExpiredSessions();
+
+		verifyZeroInteractions(redisOperations);
+		assertThat(redisRepository.checkCleanupInvoked(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5))).isTrue();
+	}
+
+	@Test
+	public void cleanupExpiredSessionsNowScheduledCleanupDisabled() {
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		redisRepository.setScheduledCleanupEnabled(false);
+
+		redisRepository.cleanupExpiredSessionsNow();
+
+		verify(boundSetOperations).members();
+	}
+
+	@Test
+	public void setKeyBuilderSaveNewSession() {
+		RedisKeyBuilder appKeys = new RedisKeyBuilder("app", "tag");
+		redisRepository.setKeyBuilder(appKeys);
+		RedisSession session = redisRepository.createSession();
+		when(redisOperations.boundHashOps(appKeys.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+
+		redisRepository.save(session);
+
+		verify(redisOperations, atLeastOnce()).boundHashOps("app:{tag}:sessions:" + session.getId());
+		verify(redisOperations).boundSetOps(startsWith("app:{tag}:expirations:"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setKeyBuilderNull() {
+		redisRepository.setKeyBuilder(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setPrincipalNameResolverNull() {
+		redisRepository.setPrincipalNameResolver(null);
+	}
+
+	@Test
+	public void saveNewSessionPrincipalName() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = redisRepository.createSession();
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).add(session.getId());
+		verify(indexSetOperations, never()).remove(anyVararg());
+	}
+
+	@Test
+	public void saveNewSessionPrincipalNameShards() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		redisRepository.setKeyBuilder(keyBuilder);
+		RedisSession session = redisRepository.createSession();
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		int shard = keyBuilder.getShard(session.getId());
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(shard, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).add(session.getId());
+	}
+
+	@Test
+	public void saveSecurityContextPrincipalName() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = redisRepository.createSession();
+		SecurityContextImpl securityContext = new SecurityContextImpl();
+		securityContext.setAuthentication(new UsernamePasswordAuthenticationToken("rob", "password"));
+		session.setAttribute(RedisOperationsSessionRepository.DefaultPrincipalNameResolver.SPRING_SECURITY_CONTEXT,
+				securityContext);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).add(session.getId());
+	}
+
+	@Test
+	public void savePrincipalNameChanged() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME), "rob"));
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "luke");
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "luke"))).thenReturn(otherIndexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).remove(session.getId());
+		verify(otherIndexSetOperations).add(session.getId());
+	}
+
+	@Test
+	public void savePrincipalNameRemoved() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME), "rob"));
+		session.removeAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).remove(session.getId());
+		verify(indexSetOperations, never()).add((String[]) anyVararg());
+	}
+
+	@Test
+	public void savePrincipalNameUnchanged() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME), "rob"));
+		session.setAttribute("attrName", "attrValue");
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.save(session);
+
+		verify(redisOperations, never()).boundSetOps(keyBuilder.getPrincipalKey(0, "rob"));
+	}
+
+	@Test
+	public void savePrincipalNameScript() {
+		redisRepository.setIndexPrincipalNames(true);
+		redisRepository.setSaveMode(RedisSaveMode.SCRIPT);
+		RedisSession session = loadSession(map());
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		when(redisOperations.getValueSerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		List<List<String>> args = recordScriptArgs();
+
+		redisRepository.save(session);
+
+		ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+		verify(redisOperations).execute(eq(RedisOperationsSessionRepository.SAVE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), keys.capture(), anyVararg());
+		List<String> saved = keys.getValue();
+		assertThat(saved.get(saved.size() - 1)).isEqualTo(keyBuilder.getPrincipalKey(0, "rob"));
+		// only the keys that are written are passed
+		assertThat(Collections.frequency(saved, keyBuilder.getSessionKey(session.getId()))).isEqualTo(1);
+		assertThat(args.get(0).subList(4, 6)).containsExactly(RedisOperationsSessionRepository.SCRIPT_FLAG_UNSET, RedisOperationsSessionRepository.SCRIPT_FLAG_SET);
+		verify(redisOperations, never()).executePipelined(any(SessionCallback.class));
+		verify(redisOperations, never()).boundSetOps(anyString());
+	}
+
+	@Test
+	public void saveLazyPrincipalNameOnlyAdded() {
+		redisRepository.setIndexPrincipalNames(true);
+		MapSession expected = new MapSession();
+		redisRepository.setLazyAttributeLoading(true);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(boundHashOperations.multiGet(anyCollection()))
+			.thenReturn(Arrays.<Object>asList(expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+		RedisSession session = redisRepository.getSession(expected.getId());
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+
+		redisRepository.save(session);
+
+		verify(indexSetOperations).add(session.getId());
+		verify(indexSetOperations, never()).remove(anyVararg());
+	}
+
+	@Test
+	public void deletePrincipalName() {
+		redisRepository.setIndexPrincipalNames(true);
+		RedisSession session = loadSession(map(getSessionAttrNameKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME), "rob"));
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+
+		redisRepository.delete(session.getId());
+
+		verify(indexSetOperations).remove(session.getId());
+		verify(redisOperations).delete(keyBuilder.getSessionKey(session.getId()));
+	}
+
+	@Test
+	public void findByPrincipalName() {
+		redisRepository.setIndexPrincipalNames(true);
+		MapSession expected = new MapSession();
+		expected.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		MapSession other = new MapSession();
+		other.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "luke");
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(indexSetOperations.members()).thenReturn(new LinkedHashSet<String>(Arrays.asList(expected.getId(), "expired", other.getId())));
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.asList(entries(expected), map(), entries(other)));
+
+		Map<String, RedisSession> sessions = redisRepository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+
+		assertThat(sessions.keySet()).containsOnly(expected.getId());
+		assertThat(sessions.get(expected.getId()).getAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME)).isEqualTo("rob");
+		verify(indexSetOperations).remove("expired", other.getId());
+	}
+
+	@Test
+	public void findByPrincipalNameLoadsFromMaster() {
+		redisRepository.setIndexPrincipalNames(true);
+		SessionNearCache nearCache = new SessionNearCache();
+		redisRepository.setNearCache(nearCache);
+		redisRepository.setReplicaRedisOperations(replicaRedisOperations);
+		MapSession expected = new MapSession();
+		expected.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		MapSession stale = new MapSession(expected);
+		stale.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "luke");
+		nearCache.put(stale, new JdkSerializationRedisSerializer());
+		MapSession notReplicated = new MapSession();
+		notReplicated.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(indexSetOperations.members()).thenReturn(new LinkedHashSet<String>(Arrays.asList(expected.getId(), notReplicated.getId())));
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.asList(entries(expected), entries(notReplicated)));
+
+		Map<String, RedisSession> sessions = redisRepository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+
+		assertThat(sessions.keySet()).containsOnly(expected.getId(), notReplicated.getId());
+		verify(indexSetOperations, never()).remove(anyVararg());
+		verifyZeroInteractions(replicaRedisOperations);
+	}
+
+	@Test
+	public void findByPrincipalNameNotFound() {
+		redisRepository.setIndexPrincipalNames(true);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(indexSetOperations.members()).thenReturn(new HashSet<String>());
+
+		assertThat(redisRepository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob")).isEmpty();
+		verify(redisOperations, never()).executePipelined(any(SessionCallback.class));
+	}
+
+	@Test
+	public void saveIndexPrincipalNamesDisabled() {
+		PrincipalNameResolver principalNameResolver = mock(PrincipalNameResolver.class);
+		redisRepository.setPrincipalNameResolver(principalNameResolver);
+		RedisSession session = loadSession(map(getSessionAttrNameKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME), "rob"));
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "luke");
+
+		redisRepository.save(session);
+		redisRepository.delete(session.getId());
+
+		verifyZeroInteractions(principalNameResolver);
+		verify(redisOperations, never()).boundSetOps(keyBuilder.getPrincipalKey(0, "rob"));
+		verify(redisOperations, never()).boundSetOps(keyBuilder.getPrincipalKey(0, "luke"));
+	}
+
+	@Test
+	public void findByPrincipalNameIndexPrincipalNamesDisabled() {
+		assertThat(redisRepository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob")).isEmpty();
+		verifyZeroInteractions(redisOperations);
+	}
+
+	@Test
+	public void findByUnsupportedIndexName() {
+		assertThat(redisRepository.findByIndexNameAndIndexValue("unsupported", "rob")).isEmpty();
+		verifyZeroInteractions(redisOperations);
+	}
+
+	/**
+	 * Loads a session with the provided attribute entries using the mocked {@link RedisOperations}.
+	 */
+	private RedisSession loadSession(Map attributes) {
+		MapSession expected = new MapSession();
+		Map map = map(
+				CREATION_TIME_ATTR, expected.getCreationTime(),
+				MAX_INACTIVE_ATTR, expected.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, expected.getLastAccessedTime());
+		map.putAll(attributes);
+		when(redisOperations.getHashValueSerializer()).thenReturn(new JdkSerializationRedisSerializer());
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(expected.getId()))).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(boundHashOperations.entries()).thenReturn(map);
+		return redisRepository.getSession(expected.getId());
+	}
+
+	/**
+	 * The entries of the Hash of the provided session.
+	 */
+	private Map entries(MapSession session) {
+		Map result = map(
+				CREATION_TIME_ATTR, session.getCreationTime(),
+				MAX_INACTIVE_ATTR, session.getMaxInactiveIntervalInSeconds(),
+				LAST_ACCESSED_ATTR, session.getLastAccessedTime());
+		for(String attributeName : session.getAttributeNames()) {
+			result.put(getSessionAttrNameKey(attributeName), session.getAttribute(attributeName));
+		}
+		return result;
+	}
+
 	private Map map(Object...objects) {
 		Map<String,Object> result = new HashMap<String,Object>();
 		if(objects == null) {
@@ -272,6 +1492,62 @@ public class RedisOperationsSessionRepositoryTests {
 		return result;
 	}
 
+	/**
+	 * Invokes the {@link SessionCallback} that was passed in with the mocked {@link RedisOperations}
+	 */
+	private Answer<Object> executeCallback() {
+		return new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				SessionCallback<?> callback = (SessionCallback<?>) invocation.getArguments()[0];
+				return callback.execute(redisOperations);
+			}
+		};
+	}
+
+	/**
+	 * Provides the serializers of a RedisTemplate and invokes the {@link RedisCallback} that was passed in with
+	 * the mocked {@link RedisConnection}
+	 */
+	@SuppressWarnings("unchecked")
+	private void stubSerializers() {
+		when(redisOperations.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(new JdkSerializationRedisSerializer());
+		when(redisOperations.execute(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			}
+		});
+	}
+
+	/**
+	 * Records the arguments that are passed to the scripts executed with the mocked {@link RedisOperations}, which are
+	 * deserialized as Strings, in the order the scripts are executed.
+	 */
+	private List<List<String>> recordScriptArgs() {
+		final List<List<String>> executions = new ArrayList<List<String>>();
+		when(redisOperations.execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), anyVararg())).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				Object[] arguments = invocation.getArguments();
+				List<Object> args = new ArrayList<Object>();
+				for(int i = 4; i < arguments.length; i++) {
+					if(arguments[i] instanceof Object[]) {
+						args.addAll(Arrays.asList((Object[]) arguments[i]));
+					} else {
+						args.add(arguments[i]);
+					}
+				}
+				List<String> deserialized = new ArrayList<String>();
+				for(Object arg : args) {
+					deserialized.add(new StringRedisSerializer().deserialize((byte[]) arg));
+				}
+				executions.add(deserialized);
+				return null;
+			}
+		});
+		return executions;
+	}
+
 	private Map<String,Object> getDelta() {
 		verify(boundHashOperations).putAll(delta.capture());
 		return delta.getValue();
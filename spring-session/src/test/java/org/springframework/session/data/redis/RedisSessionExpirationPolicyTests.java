@@ -15,18 +15,36 @@
  */
 package org.springframework.session.data.redis;
 
+import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.BoundSetOperations;
+import org.springframework.data.redis.core.BoundValueOperations;
+import org.springframework.data.redis.core.BoundZSetOperations;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.session.MapSession;
 
 /**
@@ -41,12 +59,20 @@ public class RedisSessionExpirationPolicyTests {
 	// Wed Apr 15 10:27:32 CDT 2015
 	final static Long ONE_MINUTE_AGO = 1429111652346L;
 
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
 	@Mock
 	RedisOperations sessionRedisOperations;
 	@Mock
 	BoundSetOperations setOperations;
 	@Mock
 	BoundHashOperations hashOperations;
+	@Mock
+	BoundZSetOperations zSetOperations;
+	@Mock
+	ZSetOperations opsForZSet;
+	@Mock
+	BoundValueOperations valueOperations;
 
 	RedisSessionExpirationPolicy policy;
 
@@ -61,6 +87,8 @@ public class RedisSessionExpirationPolicyTests {
 
 		when(sessionRedisOperations.boundSetOps(anyString())).thenReturn(setOperations);
 		when(sessionRedisOperations.boundHashOps(anyString())).thenReturn(hashOperations);
+		when(sessionRedisOperations.boundZSetOps(keyBuilder.getExpirationsKey(0))).thenReturn(zSetOperations);
+		when(sessionRedisOperations.opsForZSet()).thenReturn(opsForZSet);
 	}
 
 	// gh-169
@@ -68,7 +96,7 @@ public class RedisSessionExpirationPolicyTests {
 	public void onExpirationUpdatedRemovesOriginalExpirationTimeRoundedUp() throws Exception {
 		long originalExpirationTimeInMs = ONE_MINUTE_AGO;
 		long originalRoundedToNextMinInMs = RedisSessionExpirationPolicy.roundUpToNextMinute(originalExpirationTimeInMs);
-		String originalExpireKey = policy.getExpirationKey(originalRoundedToNextMinInMs);
+		String originalExpireKey = policy.getExpirationKey(session.getId(), originalRoundedToNextMinInMs);
 
 		policy.onExpirationUpdated(originalExpirationTimeInMs, session);
 
@@ -81,13 +109,24 @@ public class RedisSessionExpirationPolicyTests {
 	public void onExpirationUpdatedAddsExpirationTimeRoundedUp() throws Exception {
 		long expirationTimeInMs = RedisSessionExpirationPolicy.expiresInMillis(session);
 		long expirationRoundedUpInMs = RedisSessionExpirationPolicy.roundUpToNextMinute(expirationTimeInMs);
-		String expectedExpireKey = policy.getExpirationKey(expirationRoundedUpInMs);
+		String expectedExpireKey = policy.getExpirationKey(session.getId(), expirationRoundedUpInMs);
 
 		policy.onExpirationUpdated(null, session);
 
 		verify(sessionRedisOperations).boundSetOps(expectedExpireKey);
 		verify(setOperations).add(session.getId());
-		verify(setOperations).expire(session.getMaxInactiveIntervalInSeconds() + 60, TimeUnit.SECONDS);
+		// a bucket for rounding up and 60 buckets to catch up after a pause
+		verify(setOperations).expire(session.getMaxInactiveIntervalInSeconds() + 60 + 3600, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void onExpirationUpdatedCleanupLease() throws Exception {
+		policy.setCleanupLeaseInMillis(TimeUnit.SECONDS.toMillis(90));
+
+		policy.onExpirationUpdated(null, session);
+
+		// the instance taking over the lease cleans up the buckets missed during the lease as well
+		verify(setOperations).expire(session.getMaxInactiveIntervalInSeconds() + 60 + 3600 + 90, TimeUnit.SECONDS);
 	}
 
 	@Test
@@ -99,4 +138,552 @@ public class RedisSessionExpirationPolicyTests {
 		verify(sessionRedisOperations).boundHashOps(sessionKey);
 		verify(hashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
 	}
+
+	@Test
+	public void onExpirationUpdatedSameMinuteSkipsMove() throws Exception {
+		long originalExpirationTimeInMs = RedisSessionExpirationPolicy.expiresInMillis(session);
+		session.setLastAccessedTime(session.getLastAccessedTime() + 1);
+		String sessionKey = policy.getSessionKey(session.getId());
+
+		policy.onExpirationUpdated(originalExpirationTimeInMs, session);
+
+		verify(sessionRedisOperations, never()).boundSetOps(anyString());
+		verify(sessionRedisOperations).boundHashOps(sessionKey);
+		verify(hashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+		assertThat(policy.getSkippedExpirationMoveCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void onExpirationUpdatedDifferentMinuteMoves() throws Exception {
+		policy.onExpirationUpdated(ONE_MINUTE_AGO, session);
+
+		verify(setOperations).remove(session.getId());
+		verify(setOperations).add(session.getId());
+		assertThat(policy.getSkippedExpirationMoveCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void onExpirationUpdatedNewSessionMoves() throws Exception {
+		policy.onExpirationUpdated(null, session);
+
+		verify(setOperations, never()).remove(anyString());
+		verify(setOperations).add(session.getId());
+		assertThat(policy.getSkippedExpirationMoveCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void isExpirationMoveRequiredDoesNotCountSkippedMoves() {
+		long originalExpirationTimeInMs = RedisSessionExpirationPolicy.expiresInMillis(session);
+		long toExpire = policy.roundUpToNextBucket(originalExpirationTimeInMs);
+
+		assertThat(policy.isExpirationMoveRequired(originalExpirationTimeInMs, toExpire)).isFalse();
+		assertThat(policy.isExpirationMoveRequired(null, toExpire)).isTrue();
+		assertThat(policy.getSkippedExpirationMoveCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void roundUpToNextMinuteMatchesCalendar() {
+		for(long time = NOW - TimeUnit.MINUTES.toMillis(3); time < NOW + TimeUnit.MINUTES.toMillis(3); time += 997) {
+			assertThat(RedisSessionExpirationPolicy.roundUpToNextMinute(time)).isEqualTo(calendarRoundUpToNextMinute(time));
+			assertThat(RedisSessionExpirationPolicy.roundDownMinute(time)).isEqualTo(calendarRoundDownMinute(time));
+		}
+	}
+
+	@Test
+	public void roundUpToNextMinuteOnMinute() {
+		long onMinute = RedisSessionExpirationPolicy.roundDownMinute(NOW);
+
+		assertThat(RedisSessionExpirationPolicy.roundUpToNextMinute(onMinute)).isEqualTo(onMinute + TimeUnit.MINUTES.toMillis(1));
+		assertThat(RedisSessionExpirationPolicy.roundDownMinute(onMinute)).isEqualTo(onMinute);
+	}
+
+	@Test
+	public void roundUpToNextBucketTenSeconds() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+
+		// Wed Apr 15 10:28:40 CDT 2015
+		assertThat(policy.roundUpToNextBucket(NOW)).isEqualTo(1429111720000L);
+		// Wed Apr 15 10:28:30 CDT 2015
+		assertThat(policy.roundDownToBucket(NOW)).isEqualTo(1429111710000L);
+	}
+
+	@Test
+	public void roundUpToNextBucketFiveMinutes() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.MINUTES.toMillis(5));
+
+		// Wed Apr 15 10:30:00 CDT 2015
+		assertThat(policy.roundUpToNextBucket(NOW)).isEqualTo(1429111800000L);
+		// Wed Apr 15 10:25:00 CDT 2015
+		assertThat(policy.roundDownToBucket(NOW)).isEqualTo(1429111500000L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setExpirationBucketSizeInMillisZero() {
+		policy.setExpirationBucketSizeInMillis(0);
+	}
+
+	@Test
+	public void onExpirationUpdatedTenSecondBuckets() throws Exception {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		long expirationTimeInMs = RedisSessionExpirationPolicy.expiresInMillis(session);
+		String expectedExpireKey = policy.getExpirationKey(session.getId(), RedisSessionExpirationPolicy.roundUpToNextBucket(expirationTimeInMs, TimeUnit.SECONDS.toMillis(10)));
+
+		policy.onExpirationUpdated(null, session);
+
+		verify(sessionRedisOperations).boundSetOps(expectedExpireKey);
+		verify(setOperations).add(session.getId());
+		// the expiration key must survive until a cleanup catching up on 60 buckets
+		verify(setOperations).expire(session.getMaxInactiveIntervalInSeconds() + 10 + 600, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void onExpirationUpdatedFiveMinuteBuckets() throws Exception {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.MINUTES.toMillis(5));
+
+		policy.onExpirationUpdated(null, session);
+
+		verify(setOperations).expire(session.getMaxInactiveIntervalInSeconds() + 300 + 18000, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void cleanExpiredSessionsTenSecondBuckets() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		// every bucket that ended within the previous minute
+		verify(sessionRedisOperations, times(6)).boundSetOps(anyString());
+		verify(sessionRedisOperations, times(6)).delete(anyString());
+	}
+
+	@Test
+	public void cleanExpiredSessionsShards() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		policy.setKeyBuilder(keyBuilder);
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallbackReturning(Collections.emptyList()));
+
+		policy.cleanExpiredSessions();
+
+		// every bucket that ended within the previous minute in every shard
+		ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+		verify(sessionRedisOperations, times(24)).boundSetOps(keys.capture());
+		for(int shard = 0; shard < 4; shard++) {
+			String shardPrefix = keyBuilder.getExpirationKey(shard, 0).replaceAll("0$", "");
+			int cleaned = 0;
+			for(String key : keys.getAllValues()) {
+				if(key.startsWith(shardPrefix)) {
+					cleaned++;
+				}
+			}
+			assertThat(cleaned).isEqualTo(6);
+		}
+		verify(sessionRedisOperations, times(24)).delete(anyString());
+		// a single pipeline per bucket rather than per shard
+		verify(sessionRedisOperations, times(6)).executePipelined(any(SessionCallback.class));
+	}
+
+	@Test
+	public void cleanExpiredSessionsShardsAccessesSessionsOfEveryShard() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		policy.setKeyBuilder(keyBuilder);
+		// the members of the expiration key of each shard, followed by the replies to the deletions
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallbackReturning(Arrays.<Object>asList(
+				Collections.singleton("shard0"), Collections.singleton("shard1"), Collections.emptySet(), Collections.singleton("shard3"),
+				1L, 1L, 0L, 1L)));
+
+		policy.cleanExpiredSessions();
+
+		for(int shard = 0; shard < 4; shard++) {
+			verify(sessionRedisOperations).boundSetOps(startsWith(keyBuilder.getExpirationKey(shard, 0).replaceAll("0$", "")));
+		}
+		verify(setOperations, times(4)).members();
+		for(String id : Arrays.asList("shard0", "shard1", "shard3")) {
+			verify(sessionRedisOperations).hasKey(keyBuilder.getSessionKey(id));
+		}
+		// the expiration keys and the sessions of every shard
+		verify(sessionRedisOperations, times(2)).executePipelined(any(SessionCallback.class));
+	}
+
+	@Test
+	public void onExpirationUpdatedShards() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		policy.setKeyBuilder(keyBuilder);
+		int shard = keyBuilder.getShard(session.getId());
+		long expirationRoundedUpInMs = RedisSessionExpirationPolicy.roundUpToNextMinute(RedisSessionExpirationPolicy.expiresInMillis(session));
+
+		policy.onExpirationUpdated(null, session);
+
+		verify(sessionRedisOperations).boundSetOps(keyBuilder.getExpirationKey(shard, expirationRoundedUpInMs));
+		verify(sessionRedisOperations).boundHashOps(keyBuilder.getSessionKey(session.getId()));
+	}
+
+	@Test
+	public void cleanExpiredSessionsMaxBucketsPerCleanup() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(1));
+		policy.setMaxBucketsPerCleanup(10);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, times(10)).boundSetOps(anyString());
+		assertThat(policy.isCleanupBehind()).isTrue();
+	}
+
+	@Test
+	public void cleanExpiredSessionsCatchesUpWhereItStopped() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(1));
+		policy.setMaxBucketsPerCleanup(10);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+		policy.cleanExpiredSessions();
+
+		ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+		verify(sessionRedisOperations, times(20)).boundSetOps(keys.capture());
+		List<String> cleaned = keys.getAllValues();
+		for(int i = 1; i < cleaned.size(); i++) {
+			long previous = Long.parseLong(cleaned.get(i - 1).substring(keyBuilder.getExpirationKey(0, 0).length() - 1));
+			long bucket = Long.parseLong(cleaned.get(i).substring(keyBuilder.getExpirationKey(0, 0).length() - 1));
+			assertThat(bucket - previous).isEqualTo(TimeUnit.SECONDS.toMillis(1));
+		}
+		assertThat(policy.isCleanupBehind()).isTrue();
+	}
+
+	@Test
+	public void cleanExpiredSessionsCatchesUpAfterPause() {
+		long bucketSize = TimeUnit.SECONDS.toMillis(1);
+		policy.setExpirationBucketSizeInMillis(bucketSize);
+		policy.setMaxBucketsPerCleanup(90);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+		long now = System.currentTimeMillis();
+
+		policy.cleanExpiredSessions(now);
+		// longer than a minute, so the next bucket is no longer within the minute before the next cleanup
+		policy.cleanExpiredSessions(now + TimeUnit.SECONDS.toMillis(65));
+
+		long lastBucket = RedisSessionExpirationPolicy.roundDownToBucket(now, bucketSize);
+		verify(sessionRedisOperations).boundSetOps(keyBuilder.getExpirationKey(0, lastBucket));
+		verify(sessionRedisOperations).boundSetOps(keyBuilder.getExpirationKey(0, lastBucket + bucketSize));
+		verify(sessionRedisOperations).boundSetOps(keyBuilder.getExpirationKey(0, lastBucket + TimeUnit.SECONDS.toMillis(65)));
+		assertThat(policy.isCleanupBehind()).isFalse();
+	}
+
+	@Test
+	public void cleanExpiredSessionsCatchesUpFromStoredBucket() {
+		long bucketSize = TimeUnit.SECONDS.toMillis(1);
+		policy.setExpirationBucketSizeInMillis(bucketSize);
+		policy.setMaxBucketsPerCleanup(120);
+		// the last bucket cleaned up before a restart that took longer than a minute
+		long storedBucket = RedisSessionExpirationPolicy.roundDownToBucket(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(90), bucketSize);
+		when(sessionRedisOperations.execute(any(SessionCallback.class))).thenAnswer(executeCallback());
+		when(sessionRedisOperations.boundValueOps(keyBuilder.getCleanupBucketKey())).thenReturn(valueOperations);
+		when(valueOperations.get()).thenReturn(String.valueOf(storedBucket));
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations).boundSetOps(keyBuilder.getExpirationKey(0, storedBucket + bucketSize));
+		verify(sessionRedisOperations, never()).boundSetOps(keyBuilder.getExpirationKey(0, storedBucket));
+		// the stored bucket is only read before the first cleanup
+		verify(valueOperations, times(1)).get();
+	}
+
+	@Test
+	public void cleanExpiredSessionsStoresCleanupBucket() {
+		when(sessionRedisOperations.execute(any(SessionCallback.class))).thenAnswer(executeCallback());
+		when(sessionRedisOperations.boundValueOps(keyBuilder.getCleanupBucketKey())).thenReturn(valueOperations);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+		long before = RedisSessionExpirationPolicy.roundDownMinute(System.currentTimeMillis());
+
+		policy.cleanExpiredSessions();
+
+		long after = RedisSessionExpirationPolicy.roundDownMinute(System.currentTimeMillis());
+		ArgumentCaptor<Object> bucket = ArgumentCaptor.forClass(Object.class);
+		verify(valueOperations).set(bucket.capture(), eq(policy.getExpirationKeySlackInMillis()), eq(TimeUnit.MILLISECONDS));
+		assertThat(Long.parseLong(bucket.getValue().toString())).isGreaterThanOrEqualTo(before);
+		assertThat(Long.parseLong(bucket.getValue().toString())).isLessThanOrEqualTo(after);
+	}
+
+	@Test
+	public void cleanExpiredSessionsCaughtUp() {
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+		policy.cleanExpiredSessions();
+
+		// the second cleanup only cleans the buckets that ended since the first
+		verify(sessionRedisOperations, atMost(7)).boundSetOps(anyString());
+		assertThat(policy.isCleanupBehind()).isFalse();
+	}
+
+	@Test
+	public void cleanExpiredSessionsPipelinesInBatches() {
+		policy.setCleanupBatchSize(2);
+		when(setOperations.members())
+			.thenReturn(new LinkedHashSet<String>(Arrays.asList("a", "b", "c", "d", "e")))
+			.thenReturn(Collections.emptySet());
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallback());
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, times(3)).executePipelined(any(SessionCallback.class));
+		for(String id : Arrays.asList("a", "b", "c", "d", "e")) {
+			verify(sessionRedisOperations).hasKey(policy.getSessionKey(id));
+		}
+	}
+
+	@Test
+	public void cleanExpiredSessionsStringKeysEncodedByKeyBuilder() {
+		policy.setKeyBuilder(new RedisKeyBuilder("app"));
+		when(sessionRedisOperations.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(setOperations.members())
+			.thenReturn(new LinkedHashSet<String>(Arrays.asList("a", "b")))
+			.thenReturn(Collections.emptySet());
+		final RedisConnection connection = mock(RedisConnection.class);
+		when(sessionRedisOperations.executePipelined(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				RedisCallback<?> callback = (RedisCallback<?>) invocation.getArguments()[0];
+				return callback.doInRedis(connection);
+			}
+		});
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations).boundSetOps(startsWith("app:expirations:"));
+		verify(connection).exists("app:sessions:a".getBytes());
+		verify(connection).exists("app:sessions:b".getBytes());
+		verify(sessionRedisOperations, never()).hasKey(anyString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setKeyBuilderNull() {
+		policy.setKeyBuilder(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setMaxBucketsPerCleanupZero() {
+		policy.setMaxBucketsPerCleanup(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setExpirationModeNull() {
+		policy.setExpirationMode(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupBatchSizeZero() {
+		policy.setCleanupBatchSize(0);
+	}
+
+	@Test
+	public void sortedSetOnExpirationUpdatedAddsExpirationTime() throws Exception {
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		String sessionKey = policy.getSessionKey(session.getId());
+
+		policy.onExpirationUpdated(ONE_MINUTE_AGO, session);
+
+		verify(zSetOperations).add(session.getId(), (double) RedisSessionExpirationPolicy.expiresInMillis(session));
+		verify(sessionRedisOperations).boundHashOps(sessionKey);
+		verify(hashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+		verify(sessionRedisOperations, never()).boundSetOps(anyString());
+	}
+
+	@Test
+	public void sortedSetOnDeleteRemoves() throws Exception {
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+
+		policy.onDelete(session);
+
+		verify(zSetOperations).remove(session.getId());
+		verify(sessionRedisOperations, never()).boundSetOps(anyString());
+	}
+
+	@Test
+	public void sortedSetCleanExpiredSessionsBatches() {
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		policy.setCleanupBatchSize(2);
+		when(opsForZSet.rangeByScore(eq(keyBuilder.getExpirationsKey(0)), eq(0d), anyDouble(), eq(0L), eq(2L)))
+			.thenReturn(new LinkedHashSet<String>(Arrays.asList("expired", "saved")));
+		when(opsForZSet.rangeByScore(eq(keyBuilder.getExpirationsKey(0)), eq(0d), anyDouble(), eq(1L), eq(2L)))
+			.thenReturn(new LinkedHashSet<String>(Arrays.asList("expired2")));
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class)))
+			.thenReturn(Arrays.<Object>asList(false, true), Arrays.<Object>asList(false));
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, times(2)).executePipelined(any(SessionCallback.class));
+		verify(zSetOperations).remove("expired");
+		verify(zSetOperations).remove("expired2");
+		verify(zSetOperations, never()).remove("saved");
+		verify(sessionRedisOperations, never()).boundSetOps(anyString());
+	}
+
+	@Test
+	public void sortedSetCleanExpiredSessionsShards() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 4);
+		policy.setKeyBuilder(keyBuilder);
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallbackReturning(Collections.emptyList()));
+
+		policy.cleanExpiredSessions();
+
+		for(int shard = 0; shard < 4; shard++) {
+			verify(opsForZSet).rangeByScore(eq(keyBuilder.getExpirationsKey(shard)), eq(0d), anyDouble(), eq(0L), anyLong());
+		}
+		verify(sessionRedisOperations, times(1)).executePipelined(any(SessionCallback.class));
+	}
+
+	@Test
+	public void sortedSetCleanExpiredSessionsShardsBatches() {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("spring:session", 2);
+		policy.setKeyBuilder(keyBuilder);
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		policy.setCleanupBatchSize(2);
+		BoundZSetOperations shard0 = mock(BoundZSetOperations.class);
+		BoundZSetOperations shard1 = mock(BoundZSetOperations.class);
+		when(sessionRedisOperations.boundZSetOps(keyBuilder.getExpirationsKey(0))).thenReturn(shard0);
+		when(sessionRedisOperations.boundZSetOps(keyBuilder.getExpirationsKey(1))).thenReturn(shard1);
+		when(sessionRedisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallbackReturning(
+				// the first batch of both shards, only shard 0 may have more
+				Arrays.<Object>asList(new LinkedHashSet<String>(Arrays.asList("a", "saved")), Collections.singleton("b")),
+				// the sessions are accessed in batches of two
+				Arrays.<Object>asList(false, true),
+				Arrays.<Object>asList(false),
+				Collections.emptyList(),
+				// the second batch of shard 0
+				Arrays.<Object>asList(Collections.singleton("c")),
+				Arrays.<Object>asList(false),
+				Collections.emptyList()));
+
+		policy.cleanExpiredSessions();
+
+		verify(opsForZSet).rangeByScore(eq(keyBuilder.getExpirationsKey(0)), eq(0d), anyDouble(), eq(0L), eq(2L));
+		verify(opsForZSet).rangeByScore(eq(keyBuilder.getExpirationsKey(1)), eq(0d), anyDouble(), eq(0L), eq(2L));
+		// the session that still exists is skipped by the next batch
+		verify(opsForZSet).rangeByScore(eq(keyBuilder.getExpirationsKey(0)), eq(0d), anyDouble(), eq(1L), eq(2L));
+		verify(opsForZSet, times(3)).rangeByScore(anyString(), anyDouble(), anyDouble(), anyLong(), anyLong());
+		verify(shard0).remove("a");
+		verify(shard0).remove("c");
+		verify(shard1).remove("b");
+		verify(shard0, never()).remove("saved");
+		for(String id : Arrays.asList("a", "saved", "b", "c")) {
+			verify(sessionRedisOperations).hasKey(keyBuilder.getSessionKey(id));
+		}
+	}
+
+	@Test
+	public void sortedSetCleanExpiredSessionsNoneExpired() {
+		policy.setExpirationMode(RedisExpirationMode.SORTED_SET);
+		when(opsForZSet.rangeByScore(anyString(), anyDouble(), anyDouble(), anyLong(), anyLong())).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, never()).executePipelined(any(SessionCallback.class));
+		verifyZeroInteractions(zSetOperations);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupLeaseInMillisNegative() {
+		policy.setCleanupLeaseInMillis(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupLeaseInMillisCleanupInterval() {
+		policy.setCleanupLeaseInMillis(RedisSessionExpirationPolicy.CLEANUP_INTERVAL_IN_MILLIS);
+	}
+
+	@Test
+	public void cleanExpiredSessionsLeaseHeldByOther() {
+		policy.setCleanupLeaseInMillis(TimeUnit.SECONDS.toMillis(90));
+		when(sessionRedisOperations.execute(eq(RedisSessionExpirationPolicy.CLEANUP_LEASE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), anyList(), anyVararg()))
+			.thenReturn(RedisSessionExpirationPolicy.LEASE_HELD_BY_OTHER);
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, never()).boundSetOps(anyString());
+		assertThat(policy.getSkippedCleanupCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void cleanExpiredSessionsLeaseRenewed() {
+		policy.setCleanupLeaseInMillis(TimeUnit.SECONDS.toMillis(90));
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		when(sessionRedisOperations.execute(eq(RedisSessionExpirationPolicy.CLEANUP_LEASE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), anyList(), anyVararg()))
+			.thenReturn(RedisSessionExpirationPolicy.LEASE_RENEWED);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+		verify(sessionRedisOperations).execute(eq(RedisSessionExpirationPolicy.CLEANUP_LEASE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), keys.capture(), anyVararg());
+		assertThat(keys.getValue()).containsExactly(keyBuilder.getCleanupLeaseKey());
+		// every bucket that ended within the previous minute
+		verify(sessionRedisOperations, times(6)).boundSetOps(anyString());
+		assertThat(policy.getSkippedCleanupCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void cleanExpiredSessionsLeaseAcquiredCleansMissedBuckets() {
+		policy.setCleanupLeaseInMillis(TimeUnit.SECONDS.toMillis(90));
+		policy.setExpirationBucketSizeInMillis(TimeUnit.SECONDS.toMillis(10));
+		when(sessionRedisOperations.execute(eq(RedisSessionExpirationPolicy.CLEANUP_LEASE_SCRIPT), (RedisSerializer) isNull(), (RedisSerializer) isNull(), anyList(), anyVararg()))
+			.thenReturn(RedisSessionExpirationPolicy.LEASE_ACQUIRED);
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		// every bucket that ended within the previous minute and the duration of the lease
+		verify(sessionRedisOperations, times(15)).boundSetOps(anyString());
+	}
+
+	@Test
+	public void cleanExpiredSessionsNoLease() {
+		when(setOperations.members()).thenReturn(Collections.emptySet());
+
+		policy.cleanExpiredSessions();
+
+		verify(sessionRedisOperations, never()).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), anyVararg());
+	}
+
+	private Answer<Object> executeCallbackReturning(final List<?>... results) {
+		return new Answer<Object>() {
+			int invocation;
+
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				SessionCallback<?> callback = (SessionCallback<?>) invocation.getArguments()[0];
+				callback.execute(sessionRedisOperations);
+				return results[Math.min(this.invocation++, results.length - 1)];
+			}
+		};
+	}
+
+	private Answer<Object> executeCallback() {
+		return new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				SessionCallback<?> callback = (SessionCallback<?>) invocation.getArguments()[0];
+				return callback.execute(sessionRedisOperations);
+			}
+		};
+	}
+
+	private static long calendarRoundUpToNextMinute(long timeInMs) {
+		Calendar date = Calendar.getInstance();
+		date.setTimeInMillis(timeInMs);
+		date.add(Calendar.MINUTE, 1);
+		date.clear(Calendar.SECOND);
+		date.clear(Calendar.MILLISECOND);
+		return date.getTimeInMillis();
+	}
+
+	private static long calendarRoundDownMinute(long timeInMs) {
+		Calendar date = Calendar.getInstance();
+		date.setTimeInMillis(timeInMs);
+		date.clear(Calendar.SECOND);
+		date.clear(Calendar.MILLISECOND);
+		return date.getTimeInMillis();
+	}
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.MapAssert.entry;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+@RunWith(MockitoJUnitRunner.class)
+@SuppressWarnings({"unchecked","rawtypes"})
+public class RedisSessionHashCodecTests {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String SESSION_ID = "123";
+
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	private final JdkSerializationRedisSerializer serializer = new JdkSerializationRedisSerializer();
+
+	@Mock
+	RedisOperations redisOperations;
+	@Mock
+	RedisConnection connection;
+	@Mock
+	BoundHashOperations<String, Object, Object> boundHashOperations;
+
+	private RedisSessionHashCodec codec;
+
+	@Before
+	public void setup() {
+		this.codec = new RedisSessionHashCodec(keyBuilder);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorNullKeyBuilder() {
+		new RedisSessionHashCodec(null);
+	}
+
+	@Test
+	public void rawKey() {
+		stubRawHash();
+
+		assertThat(codec.getRawKey(redisOperations, SESSION_ID)).isEqualTo(keyBuilder.getSessionKeyBytes(SESSION_ID));
+	}
+
+	@Test
+	public void rawKeyWithoutSerializers() {
+		assertThat(codec.getRawKey(redisOperations, SESSION_ID)).isNull();
+	}
+
+	@Test
+	public void rawHash() {
+		stubRawHash();
+
+		assertHash();
+		verify(redisOperations, never()).boundHashOps(anyString());
+	}
+
+	@Test
+	public void templateHash() {
+		stubTemplateHash();
+
+		assertHash();
+		verify(redisOperations, never()).execute(any(RedisCallback.class));
+	}
+
+	@Test
+	public void rawRequestEntries() {
+		stubRawHash();
+
+		codec.requestEntries(redisOperations, SESSION_ID);
+
+		verify(connection).hGetAll(keyBuilder.getSessionKeyBytes(SESSION_ID));
+	}
+
+	@Test
+	public void templateRequestEntries() {
+		stubTemplateHash();
+
+		codec.requestEntries(redisOperations, SESSION_ID);
+
+		verify(boundHashOperations).entries();
+	}
+
+	@Test
+	public void rawPutAllUsesSerializedValues() {
+		stubRawHash();
+		Map<String, byte[]> serializedValues = Collections.singletonMap("a", serializer.serialize("serialized"));
+
+		codec.putAll(redisOperations, SESSION_ID, Collections.<String, Object>singletonMap("a", "b"), serializedValues);
+
+		assertThat(codec.getValue(redisOperations, SESSION_ID, "a")).isEqualTo("serialized");
+	}
+
+	/**
+	 * Writes and reads the same Hash, so that the raw and the template paths are covered by the same assertions.
+	 */
+	private void assertHash() {
+		assertThat(codec.getEntries(redisOperations, SESSION_ID)).isEmpty();
+		assertThat(codec.getValue(redisOperations, SESSION_ID, "a")).isNull();
+
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("a", "b");
+		values.put("c", 1L);
+		codec.putAll(redisOperations, SESSION_ID, values, null);
+
+		Map<Object, Object> entries = codec.getEntries(redisOperations, SESSION_ID);
+		assertThat(entries).hasSize(2);
+		assertThat(entries).includes(entry("a", "b"), entry("c", 1L));
+		assertThat(codec.getValue(redisOperations, SESSION_ID, "a")).isEqualTo("b");
+		assertThat(codec.getValue(redisOperations, SESSION_ID, "missing")).isNull();
+		assertThat(codec.getValues(redisOperations, SESSION_ID, Arrays.<Object>asList("c", "missing", "a"))).isEqualTo(Arrays.asList(1L, null, "b"));
+	}
+
+	/**
+	 * Provides the serializers of a RedisTemplate and backs HGETALL, HGET, HMGET and HMSET of the Hash of the session
+	 * through the mocked {@link RedisConnection}.
+	 */
+	private void stubRawHash() {
+		final byte[] key = keyBuilder.getSessionKeyBytes(SESSION_ID);
+		final Map<String, byte[]> hash = new LinkedHashMap<String, byte[]>();
+		when(redisOperations.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(serializer);
+		when(redisOperations.execute(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			}
+		});
+		when(connection.hGetAll(key)).thenAnswer(new Answer<Map<byte[], byte[]>>() {
+			public Map<byte[], byte[]> answer(InvocationOnMock invocation) {
+				Map<byte[], byte[]> entries = new LinkedHashMap<byte[], byte[]>();
+				for(Map.Entry<String, byte[]> entry : hash.entrySet()) {
+					entries.put(entry.getKey().getBytes(UTF_8), entry.getValue());
+				}
+				return entries;
+			}
+		});
+		when(connection.hGet(eq(key), any(byte[].class))).thenAnswer(new Answer<byte[]>() {
+			public byte[] answer(InvocationOnMock invocation) {
+				return hash.get(new String((byte[]) invocation.getArguments()[1], UTF_8));
+			}
+		});
+		when(connection.hMGet(eq(key), (byte[][]) anyVararg())).thenAnswer(new Answer<List<byte[]>>() {
+			public List<byte[]> answer(InvocationOnMock invocation) {
+				Object[] arguments = invocation.getArguments();
+				List<byte[]> fields = new ArrayList<byte[]>();
+				if(arguments.length == 2 && arguments[1] instanceof byte[][]) {
+					fields.addAll(Arrays.asList((byte[][]) arguments[1]));
+				} else {
+					for(int i = 1; i < arguments.length; i++) {
+						fields.add((byte[]) arguments[i]);
+					}
+				}
+				List<byte[]> values = new ArrayList<byte[]>();
+				for(byte[] field : fields) {
+					values.add(hash.get(new String(field, UTF_8)));
+				}
+				return values;
+			}
+		});
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				Map<byte[], byte[]> entries = (Map<byte[], byte[]>) invocation.getArguments()[1];
+				for(Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+					hash.put(new String(entry.getKey(), UTF_8), entry.getValue());
+				}
+				return null;
+			}
+		}).when(connection).hMSet(eq(key), anyMap());
+	}
+
+	/**
+	 * Leaves the serializers unset, so that the Hash of the session is accessed through the mocked
+	 * {@link BoundHashOperations}, and backs its operations with a Map.
+	 */
+	private void stubTemplateHash() {
+		final Map<Object, Object> hash = new LinkedHashMap<Object, Object>();
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(SESSION_ID))).thenReturn(boundHashOperations);
+		when(boundHashOperations.entries()).thenAnswer(new Answer<Map<Object, Object>>() {
+			public Map<Object, Object> answer(InvocationOnMock invocation) {
+				return new LinkedHashMap<Object, Object>(hash);
+			}
+		});
+		when(boundHashOperations.get(any())).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				return hash.get(invocation.getArguments()[0]);
+			}
+		});
+		when(boundHashOperations.multiGet(anyCollection())).thenAnswer(new Answer<List<Object>>() {
+			public List<Object> answer(InvocationOnMock invocation) {
+				List<Object> values = new ArrayList<Object>();
+				for(Object hashKey : (Collection<Object>) invocation.getArguments()[0]) {
+					values.add(hash.get(hashKey));
+				}
+				return values;
+			}
+		});
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				hash.putAll((Map<Object, Object>) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(boundHashOperations).putAll(anyMap());
+	}
+}
@@ -19,17 +19,23 @@ import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.redis.connection.Message;
+import org.springframework.session.data.redis.SessionMessageListener.OverflowPolicy;
 import org.springframework.session.events.SessionDestroyedEvent;
 
 
@@ -58,6 +64,11 @@ public class SessionMessageListenerTests {
 		listener = new SessionMessageListener(eventPublisher);
 	}
 
+	@After
+	public void cleanup() throws Exception {
+		listener.destroy();
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void constructorNullEventPublisher() {
 		new SessionMessageListener(null);
@@ -118,6 +129,132 @@ public class SessionMessageListenerTests {
 		verifyZeroInteractions(eventPublisher);
 	}
 
+	@Test
+	public void onMessageKeyShorterThanPrefix() throws Exception {
+		mockMessage("__keyevent@0__:del","spring:session");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test
+	public void onMessageChannelShorterThanSuffix() throws Exception {
+		mockMessage("del","spring:session:sessions:123");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test
+	public void onMessageKeyspaceDel() throws Exception {
+		mockMessage("__keyspace@0__:spring:session:sessions:123","del");
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("123");
+	}
+
+	@Test
+	public void onMessageKeyspaceExpired() throws Exception {
+		mockMessage("__keyspace@12__:spring:session:sessions:543","expired");
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("543");
+	}
+
+	@Test
+	public void onMessageKeyBuilderNamespace() throws Exception {
+		listener.setKeyBuilder(new RedisKeyBuilder("app", "tag"));
+		mockMessage("__keyevent@0__:del","app:{tag}:sessions:123");
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("123");
+	}
+
+	@Test
+	public void onMessageKeyBuilderNamespaceDefaultKey() throws Exception {
+		listener.setKeyBuilder(new RedisKeyBuilder("app"));
+		mockMessage("__keyevent@0__:del","spring:session:sessions:123");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test
+	public void onMessageKeyBuilderShards() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app", 4);
+		listener.setKeyBuilder(keyBuilder);
+		mockMessage("__keyevent@0__:expired", keyBuilder.getSessionKey("123"));
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("123");
+	}
+
+	@Test
+	public void onMessageKeyspaceKeyBuilderShards() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app", 4);
+		listener.setKeyBuilder(keyBuilder);
+		mockMessage("__keyspace@0__:" + keyBuilder.getSessionKey("123"), "del");
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("123");
+	}
+
+	@Test
+	public void onMessageKeyBuilderShardsExpirationKey() throws Exception {
+		RedisKeyBuilder keyBuilder = new RedisKeyBuilder("app", 4);
+		listener.setKeyBuilder(keyBuilder);
+		mockMessage("__keyevent@0__:del", keyBuilder.getExpirationKey(0, 1429111740000L));
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setKeyBuilderNull() {
+		listener.setKeyBuilder(null);
+	}
+
+	@Test
+	public void onMessageKeyspaceHset() throws Exception {
+		mockMessage("__keyspace@0__:spring:session:sessions:123","hset");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test
+	public void onMessageKeyspaceWrongKeyPrefix() throws Exception {
+		mockMessage("__keyspace@0__:spring:session:expirations:123","del");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
+	@Test
+	public void onMessageKeyspaceMalformedChannel() throws Exception {
+		mockMessage("__keyspace@0","del");
+
+		listener.onMessage(message, pattern);
+
+		verifyZeroInteractions(eventPublisher);
+	}
+
 	@Test
 	public void onMessageRename() throws Exception {
 		mockMessage("__keyevent@0__:rename","spring:session:sessions:123");
@@ -137,6 +274,122 @@ public class SessionMessageListenerTests {
 		verify(eventPublisher).publishEvent(any(ApplicationEvent.class));
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void setDispatchThreadsNegative() {
+		listener.setDispatchThreads(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setMaxPendingEventsZero() {
+		listener.setMaxPendingEvents(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setOverflowPolicyNull() {
+		listener.setOverflowPolicy(null);
+	}
+
+	@Test
+	public void onMessageDispatchThreadsPublishesOnBackgroundThread() throws Exception {
+		final CountDownLatch published = new CountDownLatch(1);
+		final Thread caller = Thread.currentThread();
+		final Thread[] publisher = new Thread[1];
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				publisher[0] = Thread.currentThread();
+				published.countDown();
+				return null;
+			}
+		}).when(eventPublisher).publishEvent(any(ApplicationEvent.class));
+		listener.setDispatchThreads(1);
+		listener.afterPropertiesSet();
+		mockMessage("__keyevent@0__:del", "spring:session:sessions:123");
+
+		listener.onMessage(message, pattern);
+
+		assertThat(published.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(publisher[0]).isNotSameAs(caller);
+		verify(eventPublisher).publishEvent(event.capture());
+		assertThat(event.getValue().getSessionId()).isEqualTo("123");
+	}
+
+	@Test
+	public void onMessageDispatchThreadsOverflowDiscard() throws Exception {
+		CountDownLatch release = blockPublisher();
+		listener.setDispatchThreads(1);
+		listener.setMaxPendingEvents(1);
+		listener.setOverflowPolicy(OverflowPolicy.DISCARD);
+		listener.afterPropertiesSet();
+		mockMessage("__keyevent@0__:del", "spring:session:sessions:123");
+
+		// the first is being published, the second is pending and the third overflows
+		listener.onMessage(message, pattern);
+		listener.onMessage(message, pattern);
+		listener.onMessage(message, pattern);
+
+		assertThat(listener.getPendingEventCount()).isEqualTo(1);
+		assertThat(listener.getDiscardedEventCount()).isEqualTo(1);
+		release.countDown();
+		listener.destroy();
+		verify(eventPublisher, times(2)).publishEvent(any(ApplicationEvent.class));
+		assertThat(listener.getPendingEventCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void onMessageDispatchThreadsOverflowCallerRuns() throws Exception {
+		final Thread caller = Thread.currentThread();
+		final CountDownLatch release = new CountDownLatch(1);
+		final int[] callerPublished = new int[1];
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				if(Thread.currentThread() == caller) {
+					callerPublished[0]++;
+				} else {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				return null;
+			}
+		}).when(eventPublisher).publishEvent(any(ApplicationEvent.class));
+		listener.setDispatchThreads(1);
+		listener.setMaxPendingEvents(1);
+		listener.afterPropertiesSet();
+		mockMessage("__keyevent@0__:del", "spring:session:sessions:123");
+
+		listener.onMessage(message, pattern);
+		listener.onMessage(message, pattern);
+		listener.onMessage(message, pattern);
+
+		assertThat(callerPublished[0]).isEqualTo(1);
+		assertThat(listener.getDiscardedEventCount()).isEqualTo(0);
+		release.countDown();
+		listener.destroy();
+		verify(eventPublisher, times(3)).publishEvent(any(ApplicationEvent.class));
+	}
+
+	@Test
+	public void onMessageDispatchThreadsDestroyedCallerRunsDiscards() throws Exception {
+		listener.setDispatchThreads(1);
+		listener.afterPropertiesSet();
+		listener.destroy();
+		mockMessage("__keyevent@0__:del", "spring:session:sessions:123");
+
+		listener.onMessage(message, pattern);
+
+		verify(eventPublisher, never()).publishEvent(any(ApplicationEvent.class));
+		assertThat(listener.getDiscardedEventCount()).isEqualTo(1);
+	}
+
+	private CountDownLatch blockPublisher() {
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				release.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		}).when(eventPublisher).publishEvent(any(ApplicationEvent.class));
+		return release;
+	}
+
 	private void mockMessage(String channel, String body) throws UnsupportedEncodingException {
 		when(message.getBody()).thenReturn(bytes(body));
 		when(message.getChannel()).thenReturn(bytes(channel));
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.MapSession;
+
+@RunWith(MockitoJUnitRunner.class)
+@SuppressWarnings({"unchecked","rawtypes"})
+public class SessionNearCacheTests {
+	@Mock
+	RedisOperations redisOperations;
+
+	@Mock
+	RedisConnection connection;
+
+	@Mock
+	Message message;
+
+	byte[] pattern;
+
+	RedisSerializer<Object> serializer = new JdkSerializationRedisSerializer();
+
+	SessionNearCache cache;
+
+	MapSession session;
+
+	@Before
+	public void setup() {
+		cache = new SessionNearCache();
+		session = new MapSession();
+		session.setAttribute("a", "b");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setMaxSizeZero() {
+		cache.setMaxSize(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setTimeToLiveInSecondsNegative() {
+		cache.setTimeToLiveInSeconds(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setChannelEmpty() {
+		cache.setChannel("");
+	}
+
+	@Test
+	public void getMiss() {
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+
+		assertThat(cache.getHitCount()).isEqualTo(0);
+		assertThat(cache.getMissCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void getHitReturnsCopy() {
+		cache.put(session, serializer);
+
+		MapSession result = cache.get(session.getId(), serializer);
+		result.setAttribute("a", "changed");
+
+		assertThat(result.getId()).isEqualTo(session.getId());
+		assertThat(cache.get(session.getId(), serializer).getAttribute("a")).isEqualTo("b");
+		assertThat(cache.getHitCount()).isEqualTo(2);
+		assertThat(cache.getMissCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void putCopiesSession() {
+		cache.put(session, serializer);
+
+		session.setAttribute("a", "changed");
+
+		assertThat(cache.get(session.getId(), serializer).getAttribute("a")).isEqualTo("b");
+	}
+
+	@Test
+	public void getHitCopiesAttributes() {
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("a");
+		session.setAttribute("list", list);
+		cache.put(session, serializer);
+
+		List<String> first = (List<String>) cache.get(session.getId(), serializer).getAttribute("list");
+		first.add("b");
+		list.add("c");
+
+		List<String> second = (List<String>) cache.get(session.getId(), serializer).getAttribute("list");
+		assertThat(second).containsExactly("a");
+		assertThat(second).isNotSameAs(first);
+	}
+
+	@Test
+	public void getTimeToLivePassed() {
+		cache.setTimeToLiveInSeconds(0);
+		cache.put(session, serializer);
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+		assertThat(cache.getSize()).isEqualTo(0);
+	}
+
+	@Test
+	public void putEvictsLeastRecentlyUsed() {
+		cache.setMaxSize(2);
+		MapSession second = new MapSession();
+		MapSession third = new MapSession();
+		cache.put(session, serializer);
+		cache.put(second, serializer);
+		cache.get(session.getId(), serializer);
+
+		cache.put(third, serializer);
+
+		assertThat(cache.getSize()).isEqualTo(2);
+		assertThat(cache.get(second.getId(), serializer)).isNull();
+		assertThat(cache.get(session.getId(), serializer)).isNotNull();
+		assertThat(cache.get(third.getId(), serializer)).isNotNull();
+	}
+
+	@Test
+	public void putInvalidatedWhileLoading() {
+		long invalidationCount = cache.getInvalidationCount();
+		cache.evict(session.getId());
+
+		cache.put(session, serializer, invalidationCount);
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+	}
+
+	@Test
+	public void putOtherInvalidatedWhileLoading() {
+		long invalidationCount = cache.getInvalidationCount();
+		cache.evict("other");
+
+		cache.put(session, serializer, invalidationCount);
+
+		assertThat(cache.get(session.getId(), serializer)).isNotNull();
+	}
+
+	@Test
+	public void putClearedWhileLoading() {
+		long invalidationCount = cache.getInvalidationCount();
+		cache.clear();
+
+		cache.put(session, serializer, invalidationCount);
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+	}
+
+	@Test
+	public void putInvalidationForgottenWhileLoading() {
+		cache.setMaxSize(1);
+		long invalidationCount = cache.getInvalidationCount();
+		cache.evict(session.getId());
+		cache.evict("other");
+
+		cache.put(session, serializer, invalidationCount);
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+	}
+
+	@Test
+	public void putNotInvalidatedWhileLoading() {
+		long invalidationCount = cache.getInvalidationCount();
+
+		cache.put(session, serializer, invalidationCount);
+
+		assertThat(cache.get(session.getId(), serializer)).isNotNull();
+	}
+
+	@Test
+	public void evict() {
+		cache.put(session, serializer);
+
+		cache.evict(session.getId());
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+	}
+
+	@Test
+	public void onMessageNullBody() {
+		cache.put(session, serializer);
+
+		cache.onMessage(message, pattern);
+
+		assertThat(cache.get(session.getId(), serializer)).isNotNull();
+	}
+
+	@Test
+	public void onMessageOtherOrigin() throws Exception {
+		cache.put(session, serializer);
+		when(message.getBody()).thenReturn(("other-origin " + session.getId()).getBytes("UTF-8"));
+
+		cache.onMessage(message, pattern);
+
+		assertThat(cache.get(session.getId(), serializer)).isNull();
+	}
+
+	@Test
+	public void onMessageSameOrigin() throws Exception {
+		cache.put(session, serializer);
+		byte[] body = publishInvalidation(session.getId());
+		when(message.getBody()).thenReturn(body);
+
+		cache.onMessage(message, pattern);
+
+		assertThat(cache.get(session.getId(), serializer)).isNotNull();
+	}
+
+	@Test
+	public void publishInvalidation() throws Exception {
+		cache.setChannel("custom");
+
+		byte[] body = publishInvalidation(session.getId());
+
+		assertThat(new String(body, "UTF-8")).endsWith(" " + session.getId());
+		verify(connection).publish(eq("custom".getBytes("UTF-8")), any(byte[].class));
+	}
+
+	/**
+	 * Publishes an invalidation using the mocked {@link RedisConnection} and returns the message that was published.
+	 */
+	private byte[] publishInvalidation(String sessionId) {
+		when(redisOperations.execute(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				RedisCallback<?> callback = (RedisCallback<?>) invocation.getArguments()[0];
+				return callback.doInRedis(connection);
+			}
+		});
+
+		cache.publishInvalidation(redisOperations, sessionId);
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(connection).publish(any(byte[].class), body.capture());
+		return body.getValue();
+	}
+}
@@ -0,0 +1,736 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.session.data.redis.RedisOperationsSessionRepository.CREATION_TIME_ATTR;
+import static org.springframework.session.data.redis.RedisOperationsSessionRepository.LAST_ACCESSED_ATTR;
+import static org.springframework.session.data.redis.RedisOperationsSessionRepository.MAX_INACTIVE_ATTR;
+import static org.springframework.session.data.redis.RedisOperationsSessionRepository.getSessionAttrNameKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.core.BoundSetOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.MapSession;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository.RedisSession;
+import org.springframework.session.data.redis.WriteBehindRedisSessionRepository.OverflowPolicy;
+
+@RunWith(MockitoJUnitRunner.class)
+@SuppressWarnings({"unchecked","rawtypes"})
+public class WriteBehindRedisSessionRepositoryTests {
+	private final RedisKeyBuilder keyBuilder = new RedisKeyBuilder();
+
+	private final JdkSerializationRedisSerializer serializer = new JdkSerializationRedisSerializer();
+
+	private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+
+	private final CountDownLatch firstWriteReleased = new CountDownLatch(1);
+
+	@Mock
+	RedisOperations redisOperations;
+	@Mock
+	RedisConnection connection;
+	@Mock
+	BoundHashOperations<String, Object, Object> boundHashOperations;
+	@Mock
+	BoundSetOperations<String, String> boundSetOperations;
+	@Mock
+	BoundSetOperations<String, String> indexSetOperations;
+	@Captor
+	ArgumentCaptor<Map<String,Object>> delta;
+
+	private RedisOperationsSessionRepository redisRepository;
+
+	private WriteBehindRedisSessionRepository repository;
+
+	@Before
+	public void setup() {
+		this.redisRepository = new RedisOperationsSessionRepository(redisOperations);
+		this.repository = new WriteBehindRedisSessionRepository(redisRepository);
+		when(redisOperations.boundHashOps(anyString())).thenReturn(boundHashOperations);
+		when(redisOperations.boundSetOps(anyString())).thenReturn(boundSetOperations);
+		when(redisOperations.executePipelined(any(SessionCallback.class))).thenAnswer(executeCallback());
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		repository.destroy();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorNullDelegate() {
+		new WriteBehindRedisSessionRepository(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setMaxPendingSessionsZero() {
+		repository.setMaxPendingSessions(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setBatchSizeZero() {
+		repository.setBatchSize(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setFlushIntervalInMillisZero() {
+		repository.setFlushIntervalInMillis(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setOverflowPolicyNull() {
+		repository.setOverflowPolicy(null);
+	}
+
+	@Test
+	public void saveIsDeferred() {
+		RedisSession session = repository.createSession();
+
+		repository.save(session);
+
+		verifyZeroInteractions(redisOperations);
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+
+		repository.flush();
+
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue().keySet()).containsOnly(CREATION_TIME_ATTR, MAX_INACTIVE_ATTR, LAST_ACCESSED_ATTR);
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void saveCoalesces() {
+		RedisSession session = repository.createSession();
+		session.setAttribute("a", "b");
+		repository.save(session);
+		session.setAttribute("c", "d");
+		session.removeAttribute("a");
+		repository.save(session);
+
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+		assertThat(repository.getCoalescedSaveCount()).isEqualTo(1);
+
+		repository.flush();
+
+		verify(redisOperations, times(1)).executePipelined(any(SessionCallback.class));
+		verify(boundHashOperations).putAll(delta.capture());
+		Map<String,Object> written = delta.getValue();
+		assertThat(written.get(CREATION_TIME_ATTR)).isEqualTo(session.getCreationTime());
+		assertThat(written.get(getSessionAttrNameKey("c"))).isEqualTo("d");
+		assertThat(written.keySet()).contains(getSessionAttrNameKey("a"));
+		assertThat(written.get(getSessionAttrNameKey("a"))).isNull();
+	}
+
+	@Test
+	public void saveCoalescesExpiration() {
+		RedisSession session = repository.createSession();
+		repository.save(session);
+		session.setMaxInactiveIntervalInSeconds(60);
+		repository.save(session);
+
+		repository.flush();
+
+		// the expiration of a new session is only added, never moved
+		verify(boundSetOperations, never()).remove(anyString());
+		verify(boundHashOperations).expire(session.getMaxInactiveIntervalInSeconds(), TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void flushBatches() {
+		repository.setBatchSize(2);
+		for(int i = 0; i < 5; i++) {
+			repository.save(repository.createSession());
+		}
+
+		repository.flush();
+
+		verify(redisOperations, times(3)).executePipelined(any(SessionCallback.class));
+		verify(boundHashOperations, times(5)).putAll(anyMap());
+	}
+
+	@Test
+	public void flushFailure() {
+		doThrow(new RedisConnectionFailureException("Error")).when(redisOperations).executePipelined(any(SessionCallback.class));
+		repository.save(repository.createSession());
+
+		repository.flush();
+
+		assertThat(repository.getFailedSaveCount()).isEqualTo(1);
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void flushFailureRetriedWithNewerChanges() {
+		doThrow(new RedisConnectionFailureException("Error")).when(redisOperations).executePipelined(any(SessionCallback.class));
+		RedisSession session = repository.createSession();
+		session.setAttribute("a", "b");
+		repository.save(session);
+		repository.flush();
+		doAnswer(executeCallback()).when(redisOperations).executePipelined(any(SessionCallback.class));
+		session.setAttribute("c", "d");
+		repository.save(session);
+
+		repository.flush();
+
+		verify(boundHashOperations).putAll(delta.capture());
+		assertThat(delta.getValue().get(getSessionAttrNameKey("a"))).isEqualTo("b");
+		assertThat(delta.getValue().get(getSessionAttrNameKey("c"))).isEqualTo("d");
+		assertThat(delta.getValue().keySet()).contains(CREATION_TIME_ATTR);
+		assertThat(repository.getFailedSaveCount()).isEqualTo(1);
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void flushFailureWritesSessionsSeparately() {
+		RedisSession failing = repository.createSession();
+		final String failingKey = keyBuilder.getSessionKey(failing.getId());
+		final BoundHashOperations<String, Object, Object> failingHashOperations = mock(BoundHashOperations.class);
+		when(redisOperations.boundHashOps(failingKey)).thenReturn(failingHashOperations);
+		doThrow(new SerializationException("Error")).when(failingHashOperations).putAll(anyMap());
+		repository.save(failing);
+		repository.save(repository.createSession());
+
+		repository.flush();
+
+		verify(boundHashOperations).putAll(anyMap());
+		verify(redisOperations, times(3)).executePipelined(any(SessionCallback.class));
+		assertThat(repository.getFailedSaveCount()).isEqualTo(1);
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+		assertThat(repository.getSession(failing.getId())).isNotNull();
+	}
+
+	@Test
+	public void getSessionWhileFlushing() throws Exception {
+		final RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				flushing.countDown();
+				release.await();
+				return executeCallback().answer(invocation);
+			}
+		}).when(redisOperations).executePipelined(any(SessionCallback.class));
+		Thread flush = start(new Runnable() {
+			public void run() {
+				repository.flush();
+			}
+		});
+		flushing.await();
+
+		RedisSession session = repository.getSession(toSave.getId());
+		release.countDown();
+		flush.join(5000);
+
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		verify(boundHashOperations, never()).entries();
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void getSessionPending() {
+		RedisSession toSave = repository.createSession();
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		RedisSession session = repository.getSession(toSave.getId());
+
+		verifyNothingSent();
+		assertThat(session.getId()).isEqualTo(toSave.getId());
+		assertThat(session.getAttribute("a")).isEqualTo("b");
+		assertThat(session.getCreationTime()).isEqualTo(toSave.getCreationTime());
+	}
+
+	@Test
+	public void getSessionPendingExpired() {
+		RedisSession toSave = repository.createSession();
+		toSave.setMaxInactiveIntervalInSeconds(1);
+		toSave.setLastAccessedTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+		repository.save(toSave);
+
+		assertThat(repository.getSession(toSave.getId())).isNull();
+	}
+
+	@Test
+	public void getSessionPendingLazyFlushes() {
+		redisRepository.setLazyAttributeLoading(true);
+		MapSession expected = new MapSession();
+		when(boundHashOperations.multiGet(anyCollection())).thenReturn(Arrays.<Object>asList(
+				expected.getCreationTime(), expected.getMaxInactiveIntervalInSeconds(), expected.getLastAccessedTime()));
+		RedisSession toSave = repository.getSession(expected.getId());
+		toSave.setAttribute("a", "b");
+		repository.save(toSave);
+
+		repository.getSession(expected.getId());
+
+		verify(boundHashOperations).putAll(anyMap());
+		verify(boundHashOperations, times(2)).multiGet(anyCollection());
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void getSessionNotPending() {
+		assertThat(repository.getSession("missing")).isNull();
+
+		verify(boundHashOperations).entries();
+	}
+
+	@Test
+	public void getSessionsPending() {
+		RedisSession toSave = repository.createSession();
+		repository.save(toSave);
+		doReturn(Arrays.<Object>asList(new HashMap<Object, Object>())).when(redisOperations).executePipelined(any(SessionCallback.class));
+
+		Map<String, RedisSession> sessions = repository.getSessions(Arrays.asList("missing", toSave.getId()));
+
+		assertThat(sessions.keySet()).containsOnly(toSave.getId());
+		assertThat(sessions.get(toSave.getId()).getCreationTime()).isEqualTo(toSave.getCreationTime());
+		verify(redisOperations).executePipelined(any(SessionCallback.class));
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void getSessionsAllPending() {
+		RedisSession toSave = repository.createSession();
+		repository.save(toSave);
+
+		Map<String, RedisSession> sessions = repository.getSessions(Arrays.asList(toSave.getId()));
+
+		assertThat(sessions.keySet()).containsOnly(toSave.getId());
+		verifyZeroInteractions(redisOperations);
+	}
+
+	@Test
+	public void deleteDiscardsPending() {
+		RedisSession session = repository.createSession();
+		repository.save(session);
+
+		repository.delete(session.getId());
+		repository.flush();
+
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+		verify(boundHashOperations, never()).putAll(anyMap());
+	}
+
+	@Test
+	public void saveCoalescesPrincipalName() {
+		redisRepository.setIndexPrincipalNames(true);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "luke"))).thenReturn(indexSetOperations);
+		RedisSession session = repository.createSession();
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		repository.save(session);
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "luke");
+		repository.save(session);
+
+		repository.flush();
+
+		verify(redisOperations, never()).boundSetOps(keyBuilder.getPrincipalKey(0, "rob"));
+		verify(indexSetOperations).add(session.getId());
+		verify(indexSetOperations, never()).remove(anyVararg());
+	}
+
+	@Test
+	public void findByIndexNameAndIndexValueFlushes() {
+		redisRepository.setIndexPrincipalNames(true);
+		when(redisOperations.boundSetOps(keyBuilder.getPrincipalKey(0, "rob"))).thenReturn(indexSetOperations);
+		when(indexSetOperations.members()).thenReturn(new HashSet<String>());
+		RedisSession session = repository.createSession();
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+		repository.save(session);
+
+		Map<String, RedisSession> sessions = repository.findByIndexNameAndIndexValue(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "rob");
+
+		assertThat(sessions).isEmpty();
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+		verify(indexSetOperations).add(session.getId());
+	}
+
+	@Test
+	public void overflowCallerRuns() {
+		repository.setMaxPendingSessions(1);
+		repository.save(repository.createSession());
+
+		repository.save(repository.createSession());
+
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+		verify(boundHashOperations).putAll(anyMap());
+	}
+
+	@Test
+	public void overflowCallerRunsCoalesces() {
+		repository.setMaxPendingSessions(1);
+		RedisSession session = repository.createSession();
+		repository.save(session);
+
+		repository.save(session);
+
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+		assertThat(repository.getCoalescedSaveCount()).isEqualTo(1);
+		verifyZeroInteractions(redisOperations);
+	}
+
+	@Test
+	public void overflowCallerRunsNotBlockedByWriteOfOtherSession() throws Exception {
+		repository.setMaxPendingSessions(1);
+		final RedisSession session = repository.createSession();
+		final BoundHashOperations<String, Object, Object> sessionHashOperations = mock(BoundHashOperations.class);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(sessionHashOperations);
+		blockFirstWrite();
+		repository.save(repository.createSession());
+		Thread flush = start(new Runnable() {
+			public void run() {
+				repository.flush();
+			}
+		});
+		firstWriteStarted.await();
+
+		// the session being written remains pending, so the next save overflows
+		Thread save = start(new Runnable() {
+			public void run() {
+				repository.save(session);
+			}
+		});
+		save.join(5000);
+		firstWriteReleased.countDown();
+		flush.join(5000);
+
+		assertThat(save.isAlive()).isFalse();
+		verify(sessionHashOperations).putAll(anyMap());
+	}
+
+	@Test
+	public void deleteOrderedWithWriteOfSameSession() throws Exception {
+		final RedisSession session = repository.createSession();
+		final String key = keyBuilder.getSessionKey(session.getId());
+		BoundHashOperations<String, Object, Object> sessionHashOperations = mockPersisted(session);
+		final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+		doAnswer(record(writes, "save")).when(sessionHashOperations).putAll(anyMap());
+		doAnswer(record(writes, "delete")).when(redisOperations).delete(key);
+		blockFirstWrite();
+		repository.save(session);
+		Thread flush = start(new Runnable() {
+			public void run() {
+				repository.flush();
+			}
+		});
+		firstWriteStarted.await();
+
+		Thread delete = start(new Runnable() {
+			public void run() {
+				repository.delete(session.getId());
+			}
+		});
+		awaitWaiting(delete, Thread.State.WAITING);
+		session.setAttribute("a", "b");
+		repository.save(session);
+		firstWriteReleased.countDown();
+		flush.join(5000);
+		delete.join(5000);
+		repository.flush();
+
+		assertThat(writes).isEqualTo(Arrays.asList("save", "delete", "save"));
+	}
+
+	@Test
+	public void deleteNotBlockedByWriteOfOtherSession() throws Exception {
+		final RedisSession session = repository.createSession();
+		mockPersisted(session);
+		blockFirstWrite();
+		repository.save(repository.createSession());
+		Thread flush = start(new Runnable() {
+			public void run() {
+				repository.flush();
+			}
+		});
+		firstWriteStarted.await();
+
+		Thread delete = start(new Runnable() {
+			public void run() {
+				repository.delete(session.getId());
+			}
+		});
+		delete.join(5000);
+		firstWriteReleased.countDown();
+		flush.join(5000);
+
+		assertThat(delete.isAlive()).isFalse();
+		verify(redisOperations).delete(keyBuilder.getSessionKey(session.getId()));
+	}
+
+	@Test
+	public void overflowBlock() {
+		repository.setMaxPendingSessions(1);
+		repository.setFlushIntervalInMillis(10);
+		repository.setOverflowPolicy(OverflowPolicy.BLOCK);
+		repository.afterPropertiesSet();
+		repository.save(repository.createSession());
+
+		repository.save(repository.createSession());
+
+		verify(boundHashOperations, timeout(1000).atLeastOnce()).putAll(anyMap());
+	}
+
+	@Test
+	public void overflowBlockFlushFailure() throws Exception {
+		repository.setMaxPendingSessions(1);
+		repository.setFlushIntervalInMillis(10);
+		repository.setOverflowPolicy(OverflowPolicy.BLOCK);
+		RedisSession failing = repository.createSession();
+		failing.setAttribute("a", "b");
+		repository.save(failing);
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				flushing.countDown();
+				release.await();
+				throw new RedisConnectionFailureException("Error");
+			}
+		}).when(redisOperations).executePipelined(any(SessionCallback.class));
+		Thread flush = start(new Runnable() {
+			public void run() {
+				repository.flush();
+			}
+		});
+		flushing.await();
+		final RedisSession waiting = repository.createSession();
+		Thread save = start(new Runnable() {
+			public void run() {
+				repository.save(waiting);
+			}
+		});
+		awaitWaiting(save, Thread.State.TIMED_WAITING);
+
+		release.countDown();
+		flush.join(5000);
+
+		// the changes that failed are still pending and the save keeps waiting for them to be written
+		assertThat(repository.getFailedSaveCount()).isEqualTo(1);
+		assertThat(repository.getPendingCount()).isEqualTo(1);
+		assertThat(repository.getSession(failing.getId()).getAttribute("a")).isEqualTo("b");
+		assertThat(save.isAlive()).isTrue();
+
+		doAnswer(executeCallback()).when(redisOperations).executePipelined(any(SessionCallback.class));
+		repository.flush();
+		save.join(5000);
+		repository.flush();
+
+		verify(boundHashOperations, times(2)).putAll(delta.capture());
+		assertThat(delta.getAllValues().get(0).get(getSessionAttrNameKey("a"))).isEqualTo("b");
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void saveCopiesAttributes() {
+		stubSerializers();
+		RedisSession session = repository.createSession();
+		List<String> values = new ArrayList<String>();
+		values.add("a");
+		session.setAttribute("values", values);
+		repository.save(session);
+		values.add("b");
+
+		RedisSession pending = repository.getSession(session.getId());
+		((List<String>) pending.getAttribute("values")).add("c");
+		RedisSession other = repository.getSession(session.getId());
+		repository.flush();
+
+		assertThat(other.getAttribute("values")).isEqualTo(Arrays.asList("a"));
+		ArgumentCaptor<Map> hash = ArgumentCaptor.forClass(Map.class);
+		verify(connection).hMSet(eq(keyBuilder.getSessionKeyBytes(session.getId())), hash.capture());
+		Object written = null;
+		for(Map.Entry<byte[], byte[]> entry : ((Map<byte[], byte[]>) hash.getValue()).entrySet()) {
+			if(Arrays.equals(entry.getKey(), getSessionAttrNameKey("values").getBytes())) {
+				written = serializer.deserialize(entry.getValue());
+			}
+		}
+		assertThat(written).isEqualTo(Arrays.asList("a"));
+	}
+
+	@Test
+	public void saveSerializesOnlyChangedAttributes() {
+		RedisSerializer<Object> attributeSerializer = spy(serializer);
+		when(redisOperations.getHashValueSerializer()).thenReturn(attributeSerializer);
+		RedisSession session = repository.createSession();
+		session.setAttribute("unchanged", "value");
+		repository.save(session);
+		repository.flush();
+		session.setAttribute("a", "b");
+		repository.save(session);
+		session.setLastAccessedTime(System.currentTimeMillis());
+		repository.save(session);
+
+		verify(attributeSerializer).serialize("value");
+		verify(attributeSerializer).serialize("b");
+		verify(attributeSerializer, times(2)).serialize(any());
+	}
+
+	@Test
+	public void getSessionPendingSerializesUnchangedAttributesOnce() {
+		RedisSerializer<Object> attributeSerializer = spy(serializer);
+		when(redisOperations.getHashValueSerializer()).thenReturn(attributeSerializer);
+		RedisSession session = repository.createSession();
+		session.setAttribute("unchanged", "value");
+		repository.save(session);
+		repository.flush();
+		session.setAttribute("a", "b");
+		repository.save(session);
+
+		repository.getSession(session.getId());
+		RedisSession pending = repository.getSession(session.getId());
+
+		assertThat(pending.getAttribute("unchanged")).isEqualTo("value");
+		assertThat(pending.getAttribute("a")).isEqualTo("b");
+		verify(attributeSerializer, times(2)).serialize("value");
+		verify(attributeSerializer).serialize("b");
+	}
+
+	@Test
+	public void destroyFlushes() throws Exception {
+		repository.afterPropertiesSet();
+		repository.save(repository.createSession());
+
+		repository.destroy();
+
+		verify(boundHashOperations).putAll(anyMap());
+		assertThat(repository.getPendingCount()).isEqualTo(0);
+	}
+
+	/**
+	 * Mocks the {@link BoundHashOperations} of a session that is persisted, so that it is found when it is deleted.
+	 */
+	private BoundHashOperations<String, Object, Object> mockPersisted(RedisSession session) {
+		BoundHashOperations<String, Object, Object> sessionHashOperations = mock(BoundHashOperations.class);
+		when(redisOperations.boundHashOps(keyBuilder.getSessionKey(session.getId()))).thenReturn(sessionHashOperations);
+		Map<Object, Object> persisted = new HashMap<Object, Object>();
+		persisted.put(CREATION_TIME_ATTR, session.getCreationTime());
+		persisted.put(MAX_INACTIVE_ATTR, session.getMaxInactiveIntervalInSeconds());
+		persisted.put(LAST_ACCESSED_ATTR, session.getLastAccessedTime());
+		when(sessionHashOperations.entries()).thenReturn(persisted);
+		return sessionHashOperations;
+	}
+
+	private static Answer<Object> record(final List<String> writes, final String write) {
+		return new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				writes.add(write);
+				return null;
+			}
+		};
+	}
+
+	private static Thread start(Runnable runnable) {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		return thread;
+	}
+
+	private static void awaitWaiting(Thread thread, Thread.State state) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		// the thread may wake up to check again, so it is not asserted to still be waiting afterwards
+		while(thread.getState() != state) {
+			assertThat(System.currentTimeMillis()).isLessThan(end);
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Blocks the first pipeline, counting down {@link #firstWriteStarted} once it starts, until
+	 * {@link #firstWriteReleased} is counted down.
+	 */
+	private void blockFirstWrite() {
+		final AtomicBoolean blocked = new AtomicBoolean();
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				if(blocked.compareAndSet(false, true)) {
+					firstWriteStarted.countDown();
+					firstWriteReleased.await();
+				}
+				return executeCallback().answer(invocation);
+			}
+		}).when(redisOperations).executePipelined(any(SessionCallback.class));
+	}
+
+	/**
+	 * Verifies that no command was sent, while the serializers may have been retrieved.
+	 */
+	private void verifyNothingSent() {
+		verify(redisOperations, atLeast(0)).getHashValueSerializer();
+		verifyNoMoreInteractions(redisOperations);
+	}
+
+	/**
+	 * Provides the serializers of a RedisTemplate and invokes the {@link RedisCallback} that was passed in with
+	 * the mocked {@link RedisConnection}
+	 */
+	private void stubSerializers() {
+		when(redisOperations.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(redisOperations.getHashValueSerializer()).thenReturn(serializer);
+		when(redisOperations.execute(any(RedisCallback.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			}
+		});
+	}
+
+	/**
+	 * Invokes the {@link SessionCallback} that was passed in with the mocked {@link RedisOperations}
+	 */
+	private Answer<Object> executeCallback() {
+		return new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				SessionCallback<?> callback = (SessionCallback<?>) invocation.getArguments()[0];
+				return callback.execute(redisOperations);
+			}
+		};
+	}
+}
@@ -31,6 +31,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.session.data.redis.config.ConfigureNotifyKeyspaceEventsAction;
+import org.springframework.session.data.redis.config.KeyspaceNotificationMode;
 
 import java.util.Arrays;
 
@@ -153,6 +154,40 @@ public class EnableRedisKeyspaceNotificationsInitializerTests {
 		verify(connection, never()).setConfig(anyString(), anyString());
 	}
 
+	@Test
+	public void afterPropertiesSetKeyspaceUnset() throws Exception {
+		keyspaceInitializer();
+		setConfigNotification("");
+
+		initializer.afterPropertiesSet();
+
+		assertOptionsContains("K","g","x");
+	}
+
+	@Test
+	public void afterPropertiesSetKeyspaceE() throws Exception {
+		keyspaceInitializer();
+		setConfigNotification("E");
+
+		initializer.afterPropertiesSet();
+
+		assertOptionsContains("E", "K", "g", "x");
+	}
+
+	@Test
+	public void afterPropertiesSetKeyspaceAK() throws Exception {
+		keyspaceInitializer();
+		setConfigNotification("AK");
+
+		initializer.afterPropertiesSet();
+
+		verify(connection, never()).setConfig(anyString(), anyString());
+	}
+
+	private void keyspaceInitializer() {
+		initializer = new EnableRedisKeyspaceNotificationsInitializer(connectionFactory, new ConfigureNotifyKeyspaceEventsAction(KeyspaceNotificationMode.KEYSPACE));
+	}
+
 	private void assertOptionsContains(String... expectedValues) {
 		verify(connection).setConfig(eq(CONFIG_NOTIFY_KEYSPACE_EVENTS), options.capture());
 		for(String expectedValue : expectedValues) {
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis.config.annotation.web.http;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.session.data.redis.RedisExpirationMode;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository;
+import org.springframework.session.data.redis.RedisSaveMode;
+import org.springframework.session.data.redis.config.ConfigureRedisAction;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisHttpSessionConfigurationAnnotationAttributesTests {
+	@Autowired
+	RedisOperationsSessionRepository sessionRepository;
+
+	@Test
+	public void saveMode() {
+		assertThat(ReflectionTestUtils.getField(sessionRepository, "saveMode")).isEqualTo(RedisSaveMode.PIPELINED);
+	}
+
+	@Test
+	public void lazyAttributeLoading() {
+		assertThat(ReflectionTestUtils.getField(sessionRepository, "lazyAttributeLoading")).isEqualTo(true);
+	}
+
+	@Test
+	public void detectAttributeChanges() {
+		assertThat(ReflectionTestUtils.getField(sessionRepository, "detectAttributeChanges")).isEqualTo(true);
+	}
+
+	@Test
+	public void touchGranularityInSeconds() {
+		assertThat(ReflectionTestUtils.getField(sessionRepository, "touchGranularityInMillis")).isEqualTo(10000L);
+	}
+
+	@Test
+	public void expirationMode() {
+		Object expirationPolicy = ReflectionTestUtils.getField(sessionRepository, "expirationPolicy");
+		assertThat(ReflectionTestUtils.getField(expirationPolicy, "expirationMode")).isEqualTo(RedisExpirationMode.SORTED_SET);
+	}
+
+	@Test
+	public void cleanupLeaseInSeconds() {
+		Object expirationPolicy = ReflectionTestUtils.getField(sessionRepository, "expirationPolicy");
+		assertThat(ReflectionTestUtils.getField(expirationPolicy, "cleanupLeaseInMillis")).isEqualTo(90000L);
+	}
+
+	@EnableRedisHttpSession(saveMode = RedisSaveMode.PIPELINED, lazyAttributeLoading = true, detectAttributeChanges = true,
+			touchGranularityInSeconds = 10, expirationMode = RedisExpirationMode.SORTED_SET, cleanupLeaseInSeconds = 90)
+	@Configuration
+	static class Config {
+
+		@Bean
+		public static ConfigureRedisAction configureRedisAction() {
+			return ConfigureRedisAction.NO_OP;
+		}
+
+		@Bean
+		public RedisConnectionFactory redisConnectionFactory() {
+			return mock(RedisConnectionFactory.class);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis.config.annotation.web.http;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.session.data.redis.RedisOperationsSessionRepository;
+import org.springframework.session.data.redis.config.annotation.web.http.RedisHttpSessionConfiguration.CleanupTrigger;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RedisHttpSessionConfigurationCleanupTriggerTests {
+	// Wed Apr 15 10:28:32 CDT 2015
+	static final long NOW = 1429111712346L;
+
+	// Wed Apr 15 10:29:00 CDT 2015
+	static final long NEXT_MINUTE = 1429111740000L;
+
+	@Mock
+	RedisOperationsSessionRepository sessionRepository;
+
+	@Test
+	public void nextExecutionTimeNextMinute() {
+		CleanupTrigger trigger = new CleanupTrigger(sessionRepository, 0);
+
+		assertThat(trigger.nextExecutionTime(NOW)).isEqualTo(NEXT_MINUTE);
+	}
+
+	@Test
+	public void nextExecutionTimeJitter() {
+		long jitter = TimeUnit.SECONDS.toMillis(20);
+		CleanupTrigger trigger = new CleanupTrigger(sessionRepository, jitter);
+
+		for(int i = 0; i < 100; i++) {
+			long next = trigger.nextExecutionTime(NOW);
+			assertThat(next).isGreaterThanOrEqualTo(NEXT_MINUTE);
+			assertThat(next).isLessThan(NEXT_MINUTE + jitter);
+		}
+	}
+
+	@Test
+	public void nextExecutionTimeCleanupBehind() {
+		when(sessionRepository.isCleanupBehind()).thenReturn(true);
+		CleanupTrigger trigger = new CleanupTrigger(sessionRepository, TimeUnit.SECONDS.toMillis(20));
+
+		assertThat(trigger.nextExecutionTime(NOW)).isEqualTo(NOW + CleanupTrigger.CATCH_UP_DELAY_IN_MILLIS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupJitterInSecondsMinute() {
+		new RedisHttpSessionConfiguration().setCleanupJitterInSeconds(60);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupJitterInSecondsNegative() {
+		new RedisHttpSessionConfiguration().setCleanupJitterInSeconds(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setMaxBucketsPerCleanupZero() {
+		new RedisHttpSessionConfiguration().setMaxBucketsPerCleanup(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setCleanupLeaseInSecondsNegative() {
+		new RedisHttpSessionConfiguration().setCleanupLeaseInSeconds(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void sessionRepositoryCleanupLeaseShorterThanJitter() {
+		RedisHttpSessionConfiguration configuration = new RedisHttpSessionConfiguration();
+		configuration.setCleanupJitterInSeconds(30);
+		configuration.setCleanupLeaseInSeconds(90);
+
+		configuration.sessionRepository(null);
+	}
+}
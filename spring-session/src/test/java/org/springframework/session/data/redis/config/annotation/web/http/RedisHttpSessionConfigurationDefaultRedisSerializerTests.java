@@ -0,0 +1,71 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis.config.annotation.web.http;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.data.redis.CompactRedisSerializer;
+import org.springframework.session.data.redis.config.ConfigureRedisAction;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@WebAppConfiguration
+public class RedisHttpSessionConfigurationDefaultRedisSerializerTests {
+	@Autowired
+	RedisTemplate<String, ExpiringSession> sessionRedisTemplate;
+
+	@Autowired
+	RedisSerializer<Object> springSessionDefaultRedisSerializer;
+
+	@Test
+	public void defaultRedisSerializerUsedForValues() {
+		assertThat(sessionRedisTemplate.getValueSerializer()).isSameAs(springSessionDefaultRedisSerializer);
+		assertThat(sessionRedisTemplate.getHashValueSerializer()).isSameAs(springSessionDefaultRedisSerializer);
+	}
+
+	@EnableRedisHttpSession
+	@Configuration
+	static class Config {
+
+		@Bean
+		public static ConfigureRedisAction configureRedisAction() {
+			return ConfigureRedisAction.NO_OP;
+		}
+
+		@Bean
+		public RedisConnectionFactory redisConnectionFactory() {
+			return mock(RedisConnectionFactory.class);
+		}
+
+		@Bean
+		public RedisSerializer<Object> springSessionDefaultRedisSerializer() {
+			return new CompactRedisSerializer();
+		}
+	}
+}
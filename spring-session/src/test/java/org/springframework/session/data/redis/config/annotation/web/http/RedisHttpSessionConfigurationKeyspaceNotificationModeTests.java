@@ -0,0 +1,118 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.redis.config.annotation.web.http;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.session.data.redis.config.KeyspaceNotificationMode;
+
+public class RedisHttpSessionConfigurationKeyspaceNotificationModeTests {
+
+	RedisHttpSessionConfiguration configuration;
+
+	@Before
+	public void setup() {
+		configuration = new RedisHttpSessionConfiguration();
+	}
+
+	@Test
+	public void getSessionDestroyedTopicsDefault() {
+		assertThat(topics(mock(RedisConnectionFactory.class))).containsOnly("__keyevent@*:del", "__keyevent@*:expired");
+	}
+
+	@Test
+	public void getSessionDestroyedTopicsKeyspaceDatabase() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		JedisConnectionFactory connectionFactory = new JedisConnectionFactory();
+		connectionFactory.setDatabase(3);
+
+		assertThat(topics(connectionFactory)).containsOnly("__keyspace@3__:spring:session:sessions:*");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void getSessionDestroyedTopicsKeyspaceUnknownDatabase() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+
+		topics(mock(RedisConnectionFactory.class));
+	}
+
+	@Test
+	public void getSessionDestroyedTopicsKeyspaceNamespace() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		configuration.setRedisNamespace("app");
+		configuration.setRedisHashTag("tag");
+
+		assertThat(topics(new JedisConnectionFactory())).containsOnly("__keyspace@0__:app:{tag}:sessions:*");
+	}
+
+	@Test
+	public void getSessionDestroyedTopicsKeyspaceNamespaceEscaped() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		configuration.setRedisNamespace("app*");
+
+		assertThat(topics(new JedisConnectionFactory())).containsOnly("__keyspace@0__:app\\*:sessions:*");
+	}
+
+	@Test
+	public void getSessionDestroyedTopicsKeyspaceShards() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		configuration.setRedisNamespace("app");
+		configuration.setRedisShards(4);
+
+		assertThat(topics(new JedisConnectionFactory())).containsOnly("__keyspace@0__:app:{*}:sessions:*");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getSessionDestroyedTopicsShardsAndHashTag() {
+		configuration.setKeyspaceNotificationMode(KeyspaceNotificationMode.KEYSPACE);
+		configuration.setRedisHashTag("tag");
+		configuration.setRedisShards(4);
+
+		topics(new JedisConnectionFactory());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setRedisShardsZero() {
+		configuration.setRedisShards(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setRedisNamespaceEmpty() {
+		configuration.setRedisNamespace("");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setKeyspaceNotificationModeNull() {
+		configuration.setKeyspaceNotificationMode(null);
+	}
+
+	private List<String> topics(RedisConnectionFactory connectionFactory) {
+		List<String> topics = new ArrayList<String>();
+		for(Topic topic : configuration.getSessionDestroyedTopics(connectionFactory)) {
+			topics.add(topic.getTopic());
+		}
+		return topics;
+	}
+}
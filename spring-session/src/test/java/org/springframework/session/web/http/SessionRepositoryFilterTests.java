@@ -23,6 +23,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -56,6 +57,7 @@ import org.springframework.mock.web.MockFilterChain;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockServletContext;
+import org.springframework.session.DirtyTrackingSession;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.MapSessionRepository;
 import org.springframework.session.Session;
@@ -1133,6 +1135,106 @@ public class SessionRepositoryFilterTests<S extends ExpiringSession> {
 		verifyZeroInteractions(sessionRepository);
 	}
 
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doFilterDirtyTrackingSessionNotDirtyNotSaved() throws Exception {
+		SessionRepository<ExpiringSession> sessionRepository = mock(SessionRepository.class);
+		DirtyTrackingSession session = mockDirtyTrackingSession(false);
+		when(sessionRepository.getSession(session.getId())).thenReturn(session);
+		filter = new SessionRepositoryFilter<ExpiringSession>(sessionRepository);
+		setSessionCookie(session.getId());
+
+		doFilter(new DoInFilter(){
+			@Override
+			public void doFilter(HttpServletRequest wrappedRequest) {
+				wrappedRequest.getSession().getAttribute("a");
+			}
+		});
+
+		verify(sessionRepository, never()).save(any(ExpiringSession.class));
+		assertThat(getSessionCookie()).isNull();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doFilterDirtyTrackingSessionDirtySaved() throws Exception {
+		SessionRepository<ExpiringSession> sessionRepository = mock(SessionRepository.class);
+		DirtyTrackingSession session = mockDirtyTrackingSession(true);
+		when(sessionRepository.getSession(session.getId())).thenReturn(session);
+		filter = new SessionRepositoryFilter<ExpiringSession>(sessionRepository);
+		setSessionCookie(session.getId());
+
+		doFilter(new DoInFilter(){
+			@Override
+			public void doFilter(HttpServletRequest wrappedRequest) {
+				wrappedRequest.getSession().setAttribute("a", "b");
+			}
+		});
+
+		verify(sessionRepository).save(session);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doFilterRequestedSessionLookedUpOnce() throws Exception {
+		SessionRepository<ExpiringSession> sessionRepository = spy(new MapSessionRepository());
+		ExpiringSession session = sessionRepository.createSession();
+		sessionRepository.save(session);
+		filter = new SessionRepositoryFilter<ExpiringSession>(sessionRepository);
+		setSessionCookie(session.getId());
+
+		doFilter(new DoInFilter(){
+			@Override
+			public void doFilter(HttpServletRequest wrappedRequest) {
+				assertThat(wrappedRequest.isRequestedSessionIdValid()).isTrue();
+				assertThat(wrappedRequest.getSession(false)).isNotNull();
+				wrappedRequest.getSession().setAttribute("a", "b");
+			}
+		});
+
+		verify(sessionRepository, times(1)).getSession(session.getId());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doFilterRequestedSessionNotFoundLookedUpOnce() throws Exception {
+		SessionRepository<ExpiringSession> sessionRepository = spy(new MapSessionRepository());
+		filter = new SessionRepositoryFilter<ExpiringSession>(sessionRepository);
+		setSessionCookie("invalid-session-id");
+
+		doFilter(new DoInFilter(){
+			@Override
+			public void doFilter(HttpServletRequest wrappedRequest) {
+				assertThat(wrappedRequest.getSession(false)).isNull();
+				assertThat(wrappedRequest.isRequestedSessionIdValid()).isFalse();
+				assertThat(wrappedRequest.getSession(false)).isNull();
+			}
+		});
+
+		verify(sessionRepository, times(1)).getSession("invalid-session-id");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doFilterRequestedSessionInvalidatedNotLookedUpAgain() throws Exception {
+		SessionRepository<ExpiringSession> sessionRepository = spy(new MapSessionRepository());
+		final ExpiringSession session = sessionRepository.createSession();
+		sessionRepository.save(session);
+		filter = new SessionRepositoryFilter<ExpiringSession>(sessionRepository);
+		setSessionCookie(session.getId());
+
+		doFilter(new DoInFilter(){
+			@Override
+			public void doFilter(HttpServletRequest wrappedRequest) {
+				wrappedRequest.getSession().invalidate();
+				assertThat(wrappedRequest.getSession(false)).isNull();
+				assertThat(wrappedRequest.getSession().getId()).isNotEqualTo(session.getId());
+			}
+		});
+
+		verify(sessionRepository, times(1)).getSession(session.getId());
+	}
+
 	// --- order
 
 	@Test
@@ -1159,6 +1261,13 @@ public class SessionRepositoryFilterTests<S extends ExpiringSession> {
 		assertThat(request.getSession(false)).describedAs("The original HttpServletRequest HttpSession should be null").isNull();
 	}
 
+	private DirtyTrackingSession mockDirtyTrackingSession(boolean dirty) {
+		DirtyTrackingSession session = mock(DirtyTrackingSession.class);
+		when(session.getId()).thenReturn("dirty-tracking-session-id");
+		when(session.isDirty()).thenReturn(dirty);
+		return session;
+	}
+
 	private void assertNoSession() {
 		Cookie cookie = getSessionCookie();
 		assertThat(cookie).isNull();